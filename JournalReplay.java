@@ -0,0 +1,435 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import main.constants.Constants;
+import main.helper.BitFieldHelper;
+import main.helper.ChokeUnchokePeerHelper;
+import main.helper.ChokingStrategy;
+import main.helper.CommonConfigHelper;
+import main.helper.EventJournalHelper;
+import main.helper.PieceAvailabilityHelper;
+import main.helper.PieceHelper;
+import main.helper.PiecePickerHelper;
+import main.helper.SwarmInfoHelper;
+import main.messageTypes.Swarm;
+
+/**
+ * Main class to replay the event journal of a peer offline. The journal is
+ * given as a command line argument, optionally followed by the choking strategy
+ * to replay the choke rounds with and the seed which breaks its ties.
+ *
+ * The recorded choke rounds are decided again by the given strategy, and every
+ * recorded request is picked again by the piece picker from the availability
+ * index, the bit field of the neighbor and the reservations rebuilt from the
+ * journal, so that a change to the choker or the piece picker can be compared
+ * against a recorded run. The geometry of the pieces is taken from the swarm of
+ * the journaled file in the config files. Timeouts, corrupted pieces and piece
+ * hashes aren't journaled, so no block is backed off, no piece is suspected and
+ * pieces may always be started in the replay.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class JournalReplay implements EventJournalHelper.EventListener {
+
+	private final ChokeUnchokePeerHelper chokeUnchokeHelper;
+
+	// message counts and largest queue depths by message type, incoming at 0 and
+	// outgoing at 1
+	private final TreeMap<Integer, long[]> messageCounts = new TreeMap<Integer, long[]>();
+	private final int[] maxQueueDepths = new int[2];
+
+	private int chokeRounds = 0;
+	private int differingChokeRounds = 0;
+
+	private BitFieldHelper localBitField;
+	private PieceAvailabilityHelper availabilityIndex;
+	private final Map<String, BitFieldHelper> neighborBitFields = new HashMap<String, BitFieldHelper>();
+
+	// Reservations rebuilt from the journal, the same way the controller keeps
+	// them: blocks with the number of neighbors they are requested from, the
+	// blocks outstanding with every neighbor, and the blocks received so far
+	private final Swarm swarm; // null if the swarm of the journal isn't configured
+	private final int blockSize;
+	private final int endgameThreshold = CommonConfigHelper.getIntConfig(Constants.ENDGAME_THRESHOLD_LABEL,
+			Constants.DEFAULT_ENDGAME_THRESHOLD);
+	private final Map<Long, Integer> requestedBlocks = new HashMap<Long, Integer>();
+	private final Map<String, HashSet<Long>> outstandingBlocks = new HashMap<String, HashSet<Long>>();
+	private final HashSet<Long> receivedBlocks = new HashSet<Long>();
+	private final HashSet<Integer> partialPieces = new HashSet<Integer>();
+	private final ReplayPickState pickState = new ReplayPickState();
+
+	private int replayedRequests = 0;
+	private int recordedBlocks = 0;
+	private int matchingBlocks = 0; // recorded blocks which the picker picked as well
+	private int startedPieceCount = 0;
+	private int rarestPieceCount = 0;
+	private long extraHolders = 0; // holders above the pieces started by the picker, summed over the picks
+
+	public JournalReplay(ChokeUnchokePeerHelper chokeUnchokeHelper, Swarm swarm) {
+		this.chokeUnchokeHelper = chokeUnchokeHelper;
+		this.swarm = swarm;
+		int configuredBlockSize = CommonConfigHelper.getIntConfig(Constants.BLOCK_SIZE_LABEL,
+				Constants.DEFAULT_BLOCK_SIZE);
+		this.blockSize = swarm == null || (configuredBlockSize > 0 && configuredBlockSize <= swarm.getPieceSize())
+				? configuredBlockSize
+				: swarm.getPieceSize();
+	}
+
+	public static void main(String args[]) throws IOException {
+		String strategyName = args.length > 1 ? args[1] : Constants.CHOKING_STRATEGY_TIT_FOR_TAT;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+		File journalFile = new File(args[0]);
+		Swarm swarm = findSwarm(journalFile);
+		if (swarm == null) {
+			System.out.printf("No swarm is configured for the journal %s, its requests aren't picked again\n",
+					journalFile.getName());
+		}
+
+		JournalReplay replay = new JournalReplay(ChokeUnchokePeerHelper.getReplayInstance(strategyName, seed),
+				swarm);
+		EventJournalHelper.read(journalFile, replay);
+		replay.printSummary(strategyName, seed);
+	}
+
+	/**
+	 * Finds the swarm of the file whose events the journal holds.
+	 *
+	 * @param journalFile - the event journal
+	 * @return Swarm or null if no swarm of the file is configured
+	 */
+	private static Swarm findSwarm(File journalFile) {
+		String suffix = String.format(Constants.EVENT_JOURNAL_FILE, "");
+		String fileName = journalFile.getName();
+		SwarmInfoHelper swarmInfoHelper = SwarmInfoHelper.returnSingletonInstance();
+		if (!fileName.endsWith(suffix) || swarmInfoHelper == null) {
+			return null;
+		}
+
+		fileName = fileName.substring(0, fileName.length() - suffix.length());
+		for (Swarm swarm : swarmInfoHelper.getSwarms()) {
+			if (swarm.getFileName().equals(fileName)) {
+				return swarm;
+			}
+		}
+		return null;
+	}
+
+	public void handleStart(String peerId, int numOfPieces, long startTime) {
+		System.out.printf("Journal of peer %s started at %tc with %d pieces\n", peerId, startTime, numOfPieces);
+		localBitField = new BitFieldHelper(numOfPieces);
+		availabilityIndex = new PieceAvailabilityHelper(localBitField);
+	}
+
+	public void handleMessage(long time, boolean isIncoming, String neighbor, int messageType, int queueDepth,
+			int[] indices, int[] begins) {
+		countMessage(isIncoming, messageType, queueDepth);
+
+		if (isIncoming && messageType == Constants.TYPE_HAVE_MESSAGE) {
+			BitFieldHelper neighborBitField = neighborBitFields.get(neighbor);
+			for (int index : indices) {
+				if (neighborBitField != null && neighborBitField.getValueAtIndex(index) == 0) {
+					neighborBitField.setValueAtIndex(index, true);
+					availabilityIndex.addPiece(index);
+				}
+			}
+		} else if (!isIncoming && messageType == Constants.TYPE_REQUEST_MESSAGE) {
+			BitFieldHelper neighborBitField = neighborBitFields.get(neighbor);
+			if (neighborBitField != null && swarm != null) {
+				comparePick(neighbor, neighborBitField, indices, begins);
+			}
+			for (int i = 0; i < indices.length; i++) {
+				reserveBlock(neighbor, PieceHelper.blockKey(indices[i], begins[i]));
+			}
+		} else if (isIncoming && messageType == Constants.TYPE_PIECE_MESSAGE) {
+			receivedBlocks.add(PieceHelper.blockKey(indices[0], begins[0]));
+			if (localBitField.getValueAtIndex(indices[0]) == 0) {
+				partialPieces.add(indices[0]);
+			}
+			releaseBlock(neighbor, PieceHelper.blockKey(indices[0], begins[0]));
+		} else if (!isIncoming && messageType == Constants.TYPE_CANCEL_MESSAGE) {
+			for (int i = 0; i < indices.length; i++) {
+				releaseBlock(neighbor, PieceHelper.blockKey(indices[i], begins[i]));
+			}
+		} else if (isIncoming && messageType == Constants.TYPE_CHOKE_MESSAGE) {
+			// a choking neighbor drops the requests it hasn't served yet
+			releaseBlocks(neighbor);
+		}
+	}
+
+	public void handleBitField(long time, boolean isIncoming, String neighbor, int queueDepth,
+			BitFieldHelper bitField) {
+		countMessage(isIncoming, Constants.TYPE_BITFIELD_MESSAGE, queueDepth);
+
+		if (isIncoming) {
+			BitFieldHelper previousBitField = neighborBitFields.put(neighbor, bitField);
+			if (previousBitField != null) {
+				availabilityIndex.removeBitField(previousBitField);
+			}
+			availabilityIndex.addBitField(bitField);
+		} else {
+			for (int i = bitField.nextSetBit(0); i >= 0; i = bitField.nextSetBit(i + 1)) {
+				markPieceDownloaded(i);
+			}
+		}
+	}
+
+	public void handleChokeRound(long time, List<ChokingStrategy.Neighbor> neighbors, int preferredNeighbors,
+			boolean isSeed, List<String> unchokedNeighbors) {
+		chokeRounds++;
+		List<String> replayedNeighbors = chokeUnchokeHelper.selectPreferredNeighbors(neighbors, preferredNeighbors,
+				isSeed);
+		if (!new HashSet<String>(replayedNeighbors).equals(new HashSet<String>(unchokedNeighbors))) {
+			differingChokeRounds++;
+			System.out.printf("Choke round at %d ms: recorded [%s], replayed [%s]\n", time / 1000000,
+					String.join(",", unchokedNeighbors), String.join(",", replayedNeighbors));
+		}
+	}
+
+	public void handlePieceCommitted(long time, int index, String neighbor) {
+		markPieceDownloaded(index);
+		partialPieces.remove(index);
+	}
+
+	public void handleNeighborClosed(long time, String neighbor) {
+		releaseBlocks(neighbor);
+		BitFieldHelper neighborBitField = neighborBitFields.remove(neighbor);
+		if (neighborBitField != null) {
+			availabilityIndex.removeBitField(neighborBitField);
+		}
+	}
+
+	/**
+	 * Picks a recorded request again with the piece picker and compares the
+	 * result with the recorded blocks. The new pieces which the peer started are
+	 * compared with the rarest of the new pieces which the picker started. The
+	 * picker only reserves blocks for the comparison, the recorded request is what
+	 * the reservations go on with.
+	 *
+	 * @param neighbor         - peer ID of the neighbor the blocks were requested
+	 *                         from
+	 * @param neighborBitField - bit field of the neighbor
+	 * @param indices          - piece indices of the recorded blocks
+	 * @param begins           - offsets of the recorded blocks
+	 * @return null
+	 */
+	private void comparePick(String neighbor, BitFieldHelper neighborBitField, int[] indices, int[] begins) {
+		HashSet<Integer> startedPieces = pickState.getStartedPieces();
+		int[] pieceIndices = new int[indices.length];
+		int[] blockOffsets = new int[indices.length];
+		pickState.begin(neighbor);
+		int count = PiecePickerHelper.pickBlocks(availabilityIndex, neighborBitField,
+				neighborBitField.andNot(localBitField), pickState, pieceIndices, blockOffsets);
+		HashSet<Long> pickedBlocks = pickState.end();
+
+		replayedRequests++;
+		recordedBlocks += indices.length;
+		int pickedHolders = -1; // holders of the rarest new piece which the picker started
+		for (int i = 0; i < count; i++) {
+			if (!startedPieces.contains(pieceIndices[i])) {
+				int holders = availabilityIndex.getHolderCount(pieceIndices[i]);
+				pickedHolders = pickedHolders == -1 ? holders : Math.min(pickedHolders, holders);
+			}
+		}
+
+		HashSet<Integer> newPieces = new HashSet<Integer>();
+		for (int i = 0; i < indices.length; i++) {
+			if (pickedBlocks.contains(PieceHelper.blockKey(indices[i], begins[i]))) {
+				matchingBlocks++;
+			}
+			if (startedPieces.contains(indices[i]) || !newPieces.add(indices[i])) {
+				continue;
+			}
+
+			startedPieceCount++;
+			if (pickedHolders == -1) {
+				continue;
+			}
+			int holders = availabilityIndex.getHolderCount(indices[i]) - pickedHolders;
+			if (holders <= 0) {
+				rarestPieceCount++;
+			} else {
+				extraHolders += holders;
+			}
+		}
+	}
+
+	private void reserveBlock(String neighbor, long blockKey) {
+		if (outstandingBlocks.computeIfAbsent(neighbor, peerId -> new HashSet<Long>()).add(blockKey)) {
+			requestedBlocks.merge(blockKey, 1, Integer::sum);
+		}
+	}
+
+	private void releaseBlock(String neighbor, long blockKey) {
+		HashSet<Long> blocks = outstandingBlocks.get(neighbor);
+		if (blocks != null && blocks.remove(blockKey)) {
+			requestedBlocks.computeIfPresent(blockKey, (key, holders) -> holders > 1 ? holders - 1 : null);
+		}
+	}
+
+	private void releaseBlocks(String neighbor) {
+		HashSet<Long> blocks = outstandingBlocks.remove(neighbor);
+		if (blocks == null) {
+			return;
+		}
+		for (long blockKey : blocks) {
+			requestedBlocks.computeIfPresent(blockKey, (key, holders) -> holders > 1 ? holders - 1 : null);
+		}
+	}
+
+	private void markPieceDownloaded(int index) {
+		localBitField.setValueAtIndex(index, true);
+		availabilityIndex.markPieceDownloaded(index);
+	}
+
+	private void countMessage(boolean isIncoming, int messageType, int queueDepth) {
+		int direction = isIncoming ? 0 : 1;
+		messageCounts.computeIfAbsent(messageType, type -> new long[2])[direction]++;
+		maxQueueDepths[direction] = Math.max(maxQueueDepths[direction], queueDepth);
+	}
+
+	/**
+	 * Prints what the replay found once the whole journal is read.
+	 *
+	 * @param strategyName - choking strategy the choke rounds were replayed with
+	 * @param seed         - seed which broke the ties of the strategy
+	 * @return null
+	 */
+	private void printSummary(String strategyName, long seed) {
+		System.out.printf("%-16s %10s %10s\n", "Message", "Received", "Sent");
+		for (Map.Entry<Integer, long[]> entry : messageCounts.entrySet()) {
+			System.out.printf("%-16s %10d %10d\n", getMessageName(entry.getKey()), entry.getValue()[0],
+					entry.getValue()[1]);
+		}
+		System.out.printf("Largest queue depth: %d received messages to process, %d messages to send\n",
+				maxQueueDepths[0], maxQueueDepths[1]);
+
+		System.out.printf("Choke rounds replayed with %s (seed %d): %d, %d decided differently\n", strategyName, seed,
+				chokeRounds, differingChokeRounds);
+		System.out.printf("Requests picked again: %d, %d of their %d blocks picked the same\n", replayedRequests,
+				matchingBlocks, recordedBlocks);
+		System.out.printf("Pieces started: %d, %d of them as rare as the pieces the picker started\n",
+				startedPieceCount, rarestPieceCount);
+		if (startedPieceCount > rarestPieceCount) {
+			System.out.printf("Other pieces had %.2f more holders than the picked ones on average\n",
+					(double) extraHolders / (startedPieceCount - rarestPieceCount));
+		}
+	}
+
+	private static String getMessageName(int messageType) {
+		switch (messageType) {
+			case Constants.TYPE_HANDSHAKE_MESSAGE:
+				return "handshake";
+			case Constants.TYPE_CHOKE_MESSAGE:
+				return "choke";
+			case Constants.TYPE_UNCHOKE_MESSAGE:
+				return "unchoke";
+			case Constants.TYPE_INTERESTED_MESSAGE:
+				return "interested";
+			case Constants.TYPE_NOT_INTERESTED_MESSAGE:
+				return "not interested";
+			case Constants.TYPE_HAVE_MESSAGE:
+				return "have";
+			case Constants.TYPE_BITFIELD_MESSAGE:
+				return "bitfield";
+			case Constants.TYPE_REQUEST_MESSAGE:
+				return "request";
+			case Constants.TYPE_PIECE_MESSAGE:
+				return "piece";
+			case Constants.TYPE_CANCEL_MESSAGE:
+				return "cancel";
+			case Constants.TYPE_KEEP_ALIVE_MESSAGE:
+				return "keep-alive";
+			case Constants.TYPE_PIECE_HASHES_MESSAGE:
+				return "piece hashes";
+			case Constants.TYPE_SHUTDOWN_MESSAGE:
+				return "shutdown";
+			default:
+				return String.valueOf(messageType);
+		}
+	}
+
+	/**
+	 * Answers the piece picker from the reservations rebuilt from the journal.
+	 * The blocks which the picker reserves are only kept for the pick which is
+	 * being compared.
+	 */
+	private class ReplayPickState implements PiecePickerHelper.PickState {
+		private String neighbor;
+		private HashSet<Long> pickedBlocks = new HashSet<Long>();
+
+		private void begin(String neighbor) {
+			this.neighbor = neighbor;
+			this.pickedBlocks = new HashSet<Long>();
+		}
+
+		private HashSet<Long> end() {
+			return pickedBlocks;
+		}
+
+		public HashSet<Integer> getStartedPieces() {
+			LinkedHashSet<Integer> startedPieces = new LinkedHashSet<Integer>(partialPieces);
+			for (long blockKey : requestedBlocks.keySet()) {
+				startedPieces.add((int) (blockKey >>> 32));
+			}
+			return startedPieces;
+		}
+
+		public int getPieceLength(int index) {
+			return (int) Math.min(swarm.getPieceSize(), swarm.getFileSize() - (long) index * swarm.getPieceSize());
+		}
+
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		public boolean hasPiece(int index) {
+			return localBitField.getValueAtIndex(index) == 1;
+		}
+
+		public boolean hasBlock(int index, int begin) {
+			return hasPiece(index) || receivedBlocks.contains(PieceHelper.blockKey(index, begin));
+		}
+
+		public boolean isBlockReserved(int index, int begin) {
+			long blockKey = PieceHelper.blockKey(index, begin);
+			return requestedBlocks.containsKey(blockKey) || pickedBlocks.contains(blockKey);
+		}
+
+		public boolean reserveBlock(int index, int begin) {
+			return !isBlockReserved(index, begin) && pickedBlocks.add(PieceHelper.blockKey(index, begin));
+		}
+
+		public void shareBlock(int index, int begin) {
+			pickedBlocks.add(PieceHelper.blockKey(index, begin));
+		}
+
+		public boolean isRequestOutstanding(int index, int begin) {
+			HashSet<Long> blocks = outstandingBlocks.get(neighbor);
+			return blocks != null && blocks.contains(PieceHelper.blockKey(index, begin));
+		}
+
+		public boolean isRequestBackedOff(int index, int begin) {
+			return false;
+		}
+
+		public boolean isPieceCorrupt(int index) {
+			return false;
+		}
+
+		public boolean canStartPiece() {
+			return true;
+		}
+
+		public boolean isEndgame() {
+			int missingPieces = localBitField.getNumberOfSegments() - localBitField.getCountOfDownloadedSegments();
+			return missingPieces > 0 && missingPieces <= endgameThreshold;
+		}
+	}
+}
@@ -1,8 +1,12 @@
-import main.PeerController;
+import main.PeerEngine;
+import main.helper.PeerInfoHelper;
+import main.messageTypes.Peer;
 
 /**
  * Main class to start the PeerProcess. The peer ID is given as a command line
- * argument.
+ * argument. When the peers are taken from a tracker the port of the peer and
+ * whether it has the file can be given after the peer ID, in which case the
+ * peer doesn't have to be listed in the peer config file.
  * 
  * @author Bhavan Voram
  */
@@ -10,8 +14,12 @@ public class PeerProcess {
 	public static void main(String args[]) {
 		String peerID = args[0];
 
-		PeerController controller = PeerController.returnSingletonInstance(peerID);
-		controller.beginPeerProcess();
+		if (args.length >= 3) {
+			PeerInfoHelper.returnSingletonInstance().addPeer(new Peer(peerID, "localhost", args[1], args[2]));
+		}
+
+		PeerEngine engine = PeerEngine.returnSingletonInstance(peerID);
+		engine.beginPeerProcess();
 
 	}
 
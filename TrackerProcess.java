@@ -0,0 +1,19 @@
+import main.TrackerServer;
+import main.constants.Constants;
+
+/**
+ * Main class to start the tracker. The port is given as a command line
+ * argument, optionally followed by the interval in seconds at which the peers
+ * re-announce themselves.
+ * 
+ * @author Sharan Sai Reddy Konda
+ */
+public class TrackerProcess {
+	public static void main(String args[]) {
+		int port = Integer.parseInt(args[0]);
+		int announceInterval = args.length > 1 ? Integer.parseInt(args[1]) : Constants.DEFAULT_TRACKER_INTERVAL;
+
+		new TrackerServer(port, announceInterval).run();
+	}
+
+}
@@ -1,75 +1,161 @@
 package main;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import main.constants.Constants;
+import main.helper.BandwidthHelper;
+import main.helper.BitFieldHelper;
 import main.helper.ChokeUnchokePeerHelper;
+import main.helper.ChokingStrategy;
 import main.helper.CommonConfigHelper;
+import main.helper.ConnectionManagerHelper;
+import main.helper.EventJournalHelper;
+import main.helper.HaveBroadcastHelper;
 import main.helper.LogHelper;
 import main.helper.OptimisticUnchokePeerHelper;
 import main.helper.PeerInfoHelper;
+import main.helper.PeerRegistryHelper;
+import main.helper.PieceAvailabilityHelper;
+import main.helper.PieceCacheHelper;
 import main.helper.PieceHelper;
+import main.helper.PieceVerifierHelper;
+import main.helper.PieceWriterHelper;
+import main.helper.ThreadHelper;
+import main.helper.TimerWheelHelper;
+import main.helper.TrackerHelper;
 import main.messageTypes.PeerMessage;
-import main.messageTypes.Peer;
 import main.messageTypes.Piece;
+import main.messageTypes.Peer;
+import main.messageTypes.Swarm;
 
 /**
- * Controller
+ * Controller of a single swarm. The engine creates a controller for every
+ * swarm the process serves.
  */
 public class PeerController {
 
-	private ArrayList<PeerHandler> peerHandlers;
+	// Neighbors of the swarm keyed by peer ID. Handlers are removed once their
+	// connection is closed, and are iterated through snapshots without a lock.
+	private final PeerRegistryHelper peerRegistry = new PeerRegistryHelper();
 	private PieceHelper pieceManager;
+	private PieceAvailabilityHelper availabilityIndex;
 	private PeerInfoHelper peerInfoHelperObj;
 
 	private final HashMap<String, String> peerCompleteMap = new HashMap<String, String>();
-	private ArrayList<String> chokedPeers = new ArrayList<String>();
+	private volatile Set<String> chokedPeers = Collections.emptySet();
+
+	// Blocks which are requested from one of the neighbors and not received yet,
+	// keyed by PieceHelper.blockKey, with the number of neighbors they are
+	// requested from, which is more than one in the endgame only
+	private final Map<Long, Integer> requestedBlocks = new ConcurrentHashMap<Long, Integer>();
 
+	// Pieces which are being downloaded, with the number of their blocks in
+	// requestedBlocks. A piece is added when a block of it is reserved, and removed
+	// once it is committed or discarded, or when its last reservation is released
+	// and none of its blocks are in the reassembly buffer.
+	private final Map<Integer, Integer> startedPieces = new ConcurrentHashMap<Integer, Integer>();
+
+	private TimerWheelHelper timer; // runs the periodic work of the swarm on the scheduler of the engine
 	private ChokeUnchokePeerHelper chokeUnchokeManager;
 	private OptimisticUnchokePeerHelper optimisticUnchokeManager;
-	private PeerServer peerServer;
+	private HaveBroadcastHelper haveBroadcastManager; // null if have messages are sent at once
+	private PieceWriterHelper pieceWriter;
+	private PieceVerifierHelper pieceVerifier;
+	private BandwidthHelper.SwarmBudget uploadBudget; // null if the upload rate is unlimited
+	private TrackerHelper trackerHelper; // null if the neighbors are taken from the peer config file
+	private ConnectionManagerHelper connectionManager; // null if the peer connects to every other peer
+	private EventJournalHelper eventJournal; // null unless the protocol events are recorded
+
+	// Bytes of the file sent to and received from the neighbors, as reported to
+	// the tracker
+	private final AtomicLong uploadedBytes = new AtomicLong();
+	private final AtomicLong downloadedBytes = new AtomicLong();
+
+	// Neighbors which sent a corrupted copy of a piece, by piece index
+	private final Map<Integer, Set<String>> corruptPieceSources = new ConcurrentHashMap<>();
+
+	// Peers from the tracker which are being dialed, so that a later announce
+	// doesn't dial them again
+	private final Set<String> dialingPeers = ConcurrentHashMap.newKeySet();
+
+	private PeerEngine engine;
+	private Swarm swarm;
 	private LogHelper logger;
 	private String peerId;
 
+	private final int prefetchCount = CommonConfigHelper.getIntConfig(Constants.PIECE_CACHE_PREFETCH_LABEL,
+			Constants.DEFAULT_PIECE_CACHE_PREFETCH);
+
+	private final int endgameThreshold = CommonConfigHelper.getIntConfig(Constants.ENDGAME_THRESHOLD_LABEL,
+			Constants.DEFAULT_ENDGAME_THRESHOLD);
+
 	private boolean connectionEstablished = false;
+	private boolean isTerminated = false;
 	public boolean isDownloadComplete = false;
 
-	private static volatile PeerController instance = null;
-
 	/**
-	 * returnSingletonInstance: returns a singleton peerController instance for the
-	 * given peer
+	 * getNewInstance: returns a new peerController instance for a swarm of the
+	 * given engine
 	 * 
-	 * @param peerID
-	 * @return
+	 * @param engine
+	 * @param swarm
+	 * @return PeerController or null if the swarm cannot be configured
 	 */
-	public static synchronized PeerController returnSingletonInstance(String peerID) {
-		if (instance == null) {
-			instance = new PeerController();
-			instance.peerId = peerID;
-			if (!instance.configControler()) {
-				instance = null;
-			}
+	public static PeerController getNewInstance(PeerEngine engine, Swarm swarm) {
+		PeerController controller = new PeerController();
+		controller.engine = engine;
+		controller.swarm = swarm;
+		controller.peerId = engine.getPeerId();
+		if (!controller.configControler()) {
+			controller = null;
 		}
-		return instance;
+		return controller;
 	}
 
 	/**
-	 * starts the peer process.
+	 * starts the helpers which have to run before the swarm takes connections.
 	 */
-	public void beginPeerProcess() {
-		// start the current peer server
-		new Thread(peerServer).start();
+	public void startSwarm() {
+		timer.start();
+		pieceWriter.start(CommonConfigHelper.getIntConfig(Constants.WRITE_SYNC_INTERVAL_LABEL,
+				Constants.DEFAULT_WRITE_SYNC_INTERVAL));
 
-		connectToPreviousPeer(); // connect to peer neighbors
+		int haveFlushInterval = CommonConfigHelper.getIntConfig(Constants.HAVE_FLUSH_INTERVAL_LABEL,
+				Constants.DEFAULT_HAVE_FLUSH_INTERVAL);
+		if (haveFlushInterval > 0) {
+			haveBroadcastManager = HaveBroadcastHelper.getNewInstance(this);
+			haveBroadcastManager.start(haveFlushInterval);
+		}
+	}
 
-		chokeUnchokeManager = ChokeUnchokePeerHelper.returnSingletonInstance(this);
+	/**
+	 * starts the peer process of the swarm once the listener is running.
+	 */
+	public void beginPeerProcess() {
+		if (trackerHelper != null) {
+			connectToTrackerPeers(); // connect to the neighbors known to the tracker
+		} else {
+			connectToPreviousPeer(); // connect to peer neighbors
+		}
+
+		chokeUnchokeManager = ChokeUnchokePeerHelper.getNewInstance(this);
 		if (chokeUnchokeManager != null) {
 			int chokeUnchokeInterval = Integer
 					.parseInt(CommonConfigHelper.getConfig(Constants.CHOKE_UNCHOKE_INTERVAL_LABEL));
@@ -77,7 +163,7 @@ public class PeerController {
 
 		}
 
-		optimisticUnchokeManager = OptimisticUnchokePeerHelper.returnSingletonInstance(this);
+		optimisticUnchokeManager = OptimisticUnchokePeerHelper.getNewInstance(this);
 		if (optimisticUnchokeManager != null) {
 			int optimisticUnchokeInterval = Integer
 					.parseInt(CommonConfigHelper.getConfig(Constants.OPTIMISTIC_UNCHOKE_INTERVAL_LABEL));
@@ -86,53 +172,174 @@ public class PeerController {
 	}
 
 	/**
-	 * Connect to previous peer neighbors as per the project requirement.
+	 * Connect to previous peer neighbors as per the project requirement, with one
+	 * connection per swarm.
 	 */
 	private void connectToPreviousPeer() {
 		HashMap<String, Peer> peerInfoMap = peerInfoHelperObj.getPeerMap();
 
 		try {
+			ArrayList<CompletableFuture<PeerHandler>> pendingConnections = new ArrayList<>();
 			for (Map.Entry<String, Peer> set : peerInfoMap.entrySet()) {
 				if (Integer.parseInt(set.getKey()) < Integer.parseInt(peerId)) {
-					makeConnection(peerInfoMap.get(set.getKey()));
+					pendingConnections.add(makeConnection(peerInfoMap.get(set.getKey())));
 				}
 			}
 
+			// wait for the connections which are established through the event loop
+			for (CompletableFuture<PeerHandler> pendingConnection : pendingConnections) {
+				pendingConnection.join();
+			}
+
 			setAllPeersConnection(true);
 
-		} catch (IOException e) {
+		} catch (IOException | CompletionException e) {
 			System.out.printf("Exception occured while creating connections with neighbours. Message: %s\n",
 					e.getMessage());
 		}
 	}
 
 	/**
-	 * connection to neighbor peer.
+	 * Announces the current peer to the tracker and connects to the peers it
+	 * returns, after which the peer re-announces itself periodically.
+	 */
+	private void connectToTrackerPeers() {
+		try {
+			handleTrackerPeers(trackerHelper.announce(Constants.TRACKER_EVENT_STARTED));
+		} catch (IOException e) {
+			System.out.printf("Exception occured while announcing to the tracker. Message: %s\n", e.getMessage());
+		}
+
+		setAllPeersConnection(true);
+		trackerHelper.start();
+		if (connectionManager != null) {
+			connectionManager.start(CommonConfigHelper.getIntConfig(Constants.CONNECTION_REFRESH_INTERVAL_LABEL,
+					Constants.DEFAULT_CONNECTION_REFRESH_INTERVAL));
+		}
+	}
+
+	/**
+	 * Connects to the peers received from the tracker which the current peer isn't
+	 * connected to yet. As with the peer config file, a peer only connects to the
+	 * peers with a lower peer id, and is connected from the ones with a higher
+	 * peer id once they see it in their own announces, so that two peers never
+	 * open two connections to each other. With a bounded number of connections
+	 * the peers are handed to the connection manager instead, which picks the
+	 * neighbors among them. The dials aren't waited for.
+	 * 
+	 * @param peers - peers of the swarm sampled by the tracker
+	 */
+	public void handleTrackerPeers(List<Peer> peers) {
+		if (connectionManager != null) {
+			for (Peer peer : peers) {
+				if (Integer.parseInt(peer.getPeerId()) < Integer.parseInt(peerId)) {
+					connectionManager.addCandidate(peer);
+				}
+			}
+			connectionManager.connectNeighbors();
+			return;
+		}
+
+		for (Peer peer : peers) {
+			if (Integer.parseInt(peer.getPeerId()) >= Integer.parseInt(peerId) || hasPeerHandler(peer.getPeerId())
+					|| !dialingPeers.add(peer.getPeerId())) {
+				continue;
+			}
+			try {
+				// the peer may have left the swarm since it announced itself
+				makeConnection(peer).whenComplete((peerHandler, e) -> {
+					dialingPeers.remove(peer.getPeerId());
+					if (e != null) {
+						System.out.printf("Exception occured while connecting to Peer %s. Message: %s\n",
+								peer.getPeerId(), e.getMessage());
+					}
+				});
+			} catch (IOException e) {
+				dialingPeers.remove(peer.getPeerId());
+				System.out.printf("Exception occured while connecting to Peer %s. Message: %s\n", peer.getPeerId(),
+						e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * connection to neighbor peer for this swarm. With the nio transport the
+	 * connection is established by the event loop, which also registers the peer
+	 * handler. Otherwise the blocking dial runs on the network pool. Either way a
+	 * neighbor which doesn't accept the dial in time is given up.
 	 *
 	 * @param peerInfo
+	 * @return future which completes once the connection is established
 	 */
-	private void makeConnection(Peer peerInfo) throws IOException {
-		String address = peerInfo.getAddress();
-		int port = peerInfo.getPort();
+	public CompletableFuture<PeerHandler> makeConnection(Peer peerInfo) throws IOException {
+		PeerEventLoop eventLoop = engine.getEventLoop();
+		if (eventLoop != null) {
+			return eventLoop.connect(peerInfo, this);
+		}
 
-		Socket neighborPeer = new Socket(address, port);
-		PeerHandler peerHandlerTmp = PeerHandler.getNewInstance(neighborPeer, this);
+		return CompletableFuture.supplyAsync(() -> {
+			String address = peerInfo.getAddress();
+			int port = peerInfo.getPort();
 
-		peerHandlerTmp.setPeerId(peerInfo.getPeerId());
-		peerHandlers.add(peerHandlerTmp);
+			try {
+				// The socket is opened through a channel so that pieces can be streamed to it
+				// directly from the download file.
+				SocketChannel channel = SocketChannel.open();
+				Socket neighborPeer = channel.socket();
+				try {
+					neighborPeer.connect(new InetSocketAddress(address, port), Constants.CONNECT_TIMEOUT);
+				} catch (IOException e) {
+					channel.close();
+					throw e;
+				}
+				PeerHandler peerHandlerTmp = PeerHandler.getNewInstance(neighborPeer, engine);
+
+				peerHandlerTmp.setPeerId(peerInfo.getPeerId());
+				if (!peerHandlerTmp.bindController(this, true)) {
+					// the neighbor connected to the current peer in the meantime
+					peerHandlerTmp.disconnect();
+					return peerHandlerTmp;
+				}
 
-		new Thread(peerHandlerTmp).start();
+				ThreadHelper.start(peerHandlerTmp);
+				return peerHandlerTmp;
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, engine.getNetworkPool());
+	}
+
+	/**
+	 * Hashes the pieces restored from the journal in parallel and marks the ones
+	 * which don't match their digests as missing, so that a peer whose download
+	 * file was damaged while it was stopped doesn't announce broken pieces.
+	 */
+	private void recheckResumedPieces() {
+		if (!pieceVerifier.hasPieceDigests()) {
+			return;
+		}
+
+		try {
+			List<Integer> brokenPieces = pieceVerifier.recheckPieces(pieceManager.getBitFieldHelper());
+			pieceManager.clearRestoredPieces(brokenPieces);
+			logger.logMessage(Constants.RESUME_RECHECK_LOG_MESSAGE, peerId, brokenPieces.size());
+		} catch (Exception e) {
+			System.out.printf("Exception occured while rechecking the restored pieces. Message: %s\n",
+					e.getMessage());
+		}
 	}
 
 	private void configPieceManager(boolean isFileExists) {
-		this.pieceManager = PieceHelper.returnSingletonInstance(isFileExists, peerId);
+		this.pieceManager = PieceHelper.getNewInstance(isFileExists, peerId, swarm);
 	}
 
 	private boolean configControler() {
-		peerInfoHelperObj = PeerInfoHelper.returnSingletonInstance(); // get log instance
+		peerInfoHelperObj = engine.getPeerInfoHelper();
 		Peer currPeer = peerInfoHelperObj.getPeerObjectByKey(peerId);
-		boolean isFileExists = currPeer != null && currPeer.hasFile();
-		this.peerHandlers = new ArrayList<PeerHandler>();
+		// a peer which has the files starts as a seed of every swarm whose file it
+		// actually holds
+		boolean isFileExists = currPeer != null && currPeer.hasFile()
+				&& PieceHelper.getDownloadFile(peerId, swarm).exists();
 
 		// configure piece manager based on whether the peer has the target file or not
 		configPieceManager(isFileExists);
@@ -140,14 +347,46 @@ public class PeerController {
 			return false;
 		}
 
-		// configure logger instance
-		logger = new LogHelper(peerId);
-		if (!logger.isLoggerInitialized()) {
-			return false;
+		logger = engine.getLogger();
+		timer = TimerWheelHelper.getNewInstance(engine.getScheduler());
+		pieceVerifier = PieceVerifierHelper.getNewInstance(this, engine.getVerifierPool());
+		pieceWriter = PieceWriterHelper.getNewInstance(this);
+		if (engine.getBandwidth() != null) {
+			uploadBudget = engine.getBandwidth().register(swarm.getPriority());
+		}
+		if (engine.getTrackerAddress() != null) {
+			trackerHelper = TrackerHelper.getNewInstance(this, engine.getTrackerAddress());
+			if (trackerHelper == null) {
+				return false;
+			}
 		}
 
-		// configure peer server
-		peerServer = PeerServer.returnSingletonInstance(peerId, this);
+		if (Boolean.parseBoolean(CommonConfigHelper.getConfig(Constants.EVENT_JOURNAL_LABEL, "false"))) {
+			eventJournal = EventJournalHelper.getNewInstance(PieceHelper.getDownloadFile(peerId, swarm), peerId,
+					swarm.getNumberOfPieces(), engine.getNetworkPool());
+		}
+
+		// the number of connections is bounded only for swarms known from a tracker,
+		// since without one a peer has to hear from every listed peer before leaving
+		int maxConnections = CommonConfigHelper.getIntConfig(Constants.MAX_CONNECTIONS_LABEL,
+				Constants.DEFAULT_MAX_CONNECTIONS);
+		if (maxConnections > 0) {
+			if (trackerHelper != null) {
+				connectionManager = ConnectionManagerHelper.getNewInstance(this, maxConnections);
+			} else {
+				System.out.printf("%s is ignored without %s, every listed peer is connected\n",
+						Constants.MAX_CONNECTIONS_LABEL, Constants.TRACKER_ADDRESS_LABEL);
+			}
+		}
+
+		// the pieces restored from the journal are checked before they are announced
+		if (pieceManager.getResumedPieceCount() > 0) {
+			logger.logMessage(Constants.RESUME_LOG_MESSAGE, peerId, pieceManager.getResumedPieceCount());
+			if (Boolean.parseBoolean(CommonConfigHelper.getConfig(Constants.RESUME_RECHECK_LABEL, "false"))) {
+				recheckResumedPieces();
+			}
+		}
+		availabilityIndex = new PieceAvailabilityHelper(pieceManager.getBitFieldHelper());
 
 		// configuration successful
 		return true;
@@ -159,7 +398,16 @@ public class PeerController {
 	 * 
 	 */
 	public void updateFileDownloadStatus() {
-		if (isConnection() == false || peerServer.getServerStatus() == false) {
+		if (isConnection() == false || engine.getPeerServer().getServerStatus() == false) {
+			return;
+		}
+
+		// without a list of all the peers the swarm is finished once the tracker
+		// doesn't know any incomplete peer and all the neighbors have the file
+		if (trackerHelper != null) {
+			if (isFileDownloadComplete() && trackerHelper.isSwarmFinished() && areNeighborsComplete()) {
+				this.terminateObjects();
+			}
 			return;
 		}
 
@@ -169,24 +417,150 @@ public class PeerController {
 	}
 
 	/**
-	 * This function terminates all the necessary objects by closing and freeing
-	 * them out from memory and exits the process safely.
+	 * This function terminates all the necessary objects of the swarm by closing
+	 * and freeing them out from memory. The engine exits the process safely once
+	 * every swarm is terminated.
 	 */
-	public void terminateObjects() {
+	public synchronized void terminateObjects() {
+		if (isTerminated) {
+			return;
+		}
+		isTerminated = true;
+
 		chokeUnchokeManager.destroy();
 		optimisticUnchokeManager.destroy();
-		logger.destroy();
+		if (connectionManager != null) {
+			connectionManager.destroy();
+		}
+		if (trackerHelper != null) {
+			trackerHelper.destroy();
+		}
+		if (haveBroadcastManager != null) {
+			haveBroadcastManager.destroy();
+		}
+		timer.destroy();
+		pieceWriter.destroy();
+		PieceCacheHelper pieceCache = pieceManager.getPieceCache();
+		if (pieceCache != null) {
+			logger.logMessage(Constants.PIECE_CACHE_LOG_MESSAGE, peerId, pieceCache.getHitCount(),
+					pieceCache.getMissCount(), pieceCache.getHitRate() * 100);
+		}
 		pieceManager.close();
-		System.exit(0);
+		if (eventJournal != null) {
+			eventJournal.close();
+		}
+		engine.handleSwarmTerminated(this);
+	}
+
+	/**
+	 * register peerHandler into the peer registry. If two peers dial each other at
+	 * the same time, both keep the connection dialed by the peer with the lower
+	 * peer id: a handler of that connection replaces the handler of the other
+	 * connection, which is closed, and the other connection isn't registered if
+	 * it comes second. The caller closes a connection which isn't registered.
+	 * 
+	 * @param peerHandler
+	 * @return boolean - true if the handler was registered
+	 */
+	public boolean addPeerHandler(PeerHandler peerHandler) {
+		while (!peerRegistry.add(peerHandler)) {
+			PeerHandler registeredHandler = peerRegistry.get(peerHandler.getPeerId());
+			if (registeredHandler == null) {
+				continue; // the registered connection was closed in the meantime
+			}
+			if (registeredHandler.isDialed() == peerHandler.isDialed() || !isKeptConnection(peerHandler)) {
+				return false;
+			}
+			if (peerRegistry.replace(registeredHandler, peerHandler)) {
+				registeredHandler.disconnect();
+				return true;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * checks if the connection of the given handler is the one which is kept when
+	 * the current peer and the neighbor dial each other, which is the connection
+	 * dialed by the peer with the lower peer id
+	 * 
+	 * @param peerHandler
+	 * @return boolean
+	 */
+	private boolean isKeptConnection(PeerHandler peerHandler) {
+		boolean isLowerPeer = Integer.parseInt(peerId) < Integer.parseInt(peerHandler.getPeerId());
+		return peerHandler.isDialed() == isLowerPeer;
 	}
 
 	/**
-	 * register peerHandler into peerHandlers list
+	 * remove peerHandler from the peer registry once its connection is closed
 	 * 
 	 * @param peerHandler
 	 */
-	public synchronized void addPeerHandler(PeerHandler peerHandler) {
-		peerHandlers.add(peerHandler);
+	public void removePeerHandler(PeerHandler peerHandler) {
+		if (peerRegistry.remove(peerHandler) && eventJournal != null) {
+			eventJournal.recordNeighborClosed(peerHandler.getPeerId());
+		}
+	}
+
+	/**
+	 * returns a snapshot of the handlers of the neighbors which are connected at
+	 * the moment
+	 * 
+	 * @return List
+	 */
+	public List<PeerHandler> getPeerHandlers() {
+		return peerRegistry.snapshot();
+	}
+
+	/**
+	 * checks if another neighbor may connect to the current peer
+	 * 
+	 * @return boolean
+	 */
+	public boolean hasNeighborCapacity() {
+		return connectionManager == null || connectionManager.hasCapacity();
+	}
+
+	/**
+	 * checks if a peerHandler is registered for the given neighbor
+	 * 
+	 * @param neighborPeerID
+	 * @return boolean
+	 */
+	public boolean hasPeerHandler(String neighborPeerID) {
+		return peerRegistry.contains(neighborPeerID);
+	}
+
+	/**
+	 * checks if the current peer is dialing the given neighbor for a tracker
+	 * announce
+	 * 
+	 * @param neighborPeerID
+	 * @return boolean
+	 */
+	public boolean isDialing(String neighborPeerID) {
+		return dialingPeers.contains(neighborPeerID);
+	}
+
+	/**
+	 * checks if the current peer told its neighbors that it has the file, and
+	 * every neighbor which is still connected told the current peer that it has
+	 * the file. A neighbor which left the swarm may not have said so if it
+	 * connected shortly before leaving.
+	 * 
+	 * @return boolean
+	 */
+	private synchronized boolean areNeighborsComplete() {
+		if (!peerCompleteMap.containsKey(peerId)) {
+			return false;
+		}
+		for (PeerHandler peerHandler : peerRegistry.snapshot()) {
+			if (!peerHandler.isConnectionClosed() && !peerCompleteMap.containsKey(peerHandler.getPeerId())) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -204,17 +578,21 @@ public class PeerController {
 	}
 
 	/**
-	 * gen download speed map
+	 * takes the view of the neighbors which completed the handshake, on which the
+	 * choking strategies decide
 	 * 
-	 * @return
+	 * @return List of neighbors
 	 */
-	public HashMap<String, Double> getDownloadRates() {
-		HashMap<String, Double> speedList = new HashMap<>();
-		for (int i = 0; i < peerHandlers.size(); i++) {
-			PeerHandler peerHandler = peerHandlers.get(i);
-			speedList.put(peerHandler.getPeerId(), peerHandler.downloadSpeed());
+	public List<ChokingStrategy.Neighbor> getChokingNeighbors() {
+		ArrayList<ChokingStrategy.Neighbor> neighbors = new ArrayList<ChokingStrategy.Neighbor>();
+		for (PeerHandler peerHandler : peerRegistry.snapshot()) {
+			if (peerHandler.isHandshakeReceived()) {
+				neighbors.add(new ChokingStrategy.Neighbor(peerHandler.getPeerId(), peerHandler.getDownloadRate(),
+						peerHandler.getUploadRate(), peerHandler.isNeighborInterested(), peerHandler.isPeerChoked(),
+						peerHandler.getConnectionTime()));
+			}
 		}
-		return speedList;
+		return neighbors;
 	}
 
 	/**
@@ -222,26 +600,16 @@ public class PeerController {
 	 * 
 	 * @param peerList
 	 */
-	public void setChokePeers(ArrayList<String> peerList) {
-		chokedPeers = peerList;
+	public void setChokePeers(List<String> peerList) {
+		chokedPeers = Collections.unmodifiableSet(new HashSet<String>(peerList));
 
 		PeerMessage chokeMessage = PeerMessage.create();
 		chokeMessage.setMessageType(Constants.TYPE_CHOKE_MESSAGE);
 
-		for (int i = 0; i < peerList.size(); i++) {
-			String peerIdTmp = peerList.get(i);
-			for (int j = 0, peerHandlersSize = peerHandlers.size(); j < peerHandlersSize; j++) {
-				PeerHandler peerHandler = peerHandlers.get(j);
-				if (peerHandler.getPeerId().equals(peerIdTmp)) {
-					if (peerHandler.isHandshakeReceived()) {
-						// System.out.println(LOGGER_PREFIX+" : Sending CHOKE message to peers :
-						// "+peerToBeChoked);
-						peerHandler.sendChokeMessage(chokeMessage);
-						break;
-					} else {
-						break;
-					}
-				}
+		for (String peerToBeChoked : peerList) {
+			PeerHandler peerHandler = peerRegistry.get(peerToBeChoked);
+			if (peerHandler != null && peerHandler.isHandshakeReceived()) {
+				peerHandler.sendChokeMessage(chokeMessage);
 			}
 		}
 	}
@@ -251,24 +619,13 @@ public class PeerController {
 	 * 
 	 * @param peerList
 	 */
-	public void unChokePeers(ArrayList<String> peerList) {
+	public void unChokePeers(List<String> peerList) {
 		PeerMessage unChokeMessage = PeerMessage.create();
 		unChokeMessage.setMessageType(Constants.TYPE_UNCHOKE_MESSAGE);
-		// System.out.println(LOGGER_PREFIX+" : Sending UNCHOKE message to peers...");
-		for (int i = 0; i < peerList.size(); i++) {
-			String peerToBeUnChoked = peerList.get(i);
-			for (int j = 0; j < peerHandlers.size(); j++) {
-				PeerHandler peerHandler = peerHandlers.get(j);
-				if (peerHandler.getPeerId().equals(peerToBeUnChoked)) {
-					if (peerHandler.isHandshakeReceived()) {
-						// System.out.println(LOGGER_PREFIX+" : Sending UNCHOKE message to
-						// peers..."+peerToBeUnChoked);
-						peerHandler.sendUnchokeMessage(unChokeMessage);
-						break;
-					} else {
-						break;
-					}
-				}
+		for (String peerToBeUnChoked : peerList) {
+			PeerHandler peerHandler = peerRegistry.get(peerToBeUnChoked);
+			if (peerHandler != null && peerHandler.isHandshakeReceived()) {
+				peerHandler.sendUnchokeMessage(unChokeMessage);
 			}
 		}
 	}
@@ -284,30 +641,38 @@ public class PeerController {
 		PeerMessage unChokeMessage = PeerMessage.create();
 		unChokeMessage.setMessageType(Constants.TYPE_UNCHOKE_MESSAGE);
 
-		logger.logMessage(
-				String.format(Constants.CHANGE_OF_OPTIMISTICALLY_UNCHOKED_NEIGHBORS_LOG_MESSAGE, peerId, contenderID));
-		for (PeerHandler peerHandler : this.peerHandlers) {
-			if (peerHandler.getPeerId().equals(contenderID)) {
-				if (peerHandler.isHandshakeReceived()) {
-					peerHandler.sendUnchokeMessage(unChokeMessage);
-				}
-				break;
-			}
+		logger.logMessage(Constants.CHANGE_OF_OPTIMISTICALLY_UNCHOKED_NEIGHBORS_LOG_MESSAGE, peerId, contenderID);
+		if (eventJournal != null) {
+			eventJournal.recordOptimisticUnchoke(contenderID);
+		}
+		PeerHandler peerHandler = peerRegistry.get(contenderID);
+		if (peerHandler != null && peerHandler.isHandshakeReceived()) {
+			peerHandler.sendUnchokeMessage(unChokeMessage);
 		}
 	}
 
 	/**
-	 * insert piece to piece manager
+	 * insert the block carried by a piece message to piece manager. Once its last
+	 * block is inserted the piece is hashed by the piece verifier and then handed
+	 * to the piece writer, which commits it after it is durable on the disk.
+	 * During the endgame the same block may be requested from several neighbors,
+	 * and the requests to the others are cancelled as soon as the first copy is
+	 * received. Blocks of different pieces are inserted in parallel.
 	 * 
 	 * @param pieceMessage
 	 * @param sourcePeerID
 	 */
-	public synchronized void insertPiece(PeerMessage pieceMessage, String sourcePeerID) {
+	public void insertPiece(PeerMessage pieceMessage, String sourcePeerID) {
 		try {
-			pieceManager.insertNthPiece(pieceMessage.getIndex(), pieceMessage.getData());
-			logger.logMessage(String.format(Constants.FILE_PARTIAL_DOWNLOADE_LOG_MESSAGE, instance.getPeerId(),
-					pieceMessage.getIndex(), sourcePeerID,
-					pieceManager.getBitFieldHelper().getCountOfDownloadedSegments()));
+			Piece completedPiece = pieceManager.insertBlock(pieceMessage.getIndex(), pieceMessage.getBegin(),
+					pieceMessage.getData().getData(), sourcePeerID);
+			downloadedBytes.addAndGet(pieceMessage.getData().getData().length);
+			if (isEndgame() || completedPiece != null) {
+				cancelDuplicateRequests(pieceMessage.getIndex(), pieceMessage.getBegin(), sourcePeerID);
+			}
+			if (completedPiece != null) {
+				pieceVerifier.verifyPiece(pieceMessage.getIndex(), completedPiece, sourcePeerID);
+			}
 		} catch (IOException e) {
 			System.out
 					.println("Exception occured while inserting the piece at nth position for the given peer. Message: "
@@ -316,49 +681,428 @@ public class PeerController {
 	}
 
 	/**
-	 * generate PieceMessage
+	 * Adopts the piece hashes received from a neighbor if the current peer has
+	 * none yet and they match the piece hash root of the swarm, and passes them on
+	 * to the other neighbors, which may have connected before any peer could give
+	 * them the hashes.
+	 * 
+	 * @param digests      - digests of all the pieces back to back
+	 * @param sourcePeerID - peer from which the hashes were received
+	 */
+	public void handlePieceDigests(byte[] digests, String sourcePeerID) {
+		if (!pieceVerifier.receivePieceDigests(digests, sourcePeerID)) {
+			return;
+		}
+
+		for (PeerHandler peerHandler : peerRegistry.snapshot()) {
+			if (!peerHandler.getPeerId().equals(sourcePeerID)) {
+				peerHandler.sendPieceDigestsMessage();
+			}
+		}
+	}
+
+	/**
+	 * Returns a message with the piece hashes of the swarm.
+	 * 
+	 * @return PeerMessage or null if the current peer has no piece hashes or the
+	 *         swarm has no piece hash root
+	 */
+	public PeerMessage genPieceDigestsMessage() {
+		// without a piece hash root the neighbors have nothing to check the hashes
+		// against and don't adopt them
+		byte[] digests = swarm.getPieceHashRoot() == null ? null : pieceVerifier.getPackedDigests();
+		if (digests == null) {
+			return null;
+		}
+
+		PeerMessage message = PeerMessage.create(Constants.TYPE_PIECE_HASHES_MESSAGE);
+		Piece data = new Piece(digests.length);
+		data.setData(digests);
+		message.setData(data);
+		message.setLength(digests.length);
+		return message;
+	}
+
+	/**
+	 * Called by the piece verifier once a downloaded piece matched its digest. The
+	 * piece is handed to the piece writer.
+	 * 
+	 * @param index        - index of the piece
+	 * @param piece        - contents of the piece
+	 * @param sourcePeerID - peer from which the last block of the piece was
+	 *                     received
+	 * @throws InterruptedException
+	 */
+	public void handlePieceVerified(int index, Piece piece, String sourcePeerID) throws InterruptedException {
+		pieceWriter.writePiece(index, piece, sourcePeerID);
+	}
+
+	/**
+	 * Called by the piece verifier once a downloaded piece couldn't be verified or
+	 * handed on due to a failure of the current peer. The piece is discarded so
+	 * that its blocks are requested again, without suspecting the neighbors which
+	 * sent them.
+	 * 
+	 * @param index - index of the piece
+	 */
+	public void handlePieceFailed(int index) {
+		pieceManager.discardPiece(index);
+		settleStartedPiece(index);
+		requestPieceAgain(index);
+	}
+
+	/**
+	 * Called by the piece verifier once a downloaded piece didn't match its
+	 * digest. The piece is discarded and its blocks are requested again. Any of
+	 * the neighbors which sent blocks of the piece may have sent the corrupted
+	 * one, so the piece is requested from other neighbors than all of them as long
+	 * as another neighbor has it.
+	 * 
+	 * @param index        - index of the piece
+	 * @param sourcePeerID - peer from which the last block of the piece was
+	 *                     received
+	 */
+	public void handlePieceCorrupted(int index, String sourcePeerID) {
+		Set<String> blockSources = pieceManager.getBlockSources(index);
+		blockSources.add(sourcePeerID);
+		corruptPieceSources.computeIfAbsent(index, pieceIdx -> ConcurrentHashMap.newKeySet()).addAll(blockSources);
+		pieceManager.discardPiece(index);
+		settleStartedPiece(index);
+		logger.logMessage(Constants.PIECE_HASH_FAILED_LOG_MESSAGE, peerId, index, String.join(",", blockSources));
+		requestPieceAgain(index);
+	}
+
+	/**
+	 * Wakes up the requesters of the neighbors which have the given piece, once
+	 * blocks of it are free to request again. The requesters otherwise only run
+	 * when a message arrives, which may never happen if the piece was the last
+	 * one missing.
+	 * 
+	 * @param index - index of the piece
+	 */
+	public void requestPieceAgain(int index) {
+		for (PeerHandler peerHandler : peerRegistry.snapshot()) {
+			if (peerHandler.isPieceKnownToNeighbor(index)) {
+				peerHandler.requestMissingBlocks();
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the given piece has to be requested from a neighbor other than
+	 * the given one, since the neighbor sent a corrupted copy of it before and a
+	 * connected neighbor which didn't has the piece as well. Neighbors which left
+	 * don't count, so that a suspect neighbor isn't shut out once it is the only
+	 * holder left.
+	 * 
+	 * @param index          - index of the piece
+	 * @param neighborPeerID - id of the neighbor
+	 * @return boolean - true if the piece must not be requested from the neighbor
+	 */
+	public boolean isPieceCorruptFrom(int index, String neighborPeerID) {
+		Set<String> sources = corruptPieceSources.get(index);
+		if (sources == null || !sources.contains(neighborPeerID)) {
+			return false;
+		}
+
+		for (PeerHandler peerHandler : peerRegistry.snapshot()) {
+			if (!sources.contains(peerHandler.getPeerId()) && peerHandler.isPieceKnownToNeighbor(index)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Called by the piece writer once a downloaded piece is durable on the disk
+	 * and marked in the bit field. The piece is logged as downloaded, added to the
+	 * piece cache and announced to the neighbors.
+	 * 
+	 * @param index        - index of the piece
+	 * @param piece        - contents of the piece
+	 * @param sourcePeerID - peer from which the last block of the piece was
+	 *                     received
+	 */
+	public void handlePieceCommitted(int index, Piece piece, String sourcePeerID) {
+		corruptPieceSources.remove(index);
+		settleStartedPiece(index);
+		// the piece is announced to the neighbors next, who may request it right away
+		pieceManager.cachePiece(index, piece);
+		availabilityIndex.markPieceDownloaded(index);
+		if (eventJournal != null) {
+			eventJournal.recordPieceCommitted(index, sourcePeerID);
+		}
+		for (PeerHandler peerHandler : peerRegistry.snapshot()) {
+			peerHandler.handlePieceDownloaded(index);
+		}
+		logger.logMessage(Constants.FILE_PARTIAL_DOWNLOADE_LOG_MESSAGE, peerId, index,
+				sourcePeerID, pieceManager.getBitFieldHelper().getCountOfDownloadedSegments());
+		sendHaveMessage(index, sourcePeerID);
+		checkFileDownloadComplete();
+	}
+
+	/**
+	 * cancel the requests for a block which are outstanding with neighbors other
+	 * than the one that sent it
 	 * 
 	 * @param index
+	 * @param begin
+	 * @param sourcePeerID
+	 */
+	private void cancelDuplicateRequests(int index, int begin, String sourcePeerID) {
+		for (PeerHandler peerHandler : peerRegistry.snapshot()) {
+			if (!sourcePeerID.equals(peerHandler.getPeerId()) && peerHandler.isRequestOutstanding(index, begin)) {
+				peerHandler.sendCancelMessage(index, begin);
+			}
+		}
+	}
+
+	/**
+	 * checks if a piece which no block has been received or requested of yet may
+	 * be started, which isn't the case while the piece verifier holds back as many
+	 * completed pieces as it may until the piece hashes arrive
+	 * 
 	 * @return
 	 */
-	public PeerMessage genPieceMessage(int index) {
-		try {
-			Piece dataSegment = pieceManager.getNthPieceFromFile(index);
-			if (dataSegment != null) {
-				PeerMessage message = PeerMessage.create();
-				message.setData(dataSegment);
-				message.setIndex(index);
-				message.setMessageType(Constants.TYPE_PIECE_MESSAGE);
-				return message;
+	public boolean canStartPiece() {
+		return pieceVerifier.canStartPiece();
+	}
+
+	/**
+	 * checks if the download is in its endgame, where only a few pieces are
+	 * missing and their blocks are requested from every neighbor which has them
+	 * 
+	 * @return
+	 */
+	public boolean isEndgame() {
+		int missingPieces = pieceManager.getBitFieldHelper().getNumberOfSegments()
+				- pieceManager.getBitFieldHelper().getCountOfDownloadedSegments();
+		return missingPieces > 0 && missingPieces <= endgameThreshold;
+	}
+
+	/**
+	 * reserve a missing block for a request so that the same block isn't
+	 * requested from several neighbors at once
+	 * 
+	 * @param index
+	 * @param begin
+	 * @return true if the block wasn't reserved already
+	 */
+	public boolean reserveBlock(int index, int begin) {
+		boolean[] isReserved = new boolean[1];
+		requestedBlocks.computeIfAbsent(PieceHelper.blockKey(index, begin), blockKey -> {
+			isReserved[0] = true;
+			startedPieces.merge(index, 1, Integer::sum);
+			return 1;
+		});
+		return isReserved[0];
+	}
+
+	/**
+	 * reserve a missing block for an endgame request whether or not it is
+	 * requested from another neighbor already. Every neighbor releases its own
+	 * share of the reservation.
+	 * 
+	 * @param index
+	 * @param begin
+	 */
+	public void shareBlock(int index, int begin) {
+		requestedBlocks.compute(PieceHelper.blockKey(index, begin), (blockKey, holders) -> {
+			if (holders == null) {
+				startedPieces.merge(index, 1, Integer::sum);
+				return 1;
 			}
+			return holders + 1;
+		});
+	}
 
+	/**
+	 * release the reservation of a block held by one neighbor once the block is
+	 * received or its request is dropped. The block stays reserved while it is
+	 * requested from other neighbors.
+	 * 
+	 * @param index
+	 * @param begin
+	 */
+	public void releaseBlock(int index, int begin) {
+		requestedBlocks.computeIfPresent(PieceHelper.blockKey(index, begin), (blockKey, holders) -> {
+			if (holders > 1) {
+				return holders - 1;
+			}
+			startedPieces.computeIfPresent(index, (pieceIdx, blocks) -> blocks > 1 ? blocks - 1
+					: pieceManager.getPartialPieces().contains(pieceIdx) ? 0 : null);
 			return null;
-		} catch (IOException e) {
-			System.out.println(
-					"Exception occured while extracting or generating piece message. Message: " + e.getMessage());
+		});
+	}
+
+	public boolean isBlockReserved(int index, int begin) {
+		return requestedBlocks.containsKey(PieceHelper.blockKey(index, begin));
+	}
+
+	/**
+	 * returns the indices of the pieces which are being downloaded, that is the
+	 * pieces of which some blocks are received or requested. The set is kept up to
+	 * date as blocks are reserved and released, and changes while it is iterated.
+	 * 
+	 * @return
+	 */
+	public Set<Integer> getStartedPieces() {
+		return startedPieces.keySet();
+	}
+
+	/**
+	 * drops a piece which was committed or discarded from the started pieces,
+	 * unless blocks of it are still requested
+	 * 
+	 * @param index
+	 */
+	private void settleStartedPiece(int index) {
+		startedPieces.computeIfPresent(index, (pieceIdx, blocks) -> blocks > 0 ? blocks : null);
+	}
+
+	/**
+	 * generate PieceMessage for a block. Without a piece cache the block data is
+	 * not read here; the message refers to the region of the download file which
+	 * the sender streams to the socket. With a piece cache the block is copied
+	 * from the cached piece.
+	 * 
+	 * @param index
+	 * @param begin
+	 * @param requesterId
+	 * @return
+	 */
+	public PeerMessage genPieceMessage(int index, int begin, String requesterId) {
+		int blockLength = pieceManager.getBlockLength(index, begin);
+		if (!pieceManager.hasPiece(index) || blockLength == -1) {
 			return null;
 		}
+
+		PeerMessage message = PeerMessage.create();
+		message.setIndex(index);
+		message.setBegin(begin);
+		message.setLength(blockLength);
+		message.setMessageType(Constants.TYPE_PIECE_MESSAGE);
+		if (pieceManager.getPieceCache() != null) {
+			try {
+				Piece block = new Piece(blockLength);
+				block.setData(pieceManager.getBlock(index, begin, blockLength, requesterId));
+				message.setData(block);
+			} catch (IOException e) {
+				System.out.printf("Exception occured while reading the block %d of piece %d. Message: %s\n", begin,
+						index, e.getMessage());
+				return null;
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * Loads the pieces which a neighbor is likely to request into the piece cache,
+	 * once the neighbor is interested in the current peer. The rarest pieces which
+	 * the current peer has and the neighbor is missing are loaded first, since the
+	 * neighbor requests pieces rarest first as well. Only a few pieces from a
+	 * random position on are looked at, and they are read on the network pool so
+	 * that the reader of the neighbor isn't held up by the disk.
+	 * 
+	 * @param peerHandler - handler of the interested neighbor
+	 */
+	public void prefetchPieces(PeerHandler peerHandler) {
+		if (pieceManager.getPieceCache() == null || prefetchCount <= 0) {
+			return;
+		}
+
+		// look at a bounded number of the pieces which the current peer has, from a
+		// random piece on, and keep the ones which the neighbor is missing
+		BitFieldHelper bitField = pieceManager.getBitFieldHelper();
+		int[] candidates = new int[Constants.PIECE_CACHE_PREFETCH_SCAN];
+		int count = 0;
+		int start = ThreadLocalRandom.current().nextInt(bitField.getNumberOfSegments());
+		int index = bitField.nextSetBit(start);
+		boolean isWrapped = false;
+		for (int scanned = 0; scanned < candidates.length; scanned++) {
+			if (index < 0 && !isWrapped) {
+				isWrapped = true;
+				index = bitField.nextSetBit(0);
+			}
+			if (index < 0 || (isWrapped && index >= start)) {
+				break;
+			}
+			if (!peerHandler.isPieceKnownToNeighbor(index)) {
+				candidates[count++] = index;
+			}
+			index = bitField.nextSetBit(index + 1);
+		}
+
+		// keep the prefetchCount rarest pieces, sorted by their number of holders
+		int[] candidateHolders = new int[count];
+		availabilityIndex.getHolderCounts(candidates, count, candidateHolders);
+		int[] pieces = new int[prefetchCount];
+		int[] holderCounts = new int[prefetchCount];
+		int size = 0;
+		for (int c = 0; c < count; c++) {
+			int holderCount = candidateHolders[c];
+			if (size == prefetchCount && holderCount >= holderCounts[size - 1]) {
+				continue;
+			}
+
+			int position = size < prefetchCount ? size++ : size - 1;
+			while (position > 0 && holderCounts[position - 1] > holderCount) {
+				pieces[position] = pieces[position - 1];
+				holderCounts[position] = holderCounts[position - 1];
+				position--;
+			}
+			pieces[position] = candidates[c];
+			holderCounts[position] = holderCount;
+		}
+		if (size == 0) {
+			return;
+		}
+
+		int prefetchSize = size;
+		try {
+			engine.getNetworkPool().execute(() -> {
+				try {
+					for (int i = 0; i < prefetchSize; i++) {
+						pieceManager.prefetchPiece(pieces[i]);
+					}
+				} catch (IOException e) {
+					System.out.printf("Exception occured while prefetching pieces for Peer %s. Message: %s\n",
+							peerHandler.getPeerId(), e.getMessage());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the engine is shutting down
+		}
 	}
 
 	/**
-	 * send HaveMessage
+	 * send HaveMessage. The piece is queued for every neighbor which isn't known
+	 * to have it and announced with the next flush of the have messages, so that
+	 * the pieces downloaded within one flush interval share a single message.
 	 * 
 	 * @param pieceIndex
 	 * @param fromPeerID
 	 */
 	public void sendHaveMessage(int pieceIndex, String fromPeerID) {
-		PeerMessage haveMessage = PeerMessage.create();
-		haveMessage.setIndex(pieceIndex);
-		haveMessage.setMessageType(Constants.TYPE_HAVE_MESSAGE);
-
-		for (int i = 0, peerHandlersSize = peerHandlers.size(); i < peerHandlersSize; i++) {
-			PeerHandler peerHandler = peerHandlers.get(i);
+		for (PeerHandler peerHandler : peerRegistry.snapshot()) {
 			// System.out.println(LOGGER_PREFIX+": Sending have message from "+peerID+" to :
 			// "+peerHandler.getPeerId());
 			if (fromPeerID.equals(peerHandler.getPeerId())) {
 				continue;
 			}
-			peerHandler.sendHaveMessage(haveMessage);
+			peerHandler.queueHaveMessage(pieceIndex);
+			if (haveBroadcastManager == null) {
+				peerHandler.flushHaveMessages();
+			}
+		}
+	}
+
+	/**
+	 * flush the have messages queued for all the neighbors
+	 */
+	public void flushHaveMessages() {
+		for (PeerHandler peerHandler : peerRegistry.snapshot()) {
+			peerHandler.flushHaveMessages();
 		}
 	}
 
@@ -367,7 +1111,7 @@ public class PeerController {
 	 * current peer will be shutting down due to completion of task.
 	 */
 	public void broadcastShutdown() {
-		if (isConnection() == false || peerServer.getServerStatus() == false) {
+		if (isConnection() == false || engine.getPeerServer().getServerStatus() == false) {
 			return;
 		}
 
@@ -380,34 +1124,11 @@ public class PeerController {
 
 		// Send shutdown messages to all other peers so that they can request the
 		// missing pieces from other peers.
-		for (PeerHandler peerHandler : peerHandlers) {
+		for (PeerHandler peerHandler : peerRegistry.snapshot()) {
 			peerHandler.sendShutdownMessage(shutdownMessage);
 		}
 	}
 
-	/**
-	 *
-	 * @return
-	 */
-	public int getMaxNewConnectionsCount() {
-		HashMap<String, Peer> neighborPeerMap = peerInfoHelperObj.getPeerMap();
-		Set<String> peerIDList = neighborPeerMap.keySet();
-
-		int count = 0;
-		for (Iterator<String> iterator = peerIDList.iterator(); iterator.hasNext();) {
-			String peerIdTmp = iterator.next();
-			if (Integer.parseInt(peerIdTmp) > Integer.parseInt(peerId)) {
-				count++;
-			}
-		}
-
-		return count;
-	}
-
-	public boolean isOperationFinish() {
-		return false;
-	}
-
 	public synchronized void markFileDownloadComplete(String peer) {
 		// System.out.println("before, peerCompleteMap.size()="+peerCompleteMap.size());
 		peerCompleteMap.put(peer, " ");
@@ -425,10 +1146,97 @@ public class PeerController {
 		this.connectionEstablished = isAllPeersConnection;
 	}
 
-	public ArrayList<String> getChokedPeers() {
+	public Set<String> getChokedPeers() {
 		return chokedPeers;
 	}
 
+	/**
+	 * returns the swarm served by this controller
+	 * 
+	 * @return Swarm
+	 */
+	public Swarm getSwarm() {
+		return swarm;
+	}
+
+	/**
+	 * returns the timer wheel which runs the periodic and delayed work of the
+	 * swarm
+	 * 
+	 * @return TimerWheelHelper
+	 */
+	public TimerWheelHelper getTimer() {
+		return timer;
+	}
+
+	/**
+	 * returns the journal in which the protocol events of the swarm are recorded
+	 * 
+	 * @return EventJournalHelper or null if EventJournal isn't set
+	 */
+	public EventJournalHelper getEventJournal() {
+		return eventJournal;
+	}
+
+	/**
+	 * returns the pool which runs the tracker announces and the dials of the
+	 * swarm
+	 * 
+	 * @return ExecutorService
+	 */
+	public ExecutorService getNetworkPool() {
+		return engine.getNetworkPool();
+	}
+
+	/**
+	 * returns the share of the swarm in the upload bandwidth budget
+	 * 
+	 * @return SwarmBudget or null if the upload rate is unlimited
+	 */
+	public BandwidthHelper.SwarmBudget getUploadBudget() {
+		return uploadBudget;
+	}
+
+	/**
+	 * returns the port on which the current peer accepts connections
+	 * 
+	 * @return int
+	 */
+	public int getPort() {
+		return peerInfoHelperObj.getPeerObjectByKey(peerId).getPort();
+	}
+
+	/**
+	 * counts the bytes of a block sent to a neighbor
+	 * 
+	 * @param bytes
+	 */
+	public void addUploadedBytes(long bytes) {
+		uploadedBytes.addAndGet(bytes);
+	}
+
+	public long getUploadedBytes() {
+		return uploadedBytes.get();
+	}
+
+	public long getDownloadedBytes() {
+		return downloadedBytes.get();
+	}
+
+	public PieceHelper getPieceHelper() {
+		return pieceManager;
+	}
+
+	/**
+	 * returns the index of how many neighbors hold each piece, shared by the
+	 * requesters of all the neighbors.
+	 * 
+	 * @return PieceAvailabilityHelper
+	 */
+	public PieceAvailabilityHelper getAvailabilityIndex() {
+		return availabilityIndex;
+	}
+
 	public synchronized LogHelper getLogger() {
 		return logger;
 	}
@@ -441,4 +1249,21 @@ public class PeerController {
 		return pieceManager.hasDownloadFileComplete();
 	}
 
+	/**
+	 * Logs the completion of the download the first time it is observed. Called
+	 * by the chunk requesters and by the piece writer whenever a piece is
+	 * committed, since the last piece may be committed after the requesters have
+	 * handled their last message.
+	 */
+	public synchronized void checkFileDownloadComplete() {
+		if (!isDownloadComplete && isFileDownloadComplete()) {
+			isDownloadComplete = true;
+			logger.logMessage(Constants.FILE_COMPLETE_DOWNLOAD_LOG_MESSAGE, peerId);
+			// a peer which started with the file announced itself as complete already
+			if (trackerHelper != null && downloadedBytes.get() > 0) {
+				trackerHelper.announceCompleted();
+			}
+		}
+	}
+
 }
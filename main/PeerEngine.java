@@ -0,0 +1,307 @@
+package main;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import main.constants.Constants;
+import main.helper.BandwidthHelper;
+import main.helper.CommonConfigHelper;
+import main.helper.LogHelper;
+import main.helper.PeerInfoHelper;
+import main.helper.SwarmInfoHelper;
+import main.helper.ThreadHelper;
+import main.messageTypes.Peer;
+import main.messageTypes.Swarm;
+
+/**
+ * This class hosts all the swarms served by the peer process. Every swarm is
+ * run by a controller of its own, while the listener, the event loop, the
+ * logger, the thread pools for the periodic work, the piece hashing and the
+ * blocking network work, and the upload bandwidth budget are shared by all of
+ * them. Connections are
+ * routed to the controller of the swarm named by the info-hash of their
+ * handshake. The process exits once every swarm is finished.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class PeerEngine {
+	private static volatile PeerEngine instance = null;
+
+	private String peerId;
+	private PeerInfoHelper peerInfoHelperObj;
+	private LogHelper logger;
+	private PeerServer peerServer;
+	private PeerEventLoop eventLoop; // null unless the nio transport is configured
+
+	private ScheduledExecutorService scheduler; // periodic work of all the swarms
+	private ExecutorService verifierPool; // piece hashing of all the swarms
+	private ExecutorService networkPool; // tracker announces and dials, kept off the scheduler
+	private BandwidthHelper bandwidth; // null if the upload rate is unlimited
+	private String trackerAddress; // null if the neighbors are taken from the peer config file
+
+	// Controllers of the swarms, keyed by the info-hash in hex
+	private final Map<String, PeerController> controllers = new ConcurrentHashMap<String, PeerController>();
+	private final ArrayList<PeerController> swarmControllers = new ArrayList<PeerController>();
+	private int runningSwarmCount = 0;
+
+	/**
+	 * returnSingletonInstance: returns a singleton engine instance for the given
+	 * peer
+	 *
+	 * @param peerID
+	 * @return PeerEngine or null if one of the swarms cannot be configured
+	 */
+	public static synchronized PeerEngine returnSingletonInstance(String peerID) {
+		if (instance == null) {
+			instance = new PeerEngine();
+			instance.peerId = peerID;
+			if (!instance.configEngine()) {
+				instance = null;
+			}
+		}
+		return instance;
+	}
+
+	private boolean configEngine() {
+		peerInfoHelperObj = PeerInfoHelper.returnSingletonInstance();
+		SwarmInfoHelper swarmInfoHelper = SwarmInfoHelper.returnSingletonInstance();
+		if (swarmInfoHelper == null) {
+			return false;
+		}
+
+		// configure logger instance
+		logger = new LogHelper(peerId);
+		if (!logger.isLoggerInitialized()) {
+			return false;
+		}
+
+		// configure the thread pools and the bandwidth budget shared by the swarms
+		scheduler = Executors.newScheduledThreadPool(Constants.SCHEDULER_THREADS);
+		verifierPool = Executors.newFixedThreadPool(Math.max(1, CommonConfigHelper
+				.getIntConfig(Constants.VERIFY_THREADS_LABEL, Runtime.getRuntime().availableProcessors())));
+		networkPool = Executors.newCachedThreadPool(ThreadHelper.getThreadFactory());
+		int maxUploadRate = CommonConfigHelper.getIntConfig(Constants.MAX_UPLOAD_RATE_LABEL,
+				Constants.DEFAULT_MAX_UPLOAD_RATE);
+		if (maxUploadRate > 0) {
+			bandwidth = new BandwidthHelper(maxUploadRate, scheduler);
+		}
+
+		trackerAddress = CommonConfigHelper.getConfig(Constants.TRACKER_ADDRESS_LABEL);
+
+		// configure the event loop if the non-blocking transport is selected
+		String transportMode = CommonConfigHelper.getConfig(Constants.TRANSPORT_MODE_LABEL,
+				Constants.TRANSPORT_MODE_BLOCKING);
+		if (Constants.TRANSPORT_MODE_NIO.equalsIgnoreCase(transportMode)) {
+			try {
+				eventLoop = new PeerEventLoop(this,
+						CommonConfigHelper.getIntConfig(Constants.IO_THREADS_LABEL, Constants.DEFAULT_IO_THREADS));
+			} catch (IOException e) {
+				System.out.printf("Exception occured while creating the event loop. Message: %s\n", e.getMessage());
+				return false;
+			}
+		}
+
+		// configure a controller for every swarm
+		for (Swarm swarm : swarmInfoHelper.getSwarms()) {
+			PeerController controller = PeerController.getNewInstance(this, swarm);
+			if (controller == null) {
+				return false;
+			}
+			controllers.put(swarm.getInfoHashHex(), controller);
+			swarmControllers.add(controller);
+			logger.debug(Constants.SWARM_LOG_MESSAGE, peerId, swarm.getInfoHashHex(), swarm.getFileName(),
+					swarm.getPriority());
+		}
+		runningSwarmCount = swarmControllers.size();
+
+		// configure peer server
+		peerServer = PeerServer.returnSingletonInstance(peerId, this);
+
+		// configuration successful
+		return true;
+	}
+
+	/**
+	 * starts the peer process. Every swarm is ready to take connections before the
+	 * shared listener is started, and then connects to its neighbors.
+	 */
+	public void beginPeerProcess() {
+		if (eventLoop != null) {
+			eventLoop.start();
+		}
+
+		for (PeerController controller : swarmControllers) {
+			controller.startSwarm();
+		}
+
+		// start the current peer server
+		ThreadHelper.start(peerServer);
+
+		for (PeerController controller : swarmControllers) {
+			controller.beginPeerProcess();
+		}
+	}
+
+	/**
+	 * returns the controller of the swarm with the given info-hash
+	 *
+	 * @param infoHash
+	 * @return PeerController or null if the swarm isn't served by this process
+	 */
+	public PeerController getController(byte[] infoHash) {
+		return infoHash == null ? null : controllers.get(Swarm.toHex(infoHash));
+	}
+
+	/**
+	 * Called by a controller once its swarm is finished. The shared objects are
+	 * closed and the process exits once the last swarm is finished. The shared
+	 * pools are shut down from a thread of their own, since the last swarm may
+	 * finish on one of their threads, which would otherwise wait for itself.
+	 *
+	 * @param controller
+	 */
+	public synchronized void handleSwarmTerminated(PeerController controller) {
+		if (--runningSwarmCount > 0) {
+			return;
+		}
+
+		Thread shutdownThread = new Thread(this::shutdown, "EngineShutdown-" + peerId);
+		shutdownThread.start();
+	}
+
+	/**
+	 * Closes the event loop, lets the shared pools finish the tasks they have
+	 * started, closes the logger and exits the process.
+	 *
+	 * @return null
+	 */
+	private void shutdown() {
+		if (eventLoop != null) {
+			eventLoop.close();
+		}
+		scheduler.shutdown();
+		verifierPool.shutdown();
+		networkPool.shutdown();
+		try {
+			if (!scheduler.awaitTermination(Constants.EXECUTOR_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)
+					|| !verifierPool.awaitTermination(Constants.EXECUTOR_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)
+					|| !networkPool.awaitTermination(Constants.EXECUTOR_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				System.out.println("The thread pools of the peer didn't finish their tasks in time");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.destroy();
+		System.exit(0);
+	}
+
+	/**
+	 * returns the number of connections the listener accepts, which is one per
+	 * swarm from every peer that comes after the current peer. With a tracker the
+	 * peers aren't known in advance and the listener accepts connections until
+	 * the process exits.
+	 *
+	 * @return
+	 */
+	public int getMaxNewConnectionsCount() {
+		if (trackerAddress != null) {
+			return Integer.MAX_VALUE;
+		}
+
+		HashMap<String, Peer> neighborPeerMap = peerInfoHelperObj.getPeerMap();
+		Set<String> peerIDList = neighborPeerMap.keySet();
+
+		int count = 0;
+		for (Iterator<String> iterator = peerIDList.iterator(); iterator.hasNext();) {
+			String peerIdTmp = iterator.next();
+			if (Integer.parseInt(peerIdTmp) > Integer.parseInt(peerId)) {
+				count++;
+			}
+		}
+
+		return count * swarmControllers.size();
+	}
+
+	public String getPeerId() {
+		return peerId;
+	}
+
+	public PeerInfoHelper getPeerInfoHelper() {
+		return peerInfoHelperObj;
+	}
+
+	public LogHelper getLogger() {
+		return logger;
+	}
+
+	public PeerServer getPeerServer() {
+		return peerServer;
+	}
+
+	/**
+	 * returns the address of the tracker from which the swarms learn their
+	 * neighbors
+	 *
+	 * @return String as host:port, or null if the peer config file is used
+	 */
+	public String getTrackerAddress() {
+		return trackerAddress;
+	}
+
+	/**
+	 * returns the event loop which owns the connections, or null when every
+	 * connection runs on threads of its own.
+	 *
+	 * @return PeerEventLoop
+	 */
+	public PeerEventLoop getEventLoop() {
+		return eventLoop;
+	}
+
+	/**
+	 * returns the scheduler which runs the periodic work of all the swarms
+	 *
+	 * @return ScheduledExecutorService
+	 */
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * returns the pool which hashes the pieces of all the swarms
+	 *
+	 * @return ExecutorService
+	 */
+	public ExecutorService getVerifierPool() {
+		return verifierPool;
+	}
+
+	/**
+	 * returns the pool which runs the blocking work of all the swarms, such as
+	 * the tracker announces, the dials and the pieces read ahead of the requests,
+	 * so that it never holds up the scheduler
+	 *
+	 * @return ExecutorService
+	 */
+	public ExecutorService getNetworkPool() {
+		return networkPool;
+	}
+
+	/**
+	 * returns the upload bandwidth budget shared by the swarms
+	 *
+	 * @return BandwidthHelper or null if the upload rate is unlimited
+	 */
+	public BandwidthHelper getBandwidth() {
+		return bandwidth;
+	}
+}
@@ -0,0 +1,443 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.constants.Constants;
+import main.helper.MessageCodecHelper;
+import main.helper.MessageHelper;
+import main.helper.TimerWheelHelper;
+import main.messageTypes.Peer;
+import main.messageTypes.PeerMessageType;
+
+/**
+ * This class implements the non-blocking transport. A small fixed pool of I/O
+ * threads, each running its own selector, owns all the peer connections of the
+ * process, whichever swarm they belong to. Incoming connections are accepted
+ * and outgoing connections are established through the same loop, and every
+ * connection is then pinned to one I/O thread which reads its frames,
+ * dispatches them to the PeerHandler and flushes its outgoing messages.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class PeerEventLoop {
+	private PeerEngine engine;
+	private IoWorker[] workers;
+	private final AtomicInteger nextWorker = new AtomicInteger(0);
+
+	/**
+	 * Creates the event loop with the given number of I/O threads.
+	 *
+	 * @param engine    - engine which hosts the swarms of the process
+	 * @param ioThreads - number of I/O threads
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public PeerEventLoop(PeerEngine engine, int ioThreads) throws IOException {
+		this.engine = engine;
+		this.workers = new IoWorker[Math.max(1, ioThreads)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new IoWorker(i);
+		}
+	}
+
+	/**
+	 * Starts all the I/O threads.
+	 *
+	 * @return null
+	 */
+	public void start() {
+		for (IoWorker worker : workers) {
+			Thread thread = new Thread(worker, "peer-io-" + worker.workerId);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Listens on the given port and accepts up to the given number of connections
+	 * from the neighboring peers.
+	 *
+	 * @param port           - port on which the current peer listens
+	 * @param maxConnections - number of connections to accept
+	 * @return CompletableFuture which completes once all connections are accepted
+	 * @throws IOException if the port cannot be bound
+	 */
+	public CompletableFuture<Void> listen(int port, int maxConnections) throws IOException {
+		CompletableFuture<Void> accepted = new CompletableFuture<>();
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+
+		if (maxConnections <= 0) {
+			serverChannel.close();
+			accepted.complete(null);
+			return accepted;
+		}
+
+		serverChannel.configureBlocking(false);
+		IoWorker worker = workers[0];
+		worker.execute(() -> {
+			try {
+				serverChannel.register(worker.selector, SelectionKey.OP_ACCEPT,
+						new Acceptor(serverChannel, maxConnections, accepted));
+			} catch (IOException e) {
+				accepted.completeExceptionally(e);
+			}
+		});
+		return accepted;
+	}
+
+	/**
+	 * Opens a non-blocking connection to the given peer for a swarm. The
+	 * connection is completed by an I/O thread, which then registers the
+	 * PeerHandler with the controller of the swarm and sends the handshake.
+	 *
+	 * @param peerInfo   - neighbor peer to connect to
+	 * @param controller - controller of the swarm for which the connection is made
+	 * @return CompletableFuture which completes with the handler of the connection
+	 * @throws IOException if the channel cannot be opened
+	 */
+	public CompletableFuture<PeerHandler> connect(Peer peerInfo, PeerController controller) throws IOException {
+		CompletableFuture<PeerHandler> connected = new CompletableFuture<>();
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+
+		IoWorker worker = nextWorker();
+		worker.execute(() -> {
+			try {
+				if (channel.connect(new InetSocketAddress(peerInfo.getAddress(), peerInfo.getPort()))) {
+					connected.complete(worker.openConnection(channel, null, peerInfo.getPeerId(), controller));
+				} else {
+					channel.register(worker.selector, SelectionKey.OP_CONNECT,
+							new Connector(peerInfo, controller, connected));
+				}
+			} catch (IOException e) {
+				closeQuietly(channel);
+				connected.completeExceptionally(e);
+			}
+		});
+
+		// a dial which isn't accepted in time is closed, which cancels its key
+		TimerWheelHelper.Timeout timeout = controller.getTimer().schedule(() -> {
+			if (connected.completeExceptionally(new SocketTimeoutException("connect timed out"))) {
+				closeQuietly(channel);
+			}
+		}, Constants.CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+		connected.whenComplete((peerHandler, e) -> timeout.cancel());
+		return connected;
+	}
+
+	/**
+	 * Stops all the I/O threads and closes the connections they own.
+	 *
+	 * @return null
+	 */
+	public void close() {
+		for (IoWorker worker : workers) {
+			worker.close();
+		}
+	}
+
+	private IoWorker nextWorker() {
+		return workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	/**
+	 * State of a listening channel.
+	 */
+	private static class Acceptor {
+		private final ServerSocketChannel serverChannel;
+		private final CompletableFuture<Void> accepted;
+		private int remainingConnections;
+
+		private Acceptor(ServerSocketChannel serverChannel, int maxConnections, CompletableFuture<Void> accepted) {
+			this.serverChannel = serverChannel;
+			this.remainingConnections = maxConnections;
+			this.accepted = accepted;
+		}
+	}
+
+	/**
+	 * State of a connection which is being established.
+	 */
+	private static class Connector {
+		private final Peer peerInfo;
+		private final PeerController controller;
+		private final CompletableFuture<PeerHandler> connected;
+
+		private Connector(Peer peerInfo, PeerController controller, CompletableFuture<PeerHandler> connected) {
+			this.peerInfo = peerInfo;
+			this.controller = controller;
+			this.connected = connected;
+		}
+	}
+
+	/**
+	 * State of an established connection.
+	 */
+	private static class Connection {
+		private final SocketChannel channel;
+		private final MessageCodecHelper codec = new MessageCodecHelper();
+		private PeerHandler peerHandler;
+		private MessageHelper peerMessageSender;
+		private SelectionKey key;
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * An I/O thread with its own selector and a queue of tasks which other threads
+	 * hand over to it.
+	 */
+	private class IoWorker implements Runnable {
+		private final int workerId;
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private volatile boolean isRunning = true;
+
+		private IoWorker(int workerId) throws IOException {
+			this.workerId = workerId;
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Runs the given task on this I/O thread.
+		 *
+		 * @param task
+		 */
+		private void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (isRunning) {
+					selector.select();
+
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						processKey(key);
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				if (isRunning) {
+					System.out.printf("Exception occured inside the I/O thread %d. Message: %s\n", workerId,
+							e.getMessage());
+				}
+			} finally {
+				closeChannels();
+			}
+		}
+
+		/**
+		 * Dispatches a ready key to the handler of its channel.
+		 *
+		 * @param key
+		 */
+		private void processKey(SelectionKey key) {
+			if (!key.isValid()) {
+				return;
+			}
+
+			Object attachment = key.attachment();
+			if (attachment instanceof Acceptor) {
+				accept(key, (Acceptor) attachment);
+			} else if (attachment instanceof Connector) {
+				finishConnect(key, (Connector) attachment);
+			} else {
+				Connection connection = (Connection) attachment;
+				try {
+					if (key.isReadable()) {
+						read(connection);
+					}
+					if (key.isValid() && key.isWritable()) {
+						write(connection);
+					}
+				} catch (IOException e) {
+					// The neighbor may close the connection once it has downloaded the file.
+					closeConnection(connection);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					closeConnection(connection);
+				}
+			}
+		}
+
+		/**
+		 * Accepts a pending connection and hands it over to the next I/O thread. The
+		 * swarm of the connection is only known once its handshake is received.
+		 */
+		private void accept(SelectionKey key, Acceptor acceptor) {
+			try {
+				SocketChannel channel = acceptor.serverChannel.accept();
+				if (channel == null) {
+					return;
+				}
+				channel.configureBlocking(false);
+
+				IoWorker worker = nextWorker();
+				worker.execute(() -> {
+					try {
+						worker.openConnection(channel, null, null, null);
+					} catch (IOException e) {
+						closeQuietly(channel);
+					}
+				});
+
+				if (--acceptor.remainingConnections == 0) {
+					key.cancel();
+					closeQuietly(acceptor.serverChannel);
+					acceptor.accepted.complete(null);
+				}
+			} catch (IOException e) {
+				key.cancel();
+				closeQuietly(acceptor.serverChannel);
+				acceptor.accepted.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * Completes an outgoing connection once the channel is connected.
+		 */
+		private void finishConnect(SelectionKey key, Connector connector) {
+			SocketChannel channel = (SocketChannel) key.channel();
+			try {
+				if (channel.finishConnect()) {
+					connector.connected.complete(
+							openConnection(channel, key, connector.peerInfo.getPeerId(), connector.controller));
+				}
+			} catch (IOException e) {
+				key.cancel();
+				closeQuietly(channel);
+				connector.connected.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * Registers an established connection with this I/O thread and creates its
+		 * PeerHandler. If the peer ID is known this peer initiated the connection for
+		 * the given swarm and sends the handshake.
+		 *
+		 * @param channel    - connected non-blocking channel
+		 * @param key        - key with which the channel was connected or null if it
+		 *                   is not registered yet
+		 * @param peerId     - ID of the neighbor peer or null for incoming connections
+		 * @param controller - controller of the swarm or null for incoming
+		 *                   connections
+		 * @return PeerHandler
+		 * @throws IOException
+		 */
+		private PeerHandler openConnection(SocketChannel channel, SelectionKey key, String peerId,
+				PeerController controller) throws IOException {
+			Connection connection = new Connection(channel);
+			if (key != null) {
+				key.attach(connection);
+				key.interestOps(SelectionKey.OP_READ);
+				connection.key = key;
+			} else {
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			}
+			connection.peerMessageSender = MessageHelper.returnChannelMessageSender(channel, null,
+					() -> execute(() -> enableWrite(connection)), () -> execute(() -> closeConnection(connection)));
+			connection.peerHandler = PeerHandler.getNewInstance(connection.peerMessageSender, engine);
+
+			if (peerId != null) {
+				connection.peerHandler.setPeerId(peerId);
+				if (connection.peerHandler.bindController(controller, true)) {
+					connection.peerHandler.begin();
+				} else {
+					// the neighbor connected to the current peer in the meantime
+					connection.peerHandler.disconnect();
+				}
+			}
+			return connection.peerHandler;
+		}
+
+		private void read(Connection connection) throws IOException {
+			int count;
+			while ((count = connection.codec.fill(connection.channel)) > 0) {
+				PeerMessageType message;
+				while ((message = connection.codec.nextMessage()) != null) {
+					connection.peerHandler.handleMessage(message);
+				}
+			}
+
+			if (count < 0) {
+				closeConnection(connection);
+			}
+		}
+
+		private void write(Connection connection) throws IOException {
+			if (connection.peerMessageSender.flushToChannel()) {
+				connection.key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		private void enableWrite(Connection connection) {
+			if (connection.key.isValid()) {
+				connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void closeConnection(Connection connection) {
+			if (!connection.channel.isOpen()) {
+				return;
+			}
+			connection.key.cancel();
+			closeQuietly(connection.channel);
+			connection.peerHandler.handleConnectionClosed();
+		}
+
+		/**
+		 * Stops the I/O thread, which closes all its channels on the way out. The
+		 * stop is handed to the I/O thread, since the keys of the selector may only
+		 * be walked by the thread which registers and cancels them.
+		 */
+		private void close() {
+			execute(() -> isRunning = false);
+		}
+
+		/**
+		 * Closes all the channels of this I/O thread and its selector. Runs on the
+		 * I/O thread once it stops.
+		 */
+		private void closeChannels() {
+			try {
+				for (SelectionKey key : selector.keys()) {
+					closeQuietly(key.channel());
+				}
+				selector.close();
+			} catch (IOException | ClosedSelectorException ignore) {
+			}
+		}
+	}
+}
@@ -1,25 +1,44 @@
 package main;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import main.constants.Constants;
+import main.helper.CommonConfigHelper;
 import main.helper.LogHelper;
+import main.helper.MessageCodecHelper;
 import main.helper.MessageHelper;
 import main.helper.NextRequestHelper;
+import main.helper.PieceHelper;
+import main.helper.RateEstimatorHelper;
+import main.helper.ThreadHelper;
+import main.helper.TimerWheelHelper;
 import main.messageTypes.HandshakeMessage;
 import main.messageTypes.PeerMessage;
 import main.messageTypes.PeerMessageType;
+import main.messageTypes.Swarm;
 
 /**
- * Peer Handler
+ * Peer Handler. A handler serves the connection to one neighbor for one swarm.
+ * The handler of an incoming connection is bound to the controller of its
+ * swarm once the handshake names the swarm.
  */
 public class PeerHandler implements Runnable {
-	private PeerController controller; // controller
-	private ObjectInputStream objectInputStream; // neighbor peer input stream
+	private PeerEngine engine; // engine which hosts the swarms
+	private volatile PeerController controller; // controller of the swarm, null until the handshake
+	private DataInputStream inputStream; // neighbor peer input stream
+	private MessageCodecHelper codec; // decoder for the incoming frames
 	private MessageHelper peerMessageSender; // peerMessageSender
 	private NextRequestHelper chunkRequester;
 	private LogHelper logger; // log util
@@ -27,79 +46,178 @@ public class PeerHandler implements Runnable {
 	private String peerId; // peer id
 	private Socket neighborSocket; // neighbor peer socket
 
-	private boolean isPreviousMessageReceived = true;
+	// Blocks requested from the neighbor peer which haven't been received yet,
+	// keyed by PieceHelper.blockKey, with the timeouts after which they are
+	// requested from the other neighbors
+	private final Map<Long, TimerWheelHelper.Timeout> outstandingRequests = new ConcurrentHashMap<Long,
+			TimerWheelHelper.Timeout>();
+	private final int maxOutstandingRequests = CommonConfigHelper.getIntConfig(
+			Constants.MAX_OUTSTANDING_REQUESTS_LABEL, Constants.DEFAULT_MAX_OUTSTANDING_REQUESTS);
+	private final int requestTimeout = CommonConfigHelper.getIntConfig(Constants.REQUEST_TIMEOUT_LABEL,
+			Constants.DEFAULT_REQUEST_TIMEOUT);
+	// Blocks whose request to the neighbor peer timed out, keyed by
+	// PieceHelper.blockKey, with the time until which they are left to the
+	// other neighbors
+	private final Map<Long, Long> timedOutRequests = new ConcurrentHashMap<Long, Long>();
+	private final int keepAliveInterval = CommonConfigHelper.getIntConfig(Constants.KEEP_ALIVE_INTERVAL_LABEL,
+			Constants.DEFAULT_KEEP_ALIVE_INTERVAL);
+	private TimerWheelHelper.Timeout keepAliveTimeout = null; // null if keep-alives are disabled
+	private long lastPrefetchTime = 0; // last time pieces were read ahead for the neighbor
+
+	// Pieces to be announced to the neighbor peer with the next have message
+	private final Queue<Integer> pendingHaves = new ConcurrentLinkedQueue<Integer>();
+
 	private boolean isChokedByNeighborPeer = false;
 	private boolean isHandshakeReceived = false;
 	private boolean isChunkStarted = false;
 	private boolean isHandShakeSent = false;
 	private boolean hasChoked = false;
+	private volatile boolean isConnectionClosed = false;
+	private volatile boolean isNeighborInterested = false; // the neighbor wants pieces of the current peer
+	private volatile boolean isInterestedInNeighbor = false; // the current peer wants pieces of the neighbor
+	private boolean isEventLoopOwned = false; // messages are read and written by an I/O thread
+	private volatile boolean isDialed = false; // the current peer opened the connection
+	private final long connectionTime = System.currentTimeMillis();
+
+	// Serializes the handshake and bitfield replies without pinning virtual
+	// threads to their carriers while they sleep
+	private final ReentrantLock sendLock = new ReentrantLock();
 
-	private long downloadTime = 0;
-	private int downloadSize = 0;
+	// Makes a choke and the requests sent at the same time happen one after the
+	// other, so that no request slips past the choke without being released
+	private final ReentrantLock requestLock = new ReentrantLock();
+
+	// Rates of the pieces received from and sent to the neighbor
+	private final RateEstimatorHelper downloadRate = new RateEstimatorHelper(
+			CommonConfigHelper.getIntConfig(Constants.RATE_WINDOW_LABEL, Constants.DEFAULT_RATE_WINDOW));
+	private final RateEstimatorHelper uploadRate = new RateEstimatorHelper(
+			CommonConfigHelper.getIntConfig(Constants.RATE_WINDOW_LABEL, Constants.DEFAULT_RATE_WINDOW));
 
 	/**
 	 * get new instance of PeerHandler
 	 * 
 	 * @param socket
-	 * @param controller
+	 * @param engine
 	 * @return
 	 */
-	synchronized public static PeerHandler getNewInstance(Socket socket, PeerController controller) {
+	synchronized public static PeerHandler getNewInstance(Socket socket, PeerEngine engine) {
 		PeerHandler peerHandler = new PeerHandler();
 		peerHandler.neighborSocket = socket;
-		peerHandler.controller = controller;
-		if (!peerHandler.init(controller)) {
+		peerHandler.engine = engine;
+		if (!peerHandler.init(engine)) {
 			peerHandler.close();
 			peerHandler = null;
 		}
 		return peerHandler;
 	}
 
+	/**
+	 * get new instance of PeerHandler for a connection owned by the event loop.
+	 * The I/O thread reads the frames and hands them over through handleMessage,
+	 * and the given sender is flushed by the same thread.
+	 * 
+	 * @param peerMessageSender - channel based message sender of the connection
+	 * @param engine
+	 * @return
+	 */
+	public static PeerHandler getNewInstance(MessageHelper peerMessageSender, PeerEngine engine) {
+		PeerHandler peerHandler = new PeerHandler();
+		peerHandler.engine = engine;
+		peerHandler.peerMessageSender = peerMessageSender;
+		peerHandler.isEventLoopOwned = true;
+		peerHandler.logger = engine.getLogger();
+		return peerHandler;
+	}
+
 	/**
 	 * init
 	 * 
-	 * @param controller
+	 * @param engine
 	 * @return
 	 */
-	synchronized private boolean init(PeerController controller) {
+	synchronized private boolean init(PeerEngine engine) {
 		if (neighborSocket == null) {
 			return false;
 		}
 		// System.out.println(LOGGER_PREFIX+" Initializing PeerHandler");
 
-		ObjectOutputStream neighborPeerOutputStream;
+		OutputStream neighborPeerOutputStream;
 		try {
-			neighborPeerOutputStream = new ObjectOutputStream(neighborSocket.getOutputStream());
-			objectInputStream = new ObjectInputStream(neighborSocket.getInputStream());
+			neighborPeerOutputStream = new BufferedOutputStream(neighborSocket.getOutputStream());
+			inputStream = new DataInputStream(new BufferedInputStream(neighborSocket.getInputStream()));
+			codec = new MessageCodecHelper();
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
 		}
 
-		if (controller == null) {
+		if (engine == null) {
 			close();
 			return false;
 		}
 
-		peerMessageSender = MessageHelper.returnPeerMessageSender(neighborPeerOutputStream);
+		peerMessageSender = MessageHelper.returnPeerMessageSender(neighborPeerOutputStream,
+				neighborSocket.getChannel(), null);
 		if (peerMessageSender == null) {
 			close();
 			return false;
 		}
-		new Thread(peerMessageSender).start();
+		ThreadHelper.start(peerMessageSender);
 
+		logger = engine.getLogger();
+		return true;
+	}
+
+	/**
+	 * binds the handler to the controller of its swarm and registers it with the
+	 * controller. Called before the handshake is sent for an outgoing connection,
+	 * and once the handshake is received for an incoming connection. A handler
+	 * which isn't registered because another connection to the neighbor is has to
+	 * be disconnected by the caller.
+	 * 
+	 * @param controller - controller of the swarm of the connection
+	 * @param isDialed   - whether the current peer opened the connection
+	 * @return boolean - true if the handler was registered
+	 */
+	synchronized public boolean bindController(PeerController controller, boolean isDialed) {
+		this.controller = controller;
+		this.isDialed = isDialed;
+		peerMessageSender.setSwarm(controller.getPieceHelper(), controller.getUploadBudget());
+		if (controller.getEventJournal() != null) {
+			peerMessageSender.setEventJournal(controller.getEventJournal(), peerId);
+		}
+		peerMessageSender.setUploadCounter(this::addUploadedBytes);
 		chunkRequester = NextRequestHelper.getNewInstance(controller, this);
-		logger = controller.getLogger();
+		if (!controller.addPeerHandler(this)) {
+			return false;
+		}
+		if (keepAliveInterval > 0) {
+			keepAliveTimeout = controller.getTimer().scheduleAtFixedRate(this::sendKeepAliveMessage, keepAliveInterval,
+					keepAliveInterval, TimeUnit.SECONDS);
+		}
 		return true;
 	}
 
+	/**
+	 * closes the connection to the neighbor peer on purpose, for instance to make
+	 * room for a more useful neighbor. The handler is released just like for a
+	 * connection which is closed by the neighbor.
+	 */
+	public void disconnect() {
+		peerMessageSender.close();
+		if (!isEventLoopOwned) {
+			close();
+			handleConnectionClosed();
+		}
+	}
+
 	/**
 	 * close
 	 */
 	synchronized public void close() {
 		try {
-			if (objectInputStream != null) {
-				objectInputStream.close();
+			if (inputStream != null) {
+				inputStream.close();
 			}
 		} catch (IOException ignore) {
 		}
@@ -109,84 +227,145 @@ public class PeerHandler implements Runnable {
 	 * run handler
 	 */
 	public void run() {
-		ByteBuffer buffer = ByteBuffer.allocate(Constants.MAX_MESSAGE_SIZE);
-		byte[] rawData = new byte[Constants.RAW_DATA_SIZE];
+		begin();
+		try {
+			for (;;) {
+				PeerMessageType message = codec.readMessage(inputStream);
+				handleMessage(message);
+			}
+		} catch (IOException e) {
+			// e.printStackTrace();
+		} finally {
+			handleConnectionClosed();
+		}
+	}
 
-		// as soon as peer enters into thread it will first send handshake message and
-		// receive bitfield message
+	/**
+	 * sends the handshake message if this peer initiated the connection. As soon
+	 * as the peer sends the handshake message it will receive the bitfield message
+	 */
+	public void begin() {
 		if (peerId != null) {
 			sendHandshakeMessage();
 		}
-		try {
-			// System.out.println(LOGGER_PREFIX+": "+peerID+" : Handshake Message sent");
-			while (!controller.isOperationFinish()) {
-				// System.out.println(LOGGER_PREFIX+": "+peerID+" : Waiting for connection in
-				// while(controller.isOperationCompelete() == false){");
-				if (controller.isOperationFinish()) {
-					// System.out.println(LOGGER_PREFIX+": "+peerID+": Breaking from while loop");
-					break;
+	}
+
+	/**
+	 * handle a message received from the neighbor peer
+	 * 
+	 * @param message
+	 */
+	public void handleMessage(PeerMessageType message) {
+		// nothing but the handshake is accepted before the swarm is known
+		if (controller == null && message.messageType() != Constants.TYPE_HANDSHAKE_MESSAGE) {
+			return;
+		}
+		// a neighbor which refers to pieces outside of the file is dropped
+		if (message instanceof PeerMessage && !isMessageInRange((PeerMessage) message)) {
+			logger.debug(Constants.INVALID_MESSAGE_LOG_MESSAGE, controller.getPeerId(), peerId,
+					message.messageType());
+			disconnect();
+			return;
+		}
+		if (controller != null && controller.getEventJournal() != null) {
+			controller.getEventJournal().recordMessage(true, peerId, message, chunkRequester.getQueuedMessageCount());
+		}
+
+		// handler message with different message type
+		switch (message.messageType()) {
+			case Constants.TYPE_HANDSHAKE_MESSAGE:
+				if (message instanceof HandshakeMessage) {
+					HandshakeMessage handshakeMessage = (HandshakeMessage) message;
+					processHandshakeMessage(handshakeMessage);
+				} else {
+					// send some invalid data
 				}
-				PeerMessageType message = (PeerMessageType) objectInputStream.readObject();
-				// System.out.println(LOGGER_PREFIX+": "+peerID+": RUN : Received
-				// Message:["+message.getMessageNumber()+"]:
-				// "+Const.getMessageName(message.getType()));
-
-				// handler message with different message type
-				switch (message.messageType()) {
-					case Constants.TYPE_HANDSHAKE_MESSAGE:
-						if (message instanceof HandshakeMessage) {
-							HandshakeMessage handshakeMessage = (HandshakeMessage) message;
-							processHandshakeMessage(handshakeMessage);
-						} else {
-							// send some invalid data
-						}
-						break;
-					case Constants.TYPE_REQUEST_MESSAGE: {
-						PeerMessage peer2PeerMessage = (PeerMessage) message;
-						processRequestMessage(peer2PeerMessage);
-						break;
-					}
-					case Constants.TYPE_BITFIELD_MESSAGE:
-						processBitFieldMessage((PeerMessage) message);
-						break;
-					case Constants.TYPE_CHOKE_MESSAGE: {
-						PeerMessage peer2PeerMessage = (PeerMessage) message;
-						processChokeMessage(peer2PeerMessage);
-						break;
-					}
-					case Constants.TYPE_HAVE_MESSAGE: {
-						PeerMessage peer2PeerMessage = (PeerMessage) message;
-						processHaveMessage(peer2PeerMessage);
-						break;
-					}
-					case Constants.TYPE_INTERESTED_MESSAGE: {
-						PeerMessage peer2PeerMessage = (PeerMessage) message;
-						processInterestedMessage(peer2PeerMessage);
-						break;
-					}
-					case Constants.TYPE_NOT_INTERESTED_MESSAGE: {
-						PeerMessage peer2PeerMessage = (PeerMessage) message;
-						processNotInterestedMessage(peer2PeerMessage);
-						break;
-					}
-					case Constants.TYPE_PIECE_MESSAGE: {
-						PeerMessage peer2PeerMessage = (PeerMessage) message;
-						processPieceMessage(peer2PeerMessage);
-						break;
-					}
-					case Constants.TYPE_UNCHOKE_MESSAGE: {
-						PeerMessage peer2PeerMessage = (PeerMessage) message;
-						processUnchockMessage(peer2PeerMessage);
-						break;
+				break;
+			case Constants.TYPE_REQUEST_MESSAGE: {
+				PeerMessage peer2PeerMessage = (PeerMessage) message;
+				processRequestMessage(peer2PeerMessage);
+				break;
+			}
+			case Constants.TYPE_BITFIELD_MESSAGE:
+				processBitFieldMessage((PeerMessage) message);
+				break;
+			case Constants.TYPE_CHOKE_MESSAGE: {
+				PeerMessage peer2PeerMessage = (PeerMessage) message;
+				processChokeMessage(peer2PeerMessage);
+				break;
+			}
+			case Constants.TYPE_HAVE_MESSAGE: {
+				PeerMessage peer2PeerMessage = (PeerMessage) message;
+				processHaveMessage(peer2PeerMessage);
+				break;
+			}
+			case Constants.TYPE_INTERESTED_MESSAGE: {
+				PeerMessage peer2PeerMessage = (PeerMessage) message;
+				processInterestedMessage(peer2PeerMessage);
+				break;
+			}
+			case Constants.TYPE_NOT_INTERESTED_MESSAGE: {
+				PeerMessage peer2PeerMessage = (PeerMessage) message;
+				processNotInterestedMessage(peer2PeerMessage);
+				break;
+			}
+			case Constants.TYPE_PIECE_MESSAGE: {
+				PeerMessage peer2PeerMessage = (PeerMessage) message;
+				processPieceMessage(peer2PeerMessage);
+				break;
+			}
+			case Constants.TYPE_UNCHOKE_MESSAGE: {
+				PeerMessage peer2PeerMessage = (PeerMessage) message;
+				processUnchockMessage(peer2PeerMessage);
+				break;
+			}
+			case Constants.TYPE_CANCEL_MESSAGE: {
+				PeerMessage peer2PeerMessage = (PeerMessage) message;
+				processCancelMessage(peer2PeerMessage);
+				break;
+			}
+			case Constants.TYPE_SHUTDOWN_MESSAGE:
+				PeerMessage peer2peerMessage = (PeerMessage) message;
+				handleShutdownMessage(peer2peerMessage);
+				break;
+			case Constants.TYPE_KEEP_ALIVE_MESSAGE:
+				// nothing to do, the neighbor is only keeping the connection open
+				break;
+			case Constants.TYPE_PIECE_HASHES_MESSAGE:
+				processPieceDigestsMessage((PeerMessage) message);
+				break;
+		}
+	}
+
+	/**
+	 * checks that the pieces which the message refers to exist in the file of
+	 * the swarm, and that a block which is sent fills its place in the piece
+	 * exactly
+	 * 
+	 * @param message
+	 * @return true if every piece index and block is valid
+	 */
+	private boolean isMessageInRange(PeerMessage message) {
+		int numOfPieces = controller.getSwarm().getNumberOfPieces();
+		switch (message.getMessageType()) {
+			case Constants.TYPE_BITFIELD_MESSAGE:
+				return message.getManageBitFields().getNumberOfSegments() == numOfPieces;
+			case Constants.TYPE_HAVE_MESSAGE:
+			case Constants.TYPE_REQUEST_MESSAGE:
+			case Constants.TYPE_CANCEL_MESSAGE:
+				for (int index : message.getIndices()) {
+					if (index < 0 || index >= numOfPieces) {
+						return false;
 					}
-					case Constants.TYPE_SHUTDOWN_MESSAGE:
-						PeerMessage peer2peerMessage = (PeerMessage) message;
-						handleShutdownMessage(peer2peerMessage);
-						break;
 				}
-			}
-		} catch (IOException | ClassNotFoundException e) {
-			// e.printStackTrace();
+				return true;
+			case Constants.TYPE_PIECE_MESSAGE:
+				// the data of a block which doesn't fit isn't counted towards the download
+				// rate of the neighbor either
+				return message.getData() != null && controller.getPieceHelper().getBlockLength(message.getIndex(),
+						message.getBegin()) == message.getData().getDataLength();
+			default:
+				return true;
 		}
 	}
 
@@ -196,8 +375,13 @@ public class PeerHandler implements Runnable {
 	 * @param unchokeMessage
 	 */
 	private void processUnchockMessage(PeerMessage unchokeMessage) {
-		logger.logMessage(String.format(Constants.UNCHOKED_LOG_MESSAGE, controller.getPeerId(), peerId));
-		isChokedByNeighborPeer = false;
+		logger.logMessage(Constants.UNCHOKED_LOG_MESSAGE, controller.getPeerId(), peerId);
+		requestLock.lock();
+		try {
+			isChokedByNeighborPeer = false;
+		} finally {
+			requestLock.unlock();
+		}
 		try {
 			chunkRequester.addPeerMessageToQueue(unchokeMessage);
 		} catch (Exception e) {
@@ -212,9 +396,10 @@ public class PeerHandler implements Runnable {
 	 */
 	private void processPieceMessage(PeerMessage messge) {
 		controller.insertPiece(messge, peerId);
-		controller.sendHaveMessage(messge.getIndex(), peerId);
-		downloadSize += messge.getData().getDataLength();
-		setPreviousMessageReceived(true);
+		downloadRate.addBytes(messge.getData().getDataLength());
+		if (removeOutstandingRequest(PieceHelper.blockKey(messge.getIndex(), messge.getBegin()))) {
+			controller.releaseBlock(messge.getIndex(), messge.getBegin());
+		}
 		try {
 			chunkRequester.addPeerMessageToQueue(messge);
 		} catch (Exception e) {
@@ -222,14 +407,38 @@ public class PeerHandler implements Runnable {
 		}
 	}
 
+	/**
+	 * processPieceDigestsMessage. The chunk requester resumes the requests which
+	 * were held back while the piece hashes were missing.
+	 * 
+	 * @param message
+	 */
+	private void processPieceDigestsMessage(PeerMessage message) {
+		controller.handlePieceDigests(message.getData().getData(), peerId);
+		try {
+			chunkRequester.addPeerMessageToQueue(message);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * processChokeMessage
 	 * 
 	 * @param message
 	 */
 	private void processChokeMessage(PeerMessage message) {
-		logger.logMessage(String.format(Constants.CHOKED_LOG_MESSAGE, controller.getPeerId(), peerId));
-		isChokedByNeighborPeer = true;
+		logger.logMessage(Constants.CHOKED_LOG_MESSAGE, controller.getPeerId(), peerId);
+
+		// A choking neighbor drops the requests it hasn't served yet, so the blocks are
+		// handed back to be requested from the other neighbors.
+		requestLock.lock();
+		try {
+			isChokedByNeighborPeer = true;
+			releaseOutstandingRequests();
+		} finally {
+			requestLock.unlock();
+		}
 	}
 
 	/**
@@ -240,13 +449,14 @@ public class PeerHandler implements Runnable {
 	private void processBitFieldMessage(PeerMessage message) {
 		try {
 			chunkRequester.addPeerMessageToQueue(message);
-			if (Constants.SHOW_OPTIONAL_LOG_MESSAGES) {
-				controller.getLogger().logMessage(String.format(Constants.BITFIELD_LOG_MESSAGE, controller.getPeerId(),
-						getPeerId(), message.getManageBitFields().fetchBitFieldMap()));
+			// the bit field of the neighbor changes with its have messages, so the writer
+			// formats a copy of it
+			if (logger.isDebugEnabled()) {
+				logger.debug(Constants.BITFIELD_LOG_MESSAGE, controller.getPeerId(), getPeerId(),
+						message.getManageBitFields().copy());
 			}
 			if (isHandshakeReceived && isHandShakeSent && !isChunkStarted()) {
-				new Thread(chunkRequester).start();
-				startMeasuringDownloadTime();
+				startChunkRequester();
 				setChunkStarted(true);
 			}
 
@@ -256,64 +466,104 @@ public class PeerHandler implements Runnable {
 	}
 
 	/**
-	 * processHandshakeMessage
+	 * starts processing the messages queued for the chunk requester. On the event
+	 * loop the requester runs inline on the I/O thread of the connection,
+	 * otherwise it gets a thread of its own.
+	 */
+	private void startChunkRequester() {
+		if (isEventLoopOwned) {
+			chunkRequester.runInline();
+		} else {
+			ThreadHelper.start(chunkRequester);
+		}
+	}
+
+	/**
+	 * processHandshakeMessage. Both sides send their bitfield once the handshake
+	 * is exchanged, so that every peer knows the pieces of all of its neighbors
+	 * and requests pieces over every connection. An incoming connection is bound
+	 * to the swarm named by the info-hash of the handshake.
 	 *
 	 * @param message
 	 */
 	private void processHandshakeMessage(HandshakeMessage message) {
 		peerId = message.getPeerId();
+		if (!message.getHeader().equals(Constants.HANDSHAKE_HEADER_STRING) || isHandshakeReceived) {
+			logger.debug(Constants.HANDSHAKE_FAILED_LOG_MESSAGE, peerId, message.getHeader());
+			return;
+		}
+
+		PeerController swarmController = engine.getController(message.getInfoHash());
+		if (swarmController == null || (controller != null && controller != swarmController)) {
+			logger.debug(Constants.HANDSHAKE_UNKNOWN_SWARM_LOG_MESSAGE, peerId, Swarm.toHex(message.getInfoHash()));
+			return;
+		}
+		if (controller == null) {
+			if (!swarmController.hasNeighborCapacity() || !bindController(swarmController, false)) {
+				disconnect();
+				return;
+			}
+		}
+
 		if (!isHandShakeSent) {
 			sendHandshakeMessage();
-			logger.logMessage(
-					String.format(Constants.MAKE_CONNECTION_RECEIVER_LOG_MESSAGE,
-							controller.getPeerId(), peerId));
-			sendBitFieldMessage();
-		} else {
-			if (message.getHeader().equals(Constants.HANDSHAKE_HEADER_STRING) &&
-					!isHandshakeReceived) {
-				isHandshakeReceived = true;
-				if (isHandShakeSent && !isChunkStarted()) {
-					new Thread(chunkRequester).start();
-					startMeasuringDownloadTime();
-					setChunkStarted(true);
-				}
-			} else {
-				if (Constants.SHOW_OPTIONAL_LOG_MESSAGES) {
-					logger.logMessage(
-							String.format(Constants.HANDSHAKE_FAILED_LOG_MESSAGE, peerId,
-									message.getHeader()));
-				}
-			}
+			logger.logMessage(Constants.MAKE_CONNECTION_RECEIVER_LOG_MESSAGE, controller.getPeerId(), peerId);
+		}
+		isHandshakeReceived = true;
+		sendBitFieldMessage();
+
+		if (!isChunkStarted()) {
+			startChunkRequester();
+			setChunkStarted(true);
 		}
 	}
 
 	/**
-	 * processRequestMessage
+	 * processRequestMessage. A single request may ask for several blocks, which
+	 * are queued back to back so that the link stays busy.
 	 * 
 	 * @param message
 	 */
 	private void processRequestMessage(PeerMessage message) {
 		if (!hasChoked) {
-			PeerMessage pieceMessage = controller.genPieceMessage(message.getIndex());
-			if (pieceMessage != null) {
-				try {
-					Thread.sleep(2000);
-					peerMessageSender.sendMessage(pieceMessage);
-				} catch (Exception e) {
-					e.printStackTrace();
+			int[] indices = message.getIndices();
+			int[] begins = message.getBegins();
+			for (int i = 0; i < indices.length; i++) {
+				PeerMessage pieceMessage = controller.genPieceMessage(indices[i], begins[i], peerId);
+				if (pieceMessage != null) {
+					try {
+						peerMessageSender.sendMessage(pieceMessage);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * processCancelMessage. The cancelled blocks are dropped from the queue of the
+	 * sender if they haven't been sent yet.
+	 * 
+	 * @param message
+	 */
+	private void processCancelMessage(PeerMessage message) {
+		int[] indices = message.getIndices();
+		int[] begins = message.getBegins();
+		for (int i = 0; i < indices.length; i++) {
+			peerMessageSender.cancelPieceMessage(indices[i], begins[i]);
+		}
+	}
+
 	/**
 	 * processHaveMessage
 	 * 
 	 * @param message
 	 */
 	private void processHaveMessage(PeerMessage message) {
-		logger.logMessage(
-				String.format(Constants.HAVE_LOG_MESSAGE, controller.getPeerId(), peerId, message.getIndex()));
+		for (int index : message.getIndices()) {
+			logger.logMessage(Constants.HAVE_LOG_MESSAGE, controller.getPeerId(), peerId, index);
+		}
 		try {
 			chunkRequester.addPeerMessageToQueue(message);
 		} catch (Exception e) {
@@ -327,7 +577,16 @@ public class PeerHandler implements Runnable {
 	 * @param message
 	 */
 	private void processInterestedMessage(PeerMessage message) {
-		logger.logMessage(String.format(Constants.INTERESTED_LOG_MESSAGE, controller.getPeerId(), peerId));
+		logger.logMessage(Constants.INTERESTED_LOG_MESSAGE, controller.getPeerId(), peerId);
+		isNeighborInterested = true;
+
+		// a neighbor which keeps changing its interest doesn't get the pieces read
+		// again every time
+		long now = System.currentTimeMillis();
+		if (now - lastPrefetchTime >= Constants.PIECE_CACHE_PREFETCH_INTERVAL) {
+			lastPrefetchTime = now;
+			controller.prefetchPieces(this);
+		}
 	}
 
 	/**
@@ -336,7 +595,8 @@ public class PeerHandler implements Runnable {
 	 * @param message
 	 */
 	private void processNotInterestedMessage(PeerMessage message) {
-		logger.logMessage(String.format(Constants.NOT_INTERESTED_LOG_MESSAGE, controller.getPeerId(), peerId));
+		logger.logMessage(Constants.NOT_INTERESTED_LOG_MESSAGE, controller.getPeerId(), peerId);
+		isNeighborInterested = false;
 	}
 
 	/**
@@ -344,21 +604,22 @@ public class PeerHandler implements Runnable {
 	 * 
 	 * @return
 	 */
-	synchronized boolean sendHandshakeMessage() {
+	boolean sendHandshakeMessage() {
+		sendLock.lock();
 		try {
 			HandshakeMessage message = new HandshakeMessage(Constants.HANDSHAKE_HEADER_STRING);
 			message.setID(controller.getPeerId());
+			message.setInfoHash(controller.getSwarm().getInfoHash());
 			peerMessageSender.sendMessage(message);
 			isHandShakeSent = true;
-			logger.logMessage(String.format(Constants.MAKE_CONNECTION_SENDER_LOG_MESSAGE, controller.getPeerId(),
-					peerId));
-			if (Constants.SHOW_OPTIONAL_LOG_MESSAGES) {
-				logger.logMessage(String.format(Constants.SENDER_HANDSHAKE_LOG_MESSAGE, controller.getPeerId(),
-						peerId, message.getHeader()));
-			}
+			logger.logMessage(Constants.MAKE_CONNECTION_SENDER_LOG_MESSAGE, controller.getPeerId(), peerId);
+			logger.debug(Constants.SENDER_HANDSHAKE_LOG_MESSAGE, controller.getPeerId(), peerId,
+					message.getHeader());
 			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			sendLock.unlock();
 		}
 
 		return false;
@@ -367,27 +628,50 @@ public class PeerHandler implements Runnable {
 	/**
 	 * send BitFieldMessage
 	 */
-	synchronized void sendBitFieldMessage() {
+	void sendBitFieldMessage() {
+		sendLock.lock();
 		try {
+			// the piece hashes go first so that the neighbor can verify the pieces it
+			// gets from the current peer
+			PeerMessage digestsMessage = controller.genPieceDigestsMessage();
+			if (digestsMessage != null) {
+				peerMessageSender.sendMessage(digestsMessage);
+			}
 			PeerMessage message = controller.getBitFieldMessage();
 			peerMessageSender.sendMessage(message);
-			Thread.sleep(4000);
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			sendLock.unlock();
 		}
 
 	}
 
+	/**
+	 * sends the piece hashes of the swarm to the neighbor, once the current peer
+	 * received them after the bitfields were exchanged
+	 */
+	public void sendPieceDigestsMessage() {
+		PeerMessage message = controller.genPieceDigestsMessage();
+		if (message == null) {
+			return;
+		}
+		try {
+			peerMessageSender.sendMessage(message);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * send InterestedMessage
 	 * 
 	 * @param message
 	 */
 	public void sendInterestedMessage(PeerMessage message) {
+		isInterestedInNeighbor = true;
 		try {
-			if (!isChokedByNeighborPeer) {
-				peerMessageSender.sendMessage(message);
-			}
+			peerMessageSender.sendMessage(message);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -412,6 +696,7 @@ public class PeerHandler implements Runnable {
 	 * @param message
 	 */
 	public void sendNotInterestedMessage(PeerMessage message) {
+		isInterestedInNeighbor = false;
 		try {
 			peerMessageSender.sendMessage(message);
 		} catch (Exception e) {
@@ -420,18 +705,42 @@ public class PeerHandler implements Runnable {
 	}
 
 	/**
-	 * send RequestMessage
+	 * send RequestMessage. The requested blocks are tracked as outstanding until
+	 * they are received, the neighbor chokes the current peer or the request
+	 * times out.
 	 * 
 	 * @param message
+	 * @return true if the request was sent
 	 */
-	public void sendRequestMessage(PeerMessage message) {
+	public boolean sendRequestMessage(PeerMessage message) {
+		requestLock.lock();
 		try {
 			if (!isChokedByNeighborPeer) {
-				peerMessageSender.sendMessage(message);
+				int[] indices = message.getIndices();
+				int[] begins = message.getBegins();
+				for (int i = 0; i < indices.length; i++) {
+					int index = indices[i];
+					int begin = begins[i];
+					outstandingRequests.put(PieceHelper.blockKey(index, begin), controller.getTimer()
+							.schedule(() -> handleRequestTimeout(index, begin), requestTimeout, TimeUnit.SECONDS));
+				}
+				try {
+					peerMessageSender.sendMessage(message);
+				} catch (Exception e) {
+					// the caller releases the blocks of a request which wasn't sent
+					for (int i = 0; i < indices.length; i++) {
+						removeOutstandingRequest(PieceHelper.blockKey(indices[i], begins[i]));
+					}
+					throw e;
+				}
+				return true;
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			requestLock.unlock();
 		}
+		return false;
 	}
 
 	/**
@@ -442,7 +751,6 @@ public class PeerHandler implements Runnable {
 	public void sendChokeMessage(PeerMessage message) {
 		try {
 			if (!hasChoked) {
-				startMeasuringDownloadTime();
 				setChoke(true);
 				peerMessageSender.sendMessage(message);
 			}
@@ -459,7 +767,6 @@ public class PeerHandler implements Runnable {
 	public void sendUnchokeMessage(PeerMessage message) {
 		try {
 			if (hasChoked) {
-				startMeasuringDownloadTime();
 				setChoke(false);
 				peerMessageSender.sendMessage(message);
 			}
@@ -482,16 +789,131 @@ public class PeerHandler implements Runnable {
 	}
 
 	/**
-	 * send HaveMessage
+	 * queue a piece to be announced to the neighbor peer with the next have
+	 * message, unless the neighbor is already known to have it
 	 * 
-	 * @param message
+	 * @param index
+	 */
+	public void queueHaveMessage(int index) {
+		if (!chunkRequester.isPieceKnownToNeighbor(index)) {
+			pendingHaves.add(index);
+		}
+	}
+
+	/**
+	 * send a single HaveMessage announcing all the queued pieces
+	 */
+	public void flushHaveMessages() {
+		ArrayList<Integer> indices = new ArrayList<Integer>();
+		Integer index;
+		while ((index = pendingHaves.poll()) != null) {
+			// the neighbor may have announced the piece since it was queued
+			if (!chunkRequester.isPieceKnownToNeighbor(index)) {
+				indices.add(index);
+			}
+		}
+		if (indices.isEmpty()) {
+			return;
+		}
+
+		int[] pieceIndices = new int[indices.size()];
+		for (int i = 0; i < pieceIndices.length; i++) {
+			pieceIndices[i] = indices.get(i);
+		}
+
+		PeerMessage message = PeerMessage.create(Constants.TYPE_HAVE_MESSAGE);
+		message.setIndices(pieceIndices);
+		try {
+			peerMessageSender.sendMessage(message);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * send CancelMessage for a block which was requested from the neighbor peer
+	 * but has been received from another neighbor in the meantime
+	 * 
+	 * @param index
+	 * @param begin
+	 */
+	public void sendCancelMessage(int index, int begin) {
+		if (!removeOutstandingRequest(PieceHelper.blockKey(index, begin))) {
+			return;
+		}
+		controller.releaseBlock(index, begin);
+
+		PeerMessage message = PeerMessage.create(Constants.TYPE_CANCEL_MESSAGE);
+		message.setBlocks(new int[] { index }, new int[] { begin });
+		try {
+			peerMessageSender.sendMessage(message);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * gives up a request which the neighbor peer didn't serve in time, so that
+	 * the block is requested from the other neighbors, and tells the neighbor
+	 * not to send it anymore. The requesters of the neighbors which have the
+	 * piece are woken up right away, and the one of this neighbor again once the
+	 * back-off ends, in case it is the only neighbor with the piece.
+	 * 
+	 * @param index
+	 * @param begin
 	 */
-	public void sendHaveMessage(PeerMessage message) {
+	private void handleRequestTimeout(int index, int begin) {
+		if (isConnectionClosed || !removeOutstandingRequest(PieceHelper.blockKey(index, begin))) {
+			return;
+		}
+
+		logger.debug(Constants.REQUEST_TIMEOUT_LOG_MESSAGE, controller.getPeerId(), index, begin, peerId);
+		timedOutRequests.put(PieceHelper.blockKey(index, begin),
+				System.nanoTime() + TimeUnit.SECONDS.toNanos(requestTimeout));
+		controller.releaseBlock(index, begin);
+
+		PeerMessage message = PeerMessage.create(Constants.TYPE_CANCEL_MESSAGE);
+		message.setBlocks(new int[] { index }, new int[] { begin });
 		try {
 			peerMessageSender.sendMessage(message);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+
+		controller.requestPieceAgain(index);
+		controller.getTimer().schedule(this::requestMissingBlocks, requestTimeout, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * stops tracking a block requested from the neighbor peer and cancels its
+	 * timeout
+	 * 
+	 * @param blockKey
+	 * @return true if the block was outstanding
+	 */
+	private boolean removeOutstandingRequest(long blockKey) {
+		TimerWheelHelper.Timeout timeout = outstandingRequests.remove(blockKey);
+		if (timeout == null) {
+			return false;
+		}
+		timeout.cancel();
+		return true;
+	}
+
+	/**
+	 * send a KeepAliveMessage if nothing was sent to the neighbor peer for the
+	 * keep-alive interval, so that an idle connection isn't dropped
+	 */
+	private void sendKeepAliveMessage() {
+		if (System.currentTimeMillis() - peerMessageSender.getLastSendTime() < keepAliveInterval * 1000L) {
+			return;
+		}
+
+		try {
+			peerMessageSender.sendMessage(PeerMessage.create(Constants.TYPE_KEEP_ALIVE_MESSAGE));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
@@ -507,18 +929,33 @@ public class PeerHandler implements Runnable {
 		}
 	}
 
-	private void startMeasuringDownloadTime() {
-		downloadTime = System.currentTimeMillis();
-		downloadSize = 0;
+	/**
+	 * returns the rate at which pieces are received from the neighbor
+	 * 
+	 * @return double - bytes per second
+	 */
+	public double getDownloadRate() {
+		return downloadRate.getRate();
 	}
 
-	public double downloadSpeed() {
-		long timePeriod = System.currentTimeMillis() - downloadTime;
-		if (timePeriod != 0) {
-			return ((downloadSize * 1.0) / (timePeriod * 1.0));
-		} else {
-			return 0;
-		}
+	/**
+	 * returns the rate at which pieces are sent to the neighbor
+	 * 
+	 * @return double - bytes per second
+	 */
+	public double getUploadRate() {
+		return uploadRate.getRate();
+	}
+
+	/**
+	 * counts the bytes of a block once it is taken off the queue to be sent, so
+	 * that blocks cancelled by the neighbor while queued aren't counted
+	 * 
+	 * @param bytes
+	 */
+	private void addUploadedBytes(long bytes) {
+		controller.addUploadedBytes(bytes);
+		uploadRate.addBytes(bytes);
 	}
 
 	public void handleShutdownMessage(PeerMessage message) {
@@ -533,6 +970,37 @@ public class PeerHandler implements Runnable {
 		return hasChoked;
 	}
 
+	public boolean isConnectionClosed() {
+		return isConnectionClosed;
+	}
+
+	public boolean isNeighborInterested() {
+		return isNeighborInterested;
+	}
+
+	public boolean isInterestedInNeighbor() {
+		return isInterestedInNeighbor;
+	}
+
+	/**
+	 * returns the time at which the connection to the neighbor was opened
+	 * 
+	 * @return long - milliseconds since the epoch
+	 */
+	public long getConnectionTime() {
+		return connectionTime;
+	}
+
+	/**
+	 * returns the number of bytes received from the neighbor since the connection
+	 * was opened
+	 * 
+	 * @return long
+	 */
+	public long getTotalDownloadSize() {
+		return downloadRate.getTotalBytes();
+	}
+
 	public String getPeerId() {
 		return peerId;
 	}
@@ -541,18 +1009,111 @@ public class PeerHandler implements Runnable {
 		this.peerId = peerId;
 	}
 
-	public boolean isPreviousMessageReceived() {
-		return isPreviousMessageReceived;
+	/**
+	 * returns how many more blocks can be requested from the neighbor peer before
+	 * the request window is full
+	 * 
+	 * @return
+	 */
+	public int getFreeRequestSlots() {
+		return maxOutstandingRequests - outstandingRequests.size();
+	}
+
+	public boolean isPieceKnownToNeighbor(int index) {
+		return chunkRequester.isPieceKnownToNeighbor(index);
+	}
+
+	public boolean isRequestOutstanding(int index, int begin) {
+		return outstandingRequests.containsKey(PieceHelper.blockKey(index, begin));
+	}
+
+	/**
+	 * checks if a request for the block timed out with the neighbor peer less
+	 * than a request timeout ago, in which case the block is requested from the
+	 * other neighbors only
+	 * 
+	 * @param index
+	 * @param begin
+	 * @return true if the block must not be requested from the neighbor peer
+	 */
+	public boolean isRequestBackedOff(int index, int begin) {
+		long blockKey = PieceHelper.blockKey(index, begin);
+		Long backoffEnd = timedOutRequests.get(blockKey);
+		if (backoffEnd == null) {
+			return false;
+		}
+		if (System.nanoTime() - backoffEnd < 0) {
+			return true;
+		}
+		timedOutRequests.remove(blockKey, backoffEnd);
+		return false;
+	}
+
+	/**
+	 * wakes the chunk requester up to request the blocks which became free to
+	 * request from the neighbor peer
+	 */
+	public void requestMissingBlocks() {
+		if (!isConnectionClosed) {
+			chunkRequester.wakeUp();
+		}
+	}
+
+	/**
+	 * informs the chunk requester that the current peer has downloaded a piece
+	 * 
+	 * @param index
+	 */
+	public void handlePieceDownloaded(int index) {
+		chunkRequester.handlePieceDownloaded(index);
+	}
+
+	/**
+	 * releases everything which was held for the neighbor peer once the connection
+	 * to it is closed
+	 */
+	public void handleConnectionClosed() {
+		synchronized (this) {
+			if (isConnectionClosed) {
+				return;
+			}
+			isConnectionClosed = true;
+		}
+		if (controller == null) {
+			return;
+		}
+		if (keepAliveTimeout != null) {
+			keepAliveTimeout.cancel();
+		}
+		controller.removePeerHandler(this);
+		releaseOutstandingRequests();
+		chunkRequester.releaseNeighborPieces();
 	}
 
-	public void setPreviousMessageReceived(boolean isPieceMessageForPreviousMessageReceived) {
-		this.isPreviousMessageReceived = isPieceMessageForPreviousMessageReceived;
+	/**
+	 * hands the outstanding requests back to the controller so that the blocks can
+	 * be requested from other neighbors
+	 */
+	public void releaseOutstandingRequests() {
+		for (Long blockKey : outstandingRequests.keySet()) {
+			if (removeOutstandingRequest(blockKey)) {
+				controller.releaseBlock((int) (blockKey >>> 32), (int) (long) blockKey);
+			}
+		}
+	}
+
+	public boolean isChokedByNeighborPeer() {
+		return isChokedByNeighborPeer;
 	}
 
 	public boolean isHandshakeReceived() {
 		return isHandshakeReceived;
 	}
 
+	public boolean isDialed() {
+		return isDialed;
+	}
+
 	public synchronized boolean isChunkStarted() {
 		return isChunkStarted;
 	}
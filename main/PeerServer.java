@@ -1,16 +1,22 @@
 package main;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import main.helper.PeerInfoHelper;
+import main.helper.ThreadHelper;
 import main.messageTypes.Peer;
 
 /**
  * This class creates the socket for the current peer and accepts incoming
- * socket connections from neighboring peers
+ * socket connections from neighboring peers. The socket is shared by all the
+ * swarms of the process, and every connection is handed to the swarm named in
+ * its handshake.
  * 
  * @author Bhavan Voram
  */
@@ -21,25 +27,25 @@ public class PeerServer implements Runnable {
 	private boolean serverStatus = false;
 
 	private PeerInfoHelper peerConfigReader;
-	private PeerController controller;
-	private ServerSocket serverSocket;
+	private PeerEngine engine;
+	private ServerSocketChannel serverSocket;
 
-	private PeerServer(String peerID, PeerController controller) {
+	private PeerServer(String peerID, PeerEngine engine) {
 		this.peerID = peerID;
-		this.controller = controller;
+		this.engine = engine;
 	}
 
 	/**
 	 * Returns the singleton instance of the Peer Server
 	 * 
-	 * @param peerID     - peerID of the current peer
-	 * @param controller - main controller object that manages all other objects
+	 * @param peerID - peerID of the current peer
+	 * @param engine - engine which hosts the swarms of the process
 	 * @return null
 	 */
-	public static PeerServer returnSingletonInstance(String peerID, PeerController controller) {
+	public static PeerServer returnSingletonInstance(String peerID, PeerEngine engine) {
 		if (instance == null) {
-			instance = new PeerServer(peerID, controller);
-			if (instance.isPeerConfigAvailable(controller) == false) {
+			instance = new PeerServer(peerID, engine);
+			if (instance.isPeerConfigAvailable() == false) {
 				instance = null;
 			}
 		}
@@ -51,10 +57,9 @@ public class PeerServer implements Runnable {
 	 * checks if the peer config instance is available (which
 	 * stores the logMessage(rmation of each peer from the config file)
 	 * 
-	 * @param controller
 	 * @return boolean
 	 */
-	public boolean isPeerConfigAvailable(PeerController controller) {
+	public boolean isPeerConfigAvailable() {
 		peerConfigReader = PeerInfoHelper.returnSingletonInstance();
 		return peerConfigReader != null;
 	}
@@ -86,27 +91,43 @@ public class PeerServer implements Runnable {
 		try {
 			HashMap<String, Peer> peerInfoMap = peerConfigReader.getPeerMap();
 			Peer serverPeerInfo = peerInfoMap.get(peerID);
+			int maxConnCount = engine.getMaxNewConnectionsCount();
+
+			// With the nio transport the connections are accepted by the event loop
+			PeerEventLoop eventLoop = engine.getEventLoop();
+			if (eventLoop != null) {
+				CompletableFuture<Void> accepted = eventLoop.listen(serverPeerInfo.getPort(), maxConnCount);
+				// with a tracker the listener keeps accepting the peers which join later
+				if (engine.getTrackerAddress() == null) {
+					accepted.join();
+				}
+				setServerStatus(true);
+				return;
+			}
 
-			serverSocket = new ServerSocket(serverPeerInfo.getPort());
-			int maxConnCount = controller.getMaxNewConnectionsCount();
+			// Accept through a channel so that every accepted socket is backed by a
+			// socket channel to which pieces can be streamed from the download file.
+			serverSocket = ServerSocketChannel.open();
+			serverSocket.bind(new InetSocketAddress(serverPeerInfo.getPort()));
+			if (engine.getTrackerAddress() != null) {
+				setServerStatus(true);
+			}
 			for (int i = 0; i < maxConnCount; i++) {
 				// Accept upto max connections
-				Socket incomingSocketConn = serverSocket.accept();
-
-				// Create a peer handler instnace
-				PeerHandler peerHandler = PeerHandler.getNewInstance(incomingSocketConn, controller);
+				Socket incomingSocketConn = serverSocket.accept().socket();
 
-				// Register the peer handler with the controller
-				controller.addPeerHandler(peerHandler);
+				// Create a peer handler instnace, which registers itself with the controller
+				// of its swarm once the handshake is received
+				PeerHandler peerHandler = PeerHandler.getNewInstance(incomingSocketConn, engine);
 
 				// Start the peer handler
-				new Thread(peerHandler).start();
+				ThreadHelper.start(peerHandler);
 			}
 
 			// Set the peer handler
 			setServerStatus(true);
 
-		} catch (IOException e) {
+		} catch (IOException | CompletionException e) {
 			System.out.printf("Exception occured inside the thread for peer: %s. Message: %s\n", peerID,
 					e.getMessage());
 			e.printStackTrace();
@@ -0,0 +1,189 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import main.constants.Constants;
+
+/**
+ * This class implements the tracker which keeps the membership of the swarms.
+ * Peers announce themselves for a swarm when they start, periodically while
+ * they run with their upload, download and left statistics, once they complete
+ * the file and when they stop. Every announce is answered with the re-announce
+ * interval, the number of complete and incomplete peers of the swarm and a
+ * random sample of the other peers of the swarm. Peers which stop announcing
+ * are dropped after a few intervals.
+ *
+ * Every request is a single line on its own connection:
+ * ANNOUNCE infoHash peerId port uploaded downloaded left event numWant
+ * and is answered with the lines
+ * INTERVAL seconds complete incomplete, PEER peerId host port hasFile (once
+ * per peer) and END, or with a single ERROR line.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class TrackerServer implements Runnable {
+	private final int port;
+	private final int announceInterval; // seconds between the announces of a peer
+
+	// Peers of every swarm, keyed by the info-hash in hex and then by the peer id
+	private final Map<String, Map<String, TrackedPeer>> swarms = new ConcurrentHashMap<String, Map<String, TrackedPeer>>();
+
+	/**
+	 * Creates a tracker for the given port.
+	 *
+	 * @param port             - port on which the tracker listens
+	 * @param announceInterval - seconds between the announces of a peer
+	 */
+	public TrackerServer(int port, int announceInterval) {
+		this.port = port;
+		this.announceInterval = Math.max(1, announceInterval);
+	}
+
+	/**
+	 * accepts announces until the process is stopped
+	 */
+	public void run() {
+		try (ServerSocket serverSocket = new ServerSocket()) {
+			serverSocket.bind(new InetSocketAddress(port));
+			System.out.printf("Tracker listening on port %d with an announce interval of %d seconds\n", port,
+					announceInterval);
+			for (;;) {
+				Socket socket = serverSocket.accept();
+				new Thread(() -> handleAnnounce(socket)).start();
+			}
+		} catch (IOException e) {
+			System.out.printf("Exception occured inside the tracker. Message: %s\n", e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads an announce from the connection and writes the response.
+	 *
+	 * @param socket - connection of the announcing peer
+	 */
+	private void handleAnnounce(Socket socket) {
+		try (Socket connection = socket;
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII));
+				PrintWriter writer = new PrintWriter(connection.getOutputStream())) {
+			connection.setSoTimeout(Constants.TRACKER_TIMEOUT);
+			String request = reader.readLine();
+			String[] tokens = request == null ? new String[0] : request.trim().split(" ");
+			if (tokens.length != 9 || !Constants.TRACKER_ANNOUNCE.equals(tokens[0])) {
+				writer.print(Constants.TRACKER_ERROR + " invalid announce\n");
+			} else {
+				writer.print(announce(tokens, connection.getInetAddress().getHostAddress()));
+			}
+			writer.flush();
+		} catch (IOException | RuntimeException e) {
+			System.out.printf("Exception occured while handling an announce. Message: %s\n", e.getMessage());
+		}
+	}
+
+	/**
+	 * Records an announce and builds its response.
+	 *
+	 * @param tokens - tokens of the announce line
+	 * @param host   - address from which the peer announced
+	 * @return String - the response lines
+	 */
+	private String announce(String[] tokens, String host) {
+		String infoHash = tokens[1];
+		String peerId = tokens[2];
+		String event = tokens[7];
+		int numWant = Integer.parseInt(tokens[8]);
+
+		Map<String, TrackedPeer> peers = swarms.computeIfAbsent(infoHash,
+				key -> new ConcurrentHashMap<String, TrackedPeer>());
+		expirePeers(peers);
+
+		if (Constants.TRACKER_EVENT_STOPPED.equals(event)) {
+			peers.remove(peerId);
+		} else {
+			TrackedPeer peer = new TrackedPeer(host, Integer.parseInt(tokens[3]), Long.parseLong(tokens[4]),
+					Long.parseLong(tokens[5]), Long.parseLong(tokens[6]));
+			peers.put(peerId, peer);
+		}
+		if (!Constants.TRACKER_EVENT_NONE.equals(event)) {
+			System.out.printf("Tracker: Peer %s %s the swarm %s, uploaded %s downloaded %s left %s\n", peerId, event,
+					infoHash, tokens[4], tokens[5], tokens[6]);
+		}
+
+		// pick a random sample of the other peers with a partial shuffle
+		ArrayList<Map.Entry<String, TrackedPeer>> candidates = new ArrayList<Map.Entry<String, TrackedPeer>>();
+		int completeCount = 0;
+		for (Map.Entry<String, TrackedPeer> entry : peers.entrySet()) {
+			if (entry.getValue().left == 0) {
+				completeCount++;
+			}
+			if (!entry.getKey().equals(peerId)) {
+				candidates.add(entry);
+			}
+		}
+		int sampleSize = Math.min(Math.max(0, numWant), candidates.size());
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < sampleSize; i++) {
+			int j = i + random.nextInt(candidates.size() - i);
+			Map.Entry<String, TrackedPeer> swap = candidates.get(i);
+			candidates.set(i, candidates.get(j));
+			candidates.set(j, swap);
+		}
+
+		StringBuilder response = new StringBuilder();
+		response.append(String.format("%s %d %d %d\n", Constants.TRACKER_INTERVAL, announceInterval, completeCount,
+				peers.size() - completeCount));
+		for (int i = 0; i < sampleSize; i++) {
+			Map.Entry<String, TrackedPeer> entry = candidates.get(i);
+			response.append(String.format("%s %s %s %d %d\n", Constants.TRACKER_PEER, entry.getKey(),
+					entry.getValue().host, entry.getValue().port, entry.getValue().left == 0 ? 1 : 0));
+		}
+		response.append(Constants.TRACKER_END).append('\n');
+		return response.toString();
+	}
+
+	/**
+	 * Drops the peers which missed several announces in a row.
+	 *
+	 * @param peers - peers of a swarm
+	 */
+	private void expirePeers(Map<String, TrackedPeer> peers) {
+		long expiryTime = System.currentTimeMillis() - announceInterval * 1000L * Constants.TRACKER_EXPIRY_ANNOUNCES;
+		for (Iterator<TrackedPeer> iterator = peers.values().iterator(); iterator.hasNext();) {
+			if (iterator.next().lastAnnounceTime < expiryTime) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Last announce of a peer.
+	 */
+	private static class TrackedPeer {
+		private final String host;
+		private final int port;
+		private final long uploaded;
+		private final long downloaded;
+		private final long left;
+		private final long lastAnnounceTime = System.currentTimeMillis();
+
+		private TrackedPeer(String host, int port, long uploaded, long downloaded, long left) {
+			this.host = host;
+			this.port = port;
+			this.uploaded = uploaded;
+			this.downloaded = downloaded;
+			this.left = left;
+		}
+	}
+}
@@ -15,7 +15,12 @@ public class Constants {
 	// Logger Configuration
 	public static final String LOG_FILE_DIRECTORY_NAME = "log";
 	public static final String LOG_FILE_NAME_PREFIX = "log_peer_";
-	public static final boolean SHOW_OPTIONAL_LOG_MESSAGES = true;
+	public static final String LOG_LEVEL_DEBUG = "debug"; // optional messages are logged as well
+	public static final String LOG_LEVEL_INFO = "info"; // only the messages required by the specifications
+	public static final int LOG_BUFFER_SIZE = 8192; // messages queued for the writer, a power of two
+	public static final int LOG_BATCH_SIZE = 256; // messages written between two flushes
+	public static final int LOG_WRITER_WAIT = 10; // milliseconds the writer waits when nothing is queued
+	public static final int LOG_CLOSE_TIMEOUT = 5000; // milliseconds to write the queued messages at exit
 
 	// LogMessageFormats
 	public static final String MAKE_CONNECTION_SENDER_LOG_MESSAGE = "Peer [%s] makes a connection to Peer [%s]";
@@ -33,12 +38,29 @@ public class Constants {
 	// OptionalLogMessageFormats
 	public static final String SENDER_HANDSHAKE_LOG_MESSAGE = "Peer [%s] has sent a handshake message to Peer [%s] with the header [%s]";
 	public static final String BITFIELD_LOG_MESSAGE = "Peer [%s] has received from Peer [%s] the following bitfields set [%s]";
+	public static final String PIECE_CACHE_LOG_MESSAGE = "Peer [%s] served pieces from its cache with [%s] hits and [%s] misses, a hit rate of [%.1f%%]";
+	public static final String PIECE_HASH_FAILED_LOG_MESSAGE = "Peer [%s] discarded the piece [%s] from [%s] since it doesn't match its hash";
+	public static final String PIECE_HASH_MISSING_LOG_MESSAGE = "Peer [%s] holds back the completed pieces of the swarm [%s] until the piece hashes [%s] are available";
+	public static final String PIECE_HASH_LOADED_LOG_MESSAGE = "Peer [%s] verifies the pieces of the swarm [%s] against the piece hashes [%s]";
+	public static final String PIECE_HASH_RECEIVED_LOG_MESSAGE = "Peer [%s] received the piece hashes of the swarm [%s] from Peer [%s]";
+	public static final String PIECE_HASH_REJECTED_LOG_MESSAGE = "Peer [%s] rejected the piece hashes of the swarm [%s] from Peer [%s] since they don't match the piece hash root";
+	public static final String PIECE_HASH_ROOT_LOG_MESSAGE = "Peer [%s] computed the piece hash root [%s] of the swarm [%s]";
+	public static final String PIECE_HASH_ROOT_MISMATCH_LOG_MESSAGE = "Peer [%s] ignores the piece hashes [%s] of the swarm [%s] since they don't match the piece hash root";
+	public static final String RESUME_LOG_MESSAGE = "Peer [%s] resumed with [%s] pieces restored from its journal";
+	public static final String RESUME_RECHECK_LOG_MESSAGE = "Peer [%s] rechecked its restored pieces and discarded [%s] of them";
 	public static final String HANDSHAKE_FAILED_LOG_MESSAGE = "Handshake failed with Peer [%s] due to incorrect header [%s]";
+	public static final String HANDSHAKE_UNKNOWN_SWARM_LOG_MESSAGE = "Handshake failed with Peer [%s] due to unknown swarm [%s]";
+	public static final String SWARM_LOG_MESSAGE = "Peer [%s] serves the swarm [%s] of the file [%s] with the priority [%s]";
+	public static final String NEIGHBOR_DROPPED_LOG_MESSAGE = "Peer [%s] dropped the neighbor [%s] since it is [%s]";
+	public static final String INVALID_MESSAGE_LOG_MESSAGE = "Peer [%s] dropped the neighbor [%s] since it sent a message of type [%s] for a piece or block outside of the file";
+	public static final String REQUEST_TIMEOUT_LOG_MESSAGE = "Peer [%s] gave up the request for the block [%s:%s] from [%s] after a timeout";
+	public static final String TRACKER_ANNOUNCE_LOG_MESSAGE = "Peer [%s] announced [%s] for the swarm [%s] to the tracker and received [%s] peers";
 
 	// Common Config
 	public static final String LOGGER_NAME = "logger.name";
 	public static final String CONFIGURATION_FILE = "Common.cfg";
 	public static final String PEER_INFO_FILE = "PeerInfo.cfg";
+	public static final String SWARM_INFO_FILE = "Swarms.cfg"; // optional, one shared file per line
 	public static final String PREFERRED_NEIGHBORS_LABEL = "NumberOfPreferredNeighbors";
 	public static final String CHOKE_UNCHOKE_INTERVAL_LABEL = "UnchokingInterval";
 	public static final String OPTIMISTIC_UNCHOKE_INTERVAL_LABEL = "OptimisticUnchokingInterval";
@@ -46,12 +68,130 @@ public class Constants {
 	public static final String PIECE_SIZE_LABEL = "PieceSize";
 	public static final String FILE_NAME_LABEL = "FileName";
 	public static final String INPUT_FOLDER = "peer_%s";
+	public static final String TRANSPORT_MODE_LABEL = "TransportMode";
+	public static final String IO_THREADS_LABEL = "IoThreads";
+	public static final String THREAD_MODE_LABEL = "ThreadMode";
+	public static final String MAX_OUTSTANDING_REQUESTS_LABEL = "MaxOutstandingRequests";
+	public static final String BLOCK_SIZE_LABEL = "BlockSize";
+	public static final String ENDGAME_THRESHOLD_LABEL = "EndgameThreshold";
+	public static final String HAVE_FLUSH_INTERVAL_LABEL = "HaveFlushInterval";
+	public static final String STORAGE_MODE_LABEL = "StorageMode";
+	public static final String PIECE_CACHE_SIZE_LABEL = "PieceCacheSize";
+	public static final String PIECE_CACHE_PREFETCH_LABEL = "PieceCachePrefetch";
+	public static final String WRITE_BUFFER_SIZE_LABEL = "WriteBufferSize";
+	public static final String WRITE_SYNC_INTERVAL_LABEL = "WriteSyncInterval";
+	public static final String VERIFY_THREADS_LABEL = "VerifyThreads";
+	public static final String JOURNAL_CHECKPOINT_INTERVAL_LABEL = "JournalCheckpointInterval";
+	public static final String RESUME_RECHECK_LABEL = "ResumeRecheck";
+	public static final String MAX_UPLOAD_RATE_LABEL = "MaxUploadRate";
+	public static final String LOG_LEVEL_LABEL = "LogLevel";
+	public static final String RATE_WINDOW_LABEL = "RateWindow";
+	public static final String REQUEST_TIMEOUT_LABEL = "RequestTimeout";
+	public static final String KEEP_ALIVE_INTERVAL_LABEL = "KeepAliveInterval";
+	public static final String CHOKING_STRATEGY_LABEL = "ChokingStrategy";
+	public static final String OPTIMISTIC_UNCHOKE_STRATEGY_LABEL = "OptimisticUnchokeStrategy";
+	public static final String MAX_CONNECTIONS_LABEL = "MaxConnections";
+	public static final String CONNECTION_REFRESH_INTERVAL_LABEL = "ConnectionRefreshInterval";
+	public static final String TRACKER_ADDRESS_LABEL = "TrackerAddress"; // host:port, unset to use the peer config file
+	public static final String EVENT_JOURNAL_LABEL = "EventJournal"; // true to record the protocol events
+	public static final String PIECE_HASH_ROOT_LABEL = "PieceHashRoot"; // hex digest of the packed piece hashes
+
+	// Transport
+	public static final String TRANSPORT_MODE_BLOCKING = "blocking"; // a reader and a writer thread per connection
+	public static final String TRANSPORT_MODE_NIO = "nio"; // connections shared by a pool of selector threads
+	public static final int DEFAULT_IO_THREADS = 2;
+	public static final String THREAD_MODE_PLATFORM = "platform"; // connection threads are platform threads
+	public static final String THREAD_MODE_VIRTUAL = "virtual"; // connection threads are virtual threads
+
+	// Storage
+	public static final String STORAGE_MODE_POSITIONAL = "positional"; // positional FileChannel reads and writes
+	public static final String STORAGE_MODE_MAPPED = "mapped"; // download file mapped into memory
+	public static final long MAPPED_REGION_SIZE = 1L << 30; // upper bound on the size of a mapped region
+	public static final int DEFAULT_PIECE_CACHE_SIZE = 0; // bytes of cached pieces, 0 disables the cache
+	public static final int DEFAULT_PIECE_CACHE_PREFETCH = 4; // pieces loaded when a neighbor gets interested
+	public static final int PIECE_CACHE_PREFETCH_SCAN = 64; // pieces looked at for a prefetch, from a random piece on
+	public static final int PIECE_CACHE_PREFETCH_INTERVAL = 10000; // milliseconds between prefetches for a neighbor
+	public static final int PIECE_CACHE_PROTECTED_PERCENT = 80; // share of the cache for pieces used repeatedly
+	public static final int DEFAULT_WRITE_BUFFER_SIZE = 64; // completed pieces waiting to be written
+	public static final int DEFAULT_WRITE_SYNC_INTERVAL = 100; // milliseconds between syncs, 0 syncs every write
+	public static final String PIECE_HASH_FILE = "%s.sha256"; // swarm metadata with the digest of every piece, by info-hash
+	public static final int PIECE_HASH_LOOKUP_INTERVAL = 1000; // milliseconds between looks for missing piece hashes
+	public static final String PIECE_HASH_ALGORITHM = "SHA-256";
+	public static final int PIECE_HASH_SIZE = 32; // bytes of the digest of a piece
+	public static final int MAX_HELD_PIECE_BYTES = 16 * 1024 * 1024; // completed pieces held until the piece hashes arrive
+	public static final String PIECE_JOURNAL_FILE = "%s.journal"; // indices of the committed pieces
+	public static final String PIECE_CHECKPOINT_FILE = "%s.checkpoint"; // bit field compacted from the journal
+	public static final int DEFAULT_JOURNAL_CHECKPOINT_INTERVAL = 256; // journal entries between checkpoints
+	public static final String EVENT_JOURNAL_FILE = "%s.events"; // binary journal of the protocol events
+	public static final int EVENT_JOURNAL_REGION_SIZE = 4 * 1024 * 1024; // bytes of the event journal mapped at once
 
 	// Handshake
 	public static final String HANDSHAKE_HEADER_STRING = "P2PFILESHARINGPROJ";
 
+	// Swarms
+	public static final int DEFAULT_SWARM_PRIORITY = 1; // weight of a swarm in the upload rate
+	public static final String INFO_HASH_ALGORITHM = "SHA-1"; // info-hash of a swarm
+	public static final int INFO_HASH_SIZE = 20;
+	public static final int DEFAULT_MAX_UPLOAD_RATE = 0; // bytes per second for all the swarms, 0 is unlimited
+	public static final int BANDWIDTH_ACTIVE_WINDOW = 1000; // milliseconds for which a swarm keeps its share
+	public static final int SCHEDULER_THREADS = 4; // threads running the periodic work of all the swarms
+	public static final int EXECUTOR_CLOSE_TIMEOUT = 5000; // milliseconds for the shared pools to finish at exit
+
+	// Timers
+	public static final int TIMER_TICK_DURATION = 10; // milliseconds covered by a bucket of a timer wheel
+	public static final int TIMER_WHEEL_SIZE = 512; // buckets of a timer wheel, one turn takes about 5 seconds
+	public static final int DEFAULT_REQUEST_TIMEOUT = 60; // seconds before a request is sent to another neighbor
+	public static final int DEFAULT_KEEP_ALIVE_INTERVAL = 60; // idle seconds before a keep-alive, 0 disables them
+
+	// Tracker
+	public static final String TRACKER_ANNOUNCE = "ANNOUNCE";
+	public static final String TRACKER_INTERVAL = "INTERVAL";
+	public static final String TRACKER_PEER = "PEER";
+	public static final String TRACKER_END = "END";
+	public static final String TRACKER_ERROR = "ERROR";
+	public static final String TRACKER_EVENT_STARTED = "started";
+	public static final String TRACKER_EVENT_COMPLETED = "completed";
+	public static final String TRACKER_EVENT_STOPPED = "stopped";
+	public static final String TRACKER_EVENT_NONE = "none"; // periodic re-announce
+	public static final int DEFAULT_TRACKER_INTERVAL = 10; // seconds between the announces of a peer
+	public static final int TRACKER_EXPIRY_ANNOUNCES = 3; // missed announces after which a peer is dropped
+	public static final int TRACKER_TIMEOUT = 5000; // milliseconds to wait for the tracker
+	public static final int TRACKER_NUM_WANT = 50; // peers asked for in every announce
+	public static final int TRACKER_FINISHED_ANNOUNCES = 2; // announces without incomplete peers before leaving
+
+	// Rates
+	public static final int DEFAULT_RATE_WINDOW = 20; // seconds over which transfer rates are averaged
+	public static final int RATE_BUCKET_DURATION = 1000; // milliseconds counted by a bucket of a rate estimator
+
+	// Choking
+	public static final String CHOKING_STRATEGY_TIT_FOR_TAT = "tit-for-tat"; // fastest interested neighbors
+	public static final String CHOKING_STRATEGY_SEED_ROUND_ROBIN = "seed-round-robin"; // seeds unchoke in turns
+	public static final String CHOKING_STRATEGY_PROPORTIONAL_SHARE = "proportional-share"; // drawn by rate
+	public static final String OPTIMISTIC_UNCHOKE_STRATEGY_RANDOM = "random";
+	public static final String OPTIMISTIC_UNCHOKE_STRATEGY_NEW_CONNECTIONS = "new-connections"; // new ones favored
+	public static final int SEED_UNCHOKE_ROUNDS = 3; // choke rounds for which a seed keeps a neighbor unchoked
+	public static final double PROPORTIONAL_SHARE_BASE_RATE = 1024; // bytes per second added to every rate
+	public static final int NEW_CONNECTION_ROUNDS = 3; // optimistic unchoke rounds for which a connection is new
+	public static final int NEW_CONNECTION_WEIGHT = 3; // chances of a new connection against an old one
+
+	// Connections
+	public static final int DEFAULT_MAX_CONNECTIONS = 0; // neighbors per swarm, 0 connects to every peer
+	public static final int DEFAULT_CONNECTION_REFRESH_INTERVAL = 5; // seconds between neighbor reviews
+	public static final int USELESS_NEIGHBOR_ROUNDS = 3; // reviews without interest on either side
+	public static final int SLOW_NEIGHBOR_ROUNDS = 3; // reviews as the slowest neighbor while at capacity
+	public static final int NEIGHBOR_RETRY_ROUNDS = 3; // reviews before a dropped neighbor is dialed again
+	public static final int CANDIDATE_POOL_SIZE = 50; // addresses kept to replace neighbors
+	public static final int CONNECT_TIMEOUT = 5000; // milliseconds to wait for a neighbor to accept a dial
+	public static final String NEIGHBOR_DROP_REASON_SEED = "a seed like the current peer";
+	public static final String NEIGHBOR_DROP_REASON_USELESS = "uninterested both ways";
+	public static final String NEIGHBOR_DROP_REASON_SLOW = "persistently slow";
+
 	// Pieces
-	public static final int MAX_PIECES_LIMIT = 1000;
+	public static final int DEFAULT_MAX_OUTSTANDING_REQUESTS = 5; // blocks in flight per neighbor
+	public static final int DEFAULT_BLOCK_SIZE = 16384; // unit in which pieces are requested and sent
+	public static final int DEFAULT_ENDGAME_THRESHOLD = 4; // missing pieces below which endgame starts
+	public static final int DEFAULT_HAVE_FLUSH_INTERVAL = 100; // milliseconds between have batches, 0 sends at once
+	public static final int RAREST_PIECE_CANDIDATES = 8; // pieces taken from the index per lock when picking
 
 	// message id
 	public static final byte TYPE_HANDSHAKE_MESSAGE = 10;
@@ -63,12 +203,17 @@ public class Constants {
 	public static final byte TYPE_BITFIELD_MESSAGE = 5;
 	public static final byte TYPE_REQUEST_MESSAGE = 6;
 	public static final byte TYPE_PIECE_MESSAGE = 7;
+	public static final byte TYPE_CANCEL_MESSAGE = 8;
+	public static final byte TYPE_KEEP_ALIVE_MESSAGE = 9;
+	public static final byte TYPE_PIECE_HASHES_MESSAGE = 11;
 	public static final byte TYPE_SHUTDOWN_MESSAGE = 100;
+	public static final byte TYPE_REQUEST_BLOCKS_MESSAGE = 101; // local trigger of the requester, never sent
 
 	// TODO
-	public static final int RAW_DATA_SIZE = 1000;
-	public static final int MAX_MESSAGE_SIZE = 40000;
 	public static final int SIZE_OF_EMPTY_MESSAGE = 1;
 	public static final int SENDER_QUEUE_SIZE = 100;
 
+	// Wire format
+	public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024; // upper bound on the length of a single frame
+
 }
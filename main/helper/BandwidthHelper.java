@@ -0,0 +1,117 @@
+package main.helper;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import main.constants.Constants;
+
+/**
+ * This class shares the upload bandwidth of the process between the swarms it
+ * serves. Every swarm gets a budget with a priority, and the global upload rate
+ * is split between the swarms which uploaded recently in proportion to their
+ * priorities, so the share of an idle swarm goes to the busy ones. A budget
+ * paces the pieces of its swarm by telling the sender how long to wait before
+ * a piece may go out.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class BandwidthHelper {
+
+	private final long maxUploadRate; // bytes per second for all the swarms together
+	private final ScheduledExecutorService scheduler;
+	private final ArrayList<SwarmBudget> budgets = new ArrayList<SwarmBudget>();
+
+	// A lock is used instead of a monitor so that virtual threads blocked on it
+	// don't pin their carrier threads.
+	private final ReentrantLock budgetLock = new ReentrantLock();
+
+	/**
+	 * Creates the bandwidth budget of the process.
+	 *
+	 * @param maxUploadRate - upload rate in bytes per second shared by all the
+	 *                      swarms
+	 * @param scheduler     - scheduler on which throttled senders are resumed
+	 */
+	public BandwidthHelper(long maxUploadRate, ScheduledExecutorService scheduler) {
+		this.maxUploadRate = maxUploadRate;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Creates the budget of a swarm.
+	 *
+	 * @param priority - weight of the swarm in the global upload rate
+	 * @return SwarmBudget
+	 */
+	public SwarmBudget register(int priority) {
+		budgetLock.lock();
+		try {
+			SwarmBudget budget = new SwarmBudget(Math.max(1, priority));
+			budgets.add(budget);
+			return budget;
+		} finally {
+			budgetLock.unlock();
+		}
+	}
+
+	/**
+	 * Upload budget of a single swarm.
+	 */
+	public class SwarmBudget {
+		private final int priority;
+		private long nextFreeTime; // time at which the paced sends of the swarm catch up
+		private long lastActiveTime;
+		private boolean hasReserved = false;
+
+		private SwarmBudget(int priority) {
+			this.priority = priority;
+			this.nextFreeTime = System.nanoTime();
+			this.lastActiveTime = nextFreeTime;
+		}
+
+		/**
+		 * Reserves the given number of bytes of the upload rate of the swarm. The
+		 * bytes are always granted, but the sender has to wait for the returned time
+		 * before sending them.
+		 *
+		 * @param bytes - number of bytes to be sent
+		 * @return long - nanoseconds to wait before sending, 0 to send at once
+		 */
+		public long reserve(long bytes) {
+			budgetLock.lock();
+			try {
+				long now = System.nanoTime();
+				long activeWindow = TimeUnit.MILLISECONDS.toNanos(Constants.BANDWIDTH_ACTIVE_WINDOW);
+				lastActiveTime = Math.max(now, nextFreeTime);
+				hasReserved = true;
+
+				long activePriority = 0;
+				for (SwarmBudget budget : budgets) {
+					if (budget.hasReserved && now - budget.lastActiveTime <= activeWindow) {
+						activePriority += budget.priority;
+					}
+				}
+
+				double rate = (double) maxUploadRate * priority / activePriority;
+				long sendTime = Math.max(now, nextFreeTime);
+				nextFreeTime = sendTime + (long) (bytes * 1e9 / rate);
+				return sendTime - now;
+			} finally {
+				budgetLock.unlock();
+			}
+		}
+
+		/**
+		 * Runs the given task once a throttled sender may continue.
+		 *
+		 * @param task       - task which resumes the sender
+		 * @param delayNanos - time returned by reserve
+		 * @return null
+		 */
+		public void resumeAfter(Runnable task, long delayNanos) {
+			scheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+}
@@ -1,17 +1,23 @@
 package main.helper;
 
 import java.util.*;
-import java.io.*;
 
 /**
  * This class is a helper class which contains info related to the available
- * pieces of a download file for a given peer
- * 
+ * pieces of a download file for a given peer. The pieces are stored as a packed
+ * bit set of 64 pieces per long, and the number of downloaded pieces is kept
+ * up to date on every change so that it never has to be counted.
+ *
  * @author Adithya KNG
  */
-public class BitFieldHelper implements Serializable {
+public class BitFieldHelper {
 
-    private final int[] segmentArray;
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+    private static final int BITS_PER_WORD = 1 << ADDRESS_BITS_PER_WORD;
+
+    private final long[] words;
+    private final int numOfSegments;
+    private volatile int cardinality = 0; // number of downloaded segments
 
     /**
      * Constructor to initialize the bit field with the given number of pieces.
@@ -19,8 +25,8 @@ public class BitFieldHelper implements Serializable {
      * @param numOfPieces The total number of segments or pieces
      */
     public BitFieldHelper(int numOfPieces) {
-        segmentArray = new int[numOfPieces];
-        Arrays.fill(segmentArray, 0); // Initialize all segments to not downloaded (0)
+        numOfSegments = numOfPieces;
+        words = new long[wordIndex(numOfPieces + BITS_PER_WORD - 1)]; // all segments not downloaded
     }
 
     /**
@@ -29,7 +35,7 @@ public class BitFieldHelper implements Serializable {
      * @return The number of segments
      */
     public int getNumberOfSegments() {
-        return segmentArray.length;
+        return numOfSegments;
     }
 
     /**
@@ -40,7 +46,20 @@ public class BitFieldHelper implements Serializable {
      * @param value True if downloaded, false if not downloaded
      */
     synchronized public void setValueAtIndex(int index, boolean value) {
-        segmentArray[index] = value ? 1 : 0; // Set to 1 if downloaded, 0 if not downloaded
+        if (index < 0 || index >= numOfSegments) {
+            throw new IndexOutOfBoundsException("Segment index out of range: " + index);
+        }
+
+        int wordIndex = wordIndex(index);
+        long mask = 1L << index;
+        boolean isSet = (words[wordIndex] & mask) != 0;
+        if (value && !isSet) {
+            words[wordIndex] |= mask;
+            cardinality++;
+        } else if (!value && isSet) {
+            words[wordIndex] &= ~mask;
+            cardinality--;
+        }
     }
 
     /**
@@ -50,8 +69,15 @@ public class BitFieldHelper implements Serializable {
      * @param number The value to fill the bit field with (1 for downloaded, 0 for
      *               not downloaded)
      */
-    public void fillTheSegmentArrayWithNumber(int number) {
-        Arrays.fill(segmentArray, number);
+    synchronized public void fillTheSegmentArrayWithNumber(int number) {
+        if (number == 0) {
+            Arrays.fill(words, 0L);
+            cardinality = 0;
+        } else {
+            Arrays.fill(words, -1L);
+            clearUnusedBits();
+            cardinality = numOfSegments;
+        }
     }
 
     /**
@@ -60,16 +86,7 @@ public class BitFieldHelper implements Serializable {
      * @return The count of downloaded segments
      */
     public int getCountOfDownloadedSegments() {
-        if (segmentArray != null) {
-            int segmentCount = 0;
-            for (int segment : segmentArray) {
-                if (segment == 1) {
-                    segmentCount++;
-                }
-            }
-            return segmentCount;
-        }
-        return 0;
+        return cardinality;
     }
 
     /**
@@ -78,17 +95,7 @@ public class BitFieldHelper implements Serializable {
      * @return True if all segments are downloaded, false otherwise
      */
     public boolean checkIfFileIsDownloaded() {
-        if (segmentArray != null) {
-            boolean ret = true;
-            for (int segment : segmentArray) {
-                if (segment == 0) {
-                    ret = false;
-                    break;
-                }
-            }
-            return ret;
-        }
-        return false;
+        return cardinality == numOfSegments;
     }
 
     /**
@@ -99,21 +106,136 @@ public class BitFieldHelper implements Serializable {
      * @return 1 if downloaded, 0 if not downloaded
      */
     public int getValueAtIndex(int index) {
-        return segmentArray[index];
+        return (words[wordIndex(index)] & (1L << index)) != 0 ? 1 : 0;
+    }
+
+    /**
+     * Get the index of the first downloaded segment at or after the given index.
+     *
+     * @param fromIndex The index to start searching from
+     * @return The index of the segment, or -1 if there is none
+     */
+    public int nextSetBit(int fromIndex) {
+        if (fromIndex < 0 || fromIndex >= numOfSegments) {
+            return -1;
+        }
+
+        int wordIndex = wordIndex(fromIndex);
+        long word = words[wordIndex] & (-1L << fromIndex);
+        for (;;) {
+            if (word != 0) {
+                return wordIndex * BITS_PER_WORD + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == words.length) {
+                return -1;
+            }
+            word = words[wordIndex];
+        }
+    }
+
+    /**
+     * Create a bit field of the segments which are downloaded in this bit field
+     * but not in the other one, such as the pieces which a neighbor has and the
+     * current peer is missing.
+     *
+     * @param other The bit field whose segments are removed
+     * @return A new bit field holding this and not other
+     */
+    public BitFieldHelper andNot(BitFieldHelper other) {
+        BitFieldHelper result = new BitFieldHelper(numOfSegments);
+        int cardinality = 0;
+        for (int i = 0; i < words.length; i++) {
+            long otherWord = i < other.words.length ? other.words[i] : 0L;
+            result.words[i] = words[i] & ~otherWord;
+            cardinality += Long.bitCount(result.words[i]);
+        }
+        result.cardinality = cardinality;
+        return result;
+    }
+
+    /**
+     * Pack the bit field at one bit per segment, most significant bit first, as
+     * it is sent in a bitfield message.
+     *
+     * @return The packed bytes
+     */
+    public byte[] toByteArray() {
+        byte[] packed = new byte[(numOfSegments + 7) / 8];
+        for (int i = 0; i < packed.length; i++) {
+            int bits = (int) (words[i >>> 3] >>> ((i & 7) * 8)) & 0xFF;
+            packed[i] = (byte) (Integer.reverse(bits) >>> 24);
+        }
+        return packed;
+    }
+
+    /**
+     * Create a bit field from the packed bytes written by toByteArray. Bits beyond
+     * the given number of segments are ignored.
+     *
+     * @param numOfPieces The total number of segments or pieces
+     * @param packed      The packed bytes
+     * @return The bit field
+     */
+    public static BitFieldHelper fromByteArray(int numOfPieces, byte[] packed) {
+        BitFieldHelper bitField = new BitFieldHelper(numOfPieces);
+        for (int i = 0; i < packed.length && i < bitField.words.length * 8; i++) {
+            long bits = (Integer.reverse(packed[i] & 0xFF) >>> 24) & 0xFFL;
+            bitField.words[i >>> 3] |= bits << ((i & 7) * 8);
+        }
+        bitField.clearUnusedBits();
+
+        int cardinality = 0;
+        for (long word : bitField.words) {
+            cardinality += Long.bitCount(word);
+        }
+        bitField.cardinality = cardinality;
+        return bitField;
+    }
+
+    /**
+     * Create a copy of the bit field which doesn't change with this one.
+     *
+     * @return A new bit field holding the same segments
+     */
+    public synchronized BitFieldHelper copy() {
+        BitFieldHelper result = new BitFieldHelper(numOfSegments);
+        System.arraycopy(words, 0, result.words, 0, words.length);
+        result.cardinality = cardinality;
+        return result;
+    }
+
+    /**
+     * Returns the bit field as a string of one digit per segment, as it is
+     * logged.
+     *
+     * @return The bit field map
+     */
+    public String toString() {
+        return fetchBitFieldMap();
     }
 
     public String fetchBitFieldMap() {
         StringBuilder bitField = new StringBuilder();
-        for (int i = 0; i < segmentArray.length; i += 8) {
+        for (int i = 0; i < numOfSegments; i += 8) {
             for (int j = i; j < i + 8; j++) {
-                if (j >= segmentArray.length) {
+                if (j >= numOfSegments) {
                     bitField.append('0');
                 } else {
-                    bitField.append(segmentArray[j]);
+                    bitField.append(getValueAtIndex(j));
                 }
             }
         }
 
         return bitField.toString();
     }
+
+    private void clearUnusedBits() {
+        if (numOfSegments % BITS_PER_WORD != 0) {
+            words[words.length - 1] &= -1L >>> (BITS_PER_WORD - numOfSegments % BITS_PER_WORD);
+        }
+    }
+
+    private static int wordIndex(int index) {
+        return index >>> ADDRESS_BITS_PER_WORD;
+    }
 }
\ No newline at end of file
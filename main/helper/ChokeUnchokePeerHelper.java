@@ -1,12 +1,9 @@
 package main.helper;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import main.PeerController;
@@ -14,7 +11,8 @@ import main.constants.Constants;
 
 /**
  * This class runs the process of choking an unchoking at regular intervals for
- * the given peer in order to change its neighboring peers.
+ * the given peer in order to change its neighboring peers. The neighbors to
+ * unchoke are picked by the choking strategy set in the common config file.
  * 
  * @author Sharan Sai Reddy Konda
  * @author Bhavan Voram
@@ -23,80 +21,88 @@ public class ChokeUnchokePeerHelper implements Runnable {
 
 	private LogHelper logger;
 	private PeerController controller;
-	private static ChokeUnchokePeerHelper instance = null; // static instance
+	private ChokingStrategy strategy;
 
-	private ScheduledFuture<?> process = null;
+	private TimerWheelHelper.Timeout process = null;
 
 	/**
-	 * Returns the singleton instance of the choke unchoke helper
+	 * Returns a new choke unchoke helper for the swarm of the given controller
 	 * 
-	 * @param controller - main controller object that manages all other objects
+	 * @param controller - controller of the swarm whose neighbors are choked
 	 * @return null
 	 */
-	public static synchronized ChokeUnchokePeerHelper returnSingletonInstance(PeerController controller) {
-		if (instance == null) {
+	public static ChokeUnchokePeerHelper getNewInstance(PeerController controller) {
+		if (controller == null) {
+			return null;
+		}
 
-			if (controller == null) {
-				return null;
-			}
+		ChokeUnchokePeerHelper chokeUnchokeHelper = new ChokeUnchokePeerHelper();
+		chokeUnchokeHelper.controller = controller;
+		chokeUnchokeHelper.logger = controller.getLogger();
+		chokeUnchokeHelper.strategy = ChokingStrategy.getNewInstance(CommonConfigHelper.getConfig(
+				Constants.CHOKING_STRATEGY_LABEL, Constants.CHOKING_STRATEGY_TIT_FOR_TAT));
+		return chokeUnchokeHelper;
+	}
 
-			instance = new ChokeUnchokePeerHelper();
-			instance.controller = controller;
-			instance.logger = controller.getLogger();
-		}
+	/**
+	 * Returns a choke unchoke helper which isn't bound to a swarm, for replaying
+	 * the choke rounds of an event journal. The strategy breaks its ties with a
+	 * generator of the given seed so that a replay is repeatable.
+	 * 
+	 * @param strategyName - name of the choking strategy to replay
+	 * @param seed         - seed of the generator which breaks the ties
+	 * @return null
+	 */
+	public static ChokeUnchokePeerHelper getReplayInstance(String strategyName, long seed) {
+		ChokeUnchokePeerHelper chokeUnchokeHelper = new ChokeUnchokePeerHelper();
+		chokeUnchokeHelper.strategy = ChokingStrategy.getNewInstance(strategyName, new Random(seed));
+		return chokeUnchokeHelper;
+	}
 
-		return instance;
+	/**
+	 * Picks the preferred neighbors of the next round with the choking strategy.
+	 * 
+	 * @param neighbors          - neighbors which completed the handshake
+	 * @param preferredNeighbors - number of neighbors to unchoke
+	 * @param isSeed             - whether the current peer has the complete file
+	 * @return List of the peer IDs to unchoke
+	 */
+	public List<String> selectPreferredNeighbors(List<ChokingStrategy.Neighbor> neighbors, int preferredNeighbors,
+			boolean isSeed) {
+		return strategy.selectPreferredNeighbors(neighbors, preferredNeighbors, isSeed);
 	}
 
 	/**
-	 * This function calculates the download rates for each peer and picks the first
-	 * k neighbors based on highest download rate speeds and chokes the rest of the
-	 * peers.
+	 * This function asks the choking strategy for the preferred neighbors of the
+	 * next round, unchokes them and chokes the rest of the neighbors.
 	 * 
 	 * @return null
 	 */
 	public void run() {
-		HashMap<String, Double> peerSpeedMap = controller.getDownloadRates();
+		List<ChokingStrategy.Neighbor> neighbors = controller.getChokingNeighbors();
 
 		int preferredNeighbors = 0;
 		if (CommonConfigHelper.getConfig(Constants.PREFERRED_NEIGHBORS_LABEL) != null) {
 			preferredNeighbors = Integer.parseInt(CommonConfigHelper.getConfig(Constants.PREFERRED_NEIGHBORS_LABEL));
 		}
 
-		// If we lesser peers than the actual peers count, then we have to pick the k
-		// best peers and choke the rest.
-		if (preferredNeighbors <= peerSpeedMap.size()) {
-
-			// Find top k preferred neighbours based on their download speeds
-			List<Map.Entry<String, Double>> peerSpeedList = new ArrayList<>(peerSpeedMap.entrySet());
-
-			// Sort in descending order based on speeds
-			Collections.sort(peerSpeedList, (peer1, peer2) -> peer2.getValue().compareTo(peer1.getValue()));
-
-			ArrayList<String> unchokePeersList = new ArrayList<String>();
-			ArrayList<String> chokePeersList = new ArrayList<String>();
-
-			// Pick the first k preferred neighbors from the sorted list and choke the rest
-			// of the neighbors.
-			int count = 0;
-			for (Map.Entry<String, Double> peer : peerSpeedList) {
-				if (count < preferredNeighbors) {
-					unchokePeersList.add(peer.getKey());
-				} else {
-					chokePeersList.add(peer.getKey());
-				}
-
-				count++;
+		boolean isSeed = controller.isFileDownloadComplete();
+		List<String> unchokePeersList = selectPreferredNeighbors(neighbors, preferredNeighbors, isSeed);
+		if (controller.getEventJournal() != null) {
+			controller.getEventJournal().recordChokeRound(neighbors, preferredNeighbors, isSeed, unchokePeersList);
+		}
+		HashSet<String> unchokePeers = new HashSet<String>(unchokePeersList);
+		ArrayList<String> chokePeersList = new ArrayList<String>();
+		for (ChokingStrategy.Neighbor neighbor : neighbors) {
+			if (!unchokePeers.contains(neighbor.getPeerId())) {
+				chokePeersList.add(neighbor.getPeerId());
 			}
-
-			String logMessage = String.format(Constants.CHANGE_OF_PREFERRED_NEIGHBORS_LOG_MESSAGE,
-					controller.getPeerId(),
-					String.join(",", unchokePeersList));
-
-			logger.logMessage(logMessage);
-			controller.unChokePeers(unchokePeersList);
-			controller.setChokePeers(chokePeersList);
 		}
+
+		logger.logMessage(Constants.CHANGE_OF_PREFERRED_NEIGHBORS_LOG_MESSAGE, controller.getPeerId(),
+				String.join(",", unchokePeersList));
+		controller.unChokePeers(unchokePeersList);
+		controller.setChokePeers(chokePeersList);
 	}
 
 	/**
@@ -110,8 +116,7 @@ public class ChokeUnchokePeerHelper implements Runnable {
 	 * @return null
 	 */
 	public void start(int startDelay, int intervalDelay) {
-		process = Executors.newScheduledThreadPool(5).scheduleAtFixedRate(this, startDelay, intervalDelay,
-				TimeUnit.SECONDS);
+		process = controller.getTimer().scheduleAtFixedRate(this, startDelay, intervalDelay, TimeUnit.SECONDS);
 	}
 
 	/**
@@ -121,6 +126,6 @@ public class ChokeUnchokePeerHelper implements Runnable {
 	 * @return null
 	 */
 	public void destroy() {
-		process.cancel(true);
+		process.cancel();
 	}
 }
@@ -0,0 +1,120 @@
+package main.helper;
+
+import java.util.List;
+import java.util.Random;
+
+import main.constants.Constants;
+
+/**
+ * A policy which decides every choke round which neighbors of a swarm are
+ * unchoked as preferred neighbors. The policy is picked with ChokingStrategy
+ * in the common config file, and every swarm gets its own instance so that a
+ * policy may remember its earlier decisions.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public interface ChokingStrategy {
+
+	/**
+	 * Picks the preferred neighbors for the next choke round. The neighbors which
+	 * aren't picked are choked.
+	 *
+	 * @param neighbors          - neighbors which completed the handshake
+	 * @param preferredNeighbors - number of neighbors to unchoke
+	 * @param isSeed             - whether the current peer has the complete file
+	 * @return List of the peer IDs to unchoke
+	 */
+	List<String> selectPreferredNeighbors(List<Neighbor> neighbors, int preferredNeighbors, boolean isSeed);
+
+	/**
+	 * Returns a new instance of the strategy with the given name, or of the
+	 * tit-for-tat strategy if the name is unknown.
+	 *
+	 * @param name - name of the strategy in the common config file
+	 * @return ChokingStrategy
+	 */
+	static ChokingStrategy getNewInstance(String name) {
+		return getNewInstance(name, new Random());
+	}
+
+	/**
+	 * Returns a new instance of the strategy with the given name which breaks its
+	 * ties with the given random generator, so that a seeded generator makes the
+	 * decisions repeatable.
+	 *
+	 * @param name   - name of the strategy in the common config file
+	 * @param random - generator by which the ties are broken
+	 * @return ChokingStrategy
+	 */
+	static ChokingStrategy getNewInstance(String name, Random random) {
+		if (Constants.CHOKING_STRATEGY_SEED_ROUND_ROBIN.equalsIgnoreCase(name)) {
+			return new SeedRoundRobinChokingStrategy(random);
+		}
+		if (Constants.CHOKING_STRATEGY_PROPORTIONAL_SHARE.equalsIgnoreCase(name)) {
+			return new ProportionalShareChokingStrategy(random);
+		}
+		if (!Constants.CHOKING_STRATEGY_TIT_FOR_TAT.equalsIgnoreCase(name)) {
+			System.out.printf("Unknown choking strategy %s, the neighbors are choked tit-for-tat\n", name);
+		}
+		return new TitForTatChokingStrategy(random);
+	}
+
+	/**
+	 * What a strategy knows about a neighbor when it is called. The values are
+	 * taken once per round so that every strategy decides on a consistent view.
+	 */
+	final class Neighbor {
+		private final String peerId;
+		private final double downloadRate; // bytes per second received from the neighbor
+		private final double uploadRate; // bytes per second sent to the neighbor
+		private final boolean isInterested; // the neighbor wants pieces of the current peer
+		private final boolean isChoked; // the current peer chokes the neighbor
+		private final long connectionTime; // milliseconds since the epoch
+
+		public Neighbor(String peerId, double downloadRate, double uploadRate, boolean isInterested,
+				boolean isChoked, long connectionTime) {
+			this.peerId = peerId;
+			this.downloadRate = downloadRate;
+			this.uploadRate = uploadRate;
+			this.isInterested = isInterested;
+			this.isChoked = isChoked;
+			this.connectionTime = connectionTime;
+		}
+
+		public String getPeerId() {
+			return peerId;
+		}
+
+		public double getDownloadRate() {
+			return downloadRate;
+		}
+
+		public double getUploadRate() {
+			return uploadRate;
+		}
+
+		public boolean isInterested() {
+			return isInterested;
+		}
+
+		public boolean isChoked() {
+			return isChoked;
+		}
+
+		public long getConnectionTime() {
+			return connectionTime;
+		}
+
+		/**
+		 * returns the rate by which a neighbor is ranked: the rate at which it sends
+		 * pieces to a peer which downloads, and the rate at which it takes pieces from
+		 * a seed
+		 *
+		 * @param isSeed - whether the current peer has the complete file
+		 * @return double - bytes per second
+		 */
+		public double getRankingRate(boolean isSeed) {
+			return isSeed ? uploadRate : downloadRate;
+		}
+	}
+}
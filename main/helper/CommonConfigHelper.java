@@ -62,4 +62,30 @@ public class CommonConfigHelper {
     public static String getConfig(String key) {
         return configMap.get(key);
     }
+
+    /**
+     * Get the configuration value based on the provided key, falling back to the
+     * given default when the key is not present in the config file.
+     * 
+     * @param key          The key to retrieve the configuration value.
+     * @param defaultValue The value returned when the key is missing.
+     * @return The configuration value associated with the key.
+     */
+    public static String getConfig(String key, String defaultValue) {
+        String value = configMap.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Get the integer configuration value based on the provided key, falling back
+     * to the given default when the key is not present in the config file.
+     * 
+     * @param key          The key to retrieve the configuration value.
+     * @param defaultValue The value returned when the key is missing.
+     * @return The configuration value associated with the key.
+     */
+    public static int getIntConfig(String key, int defaultValue) {
+        String value = configMap.get(key);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
 }
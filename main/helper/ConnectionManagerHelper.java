@@ -0,0 +1,291 @@
+package main.helper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import main.PeerController;
+import main.PeerHandler;
+import main.constants.Constants;
+import main.messageTypes.Peer;
+
+/**
+ * This class keeps the current peer connected to a bounded number of neighbors
+ * of a swarm, so that the connections and the state kept per neighbor don't
+ * grow with the swarm. The neighbors are picked at random from a pool of
+ * candidate peers, and at regular intervals the neighbors which stay useless
+ * are replaced: neighbors which neither side is interested in, neighbors which
+ * remain the slowest source of pieces while there are candidates to try, and
+ * seeds connected to a seed.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class ConnectionManagerHelper implements Runnable {
+
+	private PeerController controller;
+	private int maxConnections;
+
+	private final Map<String, Peer> candidates = new HashMap<String, Peer>();
+	private final Map<String, Integer> retryRounds = new HashMap<String, Integer>(); // first round to dial again
+	private final Set<String> dialingPeers = new HashSet<String>();
+	private final Map<PeerHandler, NeighborState> neighborStates = new HashMap<PeerHandler, NeighborState>();
+	private final Random random = new Random();
+	private int round = 0;
+
+	private TimerWheelHelper.Timeout process = null;
+
+	/**
+	 * Returns a new connection manager for the swarm of the given controller
+	 *
+	 * @param controller     - controller of the swarm whose neighbors are managed
+	 * @param maxConnections - maximum number of neighbors
+	 * @return null
+	 */
+	public static ConnectionManagerHelper getNewInstance(PeerController controller, int maxConnections) {
+		if (controller == null || maxConnections <= 0) {
+			return null;
+		}
+
+		ConnectionManagerHelper connectionManager = new ConnectionManagerHelper();
+		connectionManager.controller = controller;
+		connectionManager.maxConnections = maxConnections;
+		return connectionManager;
+	}
+
+	/**
+	 * Adds a peer to the pool of candidates. Once the pool is full a random
+	 * candidate makes room for it, so that the pool follows the swarm.
+	 *
+	 * @param peer - peer which may become a neighbor
+	 * @return null
+	 */
+	public synchronized void addCandidate(Peer peer) {
+		if (!candidates.containsKey(peer.getPeerId()) && candidates.size() >= Constants.CANDIDATE_POOL_SIZE) {
+			ArrayList<String> peerIds = new ArrayList<String>(candidates.keySet());
+			candidates.remove(peerIds.get(random.nextInt(peerIds.size())));
+		}
+		candidates.put(peer.getPeerId(), peer);
+	}
+
+	/**
+	 * checks if another neighbor may connect to the current peer
+	 *
+	 * @return boolean
+	 */
+	public synchronized boolean hasCapacity() {
+		return getConnectionCount() < maxConnections;
+	}
+
+	/**
+	 * Returns the number of connections which count towards the maximum: the
+	 * connected neighbors and the dials which haven't completed yet. Must be
+	 * called with the manager locked.
+	 *
+	 * @return int
+	 */
+	private int getConnectionCount() {
+		return controller.getPeerHandlers().size() + dialingPeers.size();
+	}
+
+	/**
+	 * This function replaces the neighbors which stay useless and then connects
+	 * to random candidates until the number of neighbors reaches the maximum.
+	 *
+	 * @return null
+	 */
+	public void run() {
+		try {
+			synchronized (this) {
+				round++;
+				reviewNeighbors();
+			}
+			connectNeighbors();
+		} catch (Exception e) {
+			System.out.printf("Exception occured while managing the neighbors. Message: %s\n", e.getMessage());
+		}
+	}
+
+	/**
+	 * Drops the neighbors which stayed useless for a few rounds.
+	 */
+	private void reviewNeighbors() {
+		List<PeerHandler> peerHandlers = controller.getPeerHandlers();
+		neighborStates.keySet().retainAll(new HashSet<PeerHandler>(peerHandlers));
+		boolean isSeed = controller.isFileDownloadComplete();
+
+		PeerHandler slowestNeighbor = null;
+		long slowestDownloadSize = Long.MAX_VALUE;
+		int interestingCount = 0;
+		for (PeerHandler peerHandler : peerHandlers) {
+			// the interest of both sides is only known once the bit fields are exchanged
+			if (!peerHandler.isChunkStarted()) {
+				continue;
+			}
+
+			NeighborState state = neighborStates.computeIfAbsent(peerHandler, key -> new NeighborState());
+			long totalDownloadSize = peerHandler.getTotalDownloadSize();
+			long roundDownloadSize = totalDownloadSize - state.lastDownloadSize;
+			state.lastDownloadSize = totalDownloadSize;
+
+			if (isSeed && peerHandler.isDownloadComplete()) {
+				dropNeighbor(peerHandler, Constants.NEIGHBOR_DROP_REASON_SEED);
+				continue;
+			}
+
+			if (!peerHandler.isNeighborInterested() && !peerHandler.isInterestedInNeighbor()) {
+				if (++state.uselessRounds >= Constants.USELESS_NEIGHBOR_ROUNDS) {
+					dropNeighbor(peerHandler, Constants.NEIGHBOR_DROP_REASON_USELESS);
+					continue;
+				}
+			} else {
+				state.uselessRounds = 0;
+			}
+
+			if (peerHandler.isInterestedInNeighbor()) {
+				interestingCount++;
+				if (roundDownloadSize < slowestDownloadSize) {
+					slowestNeighbor = peerHandler;
+					slowestDownloadSize = roundDownloadSize;
+				}
+			}
+		}
+
+		// a neighbor is persistently slow if it stays the slowest source of pieces
+		for (Map.Entry<PeerHandler, NeighborState> entry : neighborStates.entrySet()) {
+			if (entry.getKey() != slowestNeighbor) {
+				entry.getValue().slowRounds = 0;
+			}
+		}
+		if (slowestNeighbor != null && interestingCount > 1) {
+			NeighborState state = neighborStates.get(slowestNeighbor);
+			if (++state.slowRounds >= Constants.SLOW_NEIGHBOR_ROUNDS
+					&& getConnectionCount() >= maxConnections && !pickCandidates(1, isSeed).isEmpty()) {
+				dropNeighbor(slowestNeighbor, Constants.NEIGHBOR_DROP_REASON_SLOW);
+			}
+		}
+	}
+
+	/**
+	 * Closes the connection to a neighbor, which isn't dialed again for a few
+	 * rounds.
+	 *
+	 * @param peerHandler - handler of the neighbor
+	 * @param reason      - why the neighbor is dropped
+	 */
+	private void dropNeighbor(PeerHandler peerHandler, String reason) {
+		neighborStates.remove(peerHandler);
+		retryRounds.put(peerHandler.getPeerId(), round + Constants.NEIGHBOR_RETRY_ROUNDS);
+		controller.getLogger().debug(Constants.NEIGHBOR_DROPPED_LOG_MESSAGE, controller.getPeerId(),
+				peerHandler.getPeerId(), reason);
+		peerHandler.disconnect();
+	}
+
+	/**
+	 * Connects to random candidates until the number of neighbors reaches the
+	 * maximum. The candidates are dialed at once without waiting for the dials,
+	 * which stay counted until they complete. Candidates which cannot be reached
+	 * are removed from the pool.
+	 *
+	 * @return null
+	 */
+	public void connectNeighbors() {
+		List<Peer> peers;
+		synchronized (this) {
+			int freeConnections = maxConnections - getConnectionCount();
+			peers = pickCandidates(freeConnections, controller.isFileDownloadComplete());
+			for (Peer peer : peers) {
+				dialingPeers.add(peer.getPeerId());
+			}
+		}
+
+		for (Peer peer : peers) {
+			try {
+				controller.makeConnection(peer).whenComplete((peerHandler, e) -> handleDialed(peer, e == null));
+			} catch (IOException e) {
+				handleDialed(peer, false);
+			}
+		}
+	}
+
+	/**
+	 * Stops counting a dial once it completes, and removes the candidate from
+	 * the pool if it couldn't be reached.
+	 *
+	 * @param peer        - dialed candidate
+	 * @param isConnected - whether the candidate accepted the dial
+	 */
+	private synchronized void handleDialed(Peer peer, boolean isConnected) {
+		dialingPeers.remove(peer.getPeerId());
+		if (!isConnected) {
+			candidates.remove(peer.getPeerId());
+		}
+	}
+
+	/**
+	 * Picks random candidates which the current peer may connect to. A seed
+	 * doesn't connect to other seeds.
+	 *
+	 * @param count  - number of candidates to pick
+	 * @param isSeed - whether the current peer has the complete file
+	 * @return List of candidates
+	 */
+	private List<Peer> pickCandidates(int count, boolean isSeed) {
+		ArrayList<Peer> eligiblePeers = new ArrayList<Peer>();
+		if (count <= 0) {
+			return eligiblePeers;
+		}
+
+		for (Iterator<Peer> iterator = candidates.values().iterator(); iterator.hasNext();) {
+			Peer peer = iterator.next();
+			Integer retryRound = retryRounds.get(peer.getPeerId());
+			if ((isSeed && peer.hasFile()) || (retryRound != null && retryRound > round)
+					|| dialingPeers.contains(peer.getPeerId()) || controller.hasPeerHandler(peer.getPeerId())) {
+				continue;
+			}
+			eligiblePeers.add(peer);
+		}
+
+		Collections.shuffle(eligiblePeers, random);
+		return eligiblePeers.size() > count ? new ArrayList<Peer>(eligiblePeers.subList(0, count)) : eligiblePeers;
+	}
+
+	/**
+	 * Repeatedly review the neighbors at the given interval.
+	 *
+	 * @param intervalDelay - indicates the interval in seconds at which the
+	 *                      neighbors are reviewed
+	 * @return null
+	 */
+	public void start(int intervalDelay) {
+		process = controller.getTimer().scheduleAtFixedRate(this, intervalDelay, intervalDelay, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Cancels the repetitive process either due to completion of peer downloads or
+	 * any other reason.
+	 *
+	 * @return null
+	 */
+	public void destroy() {
+		if (process != null) {
+			process.cancel();
+		}
+	}
+
+	/**
+	 * What the manager remembers about a neighbor between two reviews.
+	 */
+	private static class NeighborState {
+		private long lastDownloadSize = 0; // bytes received from the neighbor until the last review
+		private int uselessRounds = 0;
+		private int slowRounds = 0;
+	}
+}
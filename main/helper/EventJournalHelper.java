@@ -0,0 +1,600 @@
+package main.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import main.constants.Constants;
+import main.messageTypes.PeerMessage;
+import main.messageTypes.PeerMessageType;
+
+/**
+ * This class records every protocol event of a swarm in a compact binary
+ * journal, for the post-mortem of a slow run: the messages received from and
+ * sent to the neighbors with the pieces they refer to and the depth of the
+ * queue they passed, the choke rounds with what the choking strategy was given
+ * and what it decided, the optimistic unchokes and the committed pieces.
+ *
+ * The journal is written through a region of the file which is mapped into
+ * memory, so recording an event only copies a few bytes and never waits for
+ * the disk. The region after the current one is mapped ahead on the given
+ * executor, so that an event which fills a region only switches to the next
+ * one, and the unused end of the full region is left as zeros which the reader
+ * skips. The file is cut to the recorded events when the journal is closed.
+ * The journal is read back by read, on which the replay tool is built.
+ *
+ * Every event is its type, the nanoseconds since the journal was created and
+ * the fields of the type. Neighbors are recorded by a number which is defined
+ * by a neighbor event before it is first used.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class EventJournalHelper {
+
+	public static final int MAGIC = 0x50324a31; // "P2J1"
+	public static final int VERSION = 1;
+
+	// Event types
+	public static final byte EVENT_NEIGHBOR = 1; // number, peer ID
+	public static final byte EVENT_MESSAGE_IN = 2; // neighbor, message type, queue depth, fields of the message
+	public static final byte EVENT_MESSAGE_OUT = 3; // neighbor, message type, queue depth, fields of the message
+	public static final byte EVENT_CHOKE_ROUND = 4; // preferred neighbors, seed, neighbors, unchoked neighbors
+	public static final byte EVENT_OPTIMISTIC_UNCHOKE = 5; // neighbor
+	public static final byte EVENT_PIECE_COMMITTED = 6; // piece index, neighbor which sent the last block
+	public static final byte EVENT_NEIGHBOR_CLOSED = 7; // neighbor
+
+	private static final int HEADER_SIZE = 64; // upper bound on everything but the peer ID
+	private static final int MAX_BLOCKS = 1024; // blocks kept of a single message
+
+	private final File journalFile;
+	private final Executor executor; // maps the next region ahead
+	private FileChannel journalChannel;
+	private MappedByteBuffer region;
+	private long regionStart = 0; // offset of the mapped region in the file
+	private MappedByteBuffer nextRegion = null; // region which follows the current one, once it is mapped
+	private final long startTime = System.nanoTime();
+	private final HashMap<String, Integer> neighborNumbers = new HashMap<String, Integer>();
+	private volatile boolean isClosed = false;
+
+	// Guards the state of the journal. A lock rather than a monitor so that the
+	// threads which record events don't pin their carriers while they wait.
+	private final ReentrantLock journalLock = new ReentrantLock();
+	// Keeps the file from being cut while a region is mapped ahead
+	private final ReentrantLock mapLock = new ReentrantLock();
+
+	private EventJournalHelper(File journalFile, Executor executor) {
+		this.journalFile = journalFile;
+		this.executor = executor;
+	}
+
+	/**
+	 * Creates the event journal of the given download file, replacing the journal
+	 * of an earlier run.
+	 *
+	 * @param downloadFile - download file of the swarm
+	 * @param peerId       - peer ID of the current peer
+	 * @param numOfPieces  - number of pieces of the file
+	 * @param executor     - executor of blocking work, which maps the regions of
+	 *                     the journal ahead
+	 * @return EventJournalHelper or null if the journal can't be created
+	 */
+	public static EventJournalHelper getNewInstance(File downloadFile, String peerId, int numOfPieces,
+			Executor executor) {
+		EventJournalHelper journal = new EventJournalHelper(
+				new File(String.format(Constants.EVENT_JOURNAL_FILE, downloadFile.getPath())), executor);
+		try {
+			journal.journalChannel = FileChannel.open(journal.journalFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			journal.region = journal.journalChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+					Constants.EVENT_JOURNAL_REGION_SIZE);
+
+			journal.region.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(numOfPieces);
+			journal.putString(peerId);
+		} catch (IOException e) {
+			System.out.printf("Exception occured while creating the event journal. Message: %s\n", e.getMessage());
+			return null;
+		}
+		journal.mapNextRegionAhead();
+		return journal;
+	}
+
+	/**
+	 * Records a message received from or sent to a neighbor. Have, request,
+	 * cancel and piece messages are recorded with their blocks, and bitfield
+	 * messages with the bit field.
+	 *
+	 * @param isIncoming - whether the message was received from the neighbor
+	 * @param neighbor   - peer ID of the neighbor
+	 * @param message    - the message
+	 * @param queueDepth - messages queued for the requester of the neighbor when
+	 *                   the message was received, or for its sender when the
+	 *                   message was sent
+	 * @return null
+	 */
+	public void recordMessage(boolean isIncoming, String neighbor, PeerMessageType message, int queueDepth) {
+		if (isClosed || neighbor == null) {
+			return;
+		}
+
+		int[] indices = null;
+		int[] begins = null;
+		byte[] bitField = null;
+		if (message instanceof PeerMessage) {
+			PeerMessage peerMessage = (PeerMessage) message;
+			switch (message.messageType()) {
+				case Constants.TYPE_HAVE_MESSAGE:
+				case Constants.TYPE_REQUEST_MESSAGE:
+				case Constants.TYPE_CANCEL_MESSAGE:
+					indices = peerMessage.getIndices();
+					begins = peerMessage.getBegins();
+					break;
+				case Constants.TYPE_PIECE_MESSAGE:
+					indices = new int[] { peerMessage.getIndex() };
+					begins = new int[] { peerMessage.getBegin() };
+					break;
+				case Constants.TYPE_BITFIELD_MESSAGE:
+					// the bit field of the current peer keeps changing while it is sent
+					bitField = peerMessage.getManageBitFields().copy().toByteArray();
+					break;
+				default:
+					break;
+			}
+		}
+		int blocks = indices == null ? 0 : Math.min(indices.length, MAX_BLOCKS);
+
+		journalLock.lock();
+		try {
+			if (isClosed) {
+				return;
+			}
+			int number = getNeighborNumber(neighbor);
+			ensureCapacity(HEADER_SIZE + blocks * 8 + (bitField == null ? 0 : bitField.length));
+			putEventHeader(isIncoming ? EVENT_MESSAGE_IN : EVENT_MESSAGE_OUT);
+			region.putInt(number).put((byte) message.messageType()).putInt(queueDepth);
+			if (bitField != null) {
+				region.putInt(bitField.length).put(bitField);
+			} else {
+				region.putInt(blocks);
+				for (int i = 0; i < blocks; i++) {
+					region.putInt(indices[i]).putInt(i < begins.length ? begins[i] : 0);
+				}
+			}
+		} catch (IOException e) {
+			handleWriteFailure(e);
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	/**
+	 * Records a choke round: the neighbors which were given to the choking
+	 * strategy and the neighbors it unchoked.
+	 *
+	 * @param neighbors          - neighbors given to the strategy
+	 * @param preferredNeighbors - number of neighbors to unchoke
+	 * @param isSeed             - whether the current peer had the complete file
+	 * @param unchokedNeighbors  - peer IDs picked by the strategy
+	 * @return null
+	 */
+	public void recordChokeRound(List<ChokingStrategy.Neighbor> neighbors, int preferredNeighbors, boolean isSeed,
+			List<String> unchokedNeighbors) {
+		journalLock.lock();
+		try {
+			if (isClosed) {
+				return;
+			}
+			int[] numbers = new int[neighbors.size()];
+			for (int i = 0; i < numbers.length; i++) {
+				numbers[i] = getNeighborNumber(neighbors.get(i).getPeerId());
+			}
+			int[] unchokedNumbers = new int[unchokedNeighbors.size()];
+			for (int i = 0; i < unchokedNumbers.length; i++) {
+				unchokedNumbers[i] = getNeighborNumber(unchokedNeighbors.get(i));
+			}
+
+			ensureCapacity(HEADER_SIZE + numbers.length * 29 + unchokedNumbers.length * 4);
+			putEventHeader(EVENT_CHOKE_ROUND);
+			region.putInt(preferredNeighbors).put((byte) (isSeed ? 1 : 0)).putInt(numbers.length);
+			for (int i = 0; i < numbers.length; i++) {
+				ChokingStrategy.Neighbor neighbor = neighbors.get(i);
+				byte flags = (byte) ((neighbor.isInterested() ? 1 : 0) | (neighbor.isChoked() ? 2 : 0));
+				region.putInt(numbers[i]).putDouble(neighbor.getDownloadRate()).putDouble(neighbor.getUploadRate())
+						.put(flags).putLong(neighbor.getConnectionTime());
+			}
+			region.putInt(unchokedNumbers.length);
+			for (int number : unchokedNumbers) {
+				region.putInt(number);
+			}
+		} catch (IOException e) {
+			handleWriteFailure(e);
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	/**
+	 * Records the neighbor which was unchoked optimistically.
+	 *
+	 * @param neighbor - peer ID of the neighbor
+	 * @return null
+	 */
+	public void recordOptimisticUnchoke(String neighbor) {
+		recordNeighborEvent(EVENT_OPTIMISTIC_UNCHOKE, neighbor);
+	}
+
+	/**
+	 * Records the neighbor whose connection was closed.
+	 *
+	 * @param neighbor - peer ID of the neighbor
+	 * @return null
+	 */
+	public void recordNeighborClosed(String neighbor) {
+		recordNeighborEvent(EVENT_NEIGHBOR_CLOSED, neighbor);
+	}
+
+	/**
+	 * Records a piece which was committed to the download file.
+	 *
+	 * @param index    - index of the piece
+	 * @param neighbor - peer ID of the neighbor which sent the last block
+	 * @return null
+	 */
+	public void recordPieceCommitted(int index, String neighbor) {
+		if (isClosed || neighbor == null) {
+			return;
+		}
+
+		journalLock.lock();
+		try {
+			if (isClosed) {
+				return;
+			}
+			int number = getNeighborNumber(neighbor);
+			ensureCapacity(HEADER_SIZE);
+			putEventHeader(EVENT_PIECE_COMMITTED);
+			region.putInt(index).putInt(number);
+		} catch (IOException e) {
+			handleWriteFailure(e);
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	private void recordNeighborEvent(byte type, String neighbor) {
+		if (isClosed || neighbor == null) {
+			return;
+		}
+
+		journalLock.lock();
+		try {
+			if (isClosed) {
+				return;
+			}
+			int number = getNeighborNumber(neighbor);
+			ensureCapacity(HEADER_SIZE);
+			putEventHeader(type);
+			region.putInt(number);
+		} catch (IOException e) {
+			handleWriteFailure(e);
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number by which the given neighbor is recorded, and defines the
+	 * number first if the neighbor wasn't recorded before.
+	 *
+	 * @param neighbor - peer ID of the neighbor
+	 * @return int
+	 * @throws IOException
+	 */
+	private int getNeighborNumber(String neighbor) throws IOException {
+		Integer number = neighborNumbers.get(neighbor);
+		if (number == null) {
+			number = neighborNumbers.size();
+			neighborNumbers.put(neighbor, number);
+
+			ensureCapacity(HEADER_SIZE + neighbor.length() * 4);
+			putEventHeader(EVENT_NEIGHBOR);
+			region.putInt(number);
+			putString(neighbor);
+		}
+		return number;
+	}
+
+	private void putEventHeader(byte type) {
+		region.put(type).putLong(System.nanoTime() - startTime);
+	}
+
+	private void putString(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		region.putShort((short) bytes.length).put(bytes);
+	}
+
+	/**
+	 * Switches to the next region of the file if the current one can't take an
+	 * event of the given size. The next region is only mapped here if it wasn't
+	 * mapped ahead in time or is too small for the event.
+	 *
+	 * @param size - upper bound on the size of the next event
+	 * @return null
+	 * @throws IOException
+	 */
+	private void ensureCapacity(int size) throws IOException {
+		if (region.remaining() >= size) {
+			return;
+		}
+
+		regionStart += region.capacity();
+		if (nextRegion != null && nextRegion.capacity() >= size) {
+			region = nextRegion;
+		} else {
+			region = journalChannel.map(FileChannel.MapMode.READ_WRITE, regionStart,
+					Math.max(size, Constants.EVENT_JOURNAL_REGION_SIZE));
+		}
+		nextRegion = null;
+		mapNextRegionAhead();
+	}
+
+	/**
+	 * Maps the region which follows the current one on the executor, so that the
+	 * threads which record events don't wait for it. Called with the journal lock
+	 * held, or before the journal is shared.
+	 *
+	 * @return null
+	 */
+	private void mapNextRegionAhead() {
+		long start = regionStart + region.capacity();
+		try {
+			executor.execute(() -> mapNextRegion(start));
+		} catch (RejectedExecutionException e) {
+			// the region is mapped when it is needed
+		}
+	}
+
+	/**
+	 * Maps the region at the given offset and keeps it as the next region, unless
+	 * the journal moved on or was closed in the meantime.
+	 *
+	 * @param start - offset of the region in the file
+	 * @return null
+	 */
+	private void mapNextRegion(long start) {
+		MappedByteBuffer mappedRegion;
+		mapLock.lock();
+		try {
+			if (isClosed) {
+				return;
+			}
+			mappedRegion = journalChannel.map(FileChannel.MapMode.READ_WRITE, start,
+					Constants.EVENT_JOURNAL_REGION_SIZE);
+		} catch (IOException e) {
+			// the region is mapped when it is needed, which reports the failure
+			return;
+		} finally {
+			mapLock.unlock();
+		}
+
+		journalLock.lock();
+		try {
+			if (!isClosed && regionStart + region.capacity() == start) {
+				nextRegion = mappedRegion;
+			}
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops recording once the journal can't be written, so that the swarm goes
+	 * on without it.
+	 *
+	 * @param e - exception raised while writing
+	 * @return null
+	 */
+	private void handleWriteFailure(IOException e) {
+		System.out.printf("Exception occured while writing the event journal. Message: %s\n", e.getMessage());
+		close();
+	}
+
+	/**
+	 * Writes the recorded events to the disk and cuts the file to them. Events
+	 * recorded later are dropped.
+	 *
+	 * @return null
+	 */
+	public void close() {
+		journalLock.lock();
+		mapLock.lock();
+		try {
+			if (isClosed) {
+				return;
+			}
+			isClosed = true;
+
+			long length = regionStart + region.position();
+			region.force();
+			region = null;
+			nextRegion = null;
+			journalChannel.truncate(length);
+			journalChannel.close();
+		} catch (IOException e) {
+			System.out.printf("Exception occured while closing the event journal. Message: %s\n", e.getMessage());
+		} finally {
+			mapLock.unlock();
+			journalLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads a journal and hands its events to the given listener in the order in
+	 * which they were recorded. A journal which wasn't closed is read up to its
+	 * last complete event.
+	 *
+	 * @param journalFile - the journal
+	 * @param listener    - listener which is given the events
+	 * @return null
+	 * @throws IOException if the file isn't an event journal
+	 */
+	public static void read(File journalFile, EventListener listener) throws IOException {
+		ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(journalFile.toPath()));
+		if (journal.remaining() < 20 || journal.getInt() != MAGIC || journal.getInt() != VERSION) {
+			throw new IOException("Not an event journal: " + journalFile.getPath());
+		}
+		long startTime = journal.getLong();
+		int numOfPieces = journal.getInt();
+		listener.handleStart(getString(journal), numOfPieces, startTime);
+
+		ArrayList<String> neighbors = new ArrayList<String>();
+		try {
+			while (journal.hasRemaining()) {
+				byte type = journal.get();
+				if (type == 0) {
+					continue; // the unused end of a full region, or of a region which was never cut
+				}
+				long time = journal.getLong();
+
+				switch (type) {
+					case EVENT_NEIGHBOR:
+						journal.getInt();
+						neighbors.add(getString(journal));
+						break;
+					case EVENT_MESSAGE_IN:
+					case EVENT_MESSAGE_OUT:
+						readMessage(journal, type == EVENT_MESSAGE_IN, time, numOfPieces, neighbors, listener);
+						break;
+					case EVENT_CHOKE_ROUND:
+						readChokeRound(journal, time, neighbors, listener);
+						break;
+					case EVENT_OPTIMISTIC_UNCHOKE:
+						listener.handleOptimisticUnchoke(time, neighbors.get(journal.getInt()));
+						break;
+					case EVENT_PIECE_COMMITTED: {
+						int index = journal.getInt();
+						listener.handlePieceCommitted(time, index, neighbors.get(journal.getInt()));
+						break;
+					}
+					case EVENT_NEIGHBOR_CLOSED:
+						listener.handleNeighborClosed(time, neighbors.get(journal.getInt()));
+						break;
+					default:
+						throw new IOException("Unknown event type " + type + " in " + journalFile.getPath());
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			// the last event was cut off when the peer stopped
+		}
+	}
+
+	private static void readMessage(ByteBuffer journal, boolean isIncoming, long time, int numOfPieces,
+			List<String> neighbors, EventListener listener) {
+		String neighbor = neighbors.get(journal.getInt());
+		int messageType = journal.get();
+		int queueDepth = journal.getInt();
+		int length = journal.getInt();
+
+		if (messageType == Constants.TYPE_BITFIELD_MESSAGE) {
+			byte[] packed = new byte[length];
+			journal.get(packed);
+			listener.handleBitField(time, isIncoming, neighbor, queueDepth,
+					BitFieldHelper.fromByteArray(numOfPieces, packed));
+			return;
+		}
+
+		int[] indices = new int[length];
+		int[] begins = new int[length];
+		for (int i = 0; i < length; i++) {
+			indices[i] = journal.getInt();
+			begins[i] = journal.getInt();
+		}
+		listener.handleMessage(time, isIncoming, neighbor, messageType, queueDepth, indices, begins);
+	}
+
+	private static void readChokeRound(ByteBuffer journal, long time, List<String> neighbors,
+			EventListener listener) {
+		int preferredNeighbors = journal.getInt();
+		boolean isSeed = journal.get() == 1;
+
+		int count = journal.getInt();
+		ArrayList<ChokingStrategy.Neighbor> roundNeighbors = new ArrayList<ChokingStrategy.Neighbor>(count);
+		for (int i = 0; i < count; i++) {
+			String peerId = neighbors.get(journal.getInt());
+			double downloadRate = journal.getDouble();
+			double uploadRate = journal.getDouble();
+			byte flags = journal.get();
+			long connectionTime = journal.getLong();
+			roundNeighbors.add(new ChokingStrategy.Neighbor(peerId, downloadRate, uploadRate, (flags & 1) != 0,
+					(flags & 2) != 0, connectionTime));
+		}
+
+		int unchokedCount = journal.getInt();
+		ArrayList<String> unchokedNeighbors = new ArrayList<String>(unchokedCount);
+		for (int i = 0; i < unchokedCount; i++) {
+			unchokedNeighbors.add(neighbors.get(journal.getInt()));
+		}
+		listener.handleChokeRound(time, roundNeighbors, preferredNeighbors, isSeed, unchokedNeighbors);
+	}
+
+	private static String getString(ByteBuffer journal) {
+		byte[] bytes = new byte[journal.getShort()];
+		journal.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Receives the events of a journal which is read. Times are nanoseconds since
+	 * the journal was created.
+	 */
+	public interface EventListener {
+
+		/**
+		 * Called before the first event.
+		 *
+		 * @param peerId      - peer ID of the peer which recorded the journal
+		 * @param numOfPieces - number of pieces of the file
+		 * @param startTime   - milliseconds since the epoch when the journal was
+		 *                    created
+		 */
+		default void handleStart(String peerId, int numOfPieces, long startTime) {
+		}
+
+		/**
+		 * Called for a message other than a bitfield message. Have, request, cancel
+		 * and piece messages come with their blocks, the begins of a have message
+		 * are 0.
+		 */
+		default void handleMessage(long time, boolean isIncoming, String neighbor, int messageType,
+				int queueDepth, int[] indices, int[] begins) {
+		}
+
+		default void handleBitField(long time, boolean isIncoming, String neighbor, int queueDepth,
+				BitFieldHelper bitField) {
+		}
+
+		default void handleChokeRound(long time, List<ChokingStrategy.Neighbor> neighbors, int preferredNeighbors,
+				boolean isSeed, List<String> unchokedNeighbors) {
+		}
+
+		default void handleOptimisticUnchoke(long time, String neighbor) {
+		}
+
+		default void handlePieceCommitted(long time, int index, String neighbor) {
+		}
+
+		default void handleNeighborClosed(long time, String neighbor) {
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package main.helper;
+
+import java.util.concurrent.TimeUnit;
+
+import main.PeerController;
+
+/**
+ * This class flushes the have messages which are collected for the neighboring
+ * peers at regular intervals, so that the pieces downloaded within one interval
+ * are announced to every neighbor with a single have message.
+ * 
+ * @author Sharan Sai Reddy Konda
+ */
+public class HaveBroadcastHelper implements Runnable {
+
+	private PeerController controller;
+
+	private TimerWheelHelper.Timeout process = null;
+
+	/**
+	 * Returns a new have broadcast helper for the swarm of the given controller
+	 * 
+	 * @param controller - controller of the swarm whose have messages are flushed
+	 * @return null
+	 */
+	public static HaveBroadcastHelper getNewInstance(PeerController controller) {
+		if (controller == null) {
+			return null;
+		}
+
+		HaveBroadcastHelper haveBroadcastHelper = new HaveBroadcastHelper();
+		haveBroadcastHelper.controller = controller;
+		return haveBroadcastHelper;
+	}
+
+	/**
+	 * This function sends the have messages collected since the last run to the
+	 * neighboring peers.
+	 * 
+	 * @return null
+	 */
+	public void run() {
+		try {
+			controller.flushHaveMessages();
+		} catch (Exception e) {
+			System.out.printf("Exception occured while flushing the have messages. Message: %s\n", e.getMessage());
+		}
+	}
+
+	/**
+	 * Repeatedly flush the have messages at the given interval.
+	 * 
+	 * @param intervalDelay - indicates the interval in milliseconds at which the
+	 *                      have messages are flushed
+	 * @return null
+	 */
+	public void start(int intervalDelay) {
+		process = controller.getTimer().scheduleAtFixedRate(this, intervalDelay, intervalDelay,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancels the repetitive process either due to completion of peer downloads or
+	 * any other reason.
+	 * 
+	 * @return null
+	 */
+	public void destroy() {
+		process.cancel();
+	}
+}
@@ -5,24 +5,64 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Date;
-import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import main.constants.Constants;
 
 /**
  * This class helps in logging each action according to the specifications.
- * 
+ *
+ * Logging threads don't format or write anything. They put the message format,
+ * its arguments and the time into a bounded lock-free ring buffer, and a writer
+ * thread formats the messages and writes them in batches with one flush per
+ * batch. Optional messages are logged at the debug level and are dropped
+ * before anything is queued when LogLevel in the common config file is info.
+ *
  * @author Sharan Sai Reddy Konda
  * @author Bhavan Voram
  */
-public class LogHelper {
+public class LogHelper implements Runnable {
+    public static final int LEVEL_DEBUG = 0; // optional messages
+    public static final int LEVEL_INFO = 1; // messages required by the specifications
+
     private String peerID;
     private String fileName;
     private BufferedWriter logWriter;
+    private final int level;
+
+    // Ring buffer of the queued messages. A slot holds the message of the
+    // sequence it is stamped with plus one, and becomes free for the sequence one
+    // turn later once the writer took the message out.
+    private final int capacity = Constants.LOG_BUFFER_SIZE;
+    private final int mask = capacity - 1;
+    private final AtomicLongArray slotSequences = new AtomicLongArray(capacity);
+    private final long[] times = new long[capacity];
+    private final String[] formats = new String[capacity];
+    private final Object[][] arguments = new Object[capacity][];
+    private final AtomicLong tail = new AtomicLong(); // next sequence to be claimed by a logging thread
+    private long head = 0; // next sequence to be taken by the writer
+
+    private Thread writerThread;
+    private volatile boolean isDestroyed = false;
 
     public LogHelper(String peerID) {
         this.peerID = peerID;
+        this.level = Constants.LOG_LEVEL_INFO.equalsIgnoreCase(
+                CommonConfigHelper.getConfig(Constants.LOG_LEVEL_LABEL, Constants.LOG_LEVEL_DEBUG)) ? LEVEL_INFO
+                        : LEVEL_DEBUG;
+        for (int i = 0; i < capacity; i++) {
+            slotSequences.set(i, i);
+        }
         this.createLogFile();
+
+        if (this.logWriter != null) {
+            writerThread = new Thread(this, "LogWriter-" + peerID);
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
     }
 
     /**
@@ -52,30 +92,162 @@ public class LogHelper {
         }
     }
 
+    /**
+     * Check if optional messages are logged, so that arguments which are costly
+     * to take are only taken when they are needed.
+     *
+     * @return true if debug messages are logged
+     */
+    public boolean isDebugEnabled() {
+        return level <= LEVEL_DEBUG;
+    }
+
     /**
      * Log a message to the specified file along with the current date and time.
      *
      * @param message The log message to be written
      */
-    public synchronized void logMessage(String message) {
+    public void logMessage(String message) {
+        enqueue(message, null);
+    }
+
+    /**
+     * Log a message which is formatted from the given format and arguments by the
+     * writer thread. The arguments must not change after they are passed.
+     *
+     * @param format The format of the log message
+     * @param args   The arguments of the format
+     */
+    public void logMessage(String format, Object... args) {
+        enqueue(format, args);
+    }
+
+    /**
+     * Log an optional message, which is dropped unless the debug level is enabled.
+     *
+     * @param format The format of the log message
+     * @param args   The arguments of the format
+     */
+    public void debug(String format, Object... args) {
+        if (isDebugEnabled()) {
+            enqueue(format, args);
+        }
+    }
+
+    /**
+     * Put a message into the ring buffer. A logging thread only waits if the
+     * writer has fallen a whole buffer behind. Messages logged once the logger
+     * is destroyed are dropped.
+     *
+     * @param format The format or the complete message
+     * @param args   The arguments of the format, or null if the message is complete
+     */
+    private void enqueue(String format, Object[] args) {
+        if (isDestroyed || writerThread == null) {
+            return;
+        }
+
+        long time = System.currentTimeMillis();
+        long sequence = tail.get();
+        while (true) {
+            long slotSequence = slotSequences.get((int) (sequence & mask));
+            if (slotSequence == sequence) {
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    break;
+                }
+            } else if (slotSequence < sequence) {
+                // the buffer is full, so wait for the writer to free a slot
+                LockSupport.unpark(writerThread);
+                Thread.yield();
+                if (isDestroyed) {
+                    return;
+                }
+            }
+            sequence = tail.get();
+        }
+
+        int slot = (int) (sequence & mask);
+        times[slot] = time;
+        formats[slot] = format;
+        arguments[slot] = args;
+        slotSequences.set(slot, sequence + 1); // publishes the message to the writer
+    }
+
+    /**
+     * Write the queued messages until the logger is destroyed, then write the
+     * remaining messages and close the log file.
+     */
+    public void run() {
+        while (!isDestroyed) {
+            if (writeBatch() == 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Constants.LOG_WRITER_WAIT));
+            }
+        }
+
+        while (writeBatch() > 0) {
+        }
+        try {
+            this.logWriter.close();
+        } catch (IOException e) {
+            System.out.println("Exception occurred while closing the logger object");
+        }
+    }
+
+    /**
+     * Format and write up to one batch of the queued messages, and flush them.
+     *
+     * @return the number of messages written
+     */
+    private int writeBatch() {
+        int count = 0;
         try {
-            Date date = Calendar.getInstance().getTime();
-            this.logWriter.write(String.format("[%s]: %s\n", date, message) + "\n");
-            this.logWriter.flush();
+            while (count < Constants.LOG_BATCH_SIZE) {
+                int slot = (int) (head & mask);
+                if (slotSequences.get(slot) != head + 1) {
+                    break;
+                }
+
+                Date date = new Date(times[slot]);
+                String format = formats[slot];
+                Object[] args = arguments[slot];
+                formats[slot] = null;
+                arguments[slot] = null;
+                slotSequences.set(slot, head + capacity); // frees the slot for the next turn
+                head++;
+                count++;
+
+                String message;
+                try {
+                    message = args == null ? format : String.format(format, args);
+                } catch (RuntimeException e) {
+                    // a broken message mustn't stop the writer, which the logging threads wait for
+                    message = format;
+                }
+                this.logWriter.write(String.format("[%s]: %s\n", date, message) + "\n");
+            }
+
+            if (count > 0) {
+                this.logWriter.flush();
+            }
         } catch (IOException e) {
             System.out.printf("Exception occurred while writing to log file: %s. Message: %s", this.fileName,
                     e.getMessage());
         }
+        return count;
     }
 
     /**
-     * Close the log writer object.
+     * Write the queued messages and close the log writer object.
      */
     public void destroy() {
+        isDestroyed = true;
+        if (writerThread == null) {
+            return;
+        }
+
         try {
-            if (this.logWriter != null) {
-                this.logWriter.close();
-            }
+            LockSupport.unpark(writerThread);
+            writerThread.join(Constants.LOG_CLOSE_TIMEOUT);
         } catch (Exception e) {
             System.out.println("Exception occurred while closing the logger object");
         }
@@ -0,0 +1,488 @@
+package main.helper;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import main.constants.Constants;
+import main.messageTypes.HandshakeMessage;
+import main.messageTypes.PeerMessage;
+import main.messageTypes.PeerMessageType;
+import main.messageTypes.Piece;
+
+/**
+ * This class encodes and decodes the messages exchanged between peers to and
+ * from the binary wire format. Every frame is laid out as a 4-byte length, a
+ * 1-byte message type and the payload of the message, where the length covers
+ * the type byte and the payload. Pieces are requested and sent in blocks; a
+ * request lists (piece index, block offset) pairs and a piece message carries
+ * the piece index, the block offset and the block data. A cancel lists blocks
+ * in the same way as a request, and a have message may announce several piece
+ * indices at once. A keep-alive has no payload and only keeps an idle
+ * connection open. The handshake carries the info-hash of the swarm for which
+ * the connection is made, and a piece hashes message carries the digests of all
+ * the pieces of the swarm back to back.
+ *
+ * A codec is created per connection so that its read and write buffers are
+ * reused for every message sent or received on that connection.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class MessageCodecHelper {
+	public static final int FRAME_LENGTH_SIZE = 4; // size of the length prefix
+	public static final int FRAME_TYPE_SIZE = 1; // size of the message type
+	public static final int INDEX_SIZE = 4; // size of a piece index
+	public static final int BEGIN_SIZE = 4; // size of a block offset
+	public static final int BLOCK_HEADER_SIZE = INDEX_SIZE + BEGIN_SIZE; // piece index and block offset
+	public static final int INFO_HASH_SIZE = Constants.INFO_HASH_SIZE; // info-hash of the swarm
+
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+	/**
+	 * Encodes the given message into the reusable write buffer of this codec. The
+	 * returned buffer is ready to be drained and is only valid until the next call
+	 * to encode.
+	 *
+	 * @param message - message to be encoded
+	 * @return ByteBuffer - buffer holding the complete frame
+	 */
+	public ByteBuffer encode(PeerMessageType message) {
+		int payloadLength = payloadLength(message);
+		writeBuffer = ensureCapacity(writeBuffer, FRAME_LENGTH_SIZE + FRAME_TYPE_SIZE + payloadLength);
+
+		writeBuffer.clear();
+		writeBuffer.putInt(FRAME_TYPE_SIZE + payloadLength);
+		writeBuffer.put((byte) message.messageType());
+		encodePayload(message, writeBuffer);
+		writeBuffer.flip();
+
+		return writeBuffer;
+	}
+
+	/**
+	 * Encodes the given message and writes the frame to the output stream. The
+	 * stream is not flushed so that the caller can batch several frames.
+	 *
+	 * @param message      - message to be written
+	 * @param outputStream - stream to which the frame is written
+	 * @throws IOException
+	 */
+	public void writeMessage(PeerMessageType message, OutputStream outputStream) throws IOException {
+		ByteBuffer frame = encode(message);
+		outputStream.write(frame.array(), frame.position(), frame.remaining());
+	}
+
+	/**
+	 * Reads the next frame from the input stream into the reusable read buffer and
+	 * decodes it.
+	 *
+	 * @param inputStream - stream from which the frame is read
+	 * @return PeerMessageType - the decoded message
+	 * @throws IOException if the stream is closed or the frame is malformed
+	 */
+	public PeerMessageType readMessage(DataInputStream inputStream) throws IOException {
+		int frameLength = inputStream.readInt();
+		validateFrameLength(frameLength);
+
+		readBuffer = ensureCapacity(readBuffer, frameLength);
+		inputStream.readFully(readBuffer.array(), 0, frameLength);
+		readBuffer.clear();
+		readBuffer.limit(frameLength);
+
+		return decodeFrame(readBuffer);
+	}
+
+	/**
+	 * Reads the bytes available on a non-blocking channel into the reusable read
+	 * buffer. The complete frames are then taken out one by one with nextMessage.
+	 *
+	 * @param channel - channel from which the bytes are read
+	 * @return int - number of bytes read, or -1 once the channel reached its end
+	 * @throws IOException
+	 */
+	public int fill(ReadableByteChannel channel) throws IOException {
+		if (!readBuffer.hasRemaining()) {
+			readBuffer = grow(readBuffer, readBuffer.capacity() * 2);
+		}
+		return channel.read(readBuffer);
+	}
+
+	/**
+	 * Decodes the next complete frame which was buffered by fill. If the buffer
+	 * only holds a part of the next frame, the buffer is grown to fit the frame
+	 * and null is returned until the rest of it has been read.
+	 *
+	 * @return PeerMessageType - the decoded message or null
+	 * @throws IOException if the frame is malformed
+	 */
+	public PeerMessageType nextMessage() throws IOException {
+		readBuffer.flip();
+		int requiredSize = 0;
+		try {
+			if (readBuffer.remaining() < FRAME_LENGTH_SIZE) {
+				return null;
+			}
+
+			int frameLength = readBuffer.getInt(readBuffer.position());
+			validateFrameLength(frameLength);
+			if (readBuffer.remaining() < FRAME_LENGTH_SIZE + frameLength) {
+				requiredSize = FRAME_LENGTH_SIZE + frameLength;
+				return null;
+			}
+
+			readBuffer.position(readBuffer.position() + FRAME_LENGTH_SIZE);
+			ByteBuffer frame = readBuffer.slice();
+			frame.limit(frameLength);
+			readBuffer.position(readBuffer.position() + frameLength);
+			return decodeFrame(frame);
+		} finally {
+			readBuffer.compact();
+			if (requiredSize > readBuffer.capacity()) {
+				readBuffer = grow(readBuffer, requiredSize);
+			}
+		}
+	}
+
+	/**
+	 * Decodes a single frame whose length prefix has already been consumed. The
+	 * buffer must be positioned at the message type and limited to the end of the
+	 * frame.
+	 *
+	 * @param frame - buffer holding the message type and payload
+	 * @return PeerMessageType - the decoded message
+	 * @throws IOException if the message type is unknown or the payload is
+	 *                     malformed
+	 */
+	public static PeerMessageType decodeFrame(ByteBuffer frame) throws IOException {
+		if (frame.remaining() < FRAME_TYPE_SIZE) {
+			throw new IOException("Received a frame without a message type");
+		}
+		byte messageType = frame.get();
+		switch (messageType) {
+			case Constants.TYPE_HANDSHAKE_MESSAGE:
+				return decodeHandshake(frame);
+
+			case Constants.TYPE_CHOKE_MESSAGE:
+			case Constants.TYPE_UNCHOKE_MESSAGE:
+			case Constants.TYPE_INTERESTED_MESSAGE:
+			case Constants.TYPE_NOT_INTERESTED_MESSAGE:
+			case Constants.TYPE_SHUTDOWN_MESSAGE:
+			case Constants.TYPE_KEEP_ALIVE_MESSAGE:
+				return createPeerMessage(messageType, 0);
+
+			case Constants.TYPE_HAVE_MESSAGE: {
+				PeerMessage message = createPeerMessage(messageType, frame.remaining());
+				message.setIndices(decodeIndices(frame));
+				return message;
+			}
+
+			case Constants.TYPE_REQUEST_MESSAGE:
+			case Constants.TYPE_CANCEL_MESSAGE: {
+				PeerMessage message = createPeerMessage(messageType, frame.remaining());
+				decodeBlocks(frame, message);
+				return message;
+			}
+
+			case Constants.TYPE_BITFIELD_MESSAGE: {
+				PeerMessage message = createPeerMessage(messageType, frame.remaining());
+				message.setBitFieldHandler(decodeBitField(frame));
+				return message;
+			}
+
+			case Constants.TYPE_PIECE_HASHES_MESSAGE: {
+				if (frame.remaining() == 0 || frame.remaining() % Constants.PIECE_HASH_SIZE != 0) {
+					throw new IOException("Received piece hashes of invalid size: " + frame.remaining());
+				}
+				PeerMessage message = createPeerMessage(messageType, frame.remaining());
+				Piece digests = new Piece(frame.remaining());
+				byte[] data = new byte[frame.remaining()];
+				frame.get(data);
+				digests.setData(data);
+				message.setData(digests);
+				return message;
+			}
+
+			case Constants.TYPE_PIECE_MESSAGE: {
+				if (frame.remaining() < BLOCK_HEADER_SIZE) {
+					throw new IOException("Received a piece message without a block header");
+				}
+				PeerMessage message = createPeerMessage(messageType, frame.remaining());
+				message.setIndex(frame.getInt());
+				message.setBegin(frame.getInt());
+
+				Piece piece = new Piece(frame.remaining());
+				byte[] data = new byte[frame.remaining()];
+				frame.get(data);
+				piece.setData(data);
+				message.setData(piece);
+				return message;
+			}
+
+			default:
+				throw new IOException("Received a frame with an unknown message type: " + messageType);
+		}
+	}
+
+	/**
+	 * Checks that a received frame length lies within the supported bounds.
+	 *
+	 * @param frameLength - length read from the frame prefix
+	 * @throws IOException if the length is invalid
+	 */
+	public static void validateFrameLength(int frameLength) throws IOException {
+		if (frameLength < FRAME_TYPE_SIZE || frameLength > Constants.MAX_FRAME_SIZE) {
+			throw new IOException("Received a frame with an invalid length: " + frameLength);
+		}
+	}
+
+	/**
+	 * Computes the size of the payload of the given message.
+	 *
+	 * @param message - message to be encoded
+	 * @return int - payload size in bytes
+	 */
+	private static int payloadLength(PeerMessageType message) {
+		switch (message.messageType()) {
+			case Constants.TYPE_HANDSHAKE_MESSAGE: {
+				HandshakeMessage handshakeMessage = (HandshakeMessage) message;
+				return 1 + handshakeMessage.getHeader().getBytes(StandardCharsets.US_ASCII).length + INFO_HASH_SIZE
+						+ handshakeMessage.getPeerId().getBytes(StandardCharsets.UTF_8).length;
+			}
+			case Constants.TYPE_HAVE_MESSAGE:
+				return INDEX_SIZE * ((PeerMessage) message).getIndices().length;
+
+			case Constants.TYPE_REQUEST_MESSAGE:
+			case Constants.TYPE_CANCEL_MESSAGE:
+				return BLOCK_HEADER_SIZE * ((PeerMessage) message).getIndices().length;
+
+			case Constants.TYPE_BITFIELD_MESSAGE: {
+				BitFieldHelper bitField = ((PeerMessage) message).getManageBitFields();
+				return INDEX_SIZE + packedBitFieldLength(bitField.getNumberOfSegments());
+			}
+			case Constants.TYPE_PIECE_HASHES_MESSAGE:
+				return ((PeerMessage) message).getData().getDataLength();
+
+			case Constants.TYPE_PIECE_MESSAGE: {
+				PeerMessage peerMessage = (PeerMessage) message;
+				return BLOCK_HEADER_SIZE + (peerMessage.isFileRegion() ? peerMessage.length()
+						: peerMessage.getData().getDataLength());
+			}
+
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Writes the payload of the given message into the buffer.
+	 *
+	 * @param message - message to be encoded
+	 * @param buffer  - buffer with enough room for the payload
+	 */
+	private static void encodePayload(PeerMessageType message, ByteBuffer buffer) {
+		switch (message.messageType()) {
+			case Constants.TYPE_HANDSHAKE_MESSAGE: {
+				HandshakeMessage handshakeMessage = (HandshakeMessage) message;
+				byte[] header = handshakeMessage.getHeader().getBytes(StandardCharsets.US_ASCII);
+				buffer.put((byte) header.length);
+				buffer.put(header);
+				buffer.put(handshakeMessage.getInfoHash(), 0, INFO_HASH_SIZE);
+				buffer.put(handshakeMessage.getPeerId().getBytes(StandardCharsets.UTF_8));
+				break;
+			}
+			case Constants.TYPE_HAVE_MESSAGE:
+				for (int index : ((PeerMessage) message).getIndices()) {
+					buffer.putInt(index);
+				}
+				break;
+
+			case Constants.TYPE_REQUEST_MESSAGE:
+			case Constants.TYPE_CANCEL_MESSAGE: {
+				PeerMessage peerMessage = (PeerMessage) message;
+				int[] indices = peerMessage.getIndices();
+				int[] begins = peerMessage.getBegins();
+				for (int i = 0; i < indices.length; i++) {
+					buffer.putInt(indices[i]);
+					buffer.putInt(begins[i]);
+				}
+				break;
+			}
+
+			case Constants.TYPE_BITFIELD_MESSAGE:
+				encodeBitField(((PeerMessage) message).getManageBitFields(), buffer);
+				break;
+
+			case Constants.TYPE_PIECE_HASHES_MESSAGE:
+				buffer.put(((PeerMessage) message).getData().getData());
+				break;
+
+			case Constants.TYPE_PIECE_MESSAGE: {
+				// The data of a file region is streamed by the caller right after the
+				// frame header, hence only the block header is encoded here.
+				PeerMessage peerMessage = (PeerMessage) message;
+				buffer.putInt(peerMessage.getIndex());
+				buffer.putInt(peerMessage.getBegin());
+				if (!peerMessage.isFileRegion()) {
+					buffer.put(peerMessage.getData().getData());
+				}
+				break;
+			}
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Decodes the handshake payload which contains the length of the header, the
+	 * header, the info-hash of the swarm and the peer id.
+	 *
+	 * @param frame - buffer positioned at the handshake payload
+	 * @return HandshakeMessage
+	 * @throws IOException if the payload is empty or the header and the
+	 *                     info-hash exceed the payload
+	 */
+	private static HandshakeMessage decodeHandshake(ByteBuffer frame) throws IOException {
+		if (!frame.hasRemaining()) {
+			throw new IOException("Received a handshake without a header length");
+		}
+		int headerLength = frame.get() & 0xFF;
+		if (headerLength + INFO_HASH_SIZE > frame.remaining()) {
+			throw new IOException("Received a handshake with an invalid header length: " + headerLength);
+		}
+
+		String header = new String(frame.array(), frame.arrayOffset() + frame.position(), headerLength,
+				StandardCharsets.US_ASCII);
+		frame.position(frame.position() + headerLength);
+		byte[] infoHash = new byte[INFO_HASH_SIZE];
+		frame.get(infoHash);
+		String peerId = new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(),
+				StandardCharsets.UTF_8);
+		frame.position(frame.limit());
+
+		HandshakeMessage message = new HandshakeMessage(header);
+		message.setID(peerId);
+		message.setInfoHash(infoHash);
+		return message;
+	}
+
+	/**
+	 * Reads a list of piece indices which fills the rest of the payload.
+	 *
+	 * @param frame - buffer positioned at the first index
+	 * @return int[] - the piece indices
+	 * @throws IOException if the payload doesn't hold at least one whole index
+	 */
+	private static int[] decodeIndices(ByteBuffer frame) throws IOException {
+		if (frame.remaining() < INDEX_SIZE || frame.remaining() % INDEX_SIZE != 0) {
+			throw new IOException("Received a message with an invalid list of indices of size: " + frame.remaining());
+		}
+
+		int[] indices = new int[frame.remaining() / INDEX_SIZE];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = frame.getInt();
+		}
+		return indices;
+	}
+
+	/**
+	 * Reads a list of (piece index, block offset) pairs which fills the rest of
+	 * the payload into the given message.
+	 *
+	 * @param frame   - buffer positioned at the first block
+	 * @param message - message which receives the blocks
+	 * @throws IOException if the payload doesn't hold at least one whole block
+	 */
+	private static void decodeBlocks(ByteBuffer frame, PeerMessage message) throws IOException {
+		if (frame.remaining() < BLOCK_HEADER_SIZE || frame.remaining() % BLOCK_HEADER_SIZE != 0) {
+			throw new IOException("Received a message with an invalid list of blocks of size: " + frame.remaining());
+		}
+
+		int[] indices = new int[frame.remaining() / BLOCK_HEADER_SIZE];
+		int[] begins = new int[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = frame.getInt();
+			begins[i] = frame.getInt();
+		}
+		message.setBlocks(indices, begins);
+	}
+
+	/**
+	 * Writes the number of segments followed by the segments packed at one bit per
+	 * piece, most significant bit first.
+	 *
+	 * @param bitField - bit field to be encoded
+	 * @param buffer   - buffer with enough room for the bit field
+	 */
+	private static void encodeBitField(BitFieldHelper bitField, ByteBuffer buffer) {
+		buffer.putInt(bitField.getNumberOfSegments());
+		buffer.put(bitField.toByteArray());
+	}
+
+	/**
+	 * Reads a bit field written by encodeBitField.
+	 *
+	 * @param frame - buffer positioned at the bit field payload
+	 * @return BitFieldHelper
+	 * @throws IOException if the number of segments is missing or the packed bits
+	 *                     do not match it
+	 */
+	private static BitFieldHelper decodeBitField(ByteBuffer frame) throws IOException {
+		if (frame.remaining() < INDEX_SIZE) {
+			throw new IOException("Received a bitfield without a number of segments");
+		}
+		int numOfSegments = frame.getInt();
+		if (numOfSegments < 0 || packedBitFieldLength(numOfSegments) != frame.remaining()) {
+			throw new IOException("Received a bitfield with an invalid number of segments: " + numOfSegments);
+		}
+
+		byte[] packed = new byte[frame.remaining()];
+		frame.get(packed);
+		return BitFieldHelper.fromByteArray(numOfSegments, packed);
+	}
+
+	private static int packedBitFieldLength(int numOfSegments) {
+		return (numOfSegments + 7) / 8;
+	}
+
+	private static PeerMessage createPeerMessage(int messageType, int length) {
+		PeerMessage message = PeerMessage.create(messageType);
+		message.setLength(length);
+		return message;
+	}
+
+	/**
+	 * Returns a buffer which can hold at least the given number of bytes, growing
+	 * the existing buffer when it is too small.
+	 *
+	 * @param buffer       - existing buffer
+	 * @param requiredSize - number of bytes needed
+	 * @return ByteBuffer
+	 */
+	private static ByteBuffer ensureCapacity(ByteBuffer buffer, int requiredSize) {
+		if (buffer.capacity() >= requiredSize) {
+			return buffer;
+		}
+		return ByteBuffer.allocate(Math.max(requiredSize, buffer.capacity() * 2));
+	}
+
+	/**
+	 * Returns a larger buffer which carries over the contents already written into
+	 * the given buffer.
+	 *
+	 * @param buffer       - existing buffer in write mode
+	 * @param requiredSize - number of bytes needed
+	 * @return ByteBuffer
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer, int requiredSize) {
+		ByteBuffer grownBuffer = ByteBuffer.allocate(Math.max(requiredSize, buffer.capacity() * 2));
+		buffer.flip();
+		grownBuffer.put(buffer);
+		return grownBuffer;
+	}
+}
@@ -1,31 +1,101 @@
 package main.helper;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
 
 import main.constants.Constants;
+import main.messageTypes.PeerMessage;
 import main.messageTypes.PeerMessageType;
 
 /**
- * This class sends the specified message to the specified output stream
+ * This class sends the specified message to the specified output stream. In
+ * the event loop transport there is no sender thread; the messages are queued
+ * and written by the I/O thread which owns the connection whenever the socket
+ * channel is writable. Pieces are paced by the upload budget of the swarm of
+ * the connection, if the upload rate of the process is limited.
+ *
+ * In the blocking transport only the pieces are bounded: a thread which queues
+ * a piece waits while the queue holds too many, but the small messages sent by
+ * the timers of the swarm, such as chokes, haves, cancels and keep-alives, are
+ * queued without waiting, so that a neighbor which stopped reading never stalls
+ * the timers shared by all the swarms.
  * 
  * @author Sharan Sai Reddy Konda
  */
 public class MessageHelper implements Runnable {
-	private ObjectOutputStream outputStream = null;
+	private OutputStream outputStream = null;
+	private WritableByteChannel outputChannel = null;
 	private BlockingQueue<PeerMessageType> messageQueue;
+	private Semaphore pieceSlots = null; // pieces which may still be queued, null if unbounded
+	private MessageCodecHelper codec;
+	private volatile PieceHelper pieceHelper; // set once the swarm of the connection is known
+	private volatile BandwidthHelper.SwarmBudget uploadBudget = null; // null if the upload rate is unlimited
+	private volatile EventJournalHelper eventJournal = null; // null unless the sent messages are recorded
+	private volatile String neighborPeerId = null; // peer ID under which the sent messages are recorded
+	private volatile LongConsumer uploadCounter = null; // counts the bytes of the pieces which are sent
+
+	// Event loop transport state
+	private Runnable writeInterest = null; // asks the I/O thread to flush the queue
+	private final AtomicBoolean isWriteScheduled = new AtomicBoolean(false);
+	private ByteBuffer pendingFrame = null; // frame which is partially written
+	private PeerMessage pendingFileRegion = null; // block which is partially streamed
+	private long pendingFileRegionOffset = 0;
+	private PeerMessageType throttledMessage = null; // message which waits for the upload budget
+	private Runnable closeRequest = null; // asks the I/O thread to close the connection
+
+	private volatile Thread senderThread = null; // thread of the blocking transport
+	private volatile boolean isClosed = false;
+	private volatile long lastSendTime = System.currentTimeMillis(); // when a message was last queued
 
 	/**
 	 * initializes the PeerMessageSender object and sends the singleton object
 	 * 
-	 * @param outputStream - outputStream to which the message needs to be sent to
+	 * @param outStream     - outputStream to which the message needs to be sent to
+	 * @param outputChannel - channel of the socket behind the output stream, used
+	 *                      to stream pieces from the download file. May be null.
+	 * @param pieceHelper   - piece helper which owns the download file, or null if
+	 *                      the swarm of the connection isn't known yet
 	 * @return PeerMessageSender Singleton Instance
 	 */
-	public static MessageHelper returnPeerMessageSender(ObjectOutputStream outStream) {
+	public static MessageHelper returnPeerMessageSender(OutputStream outStream, WritableByteChannel outputChannel,
+			PieceHelper pieceHelper) {
+		MessageHelper peerMessageSender = new MessageHelper();
+		peerMessageSender.init(outStream, outputChannel, pieceHelper);
+		return peerMessageSender;
+	}
+
+	/**
+	 * initializes a PeerMessageSender for a non-blocking socket channel owned by
+	 * an I/O thread of the event loop.
+	 * 
+	 * @param outputChannel - non-blocking channel to which the messages are sent
+	 * @param pieceHelper   - piece helper which owns the download file, or null if
+	 *                      the swarm of the connection isn't known yet
+	 * @param writeInterest - callback which makes the I/O thread call
+	 *                      flushToChannel once the channel is writable
+	 * @param closeRequest  - callback which makes the I/O thread close the
+	 *                      connection
+	 * @return PeerMessageSender instance
+	 */
+	public static MessageHelper returnChannelMessageSender(WritableByteChannel outputChannel,
+			PieceHelper pieceHelper, Runnable writeInterest, Runnable closeRequest) {
 		MessageHelper peerMessageSender = new MessageHelper();
-		peerMessageSender.init(outStream);
+		peerMessageSender.messageQueue = new LinkedBlockingQueue<>();
+		peerMessageSender.codec = new MessageCodecHelper();
+		peerMessageSender.outputChannel = outputChannel;
+		peerMessageSender.pieceHelper = pieceHelper;
+		peerMessageSender.writeInterest = writeInterest;
+		peerMessageSender.closeRequest = closeRequest;
 		return peerMessageSender;
 	}
 
@@ -35,9 +105,13 @@ public class MessageHelper implements Runnable {
 	 * 
 	 * @return null
 	 */
-	private void init(ObjectOutputStream outStream) {
-		messageQueue = new ArrayBlockingQueue<>(Constants.SENDER_QUEUE_SIZE);
+	private void init(OutputStream outStream, WritableByteChannel outputChannel, PieceHelper pieceHelper) {
+		messageQueue = new LinkedBlockingQueue<>();
+		pieceSlots = new Semaphore(Constants.SENDER_QUEUE_SIZE);
+		codec = new MessageCodecHelper();
 		this.outputStream = outStream;
+		this.outputChannel = outputChannel != null ? outputChannel : Channels.newChannel(outStream);
+		this.pieceHelper = pieceHelper;
 	}
 
 	/**
@@ -46,19 +120,40 @@ public class MessageHelper implements Runnable {
 	 * @return null
 	 */
 	public void run() {
+		senderThread = Thread.currentThread();
 		try {
-			for (;;) {
+			while (!isClosed) {
 				// Fetch the message from the queue
 				PeerMessageType message = messageQueue.take();
+				releasePieceSlot(message);
 
-				// Write the output to the output stream
-				outputStream.writeUnshared(message);
-				outputStream.flush();
+				long uploadDelay = reserveUpload(message);
+				if (uploadDelay > 0) {
+					TimeUnit.NANOSECONDS.sleep(uploadDelay);
+				}
+
+				// Write the encoded frame to the output stream and flush once no more
+				// messages are waiting so that bursts go out together
+				countUpload(message);
+				codec.writeMessage(message, outputStream);
+
+				// Block data is streamed from the download file to the socket right after
+				// the header, so the header has to leave the buffered stream first.
+				if (message instanceof PeerMessage && ((PeerMessage) message).isFileRegion()) {
+					PeerMessage pieceMessage = (PeerMessage) message;
+					outputStream.flush();
+					pieceHelper.transferBlock(pieceMessage.getIndex(), pieceMessage.getBegin(), pieceMessage.length(),
+							outputChannel);
+				} else if (messageQueue.isEmpty()) {
+					outputStream.flush();
+				}
 			}
 		} catch (InterruptedException e) {
-			System.out.println(
-					"Exception occured while reading message request from the message queue. Message: "
-							+ e.getMessage());
+			if (!isClosed) {
+				System.out.println(
+						"Exception occured while reading message request from the message queue. Message: "
+								+ e.getMessage());
+			}
 		} catch (IOException e) {
 			// Output stream may be closed when the other peer has downloaded the file.
 			// Hence commenting this as it throws exception when done.
@@ -66,17 +161,228 @@ public class MessageHelper implements Runnable {
 			// "Exception occured while sending request message to the peer through output
 			// stream. Message: "
 			// + e.getMessage());
+		} finally {
+			isClosed = true;
+		}
+	}
+
+	/**
+	 * Stops sending on the connection. The sender thread of the blocking
+	 * transport is stopped, and the I/O thread of the event loop is asked to
+	 * close the connection.
+	 * 
+	 * @return null
+	 */
+	public void close() {
+		isClosed = true;
+		if (pieceSlots != null) {
+			// wakes up the threads which wait to queue a piece
+			pieceSlots.release(Constants.SENDER_QUEUE_SIZE);
+		}
+		if (closeRequest != null) {
+			closeRequest.run();
+		} else if (senderThread != null) {
+			senderThread.interrupt();
+		}
+	}
+
+	/**
+	 * Attaches the connection to the download file and the upload budget of its
+	 * swarm, once the swarm is known from the handshake.
+	 * 
+	 * @param pieceHelper  - piece helper which owns the download file
+	 * @param uploadBudget - upload budget of the swarm, or null if the upload rate
+	 *                     is unlimited
+	 * @return null
+	 */
+	public void setSwarm(PieceHelper pieceHelper, BandwidthHelper.SwarmBudget uploadBudget) {
+		this.pieceHelper = pieceHelper;
+		this.uploadBudget = uploadBudget;
+	}
+
+	/**
+	 * Records every message queued from now on in the event journal of the swarm.
+	 * 
+	 * @param eventJournal   - event journal of the swarm
+	 * @param neighborPeerId - peer ID of the neighbor of the connection
+	 * @return null
+	 */
+	public void setEventJournal(EventJournalHelper eventJournal, String neighborPeerId) {
+		this.neighborPeerId = neighborPeerId;
+		this.eventJournal = eventJournal;
+	}
+
+	/**
+	 * Counts the bytes of every piece from now on once it is taken off the queue
+	 * to be sent, so that pieces which are cancelled while queued aren't counted.
+	 * 
+	 * @param uploadCounter - consumer of the number of bytes of a sent piece
+	 * @return null
+	 */
+	public void setUploadCounter(LongConsumer uploadCounter) {
+		this.uploadCounter = uploadCounter;
+	}
+
+	/**
+	 * Counts a piece message which can no longer be cancelled.
+	 * 
+	 * @param message - message which is about to be written
+	 * @return null
+	 */
+	private void countUpload(PeerMessageType message) {
+		LongConsumer counter = uploadCounter;
+		if (counter != null && message.messageType() == Constants.TYPE_PIECE_MESSAGE) {
+			counter.accept(((PeerMessage) message).length());
 		}
 	}
 
+	/**
+	 * Reserves the upload budget for a piece message.
+	 * 
+	 * @param message - message which is about to be sent
+	 * @return long - nanoseconds to wait before sending the message
+	 */
+	private long reserveUpload(PeerMessageType message) {
+		if (uploadBudget == null || message.messageType() != Constants.TYPE_PIECE_MESSAGE) {
+			return 0;
+		}
+
+		PeerMessage pieceMessage = (PeerMessage) message;
+		return uploadBudget.reserve(pieceMessage.isFileRegion() ? pieceMessage.length()
+				: pieceMessage.getData().getDataLength());
+	}
+
 	/**
 	 * this function adds the send message request to the blocking queue which is
-	 * sent by the thread in the backgrround
+	 * sent by the thread in the backgrround. Only a piece waits for room in the
+	 * queue.
 	 * 
 	 * @param message
 	 * @throws InterruptedException
 	 */
 	public void sendMessage(PeerMessageType message) throws InterruptedException {
+		// nobody drains the queue of a closed connection
+		if (isClosed) {
+			return;
+		}
+		if (pieceSlots != null && message.messageType() == Constants.TYPE_PIECE_MESSAGE) {
+			pieceSlots.acquire();
+			if (isClosed) {
+				return;
+			}
+		}
 		messageQueue.put(message);
+		lastSendTime = System.currentTimeMillis();
+		if (eventJournal != null) {
+			eventJournal.recordMessage(false, neighborPeerId, message, messageQueue.size());
+		}
+
+		if (writeInterest != null && isWriteScheduled.compareAndSet(false, true)) {
+			writeInterest.run();
+		}
+	}
+
+	/**
+	 * returns the time at which a message was last queued for the neighbor
+	 * 
+	 * @return long - milliseconds since the epoch
+	 */
+	public long getLastSendTime() {
+		return lastSendTime;
+	}
+
+	/**
+	 * Drops the piece message for the given block from the queue if it hasn't
+	 * been sent yet. A block which is already being written is sent completely.
+	 * 
+	 * @param index - index of the piece
+	 * @param begin - offset of the block within the piece
+	 * @return boolean - true if a queued message was dropped
+	 */
+	public boolean cancelPieceMessage(int index, int begin) {
+		boolean isCancelled = false;
+		for (Iterator<PeerMessageType> iterator = messageQueue.iterator(); iterator.hasNext();) {
+			PeerMessageType message = iterator.next();
+			if (message.messageType() == Constants.TYPE_PIECE_MESSAGE && ((PeerMessage) message).getIndex() == index
+					&& ((PeerMessage) message).getBegin() == begin && messageQueue.remove(message)) {
+				releasePieceSlot(message);
+				isCancelled = true;
+			}
+		}
+		return isCancelled;
+	}
+
+	/**
+	 * Makes room for another piece once a piece leaves the queue.
+	 * 
+	 * @param message - message which left the queue
+	 * @return null
+	 */
+	private void releasePieceSlot(PeerMessageType message) {
+		if (pieceSlots != null && message.messageType() == Constants.TYPE_PIECE_MESSAGE) {
+			pieceSlots.release();
+		}
+	}
+
+	/**
+	 * Writes the queued messages to the non-blocking channel until either the
+	 * queue is drained or the channel doesn't accept more bytes. Called by the I/O
+	 * thread which owns the connection.
+	 * 
+	 * @return boolean - true if everything was written and write interest can be
+	 *         dropped, false if the channel is full
+	 * @throws IOException
+	 */
+	public boolean flushToChannel() throws IOException {
+		for (;;) {
+			if (pendingFrame != null) {
+				outputChannel.write(pendingFrame);
+				if (pendingFrame.hasRemaining()) {
+					return false;
+				}
+				pendingFrame = null;
+			}
+
+			if (pendingFileRegion != null) {
+				pendingFileRegionOffset += pieceHelper.transferBlock(pendingFileRegion.getIndex(),
+						pendingFileRegion.getBegin(), pendingFileRegion.length(), pendingFileRegionOffset, outputChannel);
+				if (pendingFileRegionOffset < pendingFileRegion.length()) {
+					return false;
+				}
+				pendingFileRegion = null;
+			}
+
+			PeerMessageType message = throttledMessage;
+			throttledMessage = null;
+			if (message == null) {
+				message = messageQueue.poll();
+				if (message == null) {
+					// Recheck the queue after dropping the flag so that a message queued in
+					// between is not left behind.
+					isWriteScheduled.set(false);
+					if (messageQueue.isEmpty() || !isWriteScheduled.compareAndSet(false, true)) {
+						return true;
+					}
+					continue;
+				}
+
+				// A throttled piece is held back without blocking the I/O thread. The write
+				// stays scheduled, so the connection is only flushed again once the budget
+				// resumes it.
+				long uploadDelay = reserveUpload(message);
+				if (uploadDelay > 0) {
+					throttledMessage = message;
+					uploadBudget.resumeAfter(writeInterest, uploadDelay);
+					return true;
+				}
+			}
+
+			countUpload(message);
+			pendingFrame = codec.encode(message);
+			if (message instanceof PeerMessage && ((PeerMessage) message).isFileRegion()) {
+				pendingFileRegion = (PeerMessage) message;
+				pendingFileRegionOffset = 0;
+			}
+		}
 	}
 }
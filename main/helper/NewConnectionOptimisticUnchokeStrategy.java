@@ -0,0 +1,71 @@
+package main.helper;
+
+import java.util.List;
+import java.util.Random;
+
+import main.constants.Constants;
+import main.helper.ChokingStrategy.Neighbor;
+
+/**
+ * Unchokes one of the interested choked neighbors at random, where neighbors
+ * which connected within the last few optimistic unchoke rounds are more
+ * likely to be picked. A new neighbor has no pieces to trade yet, so without
+ * the extra chances it would wait the longest for its first pieces.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class NewConnectionOptimisticUnchokeStrategy implements OptimisticUnchokeStrategy {
+
+	private final Random random = new Random();
+	private final long newConnectionAge; // milliseconds for which a connection counts as new
+
+	/**
+	 * Creates the strategy for the given optimistic unchoke interval.
+	 *
+	 * @param interval - seconds between the optimistic unchoke rounds
+	 */
+	public NewConnectionOptimisticUnchokeStrategy(int interval) {
+		this.newConnectionAge = interval * 1000L * Constants.NEW_CONNECTION_ROUNDS;
+	}
+
+	/**
+	 * Picks a random interested neighbor, weighting the new connections.
+	 *
+	 * @param chokedNeighbors - neighbors which are choked by the current peer
+	 * @return String - peer ID of the neighbor, or null to unchoke none
+	 */
+	public String selectOptimisticNeighbor(List<Neighbor> chokedNeighbors) {
+		long now = System.currentTimeMillis();
+		int totalWeight = 0;
+		for (Neighbor neighbor : chokedNeighbors) {
+			totalWeight += weight(neighbor, now);
+		}
+
+		if (totalWeight == 0) {
+			return null;
+		}
+
+		int target = random.nextInt(totalWeight);
+		for (Neighbor neighbor : chokedNeighbors) {
+			target -= weight(neighbor, now);
+			if (target < 0) {
+				return neighbor.getPeerId();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * returns the chances of a neighbor to be picked
+	 *
+	 * @param neighbor - a choked neighbor
+	 * @param now      - current time in milliseconds
+	 * @return int
+	 */
+	private int weight(Neighbor neighbor, long now) {
+		if (!neighbor.isInterested()) {
+			return 0;
+		}
+		return now - neighbor.getConnectionTime() < newConnectionAge ? Constants.NEW_CONNECTION_WEIGHT : 1;
+	}
+}
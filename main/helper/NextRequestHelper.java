@@ -1,9 +1,9 @@
 package main.helper;
 
-import java.util.ArrayList;
-import java.util.Random;
+import java.util.Arrays;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 import main.PeerController;
 import main.PeerHandler;
@@ -19,7 +19,32 @@ public class NextRequestHelper implements Runnable {
 	private BlockingQueue<PeerMessage> messageQueue;
 	private PeerHandler peerHandler;
 	private PeerController controller;
-	private BitFieldHelper neighborPeerBFH;
+	private boolean isInline = false; // messages are processed by the caller's thread
+	private final ReentrantLock drainLock = new ReentrantLock(); // one caller drains inline at a time
+
+	// Pieces which the neighbor announced. The bit field is replaced and changed
+	// by the requester under the interest lock, which the other threads take to
+	// read it, so that they never see a stale bit field or a half made change.
+	private volatile BitFieldHelper neighborPeerBFH;
+	private boolean isNeighborReleased = false; // neighbor pieces removed from the index
+
+	// Pieces which the neighbor has and the current peer lacks, and their number.
+	// A piece is only uncounted if it was counted, so a have which arrives while
+	// the piece is being committed isn't taken off twice. They are changed by the
+	// requester and by the threads which complete pieces, hence guarded by the
+	// interest lock.
+	private final ReentrantLock interestLock = new ReentrantLock();
+	private BitFieldHelper interestingPieces;
+	private int interestingPieceCount = 0;
+	private volatile boolean isInterested = false;
+
+	// Interest last announced to the neighbor. The messages are sent after the
+	// interest lock is released, under a lock of their own so that they reach the
+	// neighbor in the order in which the interest changed.
+	private final ReentrantLock announceLock = new ReentrantLock();
+	private boolean isInterestAnnounced = false;
+
+	private final PiecePickerHelper.PickState pickState = new LivePickState();
 
 	/**
 	 * This function returns the NextRequestHandler obj
@@ -46,12 +71,10 @@ public class NextRequestHelper implements Runnable {
 	 */
 	private void setupNeighboringBitFieldManager(PeerController peerController, PeerHandler peerHandler) {
 		messageQueue = new ArrayBlockingQueue<>(Constants.SENDER_QUEUE_SIZE);
-		int pieceSize = Integer.parseInt(CommonConfigHelper.getConfig(Constants.PIECE_SIZE_LABEL));
-		float pieceSizeFloat = (float) pieceSize;
-		int numOfPieces = (int) Math
-				.ceil(Float.parseFloat(CommonConfigHelper.getConfig(Constants.FILE_SIZE_LABEL)) / pieceSizeFloat);
+		int numOfPieces = peerController.getSwarm().getNumberOfPieces();
 
 		neighborPeerBFH = new BitFieldHelper(numOfPieces);
+		interestingPieces = new BitFieldHelper(numOfPieces);
 		this.peerHandler = peerHandler;
 		this.controller = peerController;
 	}
@@ -66,33 +89,8 @@ public class NextRequestHelper implements Runnable {
 	public void run() {
 		try {
 			for (;;) {
-				if (!controller.isDownloadComplete && controller.isFileDownloadComplete()) {
-					controller.isDownloadComplete = true;
-					controller.getLogger().logMessage(
-							String.format(Constants.FILE_COMPLETE_DOWNLOAD_LOG_MESSAGE, controller.getPeerId()));
-				}
-
-				PeerMessage message = messageQueue.take();
-				switch (message.getMessageType()) {
-					case Constants.TYPE_BITFIELD_MESSAGE:
-						handleBitFieldRequest(message);
-						break;
-
-					case Constants.TYPE_HAVE_MESSAGE:
-						handleHaveRequest(message);
-						break;
-
-					case Constants.TYPE_PIECE_MESSAGE:
-						handlePieceRequest();
-						break;
-
-					case Constants.TYPE_UNCHOKE_MESSAGE:
-						handleUnchokeRequest();
-						break;
-					default:
-						break;
-				}
-
+				checkFileDownloadComplete();
+				processMessage(messageQueue.take());
 			}
 		} catch (Exception e) {
 			System.out.println(
@@ -101,22 +99,122 @@ public class NextRequestHelper implements Runnable {
 		}
 	}
 
+	/**
+	 * Processes the queued messages on the caller's thread instead of a dedicated
+	 * thread. Used by the event loop, where the I/O thread which owns the
+	 * connection drains the queue every time a message is added.
+	 * 
+	 * @return null
+	 */
+	public void runInline() {
+		isInline = true;
+		drainQueue();
+	}
+
+	/**
+	 * Processes every message which is currently queued.
+	 * 
+	 * @return null
+	 */
+	private void drainQueue() {
+		// the requester may be woken up by threads other than the I/O thread, so the
+		// queue is drained by one of them at a time and rechecked once it is let go
+		do {
+			if (!drainLock.tryLock()) {
+				return;
+			}
+			try {
+				checkFileDownloadComplete();
+				PeerMessage message;
+				while ((message = messageQueue.poll()) != null) {
+					processMessage(message);
+					checkFileDownloadComplete();
+				}
+			} catch (Exception e) {
+				System.out.println(
+						"Exception occured when processing message requests inside the class. Message: "
+								+ e.getMessage());
+				e.printStackTrace();
+			} finally {
+				drainLock.unlock();
+			}
+		} while (!messageQueue.isEmpty());
+	}
+
+	/**
+	 * Logs the completion of the download the first time it is observed.
+	 * 
+	 * @return null
+	 */
+	private void checkFileDownloadComplete() {
+		controller.checkFileDownloadComplete();
+	}
+
+	/**
+	 * Sends the next requests based on the type of the given message.
+	 * 
+	 * @param message - one of the 8 message types
+	 */
+	private void processMessage(PeerMessage message) {
+		switch (message.getMessageType()) {
+			case Constants.TYPE_BITFIELD_MESSAGE:
+				handleBitFieldRequest(message);
+				break;
+
+			case Constants.TYPE_HAVE_MESSAGE:
+				handleHaveRequest(message);
+				break;
+
+			case Constants.TYPE_PIECE_MESSAGE:
+				handlePieceRequest();
+				break;
+
+			case Constants.TYPE_UNCHOKE_MESSAGE:
+				handleUnchokeRequest();
+				break;
+
+			case Constants.TYPE_PIECE_HASHES_MESSAGE:
+				// pieces may be started again now that the held pieces can be verified
+				handlePieceRequest();
+				break;
+
+			case Constants.TYPE_REQUEST_BLOCKS_MESSAGE:
+				handlePieceRequest();
+				break;
+			default:
+				break;
+		}
+	}
+
 	/**
 	 * handles the bitfield input request
 	 * 
 	 * @param message - one of the 8 message types
 	 */
 	public void handleBitFieldRequest(PeerMessage message) {
-		neighborPeerBFH = message.getManageBitFields();
-		int missingPieceIdx = getMissingPieceRandomIdx();
+		PieceAvailabilityHelper availabilityIndex = controller.getAvailabilityIndex();
+		BitFieldHelper currentPeerBFH = controller.getBitFieldMessage().getManageBitFields();
 
-		// MissingPieceIdx = -1 indicates that the current peer has no missing pieces to
-		// download from the neighbors. Hence in this case, we will be sending not
-		// interested message and terminating the peering request
-		if (missingPieceIdx != -1) {
-			sendInterestedMessage(missingPieceIdx);
-		} else {
-			peerHandler.sendNotInterestedMessage(PeerMessage.create(Constants.TYPE_NOT_INTERESTED_MESSAGE));
+		interestLock.lock();
+		try {
+			if (!isNeighborReleased) {
+				availabilityIndex.removeBitField(neighborPeerBFH);
+				availabilityIndex.addBitField(message.getManageBitFields());
+			}
+			neighborPeerBFH = message.getManageBitFields();
+
+			// the bitfield is the only message for which the missing pieces are counted
+			// from scratch, afterwards the count is kept up to date incrementally
+			interestingPieces = neighborPeerBFH.andNot(currentPeerBFH);
+			interestingPieceCount = interestingPieces.getCountOfDownloadedSegments();
+			updateInterest();
+		} finally {
+			interestLock.unlock();
+		}
+		announceInterest();
+
+		if (isInterested) {
+			requestMissingBlocks();
 		}
 	}
 
@@ -126,23 +224,30 @@ public class NextRequestHelper implements Runnable {
 	 * @param message - one of the 8 message types
 	 */
 	public void handleHaveRequest(PeerMessage message) {
-		int pieceIdx = message.getIndex();
-		int randomPieceIdx = getMissingPieceRandomIdx();
-
 		try {
-			neighborPeerBFH.setValueAtIndex(pieceIdx, true);
-			if (isCurrentPeerMissingThePiece(pieceIdx)) {
-				if (peerHandler.isPreviousMessageReceived()) {
-					peerHandler.setPreviousMessageReceived(false);
-					sendInterestedMessage(pieceIdx);
-				}
-			} else if (randomPieceIdx != -1) {
-				if (peerHandler.isPreviousMessageReceived()) {
-					peerHandler.setPreviousMessageReceived(false);
-					sendInterestedMessage(randomPieceIdx);
+			interestLock.lock();
+			try {
+				for (int pieceIdx : message.getIndices()) {
+					if (neighborPeerBFH.getValueAtIndex(pieceIdx) == 0) {
+						neighborPeerBFH.setValueAtIndex(pieceIdx, true);
+						if (!isNeighborReleased) {
+							controller.getAvailabilityIndex().addPiece(pieceIdx);
+						}
+						if (!controller.getPieceHelper().hasPiece(pieceIdx)
+								&& interestingPieces.getValueAtIndex(pieceIdx) == 0) {
+							interestingPieces.setValueAtIndex(pieceIdx, true);
+							interestingPieceCount++;
+						}
+					}
 				}
-			} else {
-				peerHandler.sendNotInterestedMessage(PeerMessage.create(Constants.TYPE_NOT_INTERESTED_MESSAGE));
+				updateInterest();
+			} finally {
+				interestLock.unlock();
+			}
+			announceInterest();
+
+			if (isInterested && peerHandler.getFreeRequestSlots() > 0) {
+				requestMissingBlocks();
 			}
 		} catch (Exception e) {
 			System.out.println(
@@ -157,11 +262,7 @@ public class NextRequestHelper implements Runnable {
 	 */
 	public void handlePieceRequest() {
 		try {
-			int missingPieceIdx = getMissingPieceRandomIdx();
-			if (missingPieceIdx != -1 && peerHandler.isPreviousMessageReceived()) {
-				sendRequestMessage(missingPieceIdx);
-			}
-
+			requestMissingBlocks();
 		} catch (Exception e) {
 			System.out.println(
 					"Exception occured when handling the `piece` request. Message: "
@@ -175,11 +276,7 @@ public class NextRequestHelper implements Runnable {
 	 */
 	private void handleUnchokeRequest() {
 		try {
-			int missingPieceIdx = getMissingPieceRandomIdx();
-			peerHandler.setPreviousMessageReceived(false);
-			if (missingPieceIdx != -1) {
-				sendRequestMessage(missingPieceIdx);
-			}
+			requestMissingBlocks();
 		} catch (Exception e) {
 			System.out.println(
 					"Exception occured when handling the `unchoke` request. Message: "
@@ -189,65 +286,110 @@ public class NextRequestHelper implements Runnable {
 	}
 
 	/**
-	 * Triggers the interested message for the neigboring peer
+	 * Called once the current peer has downloaded a piece. If the piece was
+	 * counted as one which the neighboring peer has, it is no longer of interest
+	 * for it.
 	 * 
-	 * @param pieceIdx - specifies the index of the piece
+	 * @param pieceIdx - index of the downloaded piece
 	 */
-	private void sendInterestedMessage(int pieceIdx) {
-		// Send interested message for the randomly found missing piece
-		PeerMessage newMessage = PeerMessage.create(Constants.TYPE_INTERESTED_MESSAGE);
-		newMessage.setIndex(pieceIdx);
-		peerHandler.sendInterestedMessage(newMessage);
-
-		sendRequestMessage(pieceIdx);
+	public void handlePieceDownloaded(int pieceIdx) {
+		interestLock.lock();
+		try {
+			if (interestingPieces.getValueAtIndex(pieceIdx) == 1) {
+				interestingPieces.setValueAtIndex(pieceIdx, false);
+				interestingPieceCount--;
+				updateInterest();
+			}
+		} finally {
+			interestLock.unlock();
+		}
+		announceInterest();
 	}
 
 	/**
-	 * Triggers the request messages for the neigboring peer
-	 * 
-	 * @param pieceIdx - specifies the index of the piece
+	 * Changes the interest in the neighboring peer when the number of pieces which
+	 * it has and the current peer lacks changes between zero and non-zero. Must be
+	 * called with the interest lock held.
 	 */
-	private void sendRequestMessage(int pieceIdx) {
-		// Request the piece after sending the interested message
-		PeerMessage newMessage = PeerMessage.create(Constants.TYPE_REQUEST_MESSAGE);
-		newMessage.setIndex(pieceIdx);
-		peerHandler.sendRequestMessage(newMessage);
+	private void updateInterest() {
+		if (interestingPieceCount > 0 && !isInterested) {
+			isInterested = true;
+		} else if (interestingPieceCount == 0 && isInterested) {
+			isInterested = false;
+		}
 	}
 
 	/**
-	 * This function fetches all the missing pieces info for the given peer and
-	 * selects a random missing piece to be requested.
-	 * 
-	 * @return integer which indicates the index of the piece in the input file
+	 * Sends the interested or not interested message if the interest changed
+	 * since it was last announced. Must be called without the interest lock, as
+	 * sending may wait for room in the queue of the neighbor.
 	 */
-	public int getMissingPieceRandomIdx() {
-		BitFieldHelper currentPeerBFH = controller.getBitFieldMessage().getManageBitFields();
-		ArrayList<Integer> missingPiecesIdx = new ArrayList<Integer>();
+	private void announceInterest() {
+		announceLock.lock();
+		try {
+			boolean interested = isInterested;
+			if (interested == isInterestAnnounced) {
+				return;
+			}
 
-		for (int i = 0; i < neighborPeerBFH.getNumberOfSegments()
-				&& missingPiecesIdx.size() < Constants.MAX_PIECES_LIMIT; i++) {
-			if (currentPeerBFH.getValueAtIndex(i) == 0 && neighborPeerBFH.getValueAtIndex(i) == 1) {
-				missingPiecesIdx.add(i);
+			isInterestAnnounced = interested;
+			if (interested) {
+				peerHandler.sendInterestedMessage(PeerMessage.create(Constants.TYPE_INTERESTED_MESSAGE));
+			} else {
+				peerHandler.sendNotInterestedMessage(PeerMessage.create(Constants.TYPE_NOT_INTERESTED_MESSAGE));
 			}
+		} finally {
+			announceLock.unlock();
 		}
+	}
 
-		if (missingPiecesIdx.size() == 0) {
-			return -1;
+	/**
+	 * Fills the request window of the neighboring peer. All the blocks which fit
+	 * into the free slots of the window are asked for in a single request message
+	 * so that the neighbor always has the next blocks queued while it is sending
+	 * the current one. The blocks are picked by the piece picker.
+	 */
+	private void requestMissingBlocks() {
+		int freeSlots = peerHandler.getFreeRequestSlots();
+		if (freeSlots <= 0 || peerHandler.isChokedByNeighborPeer()) {
+			return;
 		}
 
-		Random random = new Random();
-		return missingPiecesIdx.get(random.nextInt(missingPiecesIdx.size()));
+		// the pieces of interest are kept up to date as pieces arrive, so the endgame
+		// needn't work them out from the bit fields on every round
+		int[] pieceIndices = new int[freeSlots];
+		int[] blockOffsets = new int[freeSlots];
+		int count = PiecePickerHelper.pickBlocks(controller.getAvailabilityIndex(), neighborPeerBFH,
+				interestingPieces, pickState, pieceIndices, blockOffsets);
+		if (count == 0) {
+			return;
+		}
+
+		PeerMessage newMessage = PeerMessage.create(Constants.TYPE_REQUEST_MESSAGE);
+		newMessage.setBlocks(Arrays.copyOf(pieceIndices, count), Arrays.copyOf(blockOffsets, count));
+		if (!peerHandler.sendRequestMessage(newMessage)) {
+			for (int i = 0; i < count; i++) {
+				controller.releaseBlock(pieceIndices[i], blockOffsets[i]);
+			}
+		}
 	}
 
 	/**
-	 * This function checks if the current peer doesn't have the specified peer
-	 * which the neighboring peer has
+	 * Removes the pieces of the neighboring peer from the availability index once
+	 * the connection to it is closed.
 	 * 
-	 * @return boolean indicating whether the condition is true or not
+	 * @return null
 	 */
-	public boolean isCurrentPeerMissingThePiece(int pieceIdx) {
-		BitFieldHelper currentPeerBFH = controller.getBitFieldMessage().getManageBitFields();
-		return currentPeerBFH.getValueAtIndex(pieceIdx) == 0 && neighborPeerBFH.getValueAtIndex(pieceIdx) == 1;
+	public void releaseNeighborPieces() {
+		interestLock.lock();
+		try {
+			if (!isNeighborReleased) {
+				isNeighborReleased = true;
+				controller.getAvailabilityIndex().removeBitField(neighborPeerBFH);
+			}
+		} finally {
+			interestLock.unlock();
+		}
 	}
 
 	/**
@@ -258,6 +400,48 @@ public class NextRequestHelper implements Runnable {
 	 */
 	public void addPeerMessageToQueue(PeerMessage message) throws InterruptedException {
 		messageQueue.put(message);
+		if (isInline) {
+			drainQueue();
+		}
+	}
+
+	/**
+	 * Wakes the requester up to fill the request window of the neighbor, for
+	 * blocks which became free to request without a message from the neighbor,
+	 * such as the blocks of a discarded piece. If the queue is full the queued
+	 * messages fill the window anyway, so the caller never waits for room.
+	 * 
+	 * @return null
+	 */
+	public void wakeUp() {
+		PeerMessage message = PeerMessage.create(Constants.TYPE_REQUEST_BLOCKS_MESSAGE);
+		if (messageQueue.offer(message) && isInline) {
+			drainQueue();
+		}
+	}
+
+	/**
+	 * Returns the number of messages which wait to be processed
+	 * 
+	 * @return int
+	 */
+	public int getQueuedMessageCount() {
+		return messageQueue.size();
+	}
+
+	/**
+	 * Checks whether the neighboring peer is known to have the given piece
+	 * 
+	 * @param pieceIdx - index of the piece
+	 * @return boolean - True if the neighbor announced the piece
+	 */
+	public boolean isPieceKnownToNeighbor(int pieceIdx) {
+		interestLock.lock();
+		try {
+			return neighborPeerBFH.getValueAtIndex(pieceIdx) == 1;
+		} finally {
+			interestLock.unlock();
+		}
 	}
 
 	/**
@@ -266,6 +450,70 @@ public class NextRequestHelper implements Runnable {
 	 * @return boolean - True if the neighboring peer download is successful
 	 */
 	public boolean isNeighborPeerDownloadedFile() {
-		return neighborPeerBFH != null && neighborPeerBFH.checkIfFileIsDownloaded();
+		interestLock.lock();
+		try {
+			return neighborPeerBFH != null && neighborPeerBFH.checkIfFileIsDownloaded();
+		} finally {
+			interestLock.unlock();
+		}
+	}
+
+	/**
+	 * Answers the piece picker from the controller of the swarm and the handler of
+	 * the neighboring peer.
+	 */
+	private class LivePickState implements PiecePickerHelper.PickState {
+
+		public Iterable<Integer> getStartedPieces() {
+			return controller.getStartedPieces();
+		}
+
+		public int getPieceLength(int index) {
+			return controller.getPieceHelper().getPieceLength(index);
+		}
+
+		public int getBlockSize() {
+			return controller.getPieceHelper().getBlockSize();
+		}
+
+		public boolean hasPiece(int index) {
+			return controller.getPieceHelper().hasPiece(index);
+		}
+
+		public boolean hasBlock(int index, int begin) {
+			return controller.getPieceHelper().hasBlock(index, begin);
+		}
+
+		public boolean isBlockReserved(int index, int begin) {
+			return controller.isBlockReserved(index, begin);
+		}
+
+		public boolean reserveBlock(int index, int begin) {
+			return controller.reserveBlock(index, begin);
+		}
+
+		public void shareBlock(int index, int begin) {
+			controller.shareBlock(index, begin);
+		}
+
+		public boolean isRequestOutstanding(int index, int begin) {
+			return peerHandler.isRequestOutstanding(index, begin);
+		}
+
+		public boolean isRequestBackedOff(int index, int begin) {
+			return peerHandler.isRequestBackedOff(index, begin);
+		}
+
+		public boolean isPieceCorrupt(int index) {
+			return controller.isPieceCorruptFrom(index, peerHandler.getPeerId());
+		}
+
+		public boolean canStartPiece() {
+			return controller.canStartPiece();
+		}
+
+		public boolean isEndgame() {
+			return controller.isEndgame();
+		}
 	}
-}
\ No newline at end of file
+}
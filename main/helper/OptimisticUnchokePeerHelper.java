@@ -1,57 +1,65 @@
 package main.helper;
 
 import java.util.ArrayList;
-import java.util.Random;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import main.PeerController;
+import main.constants.Constants;
 
 /**
- * This class runs the process of unchoking an optimistically chosen random
- * choked peer.
+ * This class runs the process of unchoking an optimistically chosen choked
+ * peer. The peer is picked by the optimistic unchoke strategy set in the
+ * common config file.
  * 
  * @author Sharan Sai Reddy Konda
  * @author Bhavan Voram
  */
 public class OptimisticUnchokePeerHelper implements Runnable {
-	private static OptimisticUnchokePeerHelper instance = null;
 	private PeerController controller = null;
+	private OptimisticUnchokeStrategy strategy = null;
 
-	private ScheduledFuture<?> process = null;
+	private TimerWheelHelper.Timeout process = null;
 
 	/**
-	 * Returns the singleton instance of the optimistic unchoke helper
+	 * Returns a new optimistic unchoke helper for the swarm of the given
+	 * controller
 	 * 
-	 * @param controller - main controller object that manages all other objects
+	 * @param controller - controller of the swarm whose neighbors are unchoked
 	 * @return null
 	 */
-	public static synchronized OptimisticUnchokePeerHelper returnSingletonInstance(PeerController controller) {
-		if (instance == null) {
-
-			if (controller == null) {
-				return null;
-			}
-
-			instance = new OptimisticUnchokePeerHelper();
-			instance.controller = controller;
+	public static OptimisticUnchokePeerHelper getNewInstance(PeerController controller) {
+		if (controller == null) {
+			return null;
 		}
 
-		return instance;
+		OptimisticUnchokePeerHelper optimisticUnchokeHelper = new OptimisticUnchokePeerHelper();
+		optimisticUnchokeHelper.controller = controller;
+		optimisticUnchokeHelper.strategy = OptimisticUnchokeStrategy.getNewInstance(
+				CommonConfigHelper.getConfig(Constants.OPTIMISTIC_UNCHOKE_STRATEGY_LABEL,
+						Constants.OPTIMISTIC_UNCHOKE_STRATEGY_RANDOM),
+				CommonConfigHelper.getIntConfig(Constants.OPTIMISTIC_UNCHOKE_INTERVAL_LABEL, 0));
+		return optimisticUnchokeHelper;
 	}
 
 	/**
-	 * This function randomly finds one choked peer from the given list of choked
-	 * nodes and unchokes it.
+	 * This function lets the strategy pick one of the peers choked in the last
+	 * choke round and unchokes it.
 	 * 
 	 * @return null
 	 */
 	public void run() {
-		ArrayList<String> chokedPeers = controller.getChokedPeers();
-		if (chokedPeers.size() > 0) {
-			int randomPeer = new Random().nextInt(chokedPeers.size());
-			controller.optimisticallyUnChokePeers(chokedPeers.get(randomPeer));
+		Set<String> chokedPeers = controller.getChokedPeers();
+		ArrayList<ChokingStrategy.Neighbor> chokedNeighbors = new ArrayList<ChokingStrategy.Neighbor>();
+		for (ChokingStrategy.Neighbor neighbor : controller.getChokingNeighbors()) {
+			if (chokedPeers.contains(neighbor.getPeerId())) {
+				chokedNeighbors.add(neighbor);
+			}
+		}
+
+		String contenderID = strategy.selectOptimisticNeighbor(chokedNeighbors);
+		if (contenderID != null) {
+			controller.optimisticallyUnChokePeers(contenderID);
 		}
 
 		controller.updateFileDownloadStatus();
@@ -71,8 +79,7 @@ public class OptimisticUnchokePeerHelper implements Runnable {
 	 * @return null
 	 */
 	public void start(int startDelay, int intervalDelay) {
-		process = Executors.newScheduledThreadPool(5).scheduleAtFixedRate(this, startDelay, intervalDelay,
-				TimeUnit.SECONDS);
+		process = controller.getTimer().scheduleAtFixedRate(this, startDelay, intervalDelay, TimeUnit.SECONDS);
 	}
 
 	/**
@@ -83,6 +90,6 @@ public class OptimisticUnchokePeerHelper implements Runnable {
 	 * @return null
 	 */
 	public void destroy() {
-		process.cancel(true);
+		process.cancel();
 	}
 }
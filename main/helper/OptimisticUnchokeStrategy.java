@@ -0,0 +1,43 @@
+package main.helper;
+
+import java.util.List;
+
+import main.constants.Constants;
+import main.helper.ChokingStrategy.Neighbor;
+
+/**
+ * A policy which picks the neighbor unchoked optimistically in every
+ * optimistic unchoke round, which gives neighbors without a rate the chance to
+ * show how fast they are. The policy is picked with OptimisticUnchokeStrategy
+ * in the common config file.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public interface OptimisticUnchokeStrategy {
+
+	/**
+	 * Picks the neighbor to unchoke optimistically.
+	 *
+	 * @param chokedNeighbors - neighbors which are choked by the current peer
+	 * @return String - peer ID of the neighbor, or null to unchoke none
+	 */
+	String selectOptimisticNeighbor(List<Neighbor> chokedNeighbors);
+
+	/**
+	 * Returns a new instance of the strategy with the given name, or of the random
+	 * strategy if the name is unknown.
+	 *
+	 * @param name     - name of the strategy in the common config file
+	 * @param interval - seconds between the optimistic unchoke rounds
+	 * @return OptimisticUnchokeStrategy
+	 */
+	static OptimisticUnchokeStrategy getNewInstance(String name, int interval) {
+		if (Constants.OPTIMISTIC_UNCHOKE_STRATEGY_NEW_CONNECTIONS.equalsIgnoreCase(name)) {
+			return new NewConnectionOptimisticUnchokeStrategy(interval);
+		}
+		if (!Constants.OPTIMISTIC_UNCHOKE_STRATEGY_RANDOM.equalsIgnoreCase(name)) {
+			System.out.printf("Unknown optimistic unchoke strategy %s, the neighbor is picked at random\n", name);
+		}
+		return new RandomOptimisticUnchokeStrategy();
+	}
+}
@@ -1,6 +1,7 @@
 package main.helper;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -44,6 +45,11 @@ public class PeerInfoHelper {
      */
     public boolean configPeerInfo() {
         peerInfoMap = new LinkedHashMap<>();
+        // the peer config file is optional when the peers are taken from a tracker
+        if (!new File(Constants.PEER_INFO_FILE).exists()) {
+            return true;
+        }
+
         try {
             FileInputStream fileInputStream = new FileInputStream(Constants.PEER_INFO_FILE);
             BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(fileInputStream));
@@ -76,6 +82,16 @@ public class PeerInfoHelper {
         return peerInfoMap;
     }
 
+    /**
+     * Adds a peer which is not listed in the peer config file, such as the current
+     * peer when its port is given on the command line.
+     * 
+     * @param peer The peer object to add.
+     */
+    public void addPeer(Peer peer) {
+        peerInfoMap.put(peer.getPeerId(), peer);
+    }
+
     /**
      * Returns a single peer object based on the peerID.
      * 
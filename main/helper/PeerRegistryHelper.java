@@ -0,0 +1,108 @@
+package main.helper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import main.PeerHandler;
+
+/**
+ * This class keeps the handlers of the neighbors of a swarm keyed by their peer
+ * IDs. Handlers are looked up in constant time, and the handlers are iterated
+ * through an immutable snapshot which is replaced whenever a neighbor joins or
+ * leaves, so that the choke rounds and the broadcasts see a consistent set of
+ * neighbors while connections are accepted and closed by other threads.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class PeerRegistryHelper {
+
+	private final ConcurrentHashMap<String, PeerHandler> peerHandlerMap = new ConcurrentHashMap<String, PeerHandler>();
+	private volatile List<PeerHandler> snapshot = Collections.emptyList();
+
+	/**
+	 * Registers the handler of a neighbor, unless a handler is already registered
+	 * for the same neighbor.
+	 *
+	 * @param peerHandler - handler whose peer ID is known
+	 * @return boolean - false if another handler is registered for the neighbor
+	 */
+	public synchronized boolean add(PeerHandler peerHandler) {
+		if (peerHandlerMap.putIfAbsent(peerHandler.getPeerId(), peerHandler) != null) {
+			return false;
+		}
+		snapshot = Collections.unmodifiableList(new ArrayList<PeerHandler>(peerHandlerMap.values()));
+		return true;
+	}
+
+	/**
+	 * Registers the handler of a neighbor in place of the given handler, unless
+	 * the registered handler changed in the meantime.
+	 *
+	 * @param registeredHandler - handler which is registered for the neighbor
+	 * @param peerHandler       - handler which replaces it
+	 * @return boolean - true if the handler was replaced
+	 */
+	public synchronized boolean replace(PeerHandler registeredHandler, PeerHandler peerHandler) {
+		if (!peerHandlerMap.replace(peerHandler.getPeerId(), registeredHandler, peerHandler)) {
+			return false;
+		}
+		snapshot = Collections.unmodifiableList(new ArrayList<PeerHandler>(peerHandlerMap.values()));
+		return true;
+	}
+
+	/**
+	 * Removes the handler of a neighbor, unless another handler was registered for
+	 * the neighbor in the meantime.
+	 *
+	 * @param peerHandler - handler to remove
+	 * @return boolean - true if the handler was registered
+	 */
+	public synchronized boolean remove(PeerHandler peerHandler) {
+		if (peerHandler.getPeerId() == null || !peerHandlerMap.remove(peerHandler.getPeerId(), peerHandler)) {
+			return false;
+		}
+		snapshot = Collections.unmodifiableList(new ArrayList<PeerHandler>(peerHandlerMap.values()));
+		return true;
+	}
+
+	/**
+	 * Returns the handler of the given neighbor.
+	 *
+	 * @param peerId - peer ID of the neighbor
+	 * @return PeerHandler or null if the neighbor isn't connected
+	 */
+	public PeerHandler get(String peerId) {
+		return peerHandlerMap.get(peerId);
+	}
+
+	/**
+	 * checks if a handler is registered for the given neighbor
+	 *
+	 * @param peerId - peer ID of the neighbor
+	 * @return boolean
+	 */
+	public boolean contains(String peerId) {
+		return peerHandlerMap.containsKey(peerId);
+	}
+
+	/**
+	 * Returns the handlers registered at the moment. The list isn't changed by
+	 * later registrations.
+	 *
+	 * @return List of handlers
+	 */
+	public List<PeerHandler> snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * returns the number of registered handlers
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return snapshot.size();
+	}
+}
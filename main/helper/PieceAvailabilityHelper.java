@@ -0,0 +1,307 @@
+package main.helper;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+import main.constants.Constants;
+
+/**
+ * This class keeps track of how many neighbors hold each piece of the download
+ * file. It is updated incrementally from the bitfield and have messages of all
+ * the neighbors, and the pieces which the current peer is still missing are
+ * kept in buckets by their number of holders, so that the rarest piece which a
+ * neighbor can provide is found without scanning the whole file.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class PieceAvailabilityHelper {
+
+	private final int[] holderCounts; // number of neighbors holding each piece
+	private final int[] bucketPositions; // position of each missing piece within its bucket
+	private final boolean[] isDownloaded; // pieces which are no longer kept in the buckets
+
+	// buckets.get(n) holds the missing pieces which n neighbors have
+	private final ArrayList<Bucket> buckets = new ArrayList<Bucket>();
+
+	// A lock is used instead of a monitor so that virtual threads blocked on it
+	// don't pin their carrier threads.
+	private final ReentrantLock indexLock = new ReentrantLock();
+
+	/**
+	 * Creates the index with no holders for any piece. The pieces which the
+	 * current peer already has are left out of the buckets.
+	 *
+	 * @param localBitField - bit field of the current peer
+	 */
+	public PieceAvailabilityHelper(BitFieldHelper localBitField) {
+		int numOfPieces = localBitField.getNumberOfSegments();
+		holderCounts = new int[numOfPieces];
+		bucketPositions = new int[numOfPieces];
+		isDownloaded = new boolean[numOfPieces];
+
+		Bucket emptyBucket = getBucket(0);
+		for (int i = 0; i < numOfPieces; i++) {
+			if (localBitField.getValueAtIndex(i) == 1) {
+				isDownloaded[i] = true;
+			} else {
+				emptyBucket.add(i);
+			}
+		}
+	}
+
+	/**
+	 * Counts every piece of the given neighbor bit field as held by one more
+	 * neighbor.
+	 *
+	 * @param bitField - bit field received from a neighbor
+	 * @return null
+	 */
+	public void addBitField(BitFieldHelper bitField) {
+		indexLock.lock();
+		try {
+			for (int i = bitField.nextSetBit(0); i >= 0 && i < holderCounts.length; i = bitField.nextSetBit(i + 1)) {
+				changeHolderCount(i, 1);
+			}
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the pieces of the given neighbor bit field from the index, once the
+	 * neighbor is disconnected.
+	 *
+	 * @param bitField - bit field of the neighbor
+	 * @return null
+	 */
+	public void removeBitField(BitFieldHelper bitField) {
+		indexLock.lock();
+		try {
+			for (int i = bitField.nextSetBit(0); i >= 0 && i < holderCounts.length; i = bitField.nextSetBit(i + 1)) {
+				changeHolderCount(i, -1);
+			}
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/**
+	 * Counts the given piece as held by one more neighbor.
+	 *
+	 * @param index - index of the piece announced by a have message
+	 * @return null
+	 */
+	public void addPiece(int index) {
+		indexLock.lock();
+		try {
+			changeHolderCount(index, 1);
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes a piece which the current peer has downloaded out of the buckets. Its
+	 * holders are still counted.
+	 *
+	 * @param index - index of the downloaded piece
+	 * @return null
+	 */
+	public void markPieceDownloaded(int index) {
+		indexLock.lock();
+		try {
+			if (!isDownloaded[index]) {
+				getBucket(holderCounts[index]).remove(index);
+				isDownloaded[index] = true;
+			}
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of neighbors which hold the given piece.
+	 *
+	 * @param index - index of the piece
+	 * @return int - number of holders
+	 */
+	public int getHolderCount(int index) {
+		indexLock.lock();
+		try {
+			return holderCounts[index];
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/**
+	 * Looks up the number of neighbors which hold each of the given pieces while
+	 * the index is locked once.
+	 *
+	 * @param indices      - indices of the pieces
+	 * @param count        - number of pieces in the array
+	 * @param holderCounts - array which is filled with the number of holders
+	 * @return null
+	 */
+	public void getHolderCounts(int[] indices, int count, int[] holderCounts) {
+		indexLock.lock();
+		try {
+			for (int i = 0; i < count; i++) {
+				holderCounts[i] = this.holderCounts[indices[i]];
+			}
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a cursor which walks the pieces which the current peer is missing
+	 * and the given neighbor has, rarest first. A picker which needs several
+	 * pieces takes them from one cursor, so that the buckets are scanned once
+	 * however many pieces are rejected on the way.
+	 *
+	 * @param neighborBitField - bit field of the neighbor
+	 * @return RarestPieceCursor
+	 */
+	public RarestPieceCursor getRarestPieceCursor(BitFieldHelper neighborBitField) {
+		return new RarestPieceCursor(neighborBitField);
+	}
+
+	/**
+	 * Walks the buckets from the fewest holders upwards, and every bucket from a
+	 * random position, so that ties between equally rare pieces are broken at
+	 * random. The position in the buckets is kept between the calls.
+	 *
+	 * The cursor only takes a few candidates at a time while the index is locked,
+	 * and the additional condition is tested on them after the lock is released,
+	 * so that the pickers of the other neighbors and the have messages aren't
+	 * held up by the condition. A piece which moves to another bucket in the
+	 * meantime may be skipped or handed out twice, which the condition of the
+	 * picker has to tolerate.
+	 */
+	public class RarestPieceCursor {
+		private final BitFieldHelper neighborBitField;
+		private final int[] candidates = new int[Constants.RAREST_PIECE_CANDIDATES];
+		private int candidateCount = 0;
+		private int candidatePosition = 0;
+
+		// pieces without any holder cannot be provided by the neighbor
+		private int bucketCount = 1; // bucket which is being scanned
+		private int bucketStart = -1; // random start within the bucket, -1 until it is entered
+		private int bucketOffset = 0; // pieces of the bucket scanned so far
+
+		private RarestPieceCursor(BitFieldHelper neighborBitField) {
+			this.neighborBitField = neighborBitField;
+		}
+
+		/**
+		 * Returns the next rarest piece which meets the given condition. The pieces
+		 * which don't meet it are passed over for good.
+		 *
+		 * @param isWanted - additional condition which the piece has to meet
+		 * @return int - index of the piece, or -1 if the buckets are exhausted
+		 */
+		public int next(IntPredicate isWanted) {
+			while (true) {
+				while (candidatePosition < candidateCount) {
+					int index = candidates[candidatePosition++];
+					if (isWanted.test(index)) {
+						return index;
+					}
+				}
+
+				candidateCount = collectCandidates();
+				candidatePosition = 0;
+				if (candidateCount == 0) {
+					return -1;
+				}
+			}
+		}
+
+		/**
+		 * Takes the next pieces which the neighbor has from the buckets.
+		 *
+		 * @return int - number of pieces put into the candidates, rarest first
+		 */
+		private int collectCandidates() {
+			int found = 0;
+			indexLock.lock();
+			try {
+				while (bucketCount < buckets.size() && found < candidates.length) {
+					Bucket bucket = buckets.get(bucketCount);
+					if (bucketOffset >= bucket.size) {
+						bucketCount++;
+						bucketStart = -1;
+						bucketOffset = 0;
+						continue;
+					}
+					if (bucketStart == -1) {
+						bucketStart = ThreadLocalRandom.current().nextInt(bucket.size);
+					}
+
+					int index = bucket.pieces[(bucketStart + bucketOffset++) % bucket.size];
+					if (neighborBitField.getValueAtIndex(index) == 1) {
+						candidates[found++] = index;
+					}
+				}
+			} finally {
+				indexLock.unlock();
+			}
+			return found;
+		}
+	}
+
+	/**
+	 * Moves a piece to the bucket matching its new number of holders.
+	 *
+	 * @param index - index of the piece
+	 * @param delta - change of the number of holders
+	 */
+	private void changeHolderCount(int index, int delta) {
+		int count = holderCounts[index];
+		if (count + delta < 0) {
+			return;
+		}
+
+		holderCounts[index] = count + delta;
+		if (!isDownloaded[index]) {
+			getBucket(count).remove(index);
+			getBucket(count + delta).add(index);
+		}
+	}
+
+	private Bucket getBucket(int count) {
+		while (buckets.size() <= count) {
+			buckets.add(new Bucket());
+		}
+		return buckets.get(count);
+	}
+
+	/**
+	 * Unordered set of pieces with the same number of holders. A piece is removed
+	 * by moving the last piece of the bucket into its place.
+	 */
+	private class Bucket {
+		private int[] pieces = new int[16];
+		private int size = 0;
+
+		private void add(int index) {
+			if (size == pieces.length) {
+				int[] grownPieces = new int[size * 2];
+				System.arraycopy(pieces, 0, grownPieces, 0, size);
+				pieces = grownPieces;
+			}
+			bucketPositions[index] = size;
+			pieces[size++] = index;
+		}
+
+		private void remove(int index) {
+			int position = bucketPositions[index];
+			int lastIndex = pieces[--size];
+			pieces[position] = lastIndex;
+			bucketPositions[lastIndex] = position;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package main.helper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import main.constants.Constants;
+
+/**
+ * This class keeps pieces of the download file in memory so that pieces which
+ * are requested by many neighbors don't have to be read from the disk for every
+ * request. The cache is bounded by the total size of the cached pieces and is
+ * split into a probation and a protected segment (segmented LRU). New pieces
+ * enter the probation segment and are promoted to the protected segment only
+ * when another neighbor requests them again, so that a scan over pieces which
+ * are used once cannot evict the pieces which are used repeatedly.
+ *
+ * The cached byte arrays are shared with the callers and must not be modified.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class PieceCacheHelper {
+
+	private final long maxBytes;
+	private final long maxProtectedBytes;
+
+	// Both segments are kept in access order, so the eldest entry is the least
+	// recently used piece of the segment.
+	private final LinkedHashMap<Integer, CachedPiece> probationPieces = new LinkedHashMap<Integer, CachedPiece>(16,
+			0.75f, true);
+	private final LinkedHashMap<Integer, CachedPiece> protectedPieces = new LinkedHashMap<Integer, CachedPiece>(16,
+			0.75f, true);
+	private long probationBytes = 0;
+	private long protectedBytes = 0;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	// A lock is used instead of a monitor so that virtual threads blocked on it
+	// don't pin their carrier threads.
+	private final ReentrantLock cacheLock = new ReentrantLock();
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param maxBytes - upper bound on the total size of the cached pieces
+	 */
+	public PieceCacheHelper(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.maxProtectedBytes = maxBytes * Constants.PIECE_CACHE_PROTECTED_PERCENT / 100;
+	}
+
+	/**
+	 * Returns the cached contents of the given piece for the neighbor which
+	 * requests it. A piece is sent block by block, so the lookups which follow
+	 * each other for the same neighbor make up a single request of the piece.
+	 * Only the first of them is counted as a hit or a miss, and a piece found in
+	 * the probation segment is promoted to the protected segment only once a
+	 * neighbor other than the last one requests it.
+	 *
+	 * @param index       - index of the piece
+	 * @param requesterId - id of the neighbor which requests the piece
+	 * @return byte[] - contents of the piece, or null if it isn't cached
+	 */
+	public byte[] getPiece(int index, String requesterId) {
+		cacheLock.lock();
+		try {
+			CachedPiece piece = protectedPieces.get(index);
+			if (piece == null) {
+				piece = probationPieces.get(index);
+				if (piece == null) {
+					missCount.incrementAndGet();
+					return null;
+				}
+				if (piece.requesterId != null && !piece.requesterId.equals(requesterId)) {
+					probationPieces.remove(index);
+					probationBytes -= piece.data.length;
+					promotePiece(index, piece);
+				}
+			}
+			if (!Objects.equals(piece.requesterId, requesterId)) {
+				hitCount.incrementAndGet();
+				piece.requesterId = requesterId;
+			}
+			return piece.data;
+		} finally {
+			cacheLock.unlock();
+		}
+	}
+
+	/**
+	 * Checks whether the given piece is cached without counting a lookup or
+	 * changing its position.
+	 *
+	 * @param index - index of the piece
+	 * @return boolean - true if the piece is cached
+	 */
+	public boolean containsPiece(int index) {
+		cacheLock.lock();
+		try {
+			return protectedPieces.containsKey(index) || probationPieces.containsKey(index);
+		} finally {
+			cacheLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a piece which no neighbor has requested yet to the probation segment.
+	 *
+	 * @param index - index of the piece
+	 * @param data  - contents of the piece
+	 * @return null
+	 */
+	public void insertPiece(int index, byte[] data) {
+		insertPiece(index, data, null);
+	}
+
+	/**
+	 * Adds a piece to the probation segment, evicting the least recently used
+	 * pieces until the cache fits into its bound. Pieces larger than the whole
+	 * cache are not cached.
+	 *
+	 * @param index       - index of the piece
+	 * @param data        - contents of the piece
+	 * @param requesterId - id of the neighbor whose request missed the piece, or
+	 *                    null
+	 * @return null
+	 */
+	public void insertPiece(int index, byte[] data, String requesterId) {
+		if (data.length > maxBytes) {
+			return;
+		}
+
+		cacheLock.lock();
+		try {
+			if (protectedPieces.containsKey(index) || probationPieces.containsKey(index)) {
+				return;
+			}
+			probationPieces.put(index, new CachedPiece(data, requesterId));
+			probationBytes += data.length;
+			evictPieces();
+		} finally {
+			cacheLock.unlock();
+		}
+	}
+
+	/**
+	 * Moves a piece into the protected segment. The least recently used protected
+	 * pieces are moved back to the probation segment once the protected segment
+	 * outgrows its share of the cache.
+	 */
+	private void promotePiece(int index, CachedPiece piece) {
+		protectedPieces.put(index, piece);
+		protectedBytes += piece.data.length;
+
+		Iterator<Map.Entry<Integer, CachedPiece>> iterator = protectedPieces.entrySet().iterator();
+		while (protectedBytes > maxProtectedBytes && iterator.hasNext()) {
+			Map.Entry<Integer, CachedPiece> eldest = iterator.next();
+			if (eldest.getKey() == index) {
+				break;
+			}
+			iterator.remove();
+			protectedBytes -= eldest.getValue().data.length;
+			probationPieces.put(eldest.getKey(), eldest.getValue());
+			probationBytes += eldest.getValue().data.length;
+		}
+		evictPieces();
+	}
+
+	/**
+	 * Drops the least recently used probation pieces, and protected pieces only if
+	 * the probation segment is empty, until the cache fits into its bound.
+	 */
+	private void evictPieces() {
+		Iterator<CachedPiece> probationIterator = probationPieces.values().iterator();
+		while (probationBytes + protectedBytes > maxBytes && probationIterator.hasNext()) {
+			probationBytes -= probationIterator.next().data.length;
+			probationIterator.remove();
+		}
+
+		Iterator<CachedPiece> protectedIterator = protectedPieces.values().iterator();
+		while (probationBytes + protectedBytes > maxBytes && protectedIterator.hasNext()) {
+			protectedBytes -= protectedIterator.next().data.length;
+			protectedIterator.remove();
+		}
+	}
+
+	/**
+	 * Returns the number of lookups which found the piece in the cache.
+	 *
+	 * @return long - number of hits
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Returns the number of lookups which had to read the piece from the disk.
+	 *
+	 * @return long - number of misses
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Returns the share of the lookups which found the piece in the cache.
+	 *
+	 * @return double - hit rate between 0 and 1, 0 if there was no lookup
+	 */
+	public double getHitRate() {
+		long hits = hitCount.get();
+		long lookups = hits + missCount.get();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * A cached piece and the neighbor which requested it last. Guarded by the
+	 * cache lock.
+	 */
+	private static class CachedPiece {
+		private final byte[] data;
+		private String requesterId;
+
+		private CachedPiece(byte[] data, String requesterId) {
+			this.data = data;
+			this.requesterId = requesterId;
+		}
+	}
+}
@@ -4,45 +4,90 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import main.constants.Constants;
 import main.messageTypes.Piece;
+import main.messageTypes.Swarm;
 
 /**
  * This class is a helper class for dealing with piece related information for
- * the download files available within a given peer.
+ * the download files available within a given peer. Pieces are transferred in
+ * blocks of at most BlockSize bytes, which may arrive from different neighbors.
+ * The blocks of a piece are collected in a reassembly buffer and the piece is
+ * handed to the piece writer once all of its blocks have been received. The
+ * piece stays in the reassembly buffer until the writer has synced it to the
+ * disk and committed it to the bit field. Committed pieces are recorded in a
+ * journal, from which a restarted peer restores its bit field.
+ * 
+ * The download file is accessed either through positional FileChannel reads
+ * and writes or through memory mapped regions of the file, so that reads and
+ * writes of different pieces don't wait for each other. Only the update of the
+ * bit field is atomic. An optional piece cache keeps frequently served pieces
+ * in memory.
  * 
  * @author Sharan Sai Reddy Konda
  */
 public class PieceHelper {
 
-	int numOfPieces, pieceSize;
+	int numOfPieces, pieceSize, blockSize;
+	long fileSize;
+
+	// Reassembly buffers of the pieces which are not committed yet
+	private final Map<Integer, PartialPiece> partialPieces = new ConcurrentHashMap<>();
 
 	private RandomAccessFile outStream;
 	private FileInputStream inStream;
+	private FileChannel fileChannel;
+
+	// Regions of the download file when the mapped storage mode is used, null
+	// otherwise. Every region holds a whole number of pieces.
+	private MappedByteBuffer[] mappedRegions = null;
+	private long mappedRegionSize;
+
+	private PieceCacheHelper pieceCache = null; // null unless PieceCacheSize is set
+	private PieceJournalHelper journal = null; // null for a peer which starts with the complete file
+	private int resumedPieceCount = 0;
 
-	private static BitFieldHelper bitFieldHelper;
-	private static PieceHelper instance;
+	private BitFieldHelper bitFieldHelper;
 
 	/**
-	 * Returns the singleton instance of the Piece Helper
+	 * Returns a new instance of the Piece Helper for the file of a swarm
 	 * 
 	 * @param isFileExists - a boolean indicating whether the file is already
 	 *                     downloaded or not
 	 * @param peerID       - a number indicating the unique identifier for the given
 	 *                     peer
-	 * @return - returns the singleton instance of the Piece Helper
+	 * @param swarm        - swarm whose file is stored
+	 * @return - returns the instance of the Piece Helper or null if the download
+	 *         file cannot be set up
 	 */
-	public synchronized static PieceHelper returnSingletonInstance(boolean isFileExists, String peerID) {
-		if (instance != null) {
-			return instance;
-		}
+	public static PieceHelper getNewInstance(boolean isFileExists, String peerID, Swarm swarm) {
+		PieceHelper pieceHelper = new PieceHelper();
+		if (pieceHelper.configPieceHelper(isFileExists, peerID, swarm) == false)
+			pieceHelper = null;
 
-		instance = new PieceHelper();
-		if (instance.configPieceHelper(isFileExists, peerID) == false)
-			instance = null;
+		return pieceHelper;
+	}
 
-		return instance;
+	/**
+	 * Returns the path of the download file of a swarm for the given peer.
+	 * 
+	 * @param peerID - a number indicating the unique identifier for the given peer
+	 * @param swarm  - swarm whose file is stored
+	 * @return File - the download file
+	 */
+	public static File getDownloadFile(String peerID, Swarm swarm) {
+		return new File(new File(String.format(Constants.INPUT_FOLDER, peerID)).getAbsoluteFile(),
+				swarm.getFileName());
 	}
 
 	/**
@@ -53,15 +98,19 @@ public class PieceHelper {
 	 *                     downloaded or not
 	 * @param peerID       - a number indicating the unique identifier for the given
 	 *                     peer
+	 * @param swarm        - swarm whose file is stored
 	 * @return - boolean indicating whether the configuration was successful or not
 	 */
-	public boolean configPieceHelper(boolean isFileExists, String peerID) {
+	public boolean configPieceHelper(boolean isFileExists, String peerID, Swarm swarm) {
 
 		// Compute the number of pieces based on piece and file size
-		pieceSize = Integer.parseInt(CommonConfigHelper.getConfig(Constants.PIECE_SIZE_LABEL));
-		float pieceSizeFloat = (float) pieceSize;
-		numOfPieces = (int) Math
-				.ceil(Float.parseFloat(CommonConfigHelper.getConfig(Constants.FILE_SIZE_LABEL)) / pieceSizeFloat);
+		pieceSize = swarm.getPieceSize();
+		fileSize = swarm.getFileSize();
+		numOfPieces = swarm.getNumberOfPieces();
+		blockSize = CommonConfigHelper.getIntConfig(Constants.BLOCK_SIZE_LABEL, Constants.DEFAULT_BLOCK_SIZE);
+		if (blockSize <= 0 || blockSize > pieceSize) {
+			blockSize = pieceSize;
+		}
 
 		try {
 			// create a bit field helper and update the bit fields if the file has already
@@ -79,11 +128,34 @@ public class PieceHelper {
 			}
 
 			// create the empty download file inside the newly created directory
-			String outputFileName = String.format("%s/%s", directory.getAbsolutePath(),
-					CommonConfigHelper.getConfig(Constants.FILE_NAME_LABEL));
+			String outputFileName = getDownloadFile(peerID, swarm).getPath();
+
+			// restore the pieces which were committed before the peer was restarted
+			if (!isFileExists) {
+				File outputFile = new File(outputFileName);
+				journal = new PieceJournalHelper(outputFile, CommonConfigHelper.getIntConfig(
+						Constants.JOURNAL_CHECKPOINT_INTERVAL_LABEL, Constants.DEFAULT_JOURNAL_CHECKPOINT_INTERVAL));
+				if (!outputFile.exists()) {
+					journal.discard();
+				}
+				resumedPieceCount = journal.restore(bitFieldHelper);
+			}
 
 			outStream = new RandomAccessFile(outputFileName, "rw");
-			outStream.setLength(Integer.parseInt(CommonConfigHelper.getConfig(Constants.FILE_SIZE_LABEL)));
+			outStream.setLength(fileSize);
+			fileChannel = outStream.getChannel();
+
+			String storageMode = CommonConfigHelper.getConfig(Constants.STORAGE_MODE_LABEL,
+					Constants.STORAGE_MODE_POSITIONAL);
+			if (Constants.STORAGE_MODE_MAPPED.equalsIgnoreCase(storageMode)) {
+				mapDownloadFile();
+			}
+
+			int pieceCacheSize = CommonConfigHelper.getIntConfig(Constants.PIECE_CACHE_SIZE_LABEL,
+					Constants.DEFAULT_PIECE_CACHE_SIZE);
+			if (pieceCacheSize > 0) {
+				pieceCache = new PieceCacheHelper(pieceCacheSize);
+			}
 
 			return true;
 		} catch (Exception e) {
@@ -95,54 +167,529 @@ public class PieceHelper {
 	}
 
 	/**
-	 * Returns the nth piece from the file if it exists. Otherwise returns null
+	 * Maps the download file into regions of at most MAPPED_REGION_SIZE bytes. The
+	 * region size is rounded down to a multiple of the piece size so that no
+	 * piece spans two regions.
 	 * 
-	 * @param index - index indicating the position of piece within the file
-	 * @return Piece - returns the nth piece
+	 * @throws IOException if the file cannot be mapped
 	 */
-	synchronized public Piece getNthPieceFromFile(int index) throws IOException {
-		Piece newDataSegment = new Piece(pieceSize);
+	private void mapDownloadFile() throws IOException {
+		mappedRegionSize = Math.max(pieceSize, Constants.MAPPED_REGION_SIZE / pieceSize * pieceSize);
+		mappedRegions = new MappedByteBuffer[(int) ((fileSize + mappedRegionSize - 1) / mappedRegionSize)];
+		for (int i = 0; i < mappedRegions.length; i++) {
+			long position = i * mappedRegionSize;
+			mappedRegions[i] = fileChannel.map(FileChannel.MapMode.READ_WRITE, position,
+					Math.min(mappedRegionSize, fileSize - position));
+		}
+	}
 
+	/**
+	 * Returns the nth piece from the file if it exists. Otherwise returns null.
+	 * The piece is served from the piece cache if it is cached, and added to it
+	 * otherwise. The data of the returned piece must not be modified.
+	 * 
+	 * @param index       - index indicating the position of piece within the file
+	 * @param requesterId - id of the neighbor which requested the piece
+	 * @return Piece - returns the nth piece
+	 */
+	public Piece getNthPieceFromFile(int index, String requesterId) throws IOException {
 		// If the requested piece doesn't exist within the given peer, return null.
-		if (bitFieldHelper.getValueAtIndex(index) == 0)
+		if (!hasPiece(index))
 			return null;
 
-		// Fetch the piece from the download file
-		byte[] reqBytes = new byte[pieceSize];
-		outStream.seek(index * pieceSize);
-		int reqPieceSize = outStream.read(reqBytes);
+		byte[] reqBytes = pieceCache != null ? pieceCache.getPiece(index, requesterId) : null;
+		if (reqBytes == null) {
+			// Fetch the piece from the download file
+			reqBytes = readPieceFromFile(index);
+			if (pieceCache != null) {
+				pieceCache.insertPiece(index, reqBytes, requesterId);
+			}
+		}
+
+		Piece newDataSegment = new Piece(reqBytes.length);
+		newDataSegment.setData(reqBytes);
+		return newDataSegment;
+	}
+
+	/**
+	 * Reads the nth piece from the download file, whether or not it is marked as
+	 * downloaded, bypassing the piece cache.
+	 * 
+	 * @param index - index indicating the position of piece within the file
+	 * @return byte[] - contents of the piece
+	 * @throws IOException
+	 */
+	public byte[] readPieceFromFile(int index) throws IOException {
+		byte[] reqBytes = new byte[getPieceLength(index)];
+		readFromFile((long) index * pieceSize, reqBytes);
+		return reqBytes;
+	}
 
-		// If end of the file reached, piece doesnt exist
-		if (reqPieceSize == -1) {
+	/**
+	 * Returns the contents of a block of a piece which the current peer has. The
+	 * piece is read through the piece cache.
+	 * 
+	 * @param index       - index of the piece
+	 * @param begin       - offset of the block within the piece
+	 * @param length      - size of the block
+	 * @param requesterId - id of the neighbor which requested the block
+	 * @return byte[] - contents of the block, or null if the piece is missing
+	 * @throws IOException
+	 */
+	public byte[] getBlock(int index, int begin, int length, String requesterId) throws IOException {
+		Piece piece = getNthPieceFromFile(index, requesterId);
+		if (piece == null) {
 			return null;
 		}
 
-		// Store the fetched bytes inside the given piece.
-		byte[] newReqBytes = new byte[reqPieceSize];
-		System.arraycopy(reqBytes, 0, newReqBytes, 0, reqPieceSize);
-		newDataSegment.setData(newReqBytes);
+		byte[] block = new byte[length];
+		System.arraycopy(piece.getData(), begin, block, 0, length);
+		return block;
+	}
 
-		return newDataSegment;
+	/**
+	 * Loads a piece which the current peer has into the piece cache ahead of the
+	 * requests for it. The lookup isn't counted in the cache statistics.
+	 * 
+	 * @param index - index of the piece
+	 * @return null
+	 * @throws IOException
+	 */
+	public void prefetchPiece(int index) throws IOException {
+		if (pieceCache == null || !hasPiece(index) || pieceCache.containsPiece(index)) {
+			return;
+		}
+
+		pieceCache.insertPiece(index, readPieceFromFile(index));
+	}
+
+	/**
+	 * Adds a piece which was just downloaded to the piece cache, so that it can
+	 * be served to the neighbors without reading it back from the disk.
+	 * 
+	 * @param index - index of the piece
+	 * @param piece - the downloaded piece
+	 * @return null
+	 */
+	public void cachePiece(int index, Piece piece) {
+		if (pieceCache != null) {
+			pieceCache.insertPiece(index, piece.getData());
+		}
+	}
+
+	/**
+	 * Returns the piece cache.
+	 * 
+	 * @return PieceCacheHelper - the piece cache, or null if it is disabled
+	 */
+	public PieceCacheHelper getPieceCache() {
+		return pieceCache;
+	}
+
+	/**
+	 * Reads the given number of bytes at the given position of the download file.
+	 * The read doesn't change any shared position and hence may run concurrently
+	 * with other reads and writes.
+	 * 
+	 * @param position - position within the download file
+	 * @param data     - buffer which is filled completely
+	 * @throws IOException if the file ends before the buffer is filled
+	 */
+	private void readFromFile(long position, byte[] data) throws IOException {
+		if (mappedRegions != null) {
+			ByteBuffer region = mappedRegions[(int) (position / mappedRegionSize)].duplicate();
+			region.position((int) (position % mappedRegionSize));
+			region.get(data);
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Reached the end of the download file at position " + position);
+			}
+		}
+	}
+
+	/**
+	 * Writes the given bytes at the given position of the download file. The write
+	 * doesn't change any shared position and hence may run concurrently with other
+	 * reads and writes.
+	 * 
+	 * @param position - position within the download file
+	 * @param data     - bytes to be written
+	 * @throws IOException
+	 */
+	private void writeToFile(long position, byte[] data) throws IOException {
+		if (mappedRegions != null) {
+			ByteBuffer region = mappedRegions[(int) (position / mappedRegionSize)].duplicate();
+			region.position((int) (position % mappedRegionSize));
+			region.put(data);
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			fileChannel.write(buffer, position + buffer.position());
+		}
+	}
+
+	/**
+	 * Returns the size of the nth piece, which is smaller than the piece size only
+	 * for the last piece of the file.
+	 * 
+	 * @param index - index indicating the position of piece within the file
+	 * @return int - size of the piece in bytes
+	 */
+	public int getPieceLength(int index) {
+		long offset = (long) index * pieceSize;
+		return (int) Math.min(pieceSize, fileSize - offset);
+	}
+
+	/**
+	 * Returns the size of the blocks in which the pieces are transferred.
+	 * 
+	 * @return int - block size in bytes
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Returns the number of blocks of the nth piece.
+	 * 
+	 * @param index - index indicating the position of piece within the file
+	 * @return int - number of blocks
+	 */
+	public int getNumberOfBlocks(int index) {
+		return (getPieceLength(index) + blockSize - 1) / blockSize;
+	}
+
+	/**
+	 * Returns the size of the block which starts at the given offset of the nth
+	 * piece, which is smaller than the block size only for the last block of the
+	 * piece.
+	 * 
+	 * @param index - index indicating the position of piece within the file
+	 * @param begin - offset of the block within the piece
+	 * @return int - size of the block in bytes, or -1 if no block starts at the
+	 *         given offset
+	 */
+	public int getBlockLength(int index, int begin) {
+		if (index < 0 || index >= numOfPieces || begin < 0 || begin % blockSize != 0) {
+			return -1;
+		}
+
+		int pieceLength = getPieceLength(index);
+		if (begin >= pieceLength) {
+			return -1;
+		}
+		return Math.min(blockSize, pieceLength - begin);
+	}
+
+	/**
+	 * Combines a piece index and a block offset into a single key which identifies
+	 * the block.
+	 * 
+	 * @param index - index indicating the position of piece within the file
+	 * @param begin - offset of the block within the piece
+	 * @return long - key of the block
+	 */
+	public static long blockKey(int index, int begin) {
+		return ((long) index << 32) | (begin & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * checks if the block at the given offset of the nth piece has been received,
+	 * either as part of a complete piece or in the reassembly buffer.
+	 * 
+	 * @param index - index indicating the position of piece within the file
+	 * @param begin - offset of the block within the piece
+	 * @return boolean - indicates whether the block is available
+	 */
+	public boolean hasBlock(int index, int begin) {
+		if (hasPiece(index)) {
+			return true;
+		}
+
+		PartialPiece partialPiece = partialPieces.get(index);
+		return partialPiece != null && partialPiece.receivedBlocks[begin / blockSize];
+	}
+
+	/**
+	 * returns the indices of the pieces of which some blocks have been received,
+	 * but which are not committed yet.
+	 * 
+	 * @return Set - indices of the partially received pieces
+	 */
+	public Set<Integer> getPartialPieces() {
+		return partialPieces.keySet();
+	}
+
+	/**
+	 * checks if the nth piece has been downloaded for a given peer.
+	 * 
+	 * @param index - index indicating the position of piece within the file
+	 * @return boolean - indicates whether the piece is available
+	 */
+	public boolean hasPiece(int index) {
+		return index >= 0 && index < numOfPieces && bitFieldHelper.getValueAtIndex(index) == 1;
+	}
+
+	/**
+	 * returns the number of bytes of the file which are not downloaded yet, as
+	 * reported to the tracker.
+	 * 
+	 * @return long - bytes of the missing pieces
+	 */
+	public long getBytesLeft() {
+		// all the pieces are full sized except the last one, which may be shorter
+		long bytesLeft = (long) (numOfPieces - bitFieldHelper.getCountOfDownloadedSegments()) * pieceSize;
+		if (numOfPieces > 0 && !hasPiece(numOfPieces - 1)) {
+			bytesLeft -= pieceSize - getPieceLength(numOfPieces - 1);
+		}
+		return bytesLeft;
+	}
+
+	/**
+	 * Streams a block of the nth piece from the download file straight into the
+	 * target channel. When the target is a socket channel the bytes are copied by
+	 * the kernel and never land on the Java heap. The read is positional and hence
+	 * doesn't interfere with the seeks done by the writes.
+	 * 
+	 * @param index  - index indicating the position of piece within the file
+	 * @param begin  - offset of the block within the piece
+	 * @param length - size of the block
+	 * @param target - channel to which the block is written
+	 * @return long - number of bytes transferred
+	 */
+	public long transferBlock(int index, int begin, int length, WritableByteChannel target) throws IOException {
+		long transferred = 0;
+		while (transferred < length) {
+			transferred += transferBlock(index, begin, length, transferred, target);
+		}
+
+		return transferred;
+	}
+
+	/**
+	 * Streams the rest of a block, starting at the given offset within the block,
+	 * with a single transfer. A non-blocking target may accept only a part of the
+	 * remaining bytes.
+	 * 
+	 * @param index  - index indicating the position of piece within the file
+	 * @param begin  - offset of the block within the piece
+	 * @param length - size of the block
+	 * @param offset - number of bytes of the block which were already sent
+	 * @param target - channel to which the block is written
+	 * @return long - number of bytes transferred
+	 */
+	public long transferBlock(int index, int begin, int length, long offset, WritableByteChannel target)
+			throws IOException {
+		long position = (long) index * pieceSize + begin + offset;
+
+		long count = fileChannel.transferTo(position, length - offset, target);
+		if (count <= 0 && position >= fileChannel.size()) {
+			throw new IOException("Reached the end of the download file while sending piece " + index);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Stores a received block in the reassembly buffer of its piece. Once every
+	 * block of the piece has been received the piece is returned to be written by
+	 * the piece writer. It is kept in the reassembly buffer, so that its blocks are
+	 * not requested again, until the piece is committed. Blocks of pieces which
+	 * are already complete and blocks received twice are ignored.
+	 * 
+	 * @param index        - index indicating the position of piece within the file
+	 * @param begin        - offset of the block within the piece
+	 * @param data         - contents of the block
+	 * @param sourcePeerID - peer from which the block was received
+	 * @return Piece - the completed piece if this block completed it, otherwise
+	 *         null
+	 * @throws IOException if the block doesn't fit the piece
+	 */
+	public Piece insertBlock(int index, int begin, byte[] data, String sourcePeerID) throws IOException {
+		int blockLength = getBlockLength(index, begin);
+		if (blockLength == -1 || data.length != blockLength) {
+			throw new IOException(String.format("Received an invalid block of piece %d at offset %d with size %d",
+					index, begin, data.length));
+		}
+
+		if (hasPiece(index)) {
+			return null;
+		}
+
+		// Blocks of different pieces are assembled and written in parallel; only the
+		// blocks of the same piece wait for each other.
+		PartialPiece partialPiece = partialPieces.computeIfAbsent(index,
+				pieceIdx -> new PartialPiece(getPieceLength(pieceIdx), getNumberOfBlocks(pieceIdx)));
+		partialPiece.lock.lock();
+		try {
+			// the piece may have been completed before the buffer was looked up
+			if (hasPiece(index)) {
+				partialPieces.remove(index, partialPiece);
+				return null;
+			}
+
+			int blockIdx = begin / blockSize;
+			if (partialPiece.receivedBlocks[blockIdx]) {
+				return null;
+			}
+			System.arraycopy(data, 0, partialPiece.data, begin, blockLength);
+			partialPiece.receivedBlocks[blockIdx] = true;
+			partialPiece.blockSources[blockIdx] = sourcePeerID;
+			if (++partialPiece.receivedCount < partialPiece.receivedBlocks.length) {
+				return null;
+			}
+
+			Piece piece = new Piece(partialPiece.data.length);
+			piece.setData(partialPiece.data);
+			return piece;
+		} finally {
+			partialPiece.lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a run of adjacent pieces starting at the given index with a single
+	 * gathering write. Must only be called by the piece writer, which is the only
+	 * user of the position of the file channel.
+	 * 
+	 * @param firstIndex - index of the first piece of the run
+	 * @param pieces     - pieces of the run in the order of their indices
+	 * @return null
+	 * @throws IOException
+	 */
+	public void writePieces(int firstIndex, Piece[] pieces) throws IOException {
+		long position = (long) firstIndex * pieceSize;
+		if (mappedRegions != null) {
+			for (int i = 0; i < pieces.length; i++) {
+				writeToFile(position + (long) i * pieceSize, pieces[i].getData());
+			}
+			return;
+		}
+
+		ByteBuffer[] buffers = new ByteBuffer[pieces.length];
+		long remaining = 0;
+		for (int i = 0; i < pieces.length; i++) {
+			buffers[i] = ByteBuffer.wrap(pieces[i].getData());
+			remaining += buffers[i].remaining();
+		}
+		fileChannel.position(position);
+		while (remaining > 0) {
+			remaining -= fileChannel.write(buffers);
+		}
+	}
+
+	/**
+	 * Forces the pieces written so far to the disk.
+	 * 
+	 * @return null
+	 * @throws IOException
+	 */
+	public void syncPieces() throws IOException {
+		if (mappedRegions != null) {
+			for (MappedByteBuffer region : mappedRegions) {
+				region.force();
+			}
+		} else {
+			fileChannel.force(false);
+		}
+		if (journal != null) {
+			journal.sync();
+		}
+	}
+
+	/**
+	 * Marks a piece which has been written and synced to the disk as downloaded in
+	 * the bit field, records it in the journal and drops its reassembly buffer.
+	 * The journal entry itself is synced with the next pieces, hence a restarted
+	 * peer may download the last pieces again but never skips a missing one.
+	 * 
+	 * @param index - index of the piece
+	 * @return null
+	 */
+	public void commitPiece(int index) {
+		bitFieldHelper.setValueAtIndex(index, true);
+		partialPieces.remove(index);
+		if (journal != null) {
+			try {
+				journal.appendPiece(index, bitFieldHelper);
+			} catch (IOException e) {
+				System.out.printf("Exception occured while recording the piece %d in the journal. Message: %s\n",
+						index, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Marks the given pieces, which were restored from the journal but don't match
+	 * their hashes, as missing again and writes a new checkpoint. Must be called
+	 * before the pieces are announced to any neighbor.
+	 * 
+	 * @param indices - indices of the pieces
+	 * @return null
+	 * @throws IOException
+	 */
+	public void clearRestoredPieces(Iterable<Integer> indices) throws IOException {
+		for (int index : indices) {
+			bitFieldHelper.setValueAtIndex(index, false);
+			resumedPieceCount--;
+		}
+		if (journal != null) {
+			journal.checkpoint(bitFieldHelper);
+		}
+	}
+
+	/**
+	 * Returns the number of pieces which were restored from the journal when the
+	 * peer started.
+	 * 
+	 * @return int - number of restored pieces
+	 */
+	public int getResumedPieceCount() {
+		return resumedPieceCount;
+	}
+
+	/**
+	 * Drops a completed piece which failed its hash check, so that all of its
+	 * blocks are requested again.
+	 * 
+	 * @param index - index of the piece
+	 * @return null
+	 */
+	public void discardPiece(int index) {
+		partialPieces.remove(index);
 	}
 
 	/**
-	 * Write the given piece at offset index*pieceSize if the piece doesn't exist
-	 * already for a given peer.
+	 * returns the peers from which the blocks of a piece in the reassembly buffer
+	 * were received
 	 * 
-	 * @param index - indicates the offset at which the piece has to be inserted
-	 * @param null
+	 * @param index - index of the piece
+	 * @return Set of peer IDs, empty if the piece isn't in the reassembly buffer
 	 */
-	synchronized public void insertNthPiece(int index, Piece dataSegment) throws IOException {
-		// If the piece doesn't exist with the peer, then write it to the file at the
-		// specified offset.
-		if (bitFieldHelper.getValueAtIndex(index) == 0) {
-			outStream.seek(index * pieceSize);
-			outStream.write(dataSegment.getData());
+	public Set<String> getBlockSources(int index) {
+		HashSet<String> sources = new HashSet<String>();
+		PartialPiece partialPiece = partialPieces.get(index);
+		if (partialPiece == null) {
+			return sources;
+		}
 
-			// Update the bit field to 1 to indicate that the piece has been downloaded for
-			// a given peer.
-			bitFieldHelper.setValueAtIndex(index, true);
+		partialPiece.lock.lock();
+		try {
+			for (String sourcePeerID : partialPiece.blockSources) {
+				if (sourcePeerID != null) {
+					sources.add(sourcePeerID);
+				}
+			}
+		} finally {
+			partialPiece.lock.unlock();
 		}
+		return sources;
 	}
 
 	/**
@@ -150,7 +697,7 @@ public class PieceHelper {
 	 * 
 	 * @return boolean - indicates whether the file has been downloaded or not
 	 */
-	public synchronized boolean hasDownloadFileComplete() {
+	public boolean hasDownloadFileComplete() {
 		return bitFieldHelper.checkIfFileIsDownloaded();
 	}
 
@@ -168,8 +715,16 @@ public class PieceHelper {
 	 * 
 	 * @return null
 	 */
-	synchronized public void close() {
+	public void close() {
 		try {
+			if (mappedRegions != null) {
+				for (MappedByteBuffer region : mappedRegions) {
+					region.force();
+				}
+			}
+			if (journal != null) {
+				journal.close(bitFieldHelper);
+			}
 			if (inStream != null)
 				inStream.close();
 			if (outStream != null)
@@ -180,4 +735,21 @@ public class PieceHelper {
 					.printf("Exception occured while closing connections in Piece Manager. Message: " + e.getMessage());
 		}
 	}
+
+	/**
+	 * Reassembly buffer of a piece of which some blocks have been received.
+	 */
+	private static class PartialPiece {
+		private final byte[] data;
+		private final boolean[] receivedBlocks;
+		private final String[] blockSources; // peer from which every block was received
+		private int receivedCount = 0;
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private PartialPiece(int pieceLength, int numOfBlocks) {
+			this.data = new byte[pieceLength];
+			this.receivedBlocks = new boolean[numOfBlocks];
+			this.blockSources = new String[numOfBlocks];
+		}
+	}
 }
@@ -0,0 +1,179 @@
+package main.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import main.constants.Constants;
+
+/**
+ * This class records the pieces which are committed to the download file, so
+ * that a restarted peer picks up the pieces it already has instead of
+ * downloading the whole file again. Every committed piece is appended to a
+ * journal as its index. After a number of entries the whole bit field is
+ * written to a checkpoint file and the journal is emptied, which keeps the
+ * journal short. On startup the checkpoint is loaded and the journal replayed
+ * on top of it.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class PieceJournalHelper {
+
+	private static final int ENTRY_SIZE = 4; // index of a committed piece
+
+	private final File journalFile;
+	private final File checkpointFile;
+	private final int checkpointInterval;
+	private FileChannel journalChannel;
+	private int entriesSinceCheckpoint = 0;
+
+	private final ByteBuffer entryBuffer = ByteBuffer.allocate(ENTRY_SIZE);
+
+	/**
+	 * Creates the journal of the given download file.
+	 *
+	 * @param downloadFile       - download file whose pieces are recorded
+	 * @param checkpointInterval - number of entries after which a checkpoint is
+	 *                           written
+	 */
+	public PieceJournalHelper(File downloadFile, int checkpointInterval) {
+		this.journalFile = new File(String.format(Constants.PIECE_JOURNAL_FILE, downloadFile.getPath()));
+		this.checkpointFile = new File(String.format(Constants.PIECE_CHECKPOINT_FILE, downloadFile.getPath()));
+		this.checkpointInterval = Math.max(1, checkpointInterval);
+	}
+
+	/**
+	 * Marks the pieces recorded by the checkpoint and the journal in the given bit
+	 * field and opens the journal for appending. A journal entry which was only
+	 * partly written before the peer stopped is dropped.
+	 *
+	 * @param bitField - bit field of the current peer
+	 * @return int - number of restored pieces
+	 * @throws IOException
+	 */
+	public int restore(BitFieldHelper bitField) throws IOException {
+		int numOfPieces = bitField.getNumberOfSegments();
+		if (checkpointFile.exists()) {
+			ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(checkpointFile.toPath()));
+			if (checkpoint.remaining() >= 4 && checkpoint.getInt() == numOfPieces) {
+				byte[] packed = new byte[checkpoint.remaining()];
+				checkpoint.get(packed);
+				BitFieldHelper checkpointBitField = BitFieldHelper.fromByteArray(numOfPieces, packed);
+				for (int i = checkpointBitField.nextSetBit(0); i >= 0; i = checkpointBitField.nextSetBit(i + 1)) {
+					bitField.setValueAtIndex(i, true);
+				}
+			}
+		}
+
+		journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long validLength = journalChannel.size() / ENTRY_SIZE * ENTRY_SIZE;
+		ByteBuffer entries = ByteBuffer.allocate((int) validLength);
+		while (entries.hasRemaining()) {
+			if (journalChannel.read(entries, entries.position()) < 0) {
+				break;
+			}
+		}
+		entries.flip();
+		while (entries.remaining() >= ENTRY_SIZE) {
+			int index = entries.getInt();
+			if (index >= 0 && index < numOfPieces) {
+				bitField.setValueAtIndex(index, true);
+			}
+			entriesSinceCheckpoint++;
+		}
+		journalChannel.truncate(validLength);
+		journalChannel.position(validLength);
+
+		return bitField.getCountOfDownloadedSegments();
+	}
+
+	/**
+	 * Deletes the checkpoint and the journal, which no longer describe the
+	 * download file once the file itself is missing.
+	 *
+	 * @return null
+	 * @throws IOException
+	 */
+	public void discard() throws IOException {
+		Files.deleteIfExists(checkpointFile.toPath());
+		Files.deleteIfExists(journalFile.toPath());
+	}
+
+	/**
+	 * Appends a committed piece to the journal, and writes a checkpoint once the
+	 * journal holds enough entries. Must only be called by the piece writer.
+	 *
+	 * @param index    - index of the committed piece
+	 * @param bitField - bit field of the current peer, which already has the piece
+	 * @return null
+	 * @throws IOException
+	 */
+	public void appendPiece(int index, BitFieldHelper bitField) throws IOException {
+		entryBuffer.clear();
+		entryBuffer.putInt(index).flip();
+		while (entryBuffer.hasRemaining()) {
+			journalChannel.write(entryBuffer);
+		}
+
+		if (++entriesSinceCheckpoint >= checkpointInterval) {
+			checkpoint(bitField);
+		}
+	}
+
+	/**
+	 * Writes the whole bit field to the checkpoint file and empties the journal.
+	 * The checkpoint replaces the previous one only once it is complete on the
+	 * disk, and replaying a journal which wasn't emptied yet is harmless.
+	 *
+	 * @param bitField - bit field of the current peer
+	 * @return null
+	 * @throws IOException
+	 */
+	public void checkpoint(BitFieldHelper bitField) throws IOException {
+		byte[] packed = bitField.toByteArray();
+		ByteBuffer checkpoint = ByteBuffer.allocate(4 + packed.length);
+		checkpoint.putInt(bitField.getNumberOfSegments()).put(packed).flip();
+
+		File tempFile = new File(checkpointFile.getPath() + ".tmp");
+		try (FileChannel tempChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (checkpoint.hasRemaining()) {
+				tempChannel.write(checkpoint);
+			}
+			tempChannel.force(false);
+		}
+		Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		journalChannel.truncate(0);
+		journalChannel.position(0);
+		entriesSinceCheckpoint = 0;
+	}
+
+	/**
+	 * Forces the journal entries written so far to the disk.
+	 *
+	 * @return null
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		journalChannel.force(false);
+	}
+
+	/**
+	 * Writes a final checkpoint and closes the journal.
+	 *
+	 * @param bitField - bit field of the current peer
+	 * @return null
+	 * @throws IOException
+	 */
+	public void close(BitFieldHelper bitField) throws IOException {
+		checkpoint(bitField);
+		journalChannel.close();
+	}
+}
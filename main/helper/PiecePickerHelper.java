@@ -0,0 +1,234 @@
+package main.helper;
+
+/**
+ * This class decides which blocks are requested from a neighbor once its
+ * request window has free slots. The decision only depends on the availability
+ * index, the bit field of the neighbor and the reservation state it is given,
+ * so that the requester of a live connection and the offline replay of an event
+ * journal decide the same way, and a change to the picker can be compared on a
+ * recorded run.
+ *
+ * Blocks of the pieces which are already being downloaded are picked first so
+ * that the partially received pieces are completed before new pieces are
+ * started. New pieces are started rarest first. In the endgame the blocks which
+ * are still missing are picked even if they were already requested from another
+ * neighbor, so that the last pieces don't wait on a single slow neighbor.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class PiecePickerHelper {
+
+	/**
+	 * Picks the blocks to be requested from a neighbor until the given arrays are
+	 * full or nothing is left to pick. The picked blocks are reserved through the
+	 * given state.
+	 *
+	 * @param availabilityIndex - holders of the pieces which the current peer is
+	 *                          missing
+	 * @param neighborBitField  - pieces which the neighbor has
+	 * @param missingPieces     - pieces which the neighbor has and the current
+	 *                          peer is missing, walked in the endgame
+	 * @param state             - reservation state of the download
+	 * @param pieceIndices      - piece indices of the picked blocks, one per free
+	 *                          slot of the request window
+	 * @param blockOffsets      - offsets of the picked blocks
+	 * @return int - number of blocks picked
+	 */
+	public static int pickBlocks(PieceAvailabilityHelper availabilityIndex, BitFieldHelper neighborBitField,
+			BitFieldHelper missingPieces, PickState state, int[] pieceIndices, int[] blockOffsets) {
+		int freeSlots = pieceIndices.length;
+		int count = 0;
+
+		// finish the pieces which are already being downloaded
+		for (int pieceIdx : state.getStartedPieces()) {
+			if (count == freeSlots) {
+				break;
+			}
+			if (!state.hasPiece(pieceIdx) && neighborBitField.getValueAtIndex(pieceIdx) == 1
+					&& !state.isPieceCorrupt(pieceIdx)) {
+				count = reserveMissingBlocks(pieceIdx, state, pieceIndices, blockOffsets, count);
+			}
+		}
+
+		// start the rarest pieces which the neighbor has, unless the completed pieces
+		// which wait for the piece hashes have reached their bound
+		PieceAvailabilityHelper.RarestPieceCursor rarestPieces = availabilityIndex
+				.getRarestPieceCursor(neighborBitField);
+		while (count < freeSlots && state.canStartPiece()) {
+			int pieceIdx = rarestPieces.next(idx -> !state.isPieceCorrupt(idx) && hasUnreservedBlock(idx, state));
+			if (pieceIdx == -1) {
+				break;
+			}
+			count = reserveMissingBlocks(pieceIdx, state, pieceIndices, blockOffsets, count);
+		}
+
+		// request the remaining blocks from this neighbor as well
+		if (count < freeSlots && state.isEndgame()) {
+			for (int i = missingPieces.nextSetBit(0); i >= 0 && count < freeSlots; i = missingPieces
+					.nextSetBit(i + 1)) {
+				if (!state.isPieceCorrupt(i)) {
+					count = addEndgameBlocks(i, state, pieceIndices, blockOffsets, count);
+				}
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * This function reserves the blocks of the given piece which haven't been
+	 * received or requested from another neighbor yet, until the request arrays
+	 * are full. Blocks which the neighbor recently failed to send in time are left
+	 * to the other neighbors.
+	 *
+	 * @param pieceIdx     - index of the piece
+	 * @param state        - reservation state of the download
+	 * @param pieceIndices - piece indices of the blocks to be requested
+	 * @param blockOffsets - offsets of the blocks to be requested
+	 * @param count        - number of blocks already in the arrays
+	 * @return number of blocks in the arrays after the reservation
+	 */
+	private static int reserveMissingBlocks(int pieceIdx, PickState state, int[] pieceIndices, int[] blockOffsets,
+			int count) {
+		int pieceLength = state.getPieceLength(pieceIdx);
+
+		for (int begin = 0; begin < pieceLength && count < pieceIndices.length; begin += state.getBlockSize()) {
+			if (!state.hasBlock(pieceIdx, begin) && !state.isRequestBackedOff(pieceIdx, begin)
+					&& state.reserveBlock(pieceIdx, begin)) {
+				pieceIndices[count] = pieceIdx;
+				blockOffsets[count] = begin;
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * This function adds the blocks of the given piece which haven't been received
+	 * and aren't outstanding with the neighbor, whether or not they are reserved
+	 * by another neighbor. The reservation is shared with the other neighbors, so
+	 * that releasing it for this neighbor leaves theirs in place.
+	 *
+	 * @param pieceIdx     - index of the piece
+	 * @param state        - reservation state of the download
+	 * @param pieceIndices - piece indices of the blocks to be requested
+	 * @param blockOffsets - offsets of the blocks to be requested
+	 * @param count        - number of blocks already in the arrays
+	 * @return number of blocks in the arrays after adding the blocks
+	 */
+	private static int addEndgameBlocks(int pieceIdx, PickState state, int[] pieceIndices, int[] blockOffsets,
+			int count) {
+		int pieceLength = state.getPieceLength(pieceIdx);
+
+		for (int begin = 0; begin < pieceLength && count < pieceIndices.length; begin += state.getBlockSize()) {
+			if (!state.hasBlock(pieceIdx, begin) && !state.isRequestOutstanding(pieceIdx, begin)
+					&& !state.isRequestBackedOff(pieceIdx, begin)
+					&& !isBlockAdded(pieceIdx, begin, pieceIndices, blockOffsets, count)) {
+				state.shareBlock(pieceIdx, begin);
+				pieceIndices[count] = pieceIdx;
+				blockOffsets[count] = begin;
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	private static boolean isBlockAdded(int pieceIdx, int begin, int[] pieceIndices, int[] blockOffsets,
+			int count) {
+		for (int i = 0; i < count; i++) {
+			if (pieceIndices[i] == pieceIdx && blockOffsets[i] == begin) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * This function checks if any block of the given piece is neither received nor
+	 * requested from a neighbor yet.
+	 *
+	 * @param pieceIdx - index of the piece
+	 * @param state    - reservation state of the download
+	 * @return boolean indicating whether the piece has a block left to request
+	 */
+	private static boolean hasUnreservedBlock(int pieceIdx, PickState state) {
+		int pieceLength = state.getPieceLength(pieceIdx);
+
+		for (int begin = 0; begin < pieceLength; begin += state.getBlockSize()) {
+			if (!state.hasBlock(pieceIdx, begin) && !state.isBlockReserved(pieceIdx, begin)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * What the picker knows about the download and the neighbor it picks for. The
+	 * requester of a connection answers from the controller and the handler of
+	 * the neighbor, and the journal replay from the recorded events.
+	 */
+	public interface PickState {
+
+		/**
+		 * Returns the pieces of which some blocks are received or requested.
+		 */
+		Iterable<Integer> getStartedPieces();
+
+		int getPieceLength(int index);
+
+		int getBlockSize();
+
+		/**
+		 * Checks whether the current peer has the complete piece.
+		 */
+		boolean hasPiece(int index);
+
+		/**
+		 * Checks whether the block has been received.
+		 */
+		boolean hasBlock(int index, int begin);
+
+		/**
+		 * Checks whether the block is requested from any neighbor.
+		 */
+		boolean isBlockReserved(int index, int begin);
+
+		/**
+		 * Reserves the block for the neighbor.
+		 *
+		 * @return boolean - false if the block was reserved already
+		 */
+		boolean reserveBlock(int index, int begin);
+
+		/**
+		 * Reserves the block for the neighbor in the endgame, whether or not it is
+		 * requested from another neighbor.
+		 */
+		void shareBlock(int index, int begin);
+
+		/**
+		 * Checks whether the block is requested from the neighbor already.
+		 */
+		boolean isRequestOutstanding(int index, int begin);
+
+		/**
+		 * Checks whether the neighbor recently failed to send the block in time.
+		 */
+		boolean isRequestBackedOff(int index, int begin);
+
+		/**
+		 * Checks whether the neighbor sent a corrupted copy of the piece before and
+		 * another neighbor has it.
+		 */
+		boolean isPieceCorrupt(int index);
+
+		/**
+		 * Checks whether a new piece may be started.
+		 */
+		boolean canStartPiece();
+
+		boolean isEndgame();
+	}
+}
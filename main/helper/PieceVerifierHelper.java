@@ -0,0 +1,502 @@
+package main.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import main.PeerController;
+import main.constants.Constants;
+import main.messageTypes.Piece;
+import main.messageTypes.Swarm;
+
+/**
+ * This class checks the downloaded pieces against the SHA-256 digests of the
+ * swarm metadata before they are written. The metadata file is named after the
+ * info-hash of the swarm, holds the digest of every piece as a hex string on
+ * its own line, and is created by the peer which has the complete file when it
+ * doesn't exist yet. A swarm configured with a piece hash root sends the
+ * digests to every neighbor after the handshake, and a peer without them adopts
+ * received digests only if their SHA-256 digest, taken over the digests back to
+ * back, is the piece hash root. It then stores them in its own metadata file. A
+ * metadata file which doesn't match the piece hash root is ignored, and a swarm
+ * without a piece hash root only trusts the metadata file.
+ *
+ * No piece is written unverified: until the digests are available the
+ * completed pieces are held back, which is logged once, and they are verified
+ * as soon as the digests arrive. The held pieces are bounded in bytes, and no
+ * new piece is started while the bound is reached. Meanwhile the metadata file is looked for
+ * again at a fixed interval. The pieces are hashed on a pool of verifier
+ * threads shared by all the swarms of the process, so that the threads which
+ * read from the sockets never wait for a hash.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class PieceVerifierHelper {
+
+	private PeerController controller;
+
+	private ExecutorService verifierPool;
+	private volatile byte[][] pieceDigests = null; // null until the metadata is available
+	private File hashFile;
+	private volatile long nextLookupTime = 0; // milliseconds since the epoch
+	private long malformedFileTime = -1; // modification time of a metadata file which couldn't be read
+	private final AtomicBoolean isMissingLogged = new AtomicBoolean(false);
+
+	// Completed pieces which wait for the digests, their size, and the lock under
+	// which the digests are set so that no piece is held back after they arrived
+	private final ArrayList<HeldPiece> heldPieces = new ArrayList<HeldPiece>();
+	private long heldBytes = 0;
+	private final ReentrantLock digestLock = new ReentrantLock();
+
+	// Every verifier thread reuses its own digest
+	private static final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance(Constants.PIECE_HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	/**
+	 * Returns a new piece verifier helper for the swarm of the given controller.
+	 * The digests are loaded from the metadata file of the swarm, which is created
+	 * first if the current peer has the complete file.
+	 *
+	 * @param controller   - controller of the swarm whose pieces are verified
+	 * @param verifierPool - verifier threads shared by all the swarms
+	 * @return null
+	 */
+	public static PieceVerifierHelper getNewInstance(PeerController controller, ExecutorService verifierPool) {
+		if (controller == null) {
+			return null;
+		}
+
+		PieceVerifierHelper verifier = new PieceVerifierHelper();
+		verifier.controller = controller;
+		verifier.verifierPool = verifierPool;
+		verifier.hashFile = new File(String.format(Constants.PIECE_HASH_FILE, controller.getSwarm().getInfoHashHex()));
+
+		try {
+			if (!verifier.hashFile.exists() && controller.getPieceHelper().hasDownloadFileComplete()) {
+				verifier.createHashFile();
+			}
+			verifier.loadHashFile();
+		} catch (Exception e) {
+			System.out.printf("Exception occured while loading the piece hashes. Message: %s\n", e.getMessage());
+		}
+
+		return verifier;
+	}
+
+	/**
+	 * Hashes a completed piece on the verifier pool. A piece which matches its
+	 * digest is handed on to be written, and a piece which doesn't is discarded.
+	 * Pieces are held back while no metadata is available.
+	 *
+	 * @param index        - index of the piece
+	 * @param piece        - contents of the piece
+	 * @param sourcePeerID - peer from which the last block of the piece was
+	 *                     received
+	 * @return null
+	 */
+	public void verifyPiece(int index, Piece piece, String sourcePeerID) {
+		verifierPool.execute(() -> {
+			try {
+				if (getPieceDigests() == null && holdPiece(index, piece, sourcePeerID)) {
+					return;
+				}
+				if (isPieceValid(index, piece.getData())) {
+					controller.handlePieceVerified(index, piece, sourcePeerID);
+				} else {
+					controller.handlePieceCorrupted(index, sourcePeerID);
+				}
+			} catch (Exception e) {
+				// the failure is local, so the piece is discarded to be downloaded again
+				// instead of staying complete in the reassembly buffer, but none of the
+				// neighbors which sent its blocks is suspected
+				if (e instanceof InterruptedException) {
+					Thread.currentThread().interrupt();
+				}
+				System.out.printf("Exception occured while verifying the piece %d. Message: %s\n", index,
+						e.getMessage());
+				controller.handlePieceFailed(index);
+			}
+		});
+	}
+
+	/**
+	 * Holds back a completed piece until the digests are available.
+	 *
+	 * @param index        - index of the piece
+	 * @param piece        - contents of the piece
+	 * @param sourcePeerID - peer from which the last block of the piece was
+	 *                     received
+	 * @return boolean - false if the digests arrived in the meantime and the piece
+	 *         can be verified right away
+	 */
+	private boolean holdPiece(int index, Piece piece, String sourcePeerID) {
+		digestLock.lock();
+		try {
+			if (pieceDigests != null) {
+				return false;
+			}
+			heldPieces.add(new HeldPiece(index, piece, sourcePeerID));
+			heldBytes += piece.getDataLength();
+		} finally {
+			digestLock.unlock();
+		}
+
+		if (isMissingLogged.compareAndSet(false, true)) {
+			controller.getLogger().logMessage(Constants.PIECE_HASH_MISSING_LOG_MESSAGE, controller.getPeerId(),
+					controller.getSwarm().getInfoHashHex(), hashFile.getName());
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a new piece may be started. While the digests aren't
+	 * available the completed pieces are held in memory, so no piece is started
+	 * once they reach their bound, until the digests arrive.
+	 *
+	 * @return boolean - true if the digests are available or the held pieces are
+	 *         below their bound
+	 */
+	public boolean canStartPiece() {
+		if (getPieceDigests() != null) {
+			return true;
+		}
+
+		digestLock.lock();
+		try {
+			return pieceDigests != null || heldBytes < Constants.MAX_HELD_PIECE_BYTES;
+		} finally {
+			digestLock.unlock();
+		}
+	}
+
+	/**
+	 * Checks the given contents of a piece against its digest.
+	 *
+	 * @param index - index of the piece
+	 * @param data  - contents of the piece
+	 * @return boolean - true if the digest matches, false if it doesn't or no
+	 *         metadata is available
+	 */
+	public boolean isPieceValid(int index, byte[] data) {
+		byte[][] digests = pieceDigests;
+		return digests != null && index < digests.length
+				&& MessageDigest.isEqual(digests[index], digest.get().digest(data));
+	}
+
+	/**
+	 * Hashes every piece marked in the given bit field on the verifier pool.
+	 *
+	 * @param bitField - bit field of the pieces to be checked
+	 * @return List - indices of the pieces which don't match their digests
+	 * @throws Exception
+	 */
+	public List<Integer> recheckPieces(BitFieldHelper bitField) throws Exception {
+		PieceHelper pieceHelper = controller.getPieceHelper();
+		ArrayList<Integer> pieces = new ArrayList<Integer>();
+		ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = bitField.nextSetBit(0); i >= 0; i = bitField.nextSetBit(i + 1)) {
+			int index = i;
+			pieces.add(index);
+			results.add(verifierPool.submit(() -> isPieceValid(index, pieceHelper.readPieceFromFile(index))));
+		}
+
+		ArrayList<Integer> brokenPieces = new ArrayList<Integer>();
+		for (int i = 0; i < pieces.size(); i++) {
+			if (!results.get(i).get()) {
+				brokenPieces.add(pieces.get(i));
+			}
+		}
+		return brokenPieces;
+	}
+
+	/**
+	 * Checks whether the digests of the pieces are available.
+	 *
+	 * @return boolean - true if the metadata has been loaded
+	 */
+	public boolean hasPieceDigests() {
+		return getPieceDigests() != null;
+	}
+
+	/**
+	 * Returns the digests of all the pieces back to back, as they are sent to the
+	 * neighbors.
+	 *
+	 * @return byte[] or null if the metadata isn't available
+	 */
+	public byte[] getPackedDigests() {
+		byte[][] digests = getPieceDigests();
+		if (digests == null) {
+			return null;
+		}
+
+		return packDigests(digests);
+	}
+
+	/**
+	 * Checks the digests of all the pieces back to back against the piece hash
+	 * root of the swarm.
+	 *
+	 * @param packedDigests - digests of all the pieces back to back
+	 * @return boolean - true if they match, false if they don't or the swarm has
+	 *         no piece hash root
+	 */
+	private boolean matchesPieceHashRoot(byte[] packedDigests) {
+		byte[] pieceHashRoot = controller.getSwarm().getPieceHashRoot();
+		return pieceHashRoot != null && MessageDigest.isEqual(pieceHashRoot, digest.get().digest(packedDigests));
+	}
+
+	private static byte[] packDigests(byte[][] digests) {
+		byte[] packedDigests = new byte[digests.length * Constants.PIECE_HASH_SIZE];
+		for (int i = 0; i < digests.length; i++) {
+			System.arraycopy(digests[i], 0, packedDigests, i * Constants.PIECE_HASH_SIZE, Constants.PIECE_HASH_SIZE);
+		}
+		return packedDigests;
+	}
+
+	/**
+	 * Adopts the digests received from a neighbor if the current peer has none yet
+	 * and they match the piece hash root of the swarm, and stores them in the
+	 * metadata file so that the pieces can be rechecked after a restart.
+	 *
+	 * @param packedDigests - digests of all the pieces back to back
+	 * @param sourcePeerID  - peer from which the digests were received
+	 * @return boolean - true if the digests were adopted
+	 */
+	public boolean receivePieceDigests(byte[] packedDigests, String sourcePeerID) {
+		int numOfPieces = controller.getPieceHelper().getBitFieldHelper().getNumberOfSegments();
+		if (pieceDigests != null) {
+			return false;
+		}
+		if (packedDigests.length != numOfPieces * Constants.PIECE_HASH_SIZE || !matchesPieceHashRoot(packedDigests)) {
+			controller.getLogger().logMessage(Constants.PIECE_HASH_REJECTED_LOG_MESSAGE, controller.getPeerId(),
+					controller.getSwarm().getInfoHashHex(), sourcePeerID);
+			return false;
+		}
+
+		byte[][] digests = new byte[numOfPieces][];
+		for (int i = 0; i < numOfPieces; i++) {
+			digests[i] = Arrays.copyOfRange(packedDigests, i * Constants.PIECE_HASH_SIZE,
+					(i + 1) * Constants.PIECE_HASH_SIZE);
+		}
+		if (!setPieceDigests(digests)) {
+			return false;
+		}
+		controller.getLogger().logMessage(Constants.PIECE_HASH_RECEIVED_LOG_MESSAGE, controller.getPeerId(),
+				controller.getSwarm().getInfoHashHex(), sourcePeerID);
+
+		try {
+			writeHashFile(digests);
+		} catch (IOException e) {
+			System.out.printf("Exception occured while storing the piece hashes. Message: %s\n", e.getMessage());
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the digests unless they were set already, and verifies the pieces which
+	 * were held back until then.
+	 *
+	 * @param digests - digest of every piece
+	 * @return boolean - true if the digests were set by this call
+	 */
+	private boolean setPieceDigests(byte[][] digests) {
+		ArrayList<HeldPiece> pieces;
+		digestLock.lock();
+		try {
+			if (pieceDigests != null) {
+				return false;
+			}
+			pieceDigests = digests;
+			pieces = new ArrayList<HeldPiece>(heldPieces);
+			heldPieces.clear();
+			heldBytes = 0;
+		} finally {
+			digestLock.unlock();
+		}
+
+		for (HeldPiece heldPiece : pieces) {
+			verifyPiece(heldPiece.index, heldPiece.piece, heldPiece.sourcePeerID);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the digests, loading them if the metadata file has been created
+	 * since the last attempt. The file is looked for at most once per lookup
+	 * interval while it is missing.
+	 */
+	private byte[][] getPieceDigests() {
+		if (pieceDigests == null && System.currentTimeMillis() >= nextLookupTime) {
+			nextLookupTime = System.currentTimeMillis() + Constants.PIECE_HASH_LOOKUP_INTERVAL;
+			boolean isLoaded = false;
+			try {
+				isLoaded = loadHashFile();
+			} catch (IOException e) {
+				System.out.printf("Exception occured while loading the piece hashes. Message: %s\n", e.getMessage());
+			}
+			if (isLoaded && isMissingLogged.get()) {
+				controller.getLogger().logMessage(Constants.PIECE_HASH_LOADED_LOG_MESSAGE, controller.getPeerId(),
+						controller.getSwarm().getInfoHashHex(), hashFile.getName());
+			}
+		}
+		return pieceDigests;
+	}
+
+	/**
+	 * Reads the digests from the metadata file if it exists. A file with a line
+	 * which isn't the digest of a piece, or whose digests don't match the piece
+	 * hash root of the swarm, is reported once and treated as missing until it is
+	 * replaced.
+	 *
+	 * @return boolean - true if the digests were loaded by this call
+	 * @throws IOException
+	 */
+	private synchronized boolean loadHashFile() throws IOException {
+		if (pieceDigests != null || !hashFile.exists() || hashFile.lastModified() == malformedFileTime) {
+			return false;
+		}
+
+		long fileTime = hashFile.lastModified();
+		List<String> lines = Files.readAllLines(hashFile.toPath(), StandardCharsets.US_ASCII);
+		int numOfPieces = controller.getPieceHelper().getBitFieldHelper().getNumberOfSegments();
+		if (lines.size() < numOfPieces) {
+			// the file may still be written by another peer
+			return false;
+		}
+
+		byte[][] digests = new byte[numOfPieces][];
+		for (int i = 0; i < numOfPieces; i++) {
+			digests[i] = fromHex(lines.get(i).trim());
+			if (digests[i] == null) {
+				malformedFileTime = fileTime;
+				System.out.printf("Exception occured while loading the piece hashes. Message: line %d of %s isn't a"
+						+ " piece hash\n", i + 1, hashFile.getName());
+				return false;
+			}
+		}
+		if (controller.getSwarm().getPieceHashRoot() != null && !matchesPieceHashRoot(packDigests(digests))) {
+			malformedFileTime = fileTime;
+			controller.getLogger().logMessage(Constants.PIECE_HASH_ROOT_MISMATCH_LOG_MESSAGE, controller.getPeerId(),
+					hashFile.getName(), controller.getSwarm().getInfoHashHex());
+			return false;
+		}
+		return setPieceDigests(digests);
+	}
+
+	/**
+	 * Hashes every piece of the complete file on the verifier pool and writes the
+	 * digests to the metadata file. The piece hash root of the digests is logged so
+	 * that it can be configured for the swarm, and the file isn't written if the
+	 * swarm is configured with another piece hash root.
+	 *
+	 * @throws Exception
+	 */
+	private void createHashFile() throws Exception {
+		PieceHelper pieceHelper = controller.getPieceHelper();
+		int numOfPieces = pieceHelper.getBitFieldHelper().getNumberOfSegments();
+
+		ArrayList<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(numOfPieces);
+		for (int i = 0; i < numOfPieces; i++) {
+			int index = i;
+			futures.add(verifierPool.submit(() -> digest.get().digest(pieceHelper.readPieceFromFile(index))));
+		}
+
+		byte[][] digests = new byte[numOfPieces][];
+		for (int i = 0; i < numOfPieces; i++) {
+			digests[i] = futures.get(i).get();
+		}
+
+		byte[] packedDigests = packDigests(digests);
+		controller.getLogger().logMessage(Constants.PIECE_HASH_ROOT_LOG_MESSAGE, controller.getPeerId(),
+				Swarm.toHex(digest.get().digest(packedDigests)), controller.getSwarm().getInfoHashHex());
+		if (controller.getSwarm().getPieceHashRoot() != null && !matchesPieceHashRoot(packedDigests)) {
+			controller.getLogger().logMessage(Constants.PIECE_HASH_ROOT_MISMATCH_LOG_MESSAGE, controller.getPeerId(),
+					hashFile.getName(), controller.getSwarm().getInfoHashHex());
+			return;
+		}
+		writeHashFile(digests);
+	}
+
+	/**
+	 * Writes the digests to the metadata file. The file is written under a
+	 * temporary name of the current peer and then renamed, so that other peers
+	 * never read a partial file.
+	 *
+	 * @param digests - digest of every piece
+	 * @throws IOException
+	 */
+	private void writeHashFile(byte[][] digests) throws IOException {
+		File tempFile = new File(hashFile.getPath() + "." + controller.getPeerId() + ".tmp");
+		try (PrintWriter writer = new PrintWriter(tempFile, StandardCharsets.US_ASCII.name())) {
+			for (byte[] pieceDigest : digests) {
+				writer.println(toHex(pieceDigest));
+			}
+		}
+		if (!tempFile.renameTo(hashFile)) {
+			throw new IOException("Unable to create the piece hash file " + hashFile.getName());
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Parses the hex string of a piece digest.
+	 *
+	 * @param hex - the hex string
+	 * @return byte[] or null if the string isn't the hex string of a digest
+	 */
+	private static byte[] fromHex(String hex) {
+		if (hex.length() != 2 * Constants.PIECE_HASH_SIZE) {
+			return null;
+		}
+
+		byte[] bytes = new byte[Constants.PIECE_HASH_SIZE];
+		for (int i = 0; i < bytes.length; i++) {
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				return null;
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	/**
+	 * A completed piece which waits for the digests.
+	 */
+	private static class HeldPiece {
+		private final int index;
+		private final Piece piece;
+		private final String sourcePeerID; // peer from which the last block was received
+
+		private HeldPiece(int index, Piece piece, String sourcePeerID) {
+			this.index = index;
+			this.piece = piece;
+			this.sourcePeerID = sourcePeerID;
+		}
+	}
+}
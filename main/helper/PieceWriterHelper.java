@@ -0,0 +1,224 @@
+package main.helper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import main.PeerController;
+import main.constants.Constants;
+import main.messageTypes.Piece;
+
+/**
+ * This class writes the downloaded pieces to the download file behind the
+ * threads which receive them. Completed pieces are put into a bounded write
+ * buffer, and a single writer thread takes all the buffered pieces at once and
+ * writes every run of adjacent pieces with one gathering write. The file is
+ * synced to the disk at a fixed cadence, and only the pieces which were synced
+ * are marked in the bit field and announced to the neighbors.
+ *
+ * The writer is stopped with a flag rather than an interrupt, because an
+ * interrupt during a write or a sync closes the download file which the
+ * uploads still read from. Before it stops, the writer writes, syncs and
+ * commits the pieces which are still buffered or unsynced, so that no piece
+ * which was downloaded is lost at exit.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class PieceWriterHelper implements Runnable {
+
+	private PeerController controller;
+
+	private ArrayBlockingQueue<PendingPiece> writeBuffer;
+	private int syncInterval;
+	private Thread writerThread;
+	private volatile boolean isDestroyed = false;
+
+	/**
+	 * Returns a new piece writer helper for the swarm of the given controller
+	 *
+	 * @param controller - controller of the swarm whose pieces are written
+	 * @return null
+	 */
+	public static PieceWriterHelper getNewInstance(PeerController controller) {
+		if (controller == null) {
+			return null;
+		}
+
+		PieceWriterHelper writer = new PieceWriterHelper();
+		writer.controller = controller;
+		writer.writeBuffer = new ArrayBlockingQueue<PendingPiece>(Math.max(1, CommonConfigHelper
+				.getIntConfig(Constants.WRITE_BUFFER_SIZE_LABEL, Constants.DEFAULT_WRITE_BUFFER_SIZE)));
+		return writer;
+	}
+
+	/**
+	 * Adds a completed piece to the write buffer. The caller waits while the
+	 * buffer is full, which holds back the neighbors when the disk falls behind.
+	 * Pieces added once the writer is destroyed are dropped.
+	 *
+	 * @param index        - index of the piece
+	 * @param piece        - contents of the piece
+	 * @param sourcePeerID - peer from which the last block of the piece was
+	 *                     received
+	 * @return null
+	 * @throws InterruptedException
+	 */
+	public void writePiece(int index, Piece piece, String sourcePeerID) throws InterruptedException {
+		PendingPiece pendingPiece = new PendingPiece(index, piece, sourcePeerID);
+		while (!isDestroyed
+				&& !writeBuffer.offer(pendingPiece, Math.max(1, syncInterval), TimeUnit.MILLISECONDS)) {
+		}
+	}
+
+	/**
+	 * This function writes the buffered pieces until the writer is destroyed. The
+	 * pieces written since the last sync are synced and committed once the sync
+	 * interval has passed, and once more when the writer is destroyed.
+	 *
+	 * @return null
+	 */
+	public void run() {
+		PieceHelper pieceHelper = controller.getPieceHelper();
+		ArrayList<PendingPiece> batch = new ArrayList<PendingPiece>();
+		ArrayDeque<PendingPiece> unsyncedPieces = new ArrayDeque<PendingPiece>();
+		long lastSyncTime = System.currentTimeMillis();
+
+		while (!isDestroyed) {
+			try {
+				PendingPiece pendingPiece = writeBuffer.poll(Math.max(1, syncInterval), TimeUnit.MILLISECONDS);
+				if (pendingPiece != null) {
+					batch.add(pendingPiece);
+					writeBuffer.drainTo(batch);
+				}
+
+				// a batch which failed to be written is written again with the next batch
+				if (!batch.isEmpty()) {
+					writeRuns(pieceHelper, batch);
+					unsyncedPieces.addAll(batch);
+					batch.clear();
+				}
+
+				if (!unsyncedPieces.isEmpty() && System.currentTimeMillis() - lastSyncTime >= syncInterval) {
+					commitPieces(pieceHelper, unsyncedPieces);
+					lastSyncTime = System.currentTimeMillis();
+				}
+			} catch (Exception e) {
+				System.out.printf("Exception occured while writing the downloaded pieces. Message: %s\n",
+						e.getMessage());
+			}
+		}
+
+		// the pieces added before the writer was destroyed are flushed once
+		try {
+			writeBuffer.drainTo(batch);
+			if (!batch.isEmpty()) {
+				writeRuns(pieceHelper, batch);
+				unsyncedPieces.addAll(batch);
+			}
+			if (!unsyncedPieces.isEmpty()) {
+				commitPieces(pieceHelper, unsyncedPieces);
+			}
+		} catch (Exception e) {
+			System.out.printf("Exception occured while flushing the downloaded pieces at exit. Message: %s\n",
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Syncs the written pieces to the disk and commits them.
+	 *
+	 * @param pieceHelper    - piece helper owning the download file
+	 * @param unsyncedPieces - pieces written since the last sync
+	 * @throws Exception
+	 */
+	private void commitPieces(PieceHelper pieceHelper, ArrayDeque<PendingPiece> unsyncedPieces) throws Exception {
+		pieceHelper.syncPieces();
+		// a piece leaves the list once it is committed, so that a failure part of the
+		// way through doesn't commit the earlier pieces again on the next pass
+		while (!unsyncedPieces.isEmpty()) {
+			PendingPiece syncedPiece = unsyncedPieces.peek();
+			pieceHelper.commitPiece(syncedPiece.index);
+			unsyncedPieces.poll();
+			controller.handlePieceCommitted(syncedPiece.index, syncedPiece.piece, syncedPiece.sourcePeerID);
+		}
+	}
+
+	/**
+	 * Writes the given pieces ordered by their index, with one gathering write for
+	 * every run of adjacent pieces.
+	 *
+	 * @param pieceHelper - piece helper owning the download file
+	 * @param batch       - pieces to be written
+	 * @throws Exception
+	 */
+	private void writeRuns(PieceHelper pieceHelper, ArrayList<PendingPiece> batch) throws Exception {
+		batch.sort(Comparator.comparingInt(pendingPiece -> pendingPiece.index));
+
+		int runStart = 0;
+		for (int i = 1; i <= batch.size(); i++) {
+			if (i < batch.size() && batch.get(i).index == batch.get(i - 1).index + 1) {
+				continue;
+			}
+
+			Piece[] run = new Piece[i - runStart];
+			for (int j = runStart; j < i; j++) {
+				run[j - runStart] = batch.get(j).piece;
+			}
+			pieceHelper.writePieces(batch.get(runStart).index, run);
+			runStart = i;
+		}
+	}
+
+	/**
+	 * Starts the writer thread.
+	 *
+	 * @param syncInterval - indicates the interval in milliseconds at which the
+	 *                     written pieces are synced to the disk, 0 syncs after
+	 *                     every write
+	 * @return null
+	 */
+	public void start(int syncInterval) {
+		this.syncInterval = syncInterval;
+		writerThread = new Thread(this, "PieceWriter-" + controller.getPeerId());
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Stops the writer thread either due to completion of peer downloads or any
+	 * other reason, and waits until the pieces which were added before are
+	 * written, synced and committed, so that the download file may be closed
+	 * afterwards.
+	 *
+	 * @return null
+	 */
+	public void destroy() {
+		isDestroyed = true;
+		if (writerThread == null || writerThread == Thread.currentThread()) {
+			return;
+		}
+
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A completed piece waiting in the write buffer
+	 */
+	private static class PendingPiece {
+		private final int index;
+		private final Piece piece;
+		private final String sourcePeerID;
+
+		private PendingPiece(int index, Piece piece, String sourcePeerID) {
+			this.index = index;
+			this.piece = piece;
+			this.sourcePeerID = sourcePeerID;
+		}
+	}
+}
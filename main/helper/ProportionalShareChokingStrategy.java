@@ -0,0 +1,61 @@
+package main.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import main.constants.Constants;
+
+/**
+ * A choking policy which draws the preferred neighbors at random, with chances
+ * in proportion to their rates. Fast neighbors are unchoked most of the time,
+ * but a slow neighbor still gets a share of the slots instead of none, which
+ * keeps pieces flowing to every part of the swarm.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class ProportionalShareChokingStrategy implements ChokingStrategy {
+
+	private final Random random;
+
+	public ProportionalShareChokingStrategy(Random random) {
+		this.random = random;
+	}
+
+	/**
+	 * Draws the interested neighbors without replacement, each one weighted by
+	 * its rate plus a small base share.
+	 *
+	 * @param neighbors          - neighbors which completed the handshake
+	 * @param preferredNeighbors - number of neighbors to unchoke
+	 * @param isSeed             - whether the current peer has the complete file
+	 * @return List of the peer IDs to unchoke
+	 */
+	public List<String> selectPreferredNeighbors(List<Neighbor> neighbors, int preferredNeighbors, boolean isSeed) {
+		ArrayList<Neighbor> interestedNeighbors = new ArrayList<Neighbor>();
+		ArrayList<Double> weights = new ArrayList<Double>();
+		double totalWeight = 0;
+		for (Neighbor neighbor : neighbors) {
+			if (neighbor.isInterested()) {
+				double weight = neighbor.getRankingRate(isSeed) + Constants.PROPORTIONAL_SHARE_BASE_RATE;
+				interestedNeighbors.add(neighbor);
+				weights.add(weight);
+				totalWeight += weight;
+			}
+		}
+
+		ArrayList<String> unchokePeersList = new ArrayList<String>();
+		while (!interestedNeighbors.isEmpty() && unchokePeersList.size() < preferredNeighbors) {
+			double target = random.nextDouble() * totalWeight;
+			int index = 0;
+			while (index < interestedNeighbors.size() - 1 && target >= weights.get(index)) {
+				target -= weights.get(index);
+				index++;
+			}
+
+			unchokePeersList.add(interestedNeighbors.remove(index).getPeerId());
+			totalWeight -= weights.remove(index);
+		}
+		return unchokePeersList;
+	}
+}
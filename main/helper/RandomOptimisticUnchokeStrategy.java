@@ -0,0 +1,37 @@
+package main.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import main.helper.ChokingStrategy.Neighbor;
+
+/**
+ * Unchokes one of the interested choked neighbors, picked uniformly at random.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class RandomOptimisticUnchokeStrategy implements OptimisticUnchokeStrategy {
+
+	private final Random random = new Random();
+
+	/**
+	 * Picks a random interested neighbor.
+	 *
+	 * @param chokedNeighbors - neighbors which are choked by the current peer
+	 * @return String - peer ID of the neighbor, or null to unchoke none
+	 */
+	public String selectOptimisticNeighbor(List<Neighbor> chokedNeighbors) {
+		ArrayList<Neighbor> interestedNeighbors = new ArrayList<Neighbor>();
+		for (Neighbor neighbor : chokedNeighbors) {
+			if (neighbor.isInterested()) {
+				interestedNeighbors.add(neighbor);
+			}
+		}
+
+		if (interestedNeighbors.isEmpty()) {
+			return null;
+		}
+		return interestedNeighbors.get(random.nextInt(interestedNeighbors.size())).getPeerId();
+	}
+}
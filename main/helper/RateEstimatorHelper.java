@@ -0,0 +1,90 @@
+package main.helper;
+
+import java.util.Arrays;
+
+import main.constants.Constants;
+
+/**
+ * This class estimates the rate at which bytes are transferred over a
+ * connection. The bytes are counted in a ring buffer of fixed time buckets
+ * which covers the rate window, and the rate is an exponentially weighted
+ * moving average of the buckets, so recent transfers weigh more than old ones
+ * and the estimate decays smoothly instead of dropping to zero whenever a
+ * measurement restarts.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class RateEstimatorHelper {
+
+	private final long bucketDuration; // milliseconds covered by a bucket
+	private final int bucketCount; // completed buckets within the rate window
+	private final double smoothing; // weight of the newest bucket in the average
+	private final double totalWeight; // sum of the weights of the buckets of the window
+
+	// Bytes of every bucket and the number of the bucket which a slot holds, one
+	// slot more than the window so that the current bucket doesn't overwrite the
+	// oldest completed one
+	private final long[] bucketBytes;
+	private final long[] bucketNumbers;
+	private long totalBytes = 0;
+
+	/**
+	 * Creates an estimator for the given rate window.
+	 *
+	 * @param rateWindow - seconds over which the rate is averaged
+	 */
+	public RateEstimatorHelper(int rateWindow) {
+		this.bucketDuration = Constants.RATE_BUCKET_DURATION;
+		this.bucketCount = Math.max(1, (int) (rateWindow * 1000L / bucketDuration));
+		this.smoothing = 2.0 / (bucketCount + 1);
+		this.totalWeight = 1 - Math.pow(1 - smoothing, bucketCount);
+		this.bucketBytes = new long[bucketCount + 1];
+		this.bucketNumbers = new long[bucketCount + 1];
+		Arrays.fill(bucketNumbers, -1);
+	}
+
+	/**
+	 * Counts the given number of bytes as transferred now.
+	 *
+	 * @param bytes - number of bytes transferred
+	 * @return null
+	 */
+	public synchronized void addBytes(long bytes) {
+		long bucket = System.currentTimeMillis() / bucketDuration;
+		int slot = (int) (bucket % bucketBytes.length);
+		if (bucketNumbers[slot] != bucket) {
+			bucketNumbers[slot] = bucket;
+			bucketBytes[slot] = 0;
+		}
+		bucketBytes[slot] += bytes;
+		totalBytes += bytes;
+	}
+
+	/**
+	 * Returns the moving average of the rate over the completed buckets of the
+	 * rate window. The average starts from zero at the oldest bucket, so it is
+	 * divided by the sum of the weights of the buckets, which makes a steady rate
+	 * read as itself.
+	 *
+	 * @return double - bytes per second
+	 */
+	public synchronized double getRate() {
+		long currentBucket = System.currentTimeMillis() / bucketDuration;
+		double rate = 0;
+		for (long bucket = currentBucket - bucketCount; bucket < currentBucket; bucket++) {
+			int slot = (int) (bucket % bucketBytes.length);
+			long bytes = bucketNumbers[slot] == bucket ? bucketBytes[slot] : 0;
+			rate = smoothing * bytes + (1 - smoothing) * rate;
+		}
+		return rate / totalWeight * 1000.0 / bucketDuration;
+	}
+
+	/**
+	 * Returns the number of bytes counted since the estimator was created.
+	 *
+	 * @return long
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+}
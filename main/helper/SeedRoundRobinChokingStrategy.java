@@ -0,0 +1,92 @@
+package main.helper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import main.constants.Constants;
+
+/**
+ * A choking policy for seeds which shares the upload slots among all the
+ * interested neighbors in turn. A neighbor keeps its slot for a few rounds,
+ * and the neighbors which take pieces the fastest keep theirs first. Once a
+ * slot is free it goes to the neighbor which has waited the longest, so that
+ * a fast neighbor cannot hold on to a seed while the others starve. A peer
+ * which is still downloading chokes its neighbors tit-for-tat.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class SeedRoundRobinChokingStrategy implements ChokingStrategy {
+
+	private final TitForTatChokingStrategy downloadStrategy;
+
+	// Round in which every neighbor got its current slot, and the last round in
+	// which it had one
+	private final Map<String, Integer> unchokeRounds = new HashMap<String, Integer>();
+	private final Map<String, Integer> lastUnchokedRounds = new HashMap<String, Integer>();
+	private int round = 0;
+
+	public SeedRoundRobinChokingStrategy(Random random) {
+		this.downloadStrategy = new TitForTatChokingStrategy(random);
+	}
+
+	/**
+	 * Keeps the fastest neighbors whose turn isn't over and gives the remaining
+	 * slots to the neighbors which have waited the longest.
+	 *
+	 * @param neighbors          - neighbors which completed the handshake
+	 * @param preferredNeighbors - number of neighbors to unchoke
+	 * @param isSeed             - whether the current peer has the complete file
+	 * @return List of the peer IDs to unchoke
+	 */
+	public List<String> selectPreferredNeighbors(List<Neighbor> neighbors, int preferredNeighbors, boolean isSeed) {
+		if (!isSeed) {
+			return downloadStrategy.selectPreferredNeighbors(neighbors, preferredNeighbors, false);
+		}
+
+		round++;
+		ArrayList<Neighbor> keptNeighbors = new ArrayList<Neighbor>();
+		ArrayList<Neighbor> waitingNeighbors = new ArrayList<Neighbor>();
+		for (Neighbor neighbor : neighbors) {
+			if (!neighbor.isInterested()) {
+				continue;
+			}
+
+			Integer unchokeRound = unchokeRounds.get(neighbor.getPeerId());
+			if (!neighbor.isChoked() && unchokeRound != null
+					&& round - unchokeRound < Constants.SEED_UNCHOKE_ROUNDS) {
+				keptNeighbors.add(neighbor);
+			} else {
+				waitingNeighbors.add(neighbor);
+			}
+		}
+
+		keptNeighbors.sort(
+				(neighbor1, neighbor2) -> Double.compare(neighbor2.getUploadRate(), neighbor1.getUploadRate()));
+		waitingNeighbors.sort((neighbor1, neighbor2) -> Integer.compare(
+				lastUnchokedRounds.getOrDefault(neighbor1.getPeerId(), 0),
+				lastUnchokedRounds.getOrDefault(neighbor2.getPeerId(), 0)));
+
+		ArrayList<String> unchokePeersList = new ArrayList<String>();
+		HashMap<String, Integer> nextUnchokeRounds = new HashMap<String, Integer>();
+		for (int i = 0; i < keptNeighbors.size() && unchokePeersList.size() < preferredNeighbors; i++) {
+			String peerId = keptNeighbors.get(i).getPeerId();
+			unchokePeersList.add(peerId);
+			nextUnchokeRounds.put(peerId, unchokeRounds.get(peerId));
+		}
+		for (int i = 0; i < waitingNeighbors.size() && unchokePeersList.size() < preferredNeighbors; i++) {
+			String peerId = waitingNeighbors.get(i).getPeerId();
+			unchokePeersList.add(peerId);
+			nextUnchokeRounds.put(peerId, round);
+		}
+
+		unchokeRounds.clear();
+		unchokeRounds.putAll(nextUnchokeRounds);
+		for (String peerId : unchokePeersList) {
+			lastUnchokedRounds.put(peerId, round);
+		}
+		return unchokePeersList;
+	}
+}
@@ -0,0 +1,131 @@
+package main.helper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import main.constants.Constants;
+import main.messageTypes.Swarm;
+
+/**
+ * This class extracts the swarms served by the peer process. Every line of the
+ * swarm config file describes one shared file as its name, size, piece size, an
+ * optional priority and an optional piece hash root in hex. Without a swarm
+ * config file the process serves the single file described by the common config
+ * file.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class SwarmInfoHelper {
+
+    private ArrayList<Swarm> swarms = null;
+    private static SwarmInfoHelper instance = null;
+
+    /**
+     * This function returns a singleton SwarmInfoHelper instance which has all the
+     * swarms extracted from the config files.
+     *
+     * @return SwarmInfoHelper or null if the swarm config file is invalid
+     */
+    public static synchronized SwarmInfoHelper returnSingletonInstance() {
+        if (instance == null) {
+            instance = new SwarmInfoHelper();
+            if (!instance.configSwarmInfo()) {
+                instance = null;
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * This function extracts the swarms from the swarm config file, or the single
+     * swarm of the common config file if there is no swarm config file.
+     *
+     * @return boolean indicating whether the extraction of the swarms was
+     *         successful or not
+     */
+    public boolean configSwarmInfo() {
+        swarms = new ArrayList<>();
+        if (!new File(Constants.SWARM_INFO_FILE).exists()) {
+            String fileName = CommonConfigHelper.getConfig(Constants.FILE_NAME_LABEL);
+            String pieceHashRootHex = CommonConfigHelper.getConfig(Constants.PIECE_HASH_ROOT_LABEL);
+            byte[] pieceHashRoot = null;
+            if (pieceHashRootHex != null) {
+                pieceHashRoot = parsePieceHashRoot(fileName, pieceHashRootHex);
+                if (pieceHashRoot == null) {
+                    return false;
+                }
+            }
+            swarms.add(new Swarm(fileName, Long.parseLong(CommonConfigHelper.getConfig(Constants.FILE_SIZE_LABEL)),
+                    Integer.parseInt(CommonConfigHelper.getConfig(Constants.PIECE_SIZE_LABEL)),
+                    Constants.DEFAULT_SWARM_PRIORITY, pieceHashRoot));
+            return true;
+        }
+
+        HashSet<String> fileNames = new HashSet<>();
+        try (BufferedReader bufferedReader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(Constants.SWARM_INFO_FILE)))) {
+            String row;
+            while ((row = bufferedReader.readLine()) != null) {
+                row = row.trim();
+                if (row.isEmpty()) {
+                    continue;
+                }
+
+                String[] tokens = row.split("\\s+");
+                int priority = tokens.length > 3 ? Integer.parseInt(tokens[3]) : Constants.DEFAULT_SWARM_PRIORITY;
+                // the files of all the swarms are stored in the same peer directory
+                if (!fileNames.add(tokens[0])) {
+                    System.out.printf("The file %s is listed more than once in the swarm config file\n", tokens[0]);
+                    return false;
+                }
+                byte[] pieceHashRoot = null;
+                if (tokens.length > 4) {
+                    pieceHashRoot = parsePieceHashRoot(tokens[0], tokens[4]);
+                    if (pieceHashRoot == null) {
+                        return false;
+                    }
+                }
+                swarms.add(new Swarm(tokens[0], Long.parseLong(tokens[1]), Integer.parseInt(tokens[2]), priority,
+                        pieceHashRoot));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("Exception occurred when extracting info from the swarm config file. Message: %s\n",
+                    e.getMessage());
+            return false;
+        }
+
+        return !swarms.isEmpty();
+    }
+
+    /**
+     * Parses the piece hash root of a swarm, which must be a SHA-256 digest in hex.
+     *
+     * @param fileName      - name of the shared file, for the error message
+     * @param pieceHashRoot - the piece hash root in hex
+     * @return byte[] or null if the piece hash root is invalid
+     */
+    private static byte[] parsePieceHashRoot(String fileName, String pieceHashRoot) {
+        byte[] root = Swarm.fromHex(pieceHashRoot);
+        if (root == null || root.length != Constants.PIECE_HASH_SIZE) {
+            System.out.printf("The piece hash root %s of the file %s isn't a %s digest in hex\n", pieceHashRoot,
+                    fileName, Constants.PIECE_HASH_ALGORITHM);
+            return null;
+        }
+        return root;
+    }
+
+    /**
+     * Returns the swarms served by the peer process.
+     *
+     * @return a list of swarms
+     */
+    public List<Swarm> getSwarms() {
+        return swarms;
+    }
+}
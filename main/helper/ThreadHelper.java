@@ -0,0 +1,71 @@
+package main.helper;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import main.constants.Constants;
+
+/**
+ * This class starts the threads which serve the peer connections. Depending on
+ * the thread mode in the common config file the connections run either on
+ * platform threads or on virtual threads, which allows a single process to
+ * hold thousands of connections.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class ThreadHelper {
+
+	// Factory for the connection threads
+	private static ThreadFactory threadFactory;
+
+	static {
+		threadFactory = createThreadFactory(
+				CommonConfigHelper.getConfig(Constants.THREAD_MODE_LABEL, Constants.THREAD_MODE_PLATFORM));
+	}
+
+	/**
+	 * Creates the thread factory for the given thread mode. Virtual threads are
+	 * looked up reflectively so that the code still compiles and runs on JDKs
+	 * which don't have them, in which case platform threads are used instead.
+	 *
+	 * @param threadMode - platform or virtual
+	 * @return ThreadFactory
+	 */
+	private static ThreadFactory createThreadFactory(String threadMode) {
+		if (Constants.THREAD_MODE_VIRTUAL.equalsIgnoreCase(threadMode)) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+				return (ThreadFactory) factory.invoke(builder);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				System.out.printf(
+						"Virtual threads are not supported by this JDK, falling back to platform threads. Message: %s\n",
+						e.getMessage());
+			}
+		}
+
+		return Thread::new;
+	}
+
+	/**
+	 * returns the factory of the connection threads, for the pools which run
+	 * blocking network work
+	 *
+	 * @return ThreadFactory
+	 */
+	public static ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Starts the given task on a new connection thread.
+	 *
+	 * @param task - task to be executed
+	 * @return Thread - the started thread
+	 */
+	public static Thread start(Runnable task) {
+		Thread thread = threadFactory.newThread(task);
+		thread.start();
+		return thread;
+	}
+}
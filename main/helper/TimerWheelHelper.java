@@ -0,0 +1,262 @@
+package main.helper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import main.constants.Constants;
+
+/**
+ * This class runs the timed work of a swarm on a hashed timer wheel: the choke
+ * rounds, the optimistic unchoke, the have flushes, the announces, the
+ * keep-alives and the timeouts of the requests sent to every neighbor. Every
+ * timeout is kept in the bucket of the tick at which it expires, so adding and
+ * cancelling a timeout take constant time however many are pending, which
+ * matters for the request timeouts that are added and cancelled for every
+ * block.
+ *
+ * The wheel has no thread of its own. It is ticked by the scheduler of the
+ * engine, and the expired tasks run on the same scheduler, so the swarms of a
+ * process share a fixed number of threads.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class TimerWheelHelper implements Runnable {
+
+	private ScheduledExecutorService executor;
+	private long tickDuration; // nanoseconds covered by a bucket
+	private final List<ArrayDeque<Timeout>> buckets = new ArrayList<ArrayDeque<Timeout>>();
+	private final long startTime = System.nanoTime();
+	private long currentTick = 0; // only touched by the tick
+
+	// Timeouts added since the last tick, placed into their buckets by the tick
+	// so that the buckets are only used by one thread
+	private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+	private volatile boolean isDestroyed = false;
+	private ScheduledFuture<?> process = null;
+
+	/**
+	 * Returns a new timer wheel whose tasks run on the given scheduler
+	 *
+	 * @param executor - scheduler which ticks the wheel and runs the tasks
+	 * @return null
+	 */
+	public static TimerWheelHelper getNewInstance(ScheduledExecutorService executor) {
+		if (executor == null) {
+			return null;
+		}
+
+		TimerWheelHelper timer = new TimerWheelHelper();
+		timer.executor = executor;
+		timer.tickDuration = TimeUnit.MILLISECONDS.toNanos(Constants.TIMER_TICK_DURATION);
+		for (int i = 0; i < Constants.TIMER_WHEEL_SIZE; i++) {
+			timer.buckets.add(new ArrayDeque<Timeout>());
+		}
+		return timer;
+	}
+
+	/**
+	 * Runs the task once after the given delay.
+	 *
+	 * @param task  - task to run
+	 * @param delay - delay before the task runs
+	 * @param unit  - unit of the delay
+	 * @return Timeout by which the task is cancelled
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		return add(new Timeout(task, elapsed() + unit.toNanos(delay), 0));
+	}
+
+	/**
+	 * Runs the task repeatedly at the given interval. A run which is late doesn't
+	 * cause the following runs to bunch up, and a task which throws keeps being
+	 * run.
+	 *
+	 * @param task         - task to run
+	 * @param initialDelay - delay before the first run
+	 * @param period       - interval between the runs
+	 * @param unit         - unit of the delay and the interval
+	 * @return Timeout by which the task is cancelled
+	 */
+	public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+		return add(new Timeout(task, elapsed() + unit.toNanos(initialDelay), Math.max(1, unit.toNanos(period))));
+	}
+
+	/**
+	 * Runs the task on the scheduler without waiting for a tick.
+	 *
+	 * @param task - task to run
+	 * @return null
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Adds a timeout to the wheel, unless the wheel is destroyed.
+	 *
+	 * @param timeout - timeout to add
+	 * @return Timeout
+	 */
+	private Timeout add(Timeout timeout) {
+		if (isDestroyed) {
+			timeout.cancel();
+		} else {
+			pendingTimeouts.add(timeout);
+		}
+		return timeout;
+	}
+
+	/**
+	 * This function advances the wheel up to the current time. The timeouts
+	 * added since the last tick are placed into their buckets, and the due
+	 * timeouts of every passed bucket are handed to the scheduler.
+	 *
+	 * @return null
+	 */
+	public void run() {
+		try {
+			long targetTick = elapsed() / tickDuration;
+			while (currentTick <= targetTick && !isDestroyed) {
+				Timeout timeout;
+				while ((timeout = pendingTimeouts.poll()) != null) {
+					if (!timeout.isCancelled()) {
+						place(timeout);
+					}
+				}
+
+				expireTimeouts(buckets.get((int) (currentTick % buckets.size())));
+				currentTick++;
+			}
+		} catch (Exception e) {
+			System.out.printf("Exception occured while advancing the timer wheel. Message: %s\n", e.getMessage());
+		}
+	}
+
+	/**
+	 * Puts a timeout into the bucket of the tick at which it expires. A timeout
+	 * which lies further ahead than one turn of the wheel waits for the
+	 * remaining turns in its bucket.
+	 *
+	 * @param timeout - timeout to place
+	 */
+	private void place(Timeout timeout) {
+		long deadlineTick = Math.max((timeout.deadline + tickDuration - 1) / tickDuration, currentTick);
+		timeout.remainingRounds = (deadlineTick - currentTick) / buckets.size();
+		buckets.get((int) (deadlineTick % buckets.size())).add(timeout);
+	}
+
+	/**
+	 * Hands the due timeouts of a bucket to the scheduler and drops the cancelled
+	 * ones.
+	 *
+	 * @param bucket - bucket of the current tick
+	 */
+	private void expireTimeouts(ArrayDeque<Timeout> bucket) {
+		for (Iterator<Timeout> iterator = bucket.iterator(); iterator.hasNext();) {
+			Timeout timeout = iterator.next();
+			if (timeout.isCancelled()) {
+				iterator.remove();
+			} else if (timeout.remainingRounds > 0) {
+				timeout.remainingRounds--;
+			} else {
+				iterator.remove();
+				executor.execute(() -> runTimeout(timeout));
+			}
+		}
+	}
+
+	/**
+	 * Runs the task of an expired timeout, and adds a repeated timeout to the
+	 * wheel again for its next run.
+	 *
+	 * @param timeout - expired timeout
+	 */
+	private void runTimeout(Timeout timeout) {
+		if (timeout.isCancelled()) {
+			return;
+		}
+
+		try {
+			timeout.task.run();
+		} catch (Exception e) {
+			System.out.printf("Exception occured while running a timed task. Message: %s\n", e.getMessage());
+		}
+
+		if (timeout.period > 0 && !timeout.isCancelled()) {
+			timeout.deadline = Math.max(timeout.deadline + timeout.period, elapsed());
+			add(timeout);
+		}
+	}
+
+	/**
+	 * returns the nanoseconds since the wheel was created
+	 *
+	 * @return long
+	 */
+	private long elapsed() {
+		return System.nanoTime() - startTime;
+	}
+
+	/**
+	 * Starts ticking the wheel on the scheduler.
+	 *
+	 * @return null
+	 */
+	public void start() {
+		process = executor.scheduleAtFixedRate(this, Constants.TIMER_TICK_DURATION, Constants.TIMER_TICK_DURATION,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the wheel once the swarm is terminated. The pending timeouts are
+	 * dropped, and timeouts added later never run.
+	 *
+	 * @return null
+	 */
+	public void destroy() {
+		isDestroyed = true;
+		if (process != null) {
+			process.cancel(false);
+		}
+		pendingTimeouts.clear();
+	}
+
+	/**
+	 * A task waiting on the wheel.
+	 */
+	public static class Timeout {
+		private final Runnable task;
+		private final long period; // nanoseconds between the runs, 0 to run once
+		private long deadline; // nanoseconds since the wheel was created
+		private long remainingRounds = 0; // turns of the wheel left before the timeout is due
+		private volatile boolean isCancelled = false;
+
+		private Timeout(Runnable task, long deadline, long period) {
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+		/**
+		 * Cancels the task. The timeout is dropped from its bucket the next time the
+		 * wheel passes it.
+		 *
+		 * @return null
+		 */
+		public void cancel() {
+			isCancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return isCancelled;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package main.helper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * The classic choking policy: the interested neighbors which sent pieces to the
+ * current peer the fastest are unchoked, so that neighbors are rewarded for
+ * what they give. A seed ranks the neighbors by the rate at which they take
+ * pieces from it instead. Neighbors with the same rate are ranked at random.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class TitForTatChokingStrategy implements ChokingStrategy {
+
+	private final Random random;
+
+	public TitForTatChokingStrategy(Random random) {
+		this.random = random;
+	}
+
+	/**
+	 * Picks the interested neighbors with the highest rates. The fastest
+	 * neighbors are kept in a heap bounded by the number of preferred neighbors,
+	 * so a round takes O(n log k) for n neighbors instead of sorting all of them.
+	 *
+	 * @param neighbors          - neighbors which completed the handshake
+	 * @param preferredNeighbors - number of neighbors to unchoke
+	 * @param isSeed             - whether the current peer has the complete file
+	 * @return List of the peer IDs to unchoke
+	 */
+	public List<String> selectPreferredNeighbors(List<Neighbor> neighbors, int preferredNeighbors, boolean isSeed) {
+		ArrayList<String> unchokePeersList = new ArrayList<String>();
+		if (preferredNeighbors <= 0) {
+			return unchokePeersList;
+		}
+
+		ArrayList<Neighbor> interestedNeighbors = new ArrayList<Neighbor>();
+		for (Neighbor neighbor : neighbors) {
+			if (neighbor.isInterested()) {
+				interestedNeighbors.add(neighbor);
+			}
+		}
+
+		// a neighbor only displaces a strictly slower one, so visiting the neighbors
+		// in random order breaks the ties at random
+		Collections.shuffle(interestedNeighbors, random);
+		Comparator<Neighbor> byRate = Comparator.comparingDouble(neighbor -> neighbor.getRankingRate(isSeed));
+		PriorityQueue<Neighbor> fastestNeighbors = new PriorityQueue<Neighbor>(preferredNeighbors, byRate);
+		for (Neighbor neighbor : interestedNeighbors) {
+			if (fastestNeighbors.size() < preferredNeighbors) {
+				fastestNeighbors.add(neighbor);
+			} else if (byRate.compare(neighbor, fastestNeighbors.peek()) > 0) {
+				fastestNeighbors.poll();
+				fastestNeighbors.add(neighbor);
+			}
+		}
+
+		// the heap yields the slowest first
+		while (!fastestNeighbors.isEmpty()) {
+			unchokePeersList.add(fastestNeighbors.poll().getPeerId());
+		}
+		Collections.reverse(unchokePeersList);
+		return unchokePeersList;
+	}
+}
@@ -0,0 +1,203 @@
+package main.helper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import main.PeerController;
+import main.constants.Constants;
+import main.messageTypes.Peer;
+
+/**
+ * This class announces the current peer to the tracker for the swarm of the
+ * given controller. The first announce returns the peers the swarm starts
+ * with, and the peer then re-announces itself at the interval chosen by the
+ * tracker with its upload, download and left statistics, learning about the
+ * peers which joined in the meantime. The announces wait on the network, so
+ * they run on the network pool of the engine, and only the peers they return
+ * are handed to the timer of the swarm.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class TrackerHelper implements Runnable {
+
+	private PeerController controller;
+	private String trackerHost;
+	private int trackerPort;
+
+	private volatile int announceInterval = Constants.DEFAULT_TRACKER_INTERVAL; // seconds, as told by the tracker
+	private volatile int incompleteCount = -1; // incomplete peers of the swarm in the last announce
+	private volatile int finishedAnnounceCount = 0; // announces in a row without incomplete peers
+	private volatile boolean hasServedSwarm = false; // whether the swarm had incomplete peers at all
+	private volatile boolean isDestroyed = false;
+
+	private TimerWheelHelper.Timeout process = null;
+
+	/**
+	 * Returns a new tracker helper for the swarm of the given controller
+	 *
+	 * @param controller     - controller of the swarm which is announced
+	 * @param trackerAddress - address of the tracker as host:port
+	 * @return TrackerHelper or null if the address is invalid
+	 */
+	public static TrackerHelper getNewInstance(PeerController controller, String trackerAddress) {
+		if (controller == null || trackerAddress == null) {
+			return null;
+		}
+
+		int separator = trackerAddress.lastIndexOf(':');
+		if (separator <= 0) {
+			System.out.printf("The tracker address %s is not of the form host:port\n", trackerAddress);
+			return null;
+		}
+
+		TrackerHelper trackerHelper = new TrackerHelper();
+		trackerHelper.controller = controller;
+		trackerHelper.trackerHost = trackerAddress.substring(0, separator);
+		try {
+			trackerHelper.trackerPort = Integer.parseInt(trackerAddress.substring(separator + 1));
+		} catch (NumberFormatException e) {
+			System.out.printf("The tracker address %s has an invalid port\n", trackerAddress);
+			return null;
+		}
+		return trackerHelper;
+	}
+
+	/**
+	 * Announces the current peer to the tracker with the given event.
+	 *
+	 * @param event - started, completed, stopped or none
+	 * @return List - the peers of the swarm sampled by the tracker
+	 * @throws IOException if the tracker cannot be reached or rejects the announce
+	 */
+	public List<Peer> announce(String event) throws IOException {
+		String peerId = controller.getPeerId();
+		String request = String.format("%s %s %s %d %d %d %d %s %d\n", Constants.TRACKER_ANNOUNCE,
+				controller.getSwarm().getInfoHashHex(), peerId, controller.getPort(), controller.getUploadedBytes(),
+				controller.getDownloadedBytes(), controller.getPieceHelper().getBytesLeft(), event,
+				Constants.TRACKER_NUM_WANT);
+
+		List<Peer> peers = new ArrayList<Peer>();
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(trackerHost, trackerPort), Constants.TRACKER_TIMEOUT);
+			socket.setSoTimeout(Constants.TRACKER_TIMEOUT);
+			PrintWriter writer = new PrintWriter(socket.getOutputStream());
+			writer.print(request);
+			writer.flush();
+
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+			String row;
+			while ((row = reader.readLine()) != null && !row.equals(Constants.TRACKER_END)) {
+				String[] tokens = row.split(" ");
+				if (tokens[0].equals(Constants.TRACKER_ERROR)) {
+					throw new IOException("tracker rejected the announce: " + row);
+				} else if (tokens[0].equals(Constants.TRACKER_INTERVAL)) {
+					announceInterval = Math.max(1, Integer.parseInt(tokens[1]));
+					incompleteCount = Integer.parseInt(tokens[3]);
+				} else if (tokens[0].equals(Constants.TRACKER_PEER)) {
+					peers.add(new Peer(tokens[1], tokens[2], tokens[3], tokens.length > 4 ? tokens[4] : "0"));
+				}
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("malformed tracker response", e);
+		}
+
+		// a seed which hasn't seen a single incomplete peer yet keeps waiting for them
+		hasServedSwarm = hasServedSwarm || incompleteCount > 0;
+		finishedAnnounceCount = hasServedSwarm && incompleteCount == 0 ? finishedAnnounceCount + 1 : 0;
+		controller.getLogger().debug(Constants.TRACKER_ANNOUNCE_LOG_MESSAGE, peerId, event,
+				controller.getSwarm().getInfoHashHex(), peers.size());
+		return peers;
+	}
+
+	/**
+	 * This function re-announces the current peer and hands the peers received
+	 * from the tracker to the controller on the timer of the swarm, and then
+	 * schedules the next announce. Runs on the network pool.
+	 *
+	 * @return null
+	 */
+	public void run() {
+		try {
+			List<Peer> peers = announce(Constants.TRACKER_EVENT_NONE);
+			controller.getTimer().execute(() -> controller.handleTrackerPeers(peers));
+		} catch (IOException e) {
+			System.out.printf("Exception occured while announcing to the tracker. Message: %s\n", e.getMessage());
+		} finally {
+			start();
+		}
+	}
+
+	/**
+	 * Schedules the next announce after the interval chosen by the tracker. The
+	 * timer only hands the announce to the network pool.
+	 *
+	 * @return null
+	 */
+	public synchronized void start() {
+		if (!isDestroyed) {
+			process = controller.getTimer().schedule(() -> controller.getNetworkPool().execute(this),
+					announceInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Tells the tracker that the current peer has completed the file, without
+	 * waiting for the announce.
+	 *
+	 * @return null
+	 */
+	public void announceCompleted() {
+		controller.getNetworkPool().execute(() -> {
+			try {
+				announce(Constants.TRACKER_EVENT_COMPLETED);
+			} catch (IOException e) {
+				System.out.printf("Exception occured while announcing to the tracker. Message: %s\n",
+						e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * checks whether the tracker reported no incomplete peers in the last few
+	 * announces, after which the current peer may leave the swarm.
+	 *
+	 * @return boolean
+	 */
+	public boolean isSwarmFinished() {
+		return finishedAnnounceCount >= Constants.TRACKER_FINISHED_ANNOUNCES;
+	}
+
+	/**
+	 * Cancels the announces and tells the tracker that the current peer leaves
+	 * the swarm. The engine waits for the network pool before the process exits,
+	 * so the last announce isn't lost.
+	 *
+	 * @return null
+	 */
+	public void destroy() {
+		synchronized (this) {
+			isDestroyed = true;
+			if (process != null) {
+				process.cancel();
+			}
+		}
+
+		controller.getNetworkPool().execute(() -> {
+			try {
+				announce(Constants.TRACKER_EVENT_STOPPED);
+			} catch (IOException e) {
+				System.out.printf("Exception occured while announcing to the tracker. Message: %s\n",
+						e.getMessage());
+			}
+		});
+	}
+}
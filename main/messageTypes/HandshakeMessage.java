@@ -14,6 +14,7 @@ public class HandshakeMessage implements PeerMessageType {
     private int messageNumber;
     private String header;
     private String ID;
+    private byte[] infoHash;
 
     /**
      * Constructor to create a HandshakeMessage and attach a message number.
@@ -52,6 +53,24 @@ public class HandshakeMessage implements PeerMessageType {
         return ID;
     }
 
+    /**
+     * Set the info-hash of the swarm for which the connection is made.
+     *
+     * @param infoHash The info-hash to set
+     */
+    public void setInfoHash(byte[] infoHash) {
+        this.infoHash = infoHash;
+    }
+
+    /**
+     * Get the info-hash of the swarm for which the connection is made.
+     *
+     * @return The info-hash
+     */
+    public byte[] getInfoHash() {
+        return infoHash;
+    }
+
     /**
      * Get the message type of the HandshakeMessage.
      *
@@ -1,5 +1,6 @@
 package main.messageTypes;
 
+import main.constants.Constants;
 import main.helper.BitFieldHelper;
 
 /**
@@ -14,6 +15,9 @@ public class PeerMessage implements PeerMessageType {
     private Piece data;
     private BitFieldHelper manageBitFields = null;
     private int index;
+    private int begin;
+    private int[] indices = null;
+    private int[] begins = null;
     private int length;
 
     private int messageType;
@@ -93,6 +97,69 @@ public class PeerMessage implements PeerMessageType {
         this.index = index;
     }
 
+    /**
+     * Get all the piece indices carried by the PeerMessage. A request message may
+     * ask for several pieces in a single frame; for messages carrying a single
+     * index this returns that index.
+     *
+     * @return The piece indices
+     */
+    public int[] getIndices() {
+        return indices != null ? indices : new int[] { index };
+    }
+
+    /**
+     * Set the piece indices carried by the PeerMessage. The first index is also
+     * returned by getIndex.
+     *
+     * @param indices The piece indices to set
+     */
+    public void setIndices(int[] indices) {
+        this.indices = indices;
+        this.index = indices[0];
+    }
+
+    /**
+     * Get the offset of the block within the piece given by getIndex.
+     *
+     * @return The block offset in bytes
+     */
+    public int getBegin() {
+        return begin;
+    }
+
+    /**
+     * Set the offset of the block within the piece given by getIndex.
+     *
+     * @param begin The block offset to set
+     */
+    public void setBegin(int begin) {
+        this.begin = begin;
+    }
+
+    /**
+     * Get the block offsets carried by the PeerMessage, one per piece index
+     * returned by getIndices.
+     *
+     * @return The block offsets
+     */
+    public int[] getBegins() {
+        return begins != null ? begins : new int[] { begin };
+    }
+
+    /**
+     * Set the blocks carried by a request message. Both arrays must have the same
+     * length; the i-th block starts at begins[i] within the piece indices[i].
+     *
+     * @param indices The piece indices of the blocks
+     * @param begins  The offsets of the blocks within their pieces
+     */
+    public void setBlocks(int[] indices, int[] begins) {
+        setIndices(indices);
+        this.begins = begins;
+        this.begin = begins[0];
+    }
+
     /**
      * Get the data segment associated with the PeerMessage.
      *
@@ -160,4 +227,15 @@ public class PeerMessage implements PeerMessageType {
         return "";
     }
 
+    /**
+     * Check whether the PeerMessage is a piece message whose data has to be
+     * streamed from the download file instead of being carried in memory. The
+     * length of such a message holds the size of the block.
+     *
+     * @return true if the piece data is read from the file while sending
+     */
+    public boolean isFileRegion() {
+        return messageType == Constants.TYPE_PIECE_MESSAGE && data == null;
+    }
+
 }
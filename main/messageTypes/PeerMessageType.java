@@ -1,14 +1,12 @@
 package main.messageTypes;
 
-import java.io.*;
-
 /**
  * The `PeerMessageType` interface represents the common structure for message
  * types exchanged between peers in a peer-to-peer network.
  * 
  * @author Adithya KNG
  */
-public interface PeerMessageType extends Serializable {
+public interface PeerMessageType {
 
     /**
      * Get the length of the message.
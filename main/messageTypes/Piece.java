@@ -1,13 +1,11 @@
 package main.messageTypes;
 
-import java.io.Serializable;
-
 /**
  * This class represents the message of type "Piece"
  * 
  * @author Adithya KNG
  */
-public class Piece implements Serializable {
+public class Piece {
     private byte[] data;
     private int size;
 
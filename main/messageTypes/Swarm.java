@@ -0,0 +1,191 @@
+package main.messageTypes;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import main.constants.Constants;
+
+/**
+ * Swarm class represents one file which is shared by the peers. A swarm is
+ * identified by its info-hash, which the peers exchange in the handshake so
+ * that a single process can serve several files over one listener. A swarm may
+ * be configured with the piece hash root, the SHA-256 digest of the digests of
+ * all its pieces back to back, which is part of the info-hash and against which
+ * the piece hashes received from the neighbors are checked.
+ *
+ * @author Sharan Sai Reddy Konda
+ */
+public class Swarm {
+
+    private String fileName;
+    private long fileSize;
+    private int pieceSize;
+    private int priority;
+    private byte[] pieceHashRoot; // null if no piece hash root is configured
+    private byte[] infoHash;
+
+    /**
+     * Constructor to create a Swarm object with provided information.
+     *
+     * @param fileName  The name of the shared file
+     * @param fileSize  The size of the shared file in bytes
+     * @param pieceSize The size of a piece in bytes
+     * @param priority  The weight of the swarm in the upload bandwidth budget
+     */
+    public Swarm(String fileName, long fileSize, int pieceSize, int priority) {
+        this(fileName, fileSize, pieceSize, priority, null);
+    }
+
+    /**
+     * Constructor to create a Swarm object with provided information.
+     *
+     * @param fileName      The name of the shared file
+     * @param fileSize      The size of the shared file in bytes
+     * @param pieceSize     The size of a piece in bytes
+     * @param priority      The weight of the swarm in the upload bandwidth budget
+     * @param pieceHashRoot The digest of the packed piece hashes, or null
+     */
+    public Swarm(String fileName, long fileSize, int pieceSize, int priority, byte[] pieceHashRoot) {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.priority = Math.max(1, priority);
+        this.pieceHashRoot = pieceHashRoot;
+        this.infoHash = computeInfoHash(fileName, fileSize, pieceSize, pieceHashRoot);
+    }
+
+    /**
+     * Compute the info-hash of a swarm from the description of its file, so that
+     * every peer derives the same info-hash from the same configuration. Swarms
+     * of the same file with different piece hash roots get different info-hashes.
+     *
+     * @param fileName      The name of the shared file
+     * @param fileSize      The size of the shared file in bytes
+     * @param pieceSize     The size of a piece in bytes
+     * @param pieceHashRoot The digest of the packed piece hashes, or null
+     * @return The info-hash
+     */
+    private static byte[] computeInfoHash(String fileName, long fileSize, int pieceSize, byte[] pieceHashRoot) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(Constants.INFO_HASH_ALGORITHM);
+            String description = String.format("%s:%d:%d", fileName, fileSize, pieceSize);
+            if (pieceHashRoot != null) {
+                description += ":" + toHex(pieceHashRoot);
+            }
+            return digest.digest(description.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the name of the shared file.
+     *
+     * @return The file name
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Get the size of the shared file.
+     *
+     * @return The file size in bytes
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Get the size of a piece.
+     *
+     * @return The piece size in bytes
+     */
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    /**
+     * Get the number of pieces of the shared file.
+     *
+     * @return The number of pieces
+     */
+    public int getNumberOfPieces() {
+        return (int) ((fileSize + pieceSize - 1) / pieceSize);
+    }
+
+    /**
+     * Get the weight of the swarm in the upload bandwidth budget.
+     *
+     * @return The priority, at least 1
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Get the digest of the packed piece hashes which the swarm is configured
+     * with.
+     *
+     * @return The piece hash root, or null if none is configured
+     */
+    public byte[] getPieceHashRoot() {
+        return pieceHashRoot;
+    }
+
+    /**
+     * Get the info-hash which identifies the swarm in the handshake.
+     *
+     * @return The info-hash
+     */
+    public byte[] getInfoHash() {
+        return infoHash;
+    }
+
+    /**
+     * Get the info-hash as a hex string, used as the key of the swarm.
+     *
+     * @return The info-hash in hex
+     */
+    public String getInfoHashHex() {
+        return toHex(infoHash);
+    }
+
+    /**
+     * Convert an info-hash to a hex string.
+     *
+     * @param infoHash The info-hash
+     * @return The info-hash in hex
+     */
+    public static String toHex(byte[] infoHash) {
+        StringBuilder hex = new StringBuilder(infoHash.length * 2);
+        for (byte b : infoHash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Convert a hex string to bytes.
+     *
+     * @param hex The hex string
+     * @return The bytes, or null if the string isn't an even number of hex digits
+     */
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}